@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.benchmarks;
+
+import android.os.Bundle;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks {@link DefaultAllocator} shared by multiple players, against {@link
+ * SynchronizedAllocator}, which synchronizes every operation as {@link DefaultAllocator} used to.
+ *
+ * <p>Each thread simulates a player, allocating a batch of allocations as its loading thread would
+ * and releasing them as its playback thread would when discarding samples.
+ */
+@RunWith(Parameterized.class)
+public final class AllocatorBenchmarkTest {
+
+  private static final int BATCH_SIZE = 8;
+  private static final int BATCHES_PER_THREAD = 1_000;
+
+  @Parameters(name = "{0}_{1}threads")
+  public static List<Object[]> parameters() {
+    List<Object[]> parameters = new ArrayList<>();
+    for (String allocatorName : new String[] {"SynchronizedAllocator", "DefaultAllocator"}) {
+      for (int threadCount : new int[] {1, 2, 4, 8}) {
+        parameters.add(new Object[] {allocatorName, threadCount});
+      }
+    }
+    return parameters;
+  }
+
+  @Parameter(0)
+  public String allocatorName;
+
+  @Parameter(1)
+  public int threadCount;
+
+  private ExecutorService executorService;
+
+  @Before
+  public void setUp() {
+    executorService = Executors.newFixedThreadPool(threadCount);
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdown();
+  }
+
+  @Test
+  public void allocateAndRelease() throws Exception {
+    Allocator allocator =
+        allocatorName.equals("DefaultAllocator")
+            ? new DefaultAllocator(/* trimOnReset= */ false, C.DEFAULT_BUFFER_SEGMENT_SIZE)
+            : new SynchronizedAllocator(C.DEFAULT_BUFFER_SEGMENT_SIZE);
+    List<Future<?>> futures = new ArrayList<>();
+
+    BenchmarkRunner.Result result =
+        BenchmarkRunner.run(
+            () -> {
+              futures.clear();
+              for (int i = 0; i < threadCount; i++) {
+                futures.add(executorService.submit(() -> allocateAndRelease(allocator)));
+              }
+              for (Future<?> future : futures) {
+                future.get();
+              }
+            });
+
+    long operationsPerIteration = 2L * BATCH_SIZE * BATCHES_PER_THREAD * threadCount;
+    Bundle metrics = new Bundle();
+    metrics.putDouble(
+        "operationsPerSecond", operationsPerIteration * 1e9 / result.medianDurationNs);
+    metrics.putLong("medianNs", result.medianDurationNs);
+    metrics.putInt("iterations", result.iterations);
+    BenchmarkRunner.report(
+        "allocateAndRelease[" + allocatorName + "," + threadCount + "]", metrics);
+  }
+
+  private static void allocateAndRelease(Allocator allocator) {
+    Allocation[] allocations = new Allocation[BATCH_SIZE];
+    for (int i = 0; i < BATCHES_PER_THREAD; i++) {
+      for (int j = 0; j < BATCH_SIZE; j++) {
+        allocations[j] = allocator.allocate();
+      }
+      // Release half individually and half in bulk, as SampleDataQueue does.
+      for (int j = 0; j < BATCH_SIZE / 2; j++) {
+        allocator.release(allocations[j]);
+      }
+      allocator.release(Arrays.copyOfRange(allocations, BATCH_SIZE / 2, BATCH_SIZE));
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.benchmarks;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.util.Log;
+import java.util.Arrays;
+
+/**
+ * Runs an operation repeatedly, and measures its duration and the number of objects it allocates.
+ *
+ * <p>The durations can be configured with the {@code warmupMs} and {@code measureMs}
+ * instrumentation arguments.
+ */
+/* package */ final class BenchmarkRunner {
+
+  /** An operation to benchmark. */
+  public interface Operation {
+
+    /** Runs the operation once. */
+    void run() throws Exception;
+  }
+
+  /** The result of a benchmark. */
+  public static final class Result {
+
+    /** The number of measured iterations. */
+    public final int iterations;
+    /** The minimum duration of an iteration, in nanoseconds. */
+    public final long minDurationNs;
+    /** The median duration of an iteration, in nanoseconds. */
+    public final long medianDurationNs;
+    /** The average number of objects allocated by an iteration on the benchmarking thread. */
+    public final double allocationsPerIteration;
+
+    private Result(
+        int iterations, long minDurationNs, long medianDurationNs, double allocationsPerIteration) {
+      this.iterations = iterations;
+      this.minDurationNs = minDurationNs;
+      this.medianDurationNs = medianDurationNs;
+      this.allocationsPerIteration = allocationsPerIteration;
+    }
+  }
+
+  private static final String TAG = "ExoPlayerBenchmark";
+
+  private static final long DEFAULT_WARMUP_MS = 1_000;
+  private static final long DEFAULT_MEASURE_MS = 3_000;
+  private static final int MIN_MEASURED_ITERATIONS = 5;
+  private static final int MAX_MEASURED_ITERATIONS = 10_000;
+
+  private BenchmarkRunner() {}
+
+  /**
+   * Runs an operation until warmed up, and then measures it.
+   *
+   * @param operation The operation to benchmark.
+   * @return The {@link Result}.
+   * @throws Exception If the operation throws.
+   */
+  @SuppressWarnings("deprecation") // Allocation counting is deprecated, but still functional.
+  public static Result run(Operation operation) throws Exception {
+    long warmupEndMs =
+        SystemClock.elapsedRealtime() + getLongArgument("warmupMs", DEFAULT_WARMUP_MS);
+    do {
+      operation.run();
+    } while (SystemClock.elapsedRealtime() < warmupEndMs);
+
+    long[] durationsNs = new long[MAX_MEASURED_ITERATIONS];
+    int iterations = 0;
+    long measureEndMs =
+        SystemClock.elapsedRealtime() + getLongArgument("measureMs", DEFAULT_MEASURE_MS);
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    try {
+      do {
+        long startNs = System.nanoTime();
+        operation.run();
+        durationsNs[iterations++] = System.nanoTime() - startNs;
+      } while (iterations < MAX_MEASURED_ITERATIONS
+          && (iterations < MIN_MEASURED_ITERATIONS
+              || SystemClock.elapsedRealtime() < measureEndMs));
+    } finally {
+      Debug.stopAllocCounting();
+    }
+    double allocationsPerIteration = (double) Debug.getThreadAllocCount() / iterations;
+
+    long[] sortedDurationsNs = Arrays.copyOf(durationsNs, iterations);
+    Arrays.sort(sortedDurationsNs);
+    return new Result(
+        iterations,
+        sortedDurationsNs[0],
+        sortedDurationsNs[iterations / 2],
+        allocationsPerIteration);
+  }
+
+  /**
+   * Reports metrics to the instrumentation, so that they're included in its output, and to logcat.
+   *
+   * @param name The name of the benchmark.
+   * @param metrics The metrics to report.
+   */
+  public static void report(String name, Bundle metrics) {
+    Bundle status = new Bundle();
+    StringBuilder message = new StringBuilder(name);
+    for (String key : metrics.keySet()) {
+      String qualifiedKey = name + "." + key;
+      status.putString(qualifiedKey, String.valueOf(metrics.get(key)));
+      message.append(' ').append(key).append('=').append(metrics.get(key));
+    }
+    InstrumentationRegistry.getInstrumentation().sendStatus(/* resultCode= */ 0, status);
+    Log.i(TAG, message.toString());
+  }
+
+  /**
+   * Returns a floating point instrumentation argument, or {@code null} if it's not set.
+   *
+   * @param name The name of the argument.
+   */
+  @Nullable
+  public static Double getDoubleArgument(String name) {
+    @Nullable String value = getStringArgument(name);
+    return value != null ? Double.parseDouble(value) : null;
+  }
+
+  /**
+   * Returns an instrumentation argument, or {@code null} if it's not set.
+   *
+   * @param name The name of the argument.
+   */
+  @Nullable
+  public static String getStringArgument(String name) {
+    return InstrumentationRegistry.getArguments().getString(name);
+  }
+
+  private static long getLongArgument(String name, long defaultValue) {
+    @Nullable String value = InstrumentationRegistry.getArguments().getString(name);
+    return value != null ? Long.parseLong(value) : defaultValue;
+  }
+}
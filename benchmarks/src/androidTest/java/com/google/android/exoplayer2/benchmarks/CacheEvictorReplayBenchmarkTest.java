@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.benchmarks;
+
+import android.content.Context;
+import android.os.Bundle;
+import androidx.annotation.Nullable;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.upstream.cache.CacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.FrequencyBasedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Replays a trace of cache accesses against a {@link SimpleCache} with each {@link CacheEvictor},
+ * and reports the resulting hit ratios.
+ *
+ * <p>The trace is read from the file set by the {@code cacheTraceFile} instrumentation argument, in
+ * which each line describes a read of a segment as {@code key position length}. Segments of the
+ * same key must not overlap. If no trace is set, a synthetic trace is generated, in which most
+ * sessions replay the start of a few popular titles while others binge a title once.
+ */
+@RunWith(Parameterized.class)
+public final class CacheEvictorReplayBenchmarkTest {
+
+  private static final String EVICTOR_LRU = "lru";
+  private static final String EVICTOR_FREQUENCY = "frequency";
+
+  private static final long DEFAULT_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+
+  private static final int SYNTHETIC_SEED = 0;
+  private static final int SYNTHETIC_SESSION_COUNT = 500;
+  private static final int SYNTHETIC_TITLE_COUNT = 100;
+  private static final int SYNTHETIC_BINGE_INTERVAL = 10;
+  private static final int SYNTHETIC_BINGE_SEGMENT_COUNT = 200;
+  private static final int SYNTHETIC_MANIFEST_LENGTH = 50 * 1024;
+  private static final int SYNTHETIC_INIT_SEGMENT_LENGTH = 4 * 1024;
+  private static final int SYNTHETIC_SEGMENT_LENGTH = 512 * 1024;
+
+  @Parameters(name = "{0}")
+  public static List<String> evictorTypes() {
+    return Arrays.asList(EVICTOR_LRU, EVICTOR_FREQUENCY);
+  }
+
+  @Parameter public String evictorType;
+
+  private File cacheDir;
+  @Nullable private SimpleCache simpleCache;
+
+  @Before
+  public void setUp() throws Exception {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    cacheDir = Util.createTempDirectory(context, "ExoPlayerBenchmark");
+  }
+
+  @After
+  public void tearDown() {
+    if (simpleCache != null) {
+      simpleCache.release();
+    }
+    SimpleCache.delete(cacheDir, /* databaseProvider= */ null);
+  }
+
+  @Test
+  public void replay() throws Exception {
+    @Nullable Double maxMegabytes = BenchmarkRunner.getDoubleArgument("cacheMaxMegabytes");
+    long maxBytes =
+        maxMegabytes != null ? (long) (maxMegabytes * 1024 * 1024) : DEFAULT_CACHE_MAX_BYTES;
+    @Nullable String traceFile = BenchmarkRunner.getStringArgument("cacheTraceFile");
+    List<Access> trace = traceFile != null ? readTrace(traceFile) : createSyntheticTrace();
+
+    CacheEvictor evictor =
+        EVICTOR_FREQUENCY.equals(evictorType)
+            ? new FrequencyBasedCacheEvictor(maxBytes)
+            : new LeastRecentlyUsedCacheEvictor(maxBytes);
+    SimpleCache simpleCache = new SimpleCache(cacheDir, evictor);
+    this.simpleCache = simpleCache;
+    int hits = 0;
+    long bytes = 0;
+    long hitBytes = 0;
+    for (int i = 0; i < trace.size(); i++) {
+      Access access = trace.get(i);
+      bytes += access.length;
+      if (simpleCache.isCached(access.key, access.position, access.length)) {
+        // Reading the span touches it.
+        simpleCache.startReadWrite(access.key, access.position, access.length);
+        hits++;
+        hitBytes += access.length;
+      } else {
+        addSpan(simpleCache, access);
+      }
+    }
+
+    Bundle metrics = new Bundle();
+    metrics.putDouble("hitRatio", (double) hits / trace.size());
+    metrics.putDouble("byteHitRatio", (double) hitBytes / bytes);
+    metrics.putInt("accesses", trace.size());
+    metrics.putLong("cacheMaxBytes", maxBytes);
+    BenchmarkRunner.report("cacheEvictorReplay[" + evictorType + "]", metrics);
+  }
+
+  private static void addSpan(SimpleCache simpleCache, Access access) throws Exception {
+    CacheSpan holeSpan = simpleCache.startReadWrite(access.key, access.position, access.length);
+    File file = simpleCache.startFile(access.key, access.position, access.length);
+    // The content doesn't matter, so avoid writing it.
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      randomAccessFile.setLength(access.length);
+    }
+    simpleCache.commitFile(file, access.length);
+    simpleCache.releaseHoleSpan(holeSpan);
+  }
+
+  private static List<Access> readTrace(String path) throws IOException {
+    List<Access> trace = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+      @Nullable String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = Util.split(line.trim(), " ");
+        if (fields.length == 3 && Long.parseLong(fields[2]) > 0) {
+          trace.add(
+              new Access(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+        }
+      }
+    }
+    return trace;
+  }
+
+  private static List<Access> createSyntheticTrace() {
+    Random random = new Random(SYNTHETIC_SEED);
+    List<Access> trace = new ArrayList<>();
+    for (int session = 0; session < SYNTHETIC_SESSION_COUNT; session++) {
+      String title;
+      int segmentCount;
+      if (session % SYNTHETIC_BINGE_INTERVAL == 0) {
+        // A long title that's watched once.
+        title = "binge" + session;
+        segmentCount = SYNTHETIC_BINGE_SEGMENT_COUNT;
+      } else {
+        // Skew towards popular titles, whose start is watched repeatedly.
+        double skew = random.nextDouble();
+        title = "title" + (int) (skew * skew * skew * SYNTHETIC_TITLE_COUNT);
+        segmentCount = 1 + random.nextInt(20);
+      }
+      trace.add(new Access(title + "/manifest", 0, SYNTHETIC_MANIFEST_LENGTH));
+      trace.add(new Access(title + "/init", 0, SYNTHETIC_INIT_SEGMENT_LENGTH));
+      for (int i = 0; i < segmentCount; i++) {
+        trace.add(
+            new Access(
+                title + "/media",
+                (long) i * SYNTHETIC_SEGMENT_LENGTH,
+                SYNTHETIC_SEGMENT_LENGTH));
+      }
+    }
+    return trace;
+  }
+
+  private static final class Access {
+
+    public final String key;
+    public final long position;
+    public final long length;
+
+    public Access(String key, long position, long length) {
+      this.key = key;
+      this.position = position;
+      this.length = length;
+    }
+  }
+}
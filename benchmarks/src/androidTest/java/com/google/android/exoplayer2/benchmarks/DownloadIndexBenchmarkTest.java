@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.benchmarks;
+
+import android.content.Context;
+import android.os.Bundle;
+import androidx.annotation.Nullable;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.offline.BatchingDownloadIndex;
+import com.google.android.exoplayer2.offline.DefaultDownloadIndex;
+import com.google.android.exoplayer2.offline.Download;
+import com.google.android.exoplayer2.offline.WritableDownloadIndex;
+import com.google.android.exoplayer2.testutil.DownloadBuilder;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks writing a round of progress updates for many queued downloads, as {@link
+ * com.google.android.exoplayer2.offline.DownloadManager} does periodically, to a {@link
+ * DefaultDownloadIndex} and to a {@link BatchingDownloadIndex}.
+ */
+@RunWith(Parameterized.class)
+public final class DownloadIndexBenchmarkTest {
+
+  private static final String INDEX_DEFAULT = "default";
+  private static final String INDEX_BATCHING = "batching";
+
+  private static final int DOWNLOAD_COUNT = 500;
+  private static final long CONTENT_LENGTH = 100 * 1024 * 1024;
+
+  @Parameters(name = "{0}")
+  public static List<String> indexTypes() {
+    return Arrays.asList(INDEX_DEFAULT, INDEX_BATCHING);
+  }
+
+  @Parameter public String indexType;
+
+  private Context context;
+  @Nullable private ExoDatabaseProvider databaseProvider;
+
+  @Before
+  public void setUp() {
+    context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    context.deleteDatabase(ExoDatabaseProvider.DATABASE_NAME);
+    databaseProvider = new ExoDatabaseProvider(context);
+  }
+
+  @After
+  public void tearDown() {
+    if (databaseProvider != null) {
+      databaseProvider.close();
+    }
+    context.deleteDatabase(ExoDatabaseProvider.DATABASE_NAME);
+  }
+
+  @Test
+  public void putProgressUpdates() throws Exception {
+    DefaultDownloadIndex defaultDownloadIndex = new DefaultDownloadIndex(databaseProvider);
+    @Nullable BatchingDownloadIndex batchingDownloadIndex = null;
+    WritableDownloadIndex downloadIndex = defaultDownloadIndex;
+    if (INDEX_BATCHING.equals(indexType)) {
+      // Only flush explicitly, at the end of each round.
+      batchingDownloadIndex =
+          new BatchingDownloadIndex(defaultDownloadIndex, /* flushIntervalMs= */ Long.MAX_VALUE);
+      downloadIndex = batchingDownloadIndex;
+    }
+    for (int i = 0; i < DOWNLOAD_COUNT; i++) {
+      downloadIndex.putDownload(createDownload(i, /* bytesDownloaded= */ 0));
+    }
+
+    long[] round = new long[1];
+    WritableDownloadIndex finalDownloadIndex = downloadIndex;
+    @Nullable BatchingDownloadIndex finalBatchingDownloadIndex = batchingDownloadIndex;
+    BenchmarkRunner.Result result =
+        BenchmarkRunner.run(
+            () -> {
+              long bytesDownloaded = ++round[0] % CONTENT_LENGTH;
+              for (int i = 0; i < DOWNLOAD_COUNT; i++) {
+                finalDownloadIndex.putDownload(createDownload(i, bytesDownloaded));
+              }
+              if (finalBatchingDownloadIndex != null) {
+                finalBatchingDownloadIndex.flush();
+              }
+            });
+
+    Bundle metrics = new Bundle();
+    metrics.putLong("medianUs", result.medianDurationNs / 1_000);
+    metrics.putDouble("writesPerSecond", DOWNLOAD_COUNT * 1e9 / result.medianDurationNs);
+    metrics.putInt("downloads", DOWNLOAD_COUNT);
+    metrics.putInt("iterations", result.iterations);
+    BenchmarkRunner.report("putProgressUpdates[" + indexType + "]", metrics);
+  }
+
+  private static Download createDownload(int index, long bytesDownloaded) {
+    return new DownloadBuilder("id" + index)
+        .setUri("https://example.com/media" + index)
+        .setState(Download.STATE_DOWNLOADING)
+        .setContentLength(CONTENT_LENGTH)
+        .setBytesDownloaded(bytesDownloaded)
+        .setPercentDownloaded(bytesDownloaded * 100f / CONTENT_LENGTH)
+        .build();
+  }
+}
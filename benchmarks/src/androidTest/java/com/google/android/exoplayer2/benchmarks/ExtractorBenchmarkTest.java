@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.benchmarks;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import androidx.annotation.Nullable;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.extractor.DummyTrackOutput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataReader;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks the extractors created by {@link DefaultExtractorsFactory} on the test assets.
+ *
+ * <p>Each asset is extracted by the first extractor that sniffs it, reading from memory through a
+ * {@link DefaultExtractorInput} as a progressive load would, and discarding the sample data. The
+ * throughput in MB/s and the number of objects allocated per sample are reported. If the {@code
+ * minExtractorMegabytesPerSecond} instrumentation argument is set, benchmarks with a lower
+ * throughput fail.
+ */
+@RunWith(Parameterized.class)
+public final class ExtractorBenchmarkTest {
+
+  private static final String[] ASSET_DIRECTORIES =
+      new String[] {"amr", "flac", "flv", "mka", "mkv", "mp3", "mp4", "ogg", "ts", "wav"};
+
+  @Parameters(name = "{0}")
+  public static List<String> assetPaths() throws IOException {
+    Context context = InstrumentationRegistry.getInstrumentation().getContext();
+    List<String> assetPaths = new ArrayList<>();
+    for (String directory : ASSET_DIRECTORIES) {
+      for (String fileName : context.getAssets().list(directory)) {
+        // Skip the expected extractor output of the extractor tests.
+        if (!fileName.endsWith(".dump")) {
+          assetPaths.add(directory + "/" + fileName);
+        }
+      }
+    }
+    return assetPaths;
+  }
+
+  @Parameter public String assetPath;
+
+  @Test
+  public void extract() throws Exception {
+    Context context = InstrumentationRegistry.getInstrumentation().getContext();
+    byte[] data = TestUtil.getByteArray(context, assetPath);
+    @Nullable Class<? extends Extractor> extractorClass = sniffExtractorClass(data);
+    assumeTrue("No extractor sniffed " + assetPath, extractorClass != null);
+    CountingExtractorOutput output = new CountingExtractorOutput();
+
+    BenchmarkRunner.Result result =
+        BenchmarkRunner.run(
+            () -> extractAll(extractorClass.getConstructor().newInstance(), data, output));
+
+    double megabytesPerSecond = data.length * 1000d / result.medianDurationNs;
+    long samplesPerIteration = output.sampleCount / output.extractionCount;
+    Bundle metrics = new Bundle();
+    metrics.putString("extractor", extractorClass.getSimpleName());
+    metrics.putDouble("megabytesPerSecond", megabytesPerSecond);
+    metrics.putLong("samples", samplesPerIteration);
+    metrics.putDouble(
+        "allocationsPerSample",
+        result.allocationsPerIteration / Math.max(1, samplesPerIteration));
+    metrics.putLong("medianNs", result.medianDurationNs);
+    metrics.putInt("iterations", result.iterations);
+    BenchmarkRunner.report("extract[" + assetPath + "]", metrics);
+
+    @Nullable
+    Double minMegabytesPerSecond =
+        BenchmarkRunner.getDoubleArgument("minExtractorMegabytesPerSecond");
+    if (minMegabytesPerSecond != null) {
+      assertTrue(
+          assetPath + " extracted at " + megabytesPerSecond + " MB/s",
+          megabytesPerSecond >= minMegabytesPerSecond);
+    }
+  }
+
+  @Nullable
+  private static Class<? extends Extractor> sniffExtractorClass(byte[] data) throws IOException {
+    for (Extractor extractor : new DefaultExtractorsFactory().createExtractors()) {
+      ByteArrayDataSource dataSource = new ByteArrayDataSource(data);
+      try {
+        long length = dataSource.open(new DataSpec(Uri.EMPTY));
+        if (extractor.sniff(new DefaultExtractorInput(dataSource, /* position= */ 0, length))) {
+          return extractor.getClass();
+        }
+      } finally {
+        dataSource.close();
+      }
+    }
+    return null;
+  }
+
+  /** Extracts all samples from the data, in the same way as a progressive load. */
+  private static void extractAll(Extractor extractor, byte[] data, CountingExtractorOutput output)
+      throws IOException {
+    ByteArrayDataSource dataSource = new ByteArrayDataSource(data);
+    PositionHolder positionHolder = new PositionHolder();
+    extractor.init(output);
+    long position = 0;
+    boolean sniffed = false;
+    int result = Extractor.RESULT_CONTINUE;
+    while (result != Extractor.RESULT_END_OF_INPUT) {
+      long length = dataSource.open(new DataSpec(Uri.EMPTY, position, C.LENGTH_UNSET));
+      try {
+        ExtractorInput input = new DefaultExtractorInput(dataSource, position, position + length);
+        if (!sniffed) {
+          // Some extractors rely on having sniffed the input before reading it.
+          extractor.sniff(input);
+          input.resetPeekPosition();
+          sniffed = true;
+        }
+        while (result == Extractor.RESULT_CONTINUE) {
+          result = extractor.read(input, positionHolder);
+        }
+      } finally {
+        Util.closeQuietly(dataSource);
+      }
+      if (result == Extractor.RESULT_SEEK) {
+        position = positionHolder.position;
+        result = Extractor.RESULT_CONTINUE;
+      }
+    }
+    extractor.release();
+    output.extractionCount++;
+  }
+
+  /** An {@link ExtractorOutput} that counts and discards samples. */
+  private static final class CountingExtractorOutput implements ExtractorOutput {
+
+    public long extractionCount;
+    public long sampleCount;
+
+    @Override
+    public TrackOutput track(int id, int type) {
+      return new CountingTrackOutput();
+    }
+
+    @Override
+    public void endTracks() {
+      // Do nothing.
+    }
+
+    @Override
+    public void seekMap(SeekMap seekMap) {
+      // Do nothing.
+    }
+
+    private final class CountingTrackOutput implements TrackOutput {
+
+      private final DummyTrackOutput dummyTrackOutput;
+
+      public CountingTrackOutput() {
+        dummyTrackOutput = new DummyTrackOutput();
+      }
+
+      @Override
+      public void format(Format format) {
+        // Do nothing.
+      }
+
+      @Override
+      public int sampleData(
+          DataReader input,
+          int length,
+          boolean allowEndOfInput,
+          @SampleDataPart int sampleDataPart)
+          throws IOException {
+        return dummyTrackOutput.sampleData(input, length, allowEndOfInput, sampleDataPart);
+      }
+
+      @Override
+      public void sampleData(
+          ParsableByteArray data, int length, @SampleDataPart int sampleDataPart) {
+        dummyTrackOutput.sampleData(data, length, sampleDataPart);
+      }
+
+      @Override
+      public void sampleMetadata(
+          long timeUs,
+          @C.BufferFlags int flags,
+          int size,
+          int offset,
+          @Nullable CryptoData cryptoData) {
+        sampleCount++;
+      }
+    }
+  }
+}
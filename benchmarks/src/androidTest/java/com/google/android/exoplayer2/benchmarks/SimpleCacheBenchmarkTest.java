@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.benchmarks;
+
+import android.content.Context;
+import android.os.Bundle;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks concurrent lookups in a {@link SimpleCache}, with each thread reading a different
+ * key, as when several downloads or players share a cache.
+ */
+@RunWith(Parameterized.class)
+public final class SimpleCacheBenchmarkTest {
+
+  private static final int SPAN_COUNT = 16;
+  private static final int SPAN_LENGTH = 1024;
+  private static final int LOOKUPS_PER_THREAD = 1_000;
+
+  @Parameters(name = "{0}threads")
+  public static List<Integer> threadCounts() {
+    List<Integer> threadCounts = new ArrayList<>();
+    threadCounts.add(1);
+    threadCounts.add(2);
+    threadCounts.add(4);
+    threadCounts.add(8);
+    return threadCounts;
+  }
+
+  @Parameter public int threadCount;
+
+  private File cacheDir;
+  private SimpleCache simpleCache;
+  private ExecutorService executorService;
+
+  @Before
+  public void setUp() throws Exception {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    cacheDir = Util.createTempDirectory(context, "ExoPlayerBenchmark");
+    simpleCache =
+        new SimpleCache(cacheDir, new NoOpCacheEvictor(), new ExoDatabaseProvider(context));
+    for (int i = 0; i < threadCount; i++) {
+      for (int j = 0; j < SPAN_COUNT; j++) {
+        addSpan("key" + i, /* position= */ (long) j * SPAN_LENGTH);
+      }
+    }
+    executorService = Executors.newFixedThreadPool(threadCount);
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdown();
+    simpleCache.release();
+    Util.recursiveDelete(cacheDir);
+  }
+
+  @Test
+  public void lookUpSpans() throws Exception {
+    List<Future<?>> futures = new ArrayList<>();
+
+    BenchmarkRunner.Result result =
+        BenchmarkRunner.run(
+            () -> {
+              futures.clear();
+              for (int i = 0; i < threadCount; i++) {
+                String key = "key" + i;
+                futures.add(executorService.submit(() -> lookUpSpans(key)));
+              }
+              for (Future<?> future : futures) {
+                future.get();
+              }
+            });
+
+    long lookupsPerIteration = (long) LOOKUPS_PER_THREAD * threadCount;
+    Bundle metrics = new Bundle();
+    metrics.putDouble("lookupsPerSecond", lookupsPerIteration * 1e9 / result.medianDurationNs);
+    metrics.putLong("medianNs", result.medianDurationNs);
+    metrics.putInt("iterations", result.iterations);
+    BenchmarkRunner.report("lookUpSpans[" + threadCount + "]", metrics);
+  }
+
+  private Void lookUpSpans(String key) throws Exception {
+    long contentLength = (long) SPAN_COUNT * SPAN_LENGTH;
+    for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+      long position = (long) (i % SPAN_COUNT) * SPAN_LENGTH;
+      simpleCache.getCachedBytes(key, /* position= */ 0, contentLength);
+      simpleCache.startReadWriteNonBlocking(key, position, SPAN_LENGTH);
+    }
+    return null;
+  }
+
+  private void addSpan(String key, long position) throws Exception {
+    CacheSpan holeSpan = simpleCache.startReadWrite(key, position, SPAN_LENGTH);
+    File file = simpleCache.startFile(key, position, SPAN_LENGTH);
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(new byte[SPAN_LENGTH]);
+    }
+    simpleCache.commitFile(file, SPAN_LENGTH);
+    simpleCache.releaseHoleSpan(holeSpan);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.os.Bundle;
+import androidx.annotation.Nullable;
+import androidx.test.platform.app.InstrumentationRegistry;
+import com.google.android.exoplayer2.database.DatabaseProvider;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadataMutations;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Benchmarks loading and storing the index of a {@link SimpleCache} containing many keys, for each
+ * of the legacy, database and journal index storages.
+ */
+@RunWith(Parameterized.class)
+public final class SimpleCacheIndexBenchmarkTest {
+
+  private static final String INDEX_LEGACY = "legacy";
+  private static final String INDEX_DATABASE = "database";
+  private static final String INDEX_JOURNAL = "journal";
+
+  private static final int KEY_COUNT = 2_000;
+
+  @Parameters(name = "{0}")
+  public static List<String> indexTypes() {
+    return Arrays.asList(INDEX_LEGACY, INDEX_DATABASE, INDEX_JOURNAL);
+  }
+
+  @Parameter public String indexType;
+
+  private File cacheDir;
+  @Nullable private DatabaseProvider databaseProvider;
+  @Nullable private SimpleCache simpleCache;
+
+  @Before
+  public void setUp() throws Exception {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    cacheDir = Util.createTempDirectory(context, "ExoPlayerBenchmark");
+    if (!INDEX_LEGACY.equals(indexType)) {
+      databaseProvider = new ExoDatabaseProvider(context);
+    }
+    SimpleCache simpleCache = createSimpleCache();
+    for (int i = 0; i < KEY_COUNT; i++) {
+      addSpan(simpleCache, "key" + i);
+    }
+    this.simpleCache = simpleCache;
+  }
+
+  @After
+  public void tearDown() {
+    if (simpleCache != null) {
+      simpleCache.release();
+    }
+    SimpleCache.delete(cacheDir, databaseProvider);
+  }
+
+  @Test
+  public void load() throws Exception {
+    simpleCache.release();
+    simpleCache = null;
+
+    BenchmarkRunner.Result result =
+        BenchmarkRunner.run(
+            () -> {
+              SimpleCache simpleCache = createSimpleCache();
+              // Block until the cache has loaded its index.
+              assertEquals(KEY_COUNT, simpleCache.getKeys().size());
+              simpleCache.release();
+            });
+
+    Bundle metrics = new Bundle();
+    metrics.putLong("medianMs", result.medianDurationNs / 1_000_000);
+    metrics.putInt("keys", KEY_COUNT);
+    metrics.putInt("iterations", result.iterations);
+    BenchmarkRunner.report("loadIndex[" + indexType + "]", metrics);
+  }
+
+  @Test
+  public void storeUpdate() throws Exception {
+    long[] contentLength = new long[1];
+
+    BenchmarkRunner.Result result =
+        BenchmarkRunner.run(
+            () -> {
+              ContentMetadataMutations mutations = new ContentMetadataMutations();
+              ContentMetadataMutations.setContentLength(mutations, ++contentLength[0]);
+              // Updating the metadata of a single key stores the index.
+              simpleCache.applyContentMetadataMutations(
+                  "key" + (contentLength[0] % KEY_COUNT), mutations);
+            });
+
+    Bundle metrics = new Bundle();
+    metrics.putLong("medianUs", result.medianDurationNs / 1_000);
+    metrics.putInt("keys", KEY_COUNT);
+    metrics.putInt("iterations", result.iterations);
+    BenchmarkRunner.report("storeIndexUpdate[" + indexType + "]", metrics);
+  }
+
+  private SimpleCache createSimpleCache() {
+    switch (indexType) {
+      case INDEX_JOURNAL:
+        return SimpleCache.createWithJournalIndex(
+            cacheDir, new NoOpCacheEvictor(), databaseProvider);
+      case INDEX_DATABASE:
+        return new SimpleCache(cacheDir, new NoOpCacheEvictor(), databaseProvider);
+      case INDEX_LEGACY:
+      default:
+        return new SimpleCache(
+            cacheDir,
+            new NoOpCacheEvictor(),
+            /* databaseProvider= */ null,
+            /* legacyIndexSecretKey= */ null,
+            /* legacyIndexEncrypt= */ false,
+            /* preferLegacyIndex= */ true);
+    }
+  }
+
+  private static void addSpan(SimpleCache simpleCache, String key) throws Exception {
+    CacheSpan holeSpan = simpleCache.startReadWrite(key, /* position= */ 0, /* length= */ 1);
+    File file = simpleCache.startFile(key, /* position= */ 0, /* length= */ 1);
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(0);
+    }
+    simpleCache.commitFile(file, /* length= */ 1);
+    simpleCache.releaseHoleSpan(holeSpan);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.benchmarks;
+
+import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.Allocator;
+import java.util.Arrays;
+
+/**
+ * An {@link Allocator} that synchronizes every operation on a single monitor, as {@link
+ * com.google.android.exoplayer2.upstream.DefaultAllocator} did before it became lock-free. Used as
+ * the baseline of {@link AllocatorBenchmarkTest}.
+ */
+/* package */ final class SynchronizedAllocator implements Allocator {
+
+  private final int individualAllocationSize;
+  private final Allocation[] singleAllocationReleaseHolder;
+
+  private int allocatedCount;
+  private int availableCount;
+  private Allocation[] availableAllocations;
+
+  public SynchronizedAllocator(int individualAllocationSize) {
+    this.individualAllocationSize = individualAllocationSize;
+    singleAllocationReleaseHolder = new Allocation[1];
+    availableAllocations = new Allocation[100];
+  }
+
+  @Override
+  public synchronized Allocation allocate() {
+    allocatedCount++;
+    if (availableCount > 0) {
+      Allocation allocation = availableAllocations[--availableCount];
+      availableAllocations[availableCount] = null;
+      return allocation;
+    }
+    return new Allocation(new byte[individualAllocationSize], 0);
+  }
+
+  @Override
+  public synchronized void release(Allocation allocation) {
+    singleAllocationReleaseHolder[0] = allocation;
+    release(singleAllocationReleaseHolder);
+  }
+
+  @Override
+  public synchronized void release(Allocation[] allocations) {
+    if (availableCount + allocations.length >= availableAllocations.length) {
+      availableAllocations =
+          Arrays.copyOf(
+              availableAllocations,
+              Math.max(availableAllocations.length * 2, availableCount + allocations.length));
+    }
+    for (Allocation allocation : allocations) {
+      availableAllocations[availableCount++] = allocation;
+    }
+    allocatedCount -= allocations.length;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void trim() {
+    // Do nothing. The benchmark doesn't trim.
+  }
+
+  @Override
+  public synchronized int getTotalBytesAllocated() {
+    return allocatedCount * individualAllocationSize;
+  }
+
+  @Override
+  public int getIndividualAllocationLength() {
+    return individualAllocationSize;
+  }
+}
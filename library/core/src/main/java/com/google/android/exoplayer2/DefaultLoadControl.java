@@ -15,13 +15,16 @@
  */
 package com.google.android.exoplayer2;
 
+import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.source.TrackGroupArray;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.AllocationSpillFile;
 import com.google.android.exoplayer2.upstream.Allocator;
 import com.google.android.exoplayer2.upstream.DefaultAllocator;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Log;
 import com.google.android.exoplayer2.util.Util;
+import java.io.File;
 
 /**
  * The default {@link LoadControl} implementation.
@@ -103,6 +106,10 @@ public class DefaultLoadControl implements LoadControl {
     private boolean prioritizeTimeOverSizeThresholds;
     private int backBufferDurationMs;
     private boolean retainBackBufferFromKeyframe;
+    @Nullable private File backBufferSpillDirectory;
+    private int inMemoryBackBufferBytes;
+    @Nullable private SharedBufferBudget bufferBudget;
+    private int bufferBudgetPriority;
     private boolean createDefaultLoadControlCalled;
 
     /** Constructs a new instance. */
@@ -115,6 +122,7 @@ public class DefaultLoadControl implements LoadControl {
       prioritizeTimeOverSizeThresholds = DEFAULT_PRIORITIZE_TIME_OVER_SIZE_THRESHOLDS;
       backBufferDurationMs = DEFAULT_BACK_BUFFER_DURATION_MS;
       retainBackBufferFromKeyframe = DEFAULT_RETAIN_BACK_BUFFER_FROM_KEYFRAME;
+      bufferBudgetPriority = C.PRIORITY_PLAYBACK;
     }
 
     /**
@@ -215,6 +223,64 @@ public class DefaultLoadControl implements LoadControl {
       return this;
     }
 
+    /**
+     * Sets a directory in which the back buffer is spilled to disk, rather than being kept in
+     * memory. Useful when the back buffer duration set with {@link #setBackBuffer(int, boolean)} is
+     * long, for example to allow seeking back in a live stream. The most recently played {@link
+     * AllocationSpillFile#DEFAULT_IN_MEMORY_BACK_BUFFER_BYTES} of each track are kept in memory.
+     *
+     * @param backBufferSpillDirectory The directory in which the back buffer is spilled. A
+     *     temporary file is created in it, and deleted when the player no longer retains a back
+     *     buffer.
+     * @return This builder, for convenience.
+     * @throws IllegalStateException If {@link #createDefaultLoadControl()} has already been called.
+     */
+    public Builder setBackBufferSpillDirectory(File backBufferSpillDirectory) {
+      return setBackBufferSpillDirectory(
+          backBufferSpillDirectory, AllocationSpillFile.DEFAULT_IN_MEMORY_BACK_BUFFER_BYTES);
+    }
+
+    /**
+     * Sets a directory in which the back buffer is spilled to disk, rather than being kept in
+     * memory. Useful when the back buffer duration set with {@link #setBackBuffer(int, boolean)} is
+     * long, for example to allow seeking back in a live stream.
+     *
+     * @param backBufferSpillDirectory The directory in which the back buffer is spilled. A
+     *     temporary file is created in it, and deleted when the player no longer retains a back
+     *     buffer.
+     * @param inMemoryBackBufferBytes The number of bytes of the most recently played media of each
+     *     track that are kept in memory, so that short seeks back don't read from disk.
+     * @return This builder, for convenience.
+     * @throws IllegalStateException If {@link #createDefaultLoadControl()} has already been called.
+     */
+    public Builder setBackBufferSpillDirectory(
+        File backBufferSpillDirectory, int inMemoryBackBufferBytes) {
+      Assertions.checkState(!createDefaultLoadControlCalled);
+      assertGreaterOrEqual(inMemoryBackBufferBytes, 0, "inMemoryBackBufferBytes", "0");
+      this.backBufferSpillDirectory = backBufferSpillDirectory;
+      this.inMemoryBackBufferBytes = inMemoryBackBufferBytes;
+      return this;
+    }
+
+    /**
+     * Sets a {@link SharedBufferBudget} from which the target buffer size is requested. The load
+     * control stops loading once the player has allocated the buffer size granted by the budget,
+     * unless less media than is required for playback to start has been buffered.
+     *
+     * @param bufferBudget The {@link SharedBufferBudget}, which may be shared with the load
+     *     controls of other players.
+     * @param priority The priority with which the target buffer size is requested. Larger values
+     *     are granted first.
+     * @return This builder, for convenience.
+     * @throws IllegalStateException If {@link #createDefaultLoadControl()} has already been called.
+     */
+    public Builder setBufferBudget(SharedBufferBudget bufferBudget, int priority) {
+      Assertions.checkState(!createDefaultLoadControlCalled);
+      this.bufferBudget = bufferBudget;
+      this.bufferBudgetPriority = priority;
+      return this;
+    }
+
     /** Creates a {@link DefaultLoadControl}. */
     public DefaultLoadControl createDefaultLoadControl() {
       Assertions.checkState(!createDefaultLoadControlCalled);
@@ -222,6 +288,13 @@ public class DefaultLoadControl implements LoadControl {
       if (allocator == null) {
         allocator = new DefaultAllocator(/* trimOnReset= */ true, C.DEFAULT_BUFFER_SEGMENT_SIZE);
       }
+      if (backBufferSpillDirectory != null) {
+        allocator.setBackBufferSpillFile(
+            new AllocationSpillFile(
+                backBufferSpillDirectory,
+                allocator.getIndividualAllocationLength(),
+                inMemoryBackBufferBytes));
+      }
       return new DefaultLoadControl(
           allocator,
           minBufferMs,
@@ -231,7 +304,9 @@ public class DefaultLoadControl implements LoadControl {
           targetBufferBytes,
           prioritizeTimeOverSizeThresholds,
           backBufferDurationMs,
-          retainBackBufferFromKeyframe);
+          retainBackBufferFromKeyframe,
+          bufferBudget,
+          bufferBudgetPriority);
     }
   }
 
@@ -245,6 +320,7 @@ public class DefaultLoadControl implements LoadControl {
   private final boolean prioritizeTimeOverSizeThresholds;
   private final long backBufferDurationUs;
   private final boolean retainBackBufferFromKeyframe;
+  @Nullable private final SharedBufferBudget.Client bufferBudgetClient;
 
   private int targetBufferBytes;
   private boolean isBuffering;
@@ -302,6 +378,32 @@ public class DefaultLoadControl implements LoadControl {
       boolean prioritizeTimeOverSizeThresholds,
       int backBufferDurationMs,
       boolean retainBackBufferFromKeyframe) {
+    this(
+        allocator,
+        minBufferMs,
+        maxBufferMs,
+        bufferForPlaybackMs,
+        bufferForPlaybackAfterRebufferMs,
+        targetBufferBytes,
+        prioritizeTimeOverSizeThresholds,
+        backBufferDurationMs,
+        retainBackBufferFromKeyframe,
+        /* bufferBudget= */ null,
+        /* bufferBudgetPriority= */ C.PRIORITY_PLAYBACK);
+  }
+
+  protected DefaultLoadControl(
+      DefaultAllocator allocator,
+      int minBufferMs,
+      int maxBufferMs,
+      int bufferForPlaybackMs,
+      int bufferForPlaybackAfterRebufferMs,
+      int targetBufferBytes,
+      boolean prioritizeTimeOverSizeThresholds,
+      int backBufferDurationMs,
+      boolean retainBackBufferFromKeyframe,
+      @Nullable SharedBufferBudget bufferBudget,
+      int bufferBudgetPriority) {
     assertGreaterOrEqual(bufferForPlaybackMs, 0, "bufferForPlaybackMs", "0");
     assertGreaterOrEqual(
         bufferForPlaybackAfterRebufferMs, 0, "bufferForPlaybackAfterRebufferMs", "0");
@@ -327,6 +429,8 @@ public class DefaultLoadControl implements LoadControl {
     this.prioritizeTimeOverSizeThresholds = prioritizeTimeOverSizeThresholds;
     this.backBufferDurationUs = C.msToUs(backBufferDurationMs);
     this.retainBackBufferFromKeyframe = retainBackBufferFromKeyframe;
+    this.bufferBudgetClient =
+        bufferBudget != null ? bufferBudget.createClient(allocator, bufferBudgetPriority) : null;
   }
 
   @Override
@@ -341,7 +445,11 @@ public class DefaultLoadControl implements LoadControl {
         targetBufferBytesOverwrite == C.LENGTH_UNSET
             ? calculateTargetBufferBytes(renderers, trackSelections)
             : targetBufferBytesOverwrite;
-    allocator.setTargetBufferSize(targetBufferBytes);
+    if (bufferBudgetClient != null) {
+      bufferBudgetClient.setRequestedBufferBytes(targetBufferBytes);
+    } else {
+      allocator.setTargetBufferSize(targetBufferBytes);
+    }
   }
 
   @Override
@@ -352,6 +460,9 @@ public class DefaultLoadControl implements LoadControl {
   @Override
   public void onReleased() {
     reset(true);
+    if (bufferBudgetClient != null) {
+      bufferBudgetClient.unregister();
+    }
   }
 
   @Override
@@ -372,7 +483,18 @@ public class DefaultLoadControl implements LoadControl {
   @Override
   public boolean shouldContinueLoading(
       long playbackPositionUs, long bufferedDurationUs, float playbackSpeed) {
-    boolean targetBufferSizeReached = allocator.getTotalBytesAllocated() >= targetBufferBytes;
+    boolean targetBufferSizeReached =
+        allocator.getTotalBytesAllocated() >= getAllowedTargetBufferBytes();
+    if (targetBufferSizeReached && isBufferBudgetConstrained()) {
+      // The shared budget is exhausted, so stop loading regardless of the minimum buffer duration.
+      // Keep loading until playback can start though, so that the player doesn't get stuck.
+      long playoutBufferedDurationUs =
+          Util.getPlayoutDurationForMediaDuration(bufferedDurationUs, playbackSpeed);
+      isBuffering =
+          playoutBufferedDurationUs
+              < Math.max(bufferForPlaybackUs, bufferForPlaybackAfterRebufferUs);
+      return isBuffering;
+    }
     long minBufferUs = this.minBufferUs;
     if (playbackSpeed > 1) {
       // The playback speed is faster than real time, so scale up the minimum required media
@@ -404,7 +526,8 @@ public class DefaultLoadControl implements LoadControl {
     return minBufferDurationUs <= 0
         || bufferedDurationUs >= minBufferDurationUs
         || (!prioritizeTimeOverSizeThresholds
-            && allocator.getTotalBytesAllocated() >= targetBufferBytes);
+            && !isBufferBudgetConstrained()
+            && allocator.getTotalBytesAllocated() >= getAllowedTargetBufferBytes());
   }
 
   /**
@@ -435,6 +558,24 @@ public class DefaultLoadControl implements LoadControl {
     if (resetAllocator) {
       allocator.reset();
     }
+    if (bufferBudgetClient != null) {
+      // A stopped player doesn't need a buffer, so release its share of the budget.
+      bufferBudgetClient.setRequestedBufferBytes(resetAllocator ? 0 : targetBufferBytes);
+    }
+  }
+
+  /**
+   * Returns whether the shared buffer budget grants less than the target buffer size. In this case
+   * reaching the granted size doesn't mean that enough media is buffered.
+   */
+  private boolean isBufferBudgetConstrained() {
+    return bufferBudgetClient != null && bufferBudgetClient.isConstrained();
+  }
+
+  private int getAllowedTargetBufferBytes() {
+    return bufferBudgetClient != null
+        ? Math.min(targetBufferBytes, bufferBudgetClient.getGrantedBufferBytes())
+        : targetBufferBytes;
   }
 
   private static int getDefaultBufferSize(int trackType) {
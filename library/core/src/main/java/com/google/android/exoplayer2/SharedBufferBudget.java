@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.Assertions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A memory budget for buffered media that is shared by multiple players.
+ *
+ * <p>Each {@link DefaultLoadControl} created with {@link
+ * DefaultLoadControl.Builder#setBufferBudget(SharedBufferBudget, int)} registers a {@link Client}
+ * with the budget, and requests its target buffer size from it. The budget grants requests in
+ * order of decreasing priority. Clients with equal priorities are served in the order in which
+ * they requested a buffer. A load control stops loading once its player has allocated its granted
+ * size, and its allocator discards available allocations beyond the granted size.
+ *
+ * <p>Every client that requests a buffer is granted at least one allocation, even if higher
+ * priority clients have consumed the budget, so that its player can buffer enough media to start
+ * playback. The sum of the granted sizes only exceeds the budget if there are more clients than
+ * allocations that fit into the budget.
+ *
+ * <p>Memory that a player has already allocated can't be taken away from it. If a client has
+ * allocated more than its grant after the grants are updated, the budget notifies its {@link
+ * Listener}, which can reclaim the memory by stopping or releasing the player.
+ *
+ * <p>Priorities have the same meaning as in {@link
+ * com.google.android.exoplayer2.util.PriorityTaskManager}, with larger values being served first.
+ * For example, a main player could use {@link C#PRIORITY_PLAYBACK}, and a player that prefetches
+ * or previews media could use a lower priority.
+ *
+ * <p>The budget is thread-safe, and may be shared by players running on different playback threads.
+ */
+public final class SharedBufferBudget {
+
+  /** Listener of {@link SharedBufferBudget} events. */
+  public interface Listener {
+
+    /**
+     * Called when a client has allocated more than the buffer size granted to it, because the
+     * grants have been updated in favor of higher priority clients. The client's player stops
+     * loading, but keeps the memory it has already allocated until it discards the buffered media.
+     * Stopping or releasing the player reclaims the memory for the budget.
+     *
+     * <p>Called on the thread that caused the grants to be updated, which may be the playback
+     * thread of a different player.
+     *
+     * @param client The client that has allocated more than its grant.
+     * @param excessBytes The number of bytes allocated beyond the grant.
+     */
+    void onClientOverBudget(Client client, int excessBytes);
+  }
+
+  /** A participant in a {@link SharedBufferBudget}. */
+  public static final class Client {
+
+    private final SharedBufferBudget budget;
+    private final DefaultAllocator allocator;
+    private final int priority;
+
+    private boolean registered;
+    private int requestedBufferBytes;
+    private volatile int grantedBufferBytes;
+
+    private Client(SharedBufferBudget budget, DefaultAllocator allocator, int priority) {
+      this.budget = budget;
+      this.allocator = allocator;
+      this.priority = priority;
+    }
+
+    /** Returns the priority of the client. */
+    public int getPriority() {
+      return priority;
+    }
+
+    /** Returns the buffer size in bytes last requested by the client. */
+    public int getRequestedBufferBytes() {
+      synchronized (budget) {
+        return requestedBufferBytes;
+      }
+    }
+
+    /** Returns the buffer size in bytes currently granted to the client. */
+    public int getGrantedBufferBytes() {
+      return grantedBufferBytes;
+    }
+
+    /** Returns the number of bytes currently allocated by the client. */
+    public int getTotalBytesAllocated() {
+      return allocator.getTotalBytesAllocated();
+    }
+
+    /**
+     * Returns whether the client has been granted less than it requested because higher priority
+     * clients have consumed the budget.
+     */
+    public boolean isConstrained() {
+      synchronized (budget) {
+        return grantedBufferBytes < requestedBufferBytes;
+      }
+    }
+
+    /**
+     * Requests a buffer size, registering the client with the budget if it isn't already
+     * registered. The grants of all registered clients are updated.
+     *
+     * @param requestedBufferBytes The requested buffer size in bytes.
+     */
+    public void setRequestedBufferBytes(int requestedBufferBytes) {
+      Assertions.checkArgument(requestedBufferBytes >= 0);
+      List<Client> overBudgetClients;
+      synchronized (budget) {
+        this.requestedBufferBytes = requestedBufferBytes;
+        if (!registered) {
+          registered = true;
+          budget.clients.add(this);
+        }
+        overBudgetClients = budget.updateGrants();
+      }
+      budget.notifyOverBudgetClients(overBudgetClients);
+    }
+
+    /** Unregisters the client from the budget, making its grant available to other clients. */
+    public void unregister() {
+      synchronized (budget) {
+        if (!registered) {
+          return;
+        }
+        registered = false;
+        budget.clients.remove(this);
+        requestedBufferBytes = 0;
+        grantedBufferBytes = 0;
+        // Removing a client only increases the grants of the others.
+        budget.updateGrants();
+      }
+    }
+  }
+
+  private final int budgetBytes;
+  private final List<Client> clients;
+
+  @Nullable private volatile Listener listener;
+
+  /**
+   * Creates an instance.
+   *
+   * @param budgetBytes The total buffer size in bytes that may be granted to clients.
+   */
+  public SharedBufferBudget(int budgetBytes) {
+    Assertions.checkArgument(budgetBytes > 0);
+    this.budgetBytes = budgetBytes;
+    clients = new ArrayList<>();
+  }
+
+  /**
+   * Creates a {@link Client}. The client is registered with the budget when it first requests a
+   * buffer size.
+   *
+   * @param allocator The {@link DefaultAllocator} used by the client. Its target buffer size is
+   *     set to the granted buffer size.
+   * @param priority The priority of the client.
+   * @return The client.
+   */
+  public Client createClient(DefaultAllocator allocator, int priority) {
+    return new Client(this, allocator, priority);
+  }
+
+  /**
+   * Sets a {@link Listener} that's notified when a client has allocated more than its grant.
+   *
+   * @param listener The {@link Listener}, or {@code null} to clear it.
+   */
+  public void setListener(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Returns the total buffer size in bytes that may be granted to clients. */
+  public int getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  /** Returns the total number of bytes allocated by all registered clients. */
+  public synchronized int getTotalBytesAllocated() {
+    int totalBytesAllocated = 0;
+    for (int i = 0; i < clients.size(); i++) {
+      totalBytesAllocated += clients.get(i).getTotalBytesAllocated();
+    }
+    return totalBytesAllocated;
+  }
+
+  /**
+   * Returns the registered clients in order of decreasing priority. Their usage can be queried
+   * with {@link Client#getTotalBytesAllocated()}.
+   */
+  public synchronized List<Client> getClients() {
+    return Collections.unmodifiableList(new ArrayList<>(clients));
+  }
+
+  /**
+   * Updates the grants of all registered clients.
+   *
+   * @return The clients that have allocated more than their updated grant.
+   */
+  private List<Client> updateGrants() {
+    // Stable sort, so that clients with equal priorities keep their registration order.
+    Collections.sort(
+        clients, (client1, client2) -> Integer.compare(client2.priority, client1.priority));
+    // Grant the minimum to every client first, then the rest of the budget in priority order.
+    int remainingBytes = budgetBytes;
+    for (int i = 0; i < clients.size(); i++) {
+      Client client = clients.get(i);
+      int minimumBufferBytes =
+          Math.min(client.requestedBufferBytes, client.allocator.getIndividualAllocationLength());
+      client.grantedBufferBytes = minimumBufferBytes;
+      remainingBytes -= minimumBufferBytes;
+    }
+    remainingBytes = Math.max(0, remainingBytes);
+    List<Client> overBudgetClients = Collections.emptyList();
+    for (int i = 0; i < clients.size(); i++) {
+      Client client = clients.get(i);
+      int additionalBufferBytes =
+          Math.min(client.requestedBufferBytes - client.grantedBufferBytes, remainingBytes);
+      remainingBytes -= additionalBufferBytes;
+      int grantedBufferBytes = client.grantedBufferBytes + additionalBufferBytes;
+      client.grantedBufferBytes = grantedBufferBytes;
+      // Always set the target, since the client may have reset its allocator in the meantime.
+      client.allocator.setTargetBufferSize(grantedBufferBytes);
+      if (client.getTotalBytesAllocated() > grantedBufferBytes) {
+        if (overBudgetClients.isEmpty()) {
+          overBudgetClients = new ArrayList<>();
+        }
+        overBudgetClients.add(client);
+      }
+    }
+    return overBudgetClients;
+  }
+
+  private void notifyOverBudgetClients(List<Client> overBudgetClients) {
+    @Nullable Listener listener = this.listener;
+    if (listener == null) {
+      return;
+    }
+    for (int i = 0; i < overBudgetClients.size(); i++) {
+      Client client = overBudgetClients.get(i);
+      int excessBytes = client.getTotalBytesAllocated() - client.getGrantedBufferBytes();
+      if (excessBytes > 0) {
+        listener.onClientOverBudget(client, excessBytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.analytics;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.upstream.cache.CacheMetrics;
+
+/**
+ * {@link AnalyticsListener} that reports the {@link CacheMetrics} accumulated while the player was
+ * buffering, for example to measure the fraction of startup bytes that were read from the cache.
+ *
+ * <p>A buffering period starts when the playback state changes to {@link Player#STATE_BUFFERING},
+ * and ends when it changes to {@link Player#STATE_READY}. Note that loads for other components
+ * sharing the same {@link CacheMetrics}, such as downloads, are included in the reported metrics.
+ */
+public final class CacheMetricsListener implements AnalyticsListener {
+
+  /** A listener for the cache metrics of buffering periods. */
+  public interface Callback {
+
+    /**
+     * Called when the player becomes ready after buffering.
+     *
+     * @param bufferingStartEventTime The {@link EventTime} at which buffering started.
+     * @param readyEventTime The {@link EventTime} at which the player became ready.
+     * @param cacheMetrics The {@link CacheMetrics.Snapshot metrics} accumulated while buffering.
+     */
+    void onBufferingCacheMetrics(
+        EventTime bufferingStartEventTime,
+        EventTime readyEventTime,
+        CacheMetrics.Snapshot cacheMetrics);
+  }
+
+  private final CacheMetrics cacheMetrics;
+  private final Callback callback;
+
+  @Nullable private EventTime bufferingStartEventTime;
+  @Nullable private CacheMetrics.Snapshot bufferingStartSnapshot;
+
+  /**
+   * Creates an instance.
+   *
+   * @param cacheMetrics The {@link CacheMetrics} in which the player's cache reads are recorded.
+   * @param callback The {@link Callback} to which the metrics of buffering periods are reported.
+   */
+  public CacheMetricsListener(CacheMetrics cacheMetrics, Callback callback) {
+    this.cacheMetrics = cacheMetrics;
+    this.callback = callback;
+  }
+
+  @Override
+  public void onPlaybackStateChanged(EventTime eventTime, @Player.State int state) {
+    if (state == Player.STATE_BUFFERING) {
+      if (bufferingStartSnapshot == null) {
+        bufferingStartEventTime = eventTime;
+        bufferingStartSnapshot = cacheMetrics.getSnapshot();
+      }
+      return;
+    }
+    @Nullable CacheMetrics.Snapshot bufferingStartSnapshot = this.bufferingStartSnapshot;
+    @Nullable EventTime bufferingStartEventTime = this.bufferingStartEventTime;
+    this.bufferingStartSnapshot = null;
+    this.bufferingStartEventTime = null;
+    if (state == Player.STATE_READY
+        && bufferingStartSnapshot != null
+        && bufferingStartEventTime != null) {
+      callback.onBufferingCacheMetrics(
+          bufferingStartEventTime,
+          eventTime,
+          cacheMetrics.getSnapshot().minus(bufferingStartSnapshot));
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.offline;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.util.Clock;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * A {@link WritableDownloadIndex} that coalesces progress updates written to a {@link
+ * DefaultDownloadIndex}, and writes them in a single transaction.
+ *
+ * <p>{@link DownloadManager} periodically puts every download that's in progress, and each put is a
+ * separate transaction in {@link DefaultDownloadIndex}. This index holds a put that doesn't change
+ * the {@link Download#state} of the download, and writes all held puts together once the oldest of
+ * them has been held for {@code flushIntervalMs}. Puts that change the state of a download, and all
+ * other writes, are written immediately, after the held puts. Reads also write the held puts first,
+ * so they always return the latest downloads.
+ *
+ * <p>There's no timer, so held puts are only written by a later call to this index. {@link
+ * DownloadManager#release()} writes them, because it sets the states of downloads that are in
+ * progress to {@link Download#STATE_QUEUED} through this index. An app that stops using the index
+ * without releasing the {@link DownloadManager} must call {@link #flush()} to write them.
+ *
+ * <p>If the process is killed, progress updates from up to {@code flushIntervalMs} may be lost. The
+ * progress of a download is updated again when it's resumed.
+ */
+public final class BatchingDownloadIndex implements WritableDownloadIndex {
+
+  /** The default maximum time for which a progress update is held, in milliseconds. */
+  public static final long DEFAULT_FLUSH_INTERVAL_MS = 10_000;
+
+  private final DefaultDownloadIndex downloadIndex;
+  private final long flushIntervalMs;
+  private final Clock clock;
+  private final LinkedHashMap<String, Download> pendingDownloads;
+  private final HashMap<String, Integer> writtenStates;
+
+  private long firstPendingTimeMs;
+
+  /**
+   * Creates an instance that holds progress updates for up to {@link #DEFAULT_FLUSH_INTERVAL_MS}.
+   *
+   * @param downloadIndex The {@link DefaultDownloadIndex} to which downloads are written.
+   */
+  public BatchingDownloadIndex(DefaultDownloadIndex downloadIndex) {
+    this(downloadIndex, DEFAULT_FLUSH_INTERVAL_MS);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param downloadIndex The {@link DefaultDownloadIndex} to which downloads are written.
+   * @param flushIntervalMs The maximum time for which a progress update is held, in milliseconds.
+   */
+  public BatchingDownloadIndex(DefaultDownloadIndex downloadIndex, long flushIntervalMs) {
+    this(downloadIndex, flushIntervalMs, Clock.DEFAULT);
+  }
+
+  @VisibleForTesting
+  /* package */ BatchingDownloadIndex(
+      DefaultDownloadIndex downloadIndex, long flushIntervalMs, Clock clock) {
+    this.downloadIndex = downloadIndex;
+    this.flushIntervalMs = flushIntervalMs;
+    this.clock = clock;
+    pendingDownloads = new LinkedHashMap<>();
+    writtenStates = new HashMap<>();
+  }
+
+  /**
+   * Writes all held progress updates.
+   *
+   * <p>This method may be slow and shouldn't normally be called on the main thread.
+   *
+   * @throws IOException If an error occurs writing the downloads.
+   */
+  public synchronized void flush() throws IOException {
+    if (pendingDownloads.isEmpty()) {
+      return;
+    }
+    downloadIndex.putDownloads(new ArrayList<>(pendingDownloads.values()));
+    pendingDownloads.clear();
+  }
+
+  // DownloadIndex implementation.
+
+  @Override
+  @Nullable
+  public synchronized Download getDownload(String id) throws IOException {
+    flush();
+    return downloadIndex.getDownload(id);
+  }
+
+  @Override
+  public synchronized DownloadCursor getDownloads(@Download.State int... states)
+      throws IOException {
+    flush();
+    return downloadIndex.getDownloads(states);
+  }
+
+  // WritableDownloadIndex implementation.
+
+  @Override
+  public synchronized void putDownload(Download download) throws IOException {
+    String id = download.request.id;
+    @Nullable Integer writtenState = writtenStates.get(id);
+    if (writtenState == null || writtenState != download.state) {
+      // The state has changed, so write the download immediately.
+      pendingDownloads.remove(id);
+      flush();
+      downloadIndex.putDownload(download);
+      writtenStates.put(id, download.state);
+      return;
+    }
+    long nowMs = clock.elapsedRealtime();
+    if (pendingDownloads.isEmpty()) {
+      firstPendingTimeMs = nowMs;
+    }
+    pendingDownloads.put(id, download);
+    if (nowMs - firstPendingTimeMs >= flushIntervalMs) {
+      flush();
+    }
+  }
+
+  @Override
+  public synchronized void removeDownload(String id) throws IOException {
+    pendingDownloads.remove(id);
+    writtenStates.remove(id);
+    flush();
+    downloadIndex.removeDownload(id);
+  }
+
+  @Override
+  public synchronized void setDownloadingStatesToQueued() throws IOException {
+    flush();
+    downloadIndex.setDownloadingStatesToQueued();
+    writtenStates.clear();
+  }
+
+  @Override
+  public synchronized void setStatesToRemoving() throws IOException {
+    flush();
+    downloadIndex.setStatesToRemoving();
+    writtenStates.clear();
+  }
+
+  @Override
+  public synchronized void setStopReason(int stopReason) throws IOException {
+    flush();
+    downloadIndex.setStopReason(stopReason);
+  }
+
+  @Override
+  public synchronized void setStopReason(String id, int stopReason) throws IOException {
+    flush();
+    downloadIndex.setStopReason(id, stopReason);
+  }
+}
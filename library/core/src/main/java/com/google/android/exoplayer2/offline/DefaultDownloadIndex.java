@@ -189,29 +189,43 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
   @Override
   public void putDownload(Download download) throws DatabaseIOException {
     ensureInitialized();
-    ContentValues values = new ContentValues();
-    values.put(COLUMN_ID, download.request.id);
-    values.put(COLUMN_TYPE, download.request.type);
-    values.put(COLUMN_URI, download.request.uri.toString());
-    values.put(COLUMN_STREAM_KEYS, encodeStreamKeys(download.request.streamKeys));
-    values.put(COLUMN_CUSTOM_CACHE_KEY, download.request.customCacheKey);
-    values.put(COLUMN_DATA, download.request.data);
-    values.put(COLUMN_STATE, download.state);
-    values.put(COLUMN_START_TIME_MS, download.startTimeMs);
-    values.put(COLUMN_UPDATE_TIME_MS, download.updateTimeMs);
-    values.put(COLUMN_CONTENT_LENGTH, download.contentLength);
-    values.put(COLUMN_STOP_REASON, download.stopReason);
-    values.put(COLUMN_FAILURE_REASON, download.failureReason);
-    values.put(COLUMN_PERCENT_DOWNLOADED, download.getPercentDownloaded());
-    values.put(COLUMN_BYTES_DOWNLOADED, download.getBytesDownloaded());
     try {
       SQLiteDatabase writableDatabase = databaseProvider.getWritableDatabase();
-      writableDatabase.replaceOrThrow(tableName, /* nullColumnHack= */ null, values);
+      writableDatabase.replaceOrThrow(
+          tableName, /* nullColumnHack= */ null, getContentValues(download));
     } catch (SQLiteException e) {
       throw new DatabaseIOException(e);
     }
   }
 
+  /**
+   * Adds or replaces {@link Download Downloads} in a single transaction.
+   *
+   * <p>This method may be slow and shouldn't normally be called on the main thread.
+   *
+   * @param downloads The {@link Download Downloads} to be added or replaced.
+   * @throws DatabaseIOException If an error occurs adding or replacing the downloads, in which case
+   *     none of them are written.
+   */
+  public void putDownloads(List<Download> downloads) throws DatabaseIOException {
+    ensureInitialized();
+    try {
+      SQLiteDatabase writableDatabase = databaseProvider.getWritableDatabase();
+      writableDatabase.beginTransactionNonExclusive();
+      try {
+        for (int i = 0; i < downloads.size(); i++) {
+          writableDatabase.replaceOrThrow(
+              tableName, /* nullColumnHack= */ null, getContentValues(downloads.get(i)));
+        }
+        writableDatabase.setTransactionSuccessful();
+      } finally {
+        writableDatabase.endTransaction();
+      }
+    } catch (SQLException e) {
+      throw new DatabaseIOException(e);
+    }
+  }
+
   @Override
   public void removeDownload(String id) throws DatabaseIOException {
     ensureInitialized();
@@ -281,6 +295,25 @@ public final class DefaultDownloadIndex implements WritableDownloadIndex {
     }
   }
 
+  private static ContentValues getContentValues(Download download) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_ID, download.request.id);
+    values.put(COLUMN_TYPE, download.request.type);
+    values.put(COLUMN_URI, download.request.uri.toString());
+    values.put(COLUMN_STREAM_KEYS, encodeStreamKeys(download.request.streamKeys));
+    values.put(COLUMN_CUSTOM_CACHE_KEY, download.request.customCacheKey);
+    values.put(COLUMN_DATA, download.request.data);
+    values.put(COLUMN_STATE, download.state);
+    values.put(COLUMN_START_TIME_MS, download.startTimeMs);
+    values.put(COLUMN_UPDATE_TIME_MS, download.updateTimeMs);
+    values.put(COLUMN_CONTENT_LENGTH, download.contentLength);
+    values.put(COLUMN_STOP_REASON, download.stopReason);
+    values.put(COLUMN_FAILURE_REASON, download.failureReason);
+    values.put(COLUMN_PERCENT_DOWNLOADED, download.getPercentDownloaded());
+    values.put(COLUMN_BYTES_DOWNLOADED, download.getBytesDownloaded());
+    return values;
+  }
+
   private void ensureInitialized() throws DatabaseIOException {
     if (initialized) {
       return;
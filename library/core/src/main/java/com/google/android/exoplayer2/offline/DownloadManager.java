@@ -37,6 +37,7 @@ import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.database.DatabaseProvider;
 import com.google.android.exoplayer2.scheduler.Requirements;
 import com.google.android.exoplayer2.scheduler.RequirementsWatcher;
+import com.google.android.exoplayer2.upstream.DataRateLimiter;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSource.Factory;
 import com.google.android.exoplayer2.upstream.cache.Cache;
@@ -166,7 +167,9 @@ public final class DownloadManager {
   private static final int MSG_TASK_STOPPED = 9;
   private static final int MSG_CONTENT_LENGTH_CHANGED = 10;
   private static final int MSG_UPDATE_PROGRESS = 11;
-  private static final int MSG_RELEASE = 12;
+  private static final int MSG_SET_DOWNLOAD_PRIORITY = 12;
+  private static final int MSG_SET_MAX_BYTES_PER_SECOND = 13;
+  private static final int MSG_RELEASE = 14;
 
   private static final String TAG = "DownloadManager";
 
@@ -183,6 +186,7 @@ public final class DownloadManager {
   private boolean downloadsPaused;
   private int maxParallelDownloads;
   private int minRetryCount;
+  private long maxBytesPerSecond;
   private int notMetRequirements;
   private boolean waitingForRequirements;
   private List<Download> downloads;
@@ -223,6 +227,7 @@ public final class DownloadManager {
 
     maxParallelDownloads = DEFAULT_MAX_PARALLEL_DOWNLOADS;
     minRetryCount = DEFAULT_MIN_RETRY_COUNT;
+    maxBytesPerSecond = C.LENGTH_UNSET;
     downloadsPaused = true;
     downloads = Collections.emptyList();
     listeners = new CopyOnWriteArraySet<>();
@@ -361,6 +366,68 @@ public final class DownloadManager {
         .sendToTarget();
   }
 
+  /**
+   * Returns the maximum total rate at which downloads transfer data, in bytes per second, or {@link
+   * C#LENGTH_UNSET} if the rate isn't limited.
+   */
+  public long getMaxBytesPerSecond() {
+    return maxBytesPerSecond;
+  }
+
+  /**
+   * Sets the maximum total rate at which downloads transfer data.
+   *
+   * <p>The rate is shared between the downloads that are in progress. Downloads with the same
+   * priority get equal shares, and a download gets twice the share of each download with the next
+   * lower priority. See {@link #setDownloadPriority(String, int, long)}.
+   *
+   * <p>Only data read from upstream counts towards the rate. Data that's already cached is not
+   * limited. The rate is only limited for downloads whose {@link Downloader} supports {@link
+   * Downloader#setRateLimiter(DataRateLimiter)}.
+   *
+   * @param maxBytesPerSecond The maximum total rate in bytes per second, or {@link C#LENGTH_UNSET}
+   *     if the rate shouldn't be limited.
+   */
+  public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+    Assertions.checkArgument(maxBytesPerSecond > 0 || maxBytesPerSecond == C.LENGTH_UNSET);
+    if (this.maxBytesPerSecond == maxBytesPerSecond) {
+      return;
+    }
+    this.maxBytesPerSecond = maxBytesPerSecond;
+    pendingMessages++;
+    internalHandler
+        .obtainMessage(
+            MSG_SET_MAX_BYTES_PER_SECOND,
+            (int) (maxBytesPerSecond >> 32),
+            (int) maxBytesPerSecond)
+        .sendToTarget();
+  }
+
+  /**
+   * Sets the priority and deadline of a download.
+   *
+   * <p>Queued downloads are started in order of decreasing priority, then in order of increasing
+   * deadline, and then in the order in which they were added. If {@link #getMaxParallelDownloads()}
+   * downloads are in progress, a queued download with a higher priority than one of them is started
+   * in its place, and the lower priority download is queued again. Downloads without a priority
+   * have priority {@code 0} and no deadline.
+   *
+   * <p>Priorities are not persisted in the {@link DownloadIndex}, and are cleared when the download
+   * completes, fails or is removed.
+   *
+   * @param id The id of the download.
+   * @param priority The priority of the download. Higher values are downloaded first.
+   * @param deadlineMs The time by which the download should complete, as a wall clock time in
+   *     milliseconds since the epoch, or {@link C#TIME_UNSET} if there's no deadline.
+   */
+  public void setDownloadPriority(String id, int priority, long deadlineMs) {
+    pendingMessages++;
+    internalHandler
+        .obtainMessage(
+            MSG_SET_DOWNLOAD_PRIORITY, new DownloadPriority(id, priority, deadlineMs))
+        .sendToTarget();
+  }
+
   /**
    * Returns the minimum number of times that a download will be retried. A download will fail if
    * the specified number of retries is exceeded without any progress being made.
@@ -672,11 +739,13 @@ public final class DownloadManager {
     private final Handler mainHandler;
     private final ArrayList<Download> downloads;
     private final HashMap<String, Task> activeTasks;
+    private final HashMap<String, DownloadPriority> downloadPriorities;
 
     @Requirements.RequirementFlags private int notMetRequirements;
     private boolean downloadsPaused;
     private int maxParallelDownloads;
     private int minRetryCount;
+    private long maxBytesPerSecond;
     private int activeDownloadTaskCount;
 
     public InternalHandler(
@@ -697,6 +766,8 @@ public final class DownloadManager {
       this.downloadsPaused = downloadsPaused;
       downloads = new ArrayList<>();
       activeTasks = new HashMap<>();
+      downloadPriorities = new HashMap<>();
+      maxBytesPerSecond = C.LENGTH_UNSET;
     }
 
     @Override
@@ -752,6 +823,14 @@ public final class DownloadManager {
         case MSG_UPDATE_PROGRESS:
           updateProgress();
           return; // No need to post back to mainHandler.
+        case MSG_SET_DOWNLOAD_PRIORITY:
+          DownloadPriority downloadPriority = (DownloadPriority) message.obj;
+          setDownloadPriority(downloadPriority);
+          break;
+        case MSG_SET_MAX_BYTES_PER_SECOND:
+          long maxBytesPerSecond = Util.toLong(message.arg1, message.arg2);
+          setMaxBytesPerSecond(maxBytesPerSecond);
+          break;
         case MSG_RELEASE:
           release();
           return; // No need to post back to mainHandler.
@@ -780,6 +859,7 @@ public final class DownloadManager {
       } finally {
         Util.closeQuietly(cursor);
       }
+      Collections.sort(downloads, this::compareDownloads);
       // A copy must be used for the message to ensure that subsequent changes to the downloads list
       // are not visible to the main thread when it processes the message.
       ArrayList<Download> downloadsForMessage = new ArrayList<>(downloads);
@@ -856,6 +936,22 @@ public final class DownloadManager {
       this.minRetryCount = minRetryCount;
     }
 
+    private void setMaxBytesPerSecond(long maxBytesPerSecond) {
+      this.maxBytesPerSecond = maxBytesPerSecond;
+      updateTaskQuotas();
+    }
+
+    private void setDownloadPriority(DownloadPriority downloadPriority) {
+      String id = downloadPriority.id;
+      if (getDownloadIndex(id) == C.INDEX_UNSET) {
+        Log.w(TAG, "Ignoring priority of nonexistent or terminal download: " + id);
+        return;
+      }
+      downloadPriorities.put(id, downloadPriority);
+      Collections.sort(downloads, this::compareDownloads);
+      syncTasks();
+    }
+
     private void addDownload(DownloadRequest request, int stopReason) {
       @Nullable Download download = getDownload(request.id, /* loadFromIndex= */ true);
       long nowMs = System.currentTimeMillis();
@@ -900,7 +996,7 @@ public final class DownloadManager {
       for (int i = 0; i < terminalDownloads.size(); i++) {
         downloads.add(copyDownloadWithState(terminalDownloads.get(i), STATE_REMOVING));
       }
-      Collections.sort(downloads, InternalHandler::compareStartTimes);
+      Collections.sort(downloads, this::compareDownloads);
       try {
         downloadIndex.setStatesToRemoving();
       } catch (IOException e) {
@@ -921,11 +1017,13 @@ public final class DownloadManager {
         task.cancel(/* released= */ true);
       }
       try {
+        // Also writes progress updates held by a BatchingDownloadIndex.
         downloadIndex.setDownloadingStatesToQueued();
       } catch (IOException e) {
         Log.e(TAG, "Failed to update index.", e);
       }
       downloads.clear();
+      downloadPriorities.clear();
       thread.quit();
       synchronized (this) {
         released = true;
@@ -937,8 +1035,19 @@ public final class DownloadManager {
 
     private void syncTasks() {
       int accumulatingDownloadTaskCount = 0;
+      // Queued downloads that are ahead of the current download in the list, and the number of them
+      // that have a higher priority than the current download.
+      int queuedDownloadCount = 0;
+      int higherPriorityQueuedDownloadCount = 0;
+      int previousPriority = Integer.MAX_VALUE;
       for (int i = 0; i < downloads.size(); i++) {
         Download download = downloads.get(i);
+        int priority = getPriority(download);
+        if (priority != previousPriority) {
+          // The downloads are sorted by decreasing priority.
+          higherPriorityQueuedDownloadCount = queuedDownloadCount;
+          previousPriority = priority;
+        }
         @Nullable Task activeTask = activeTasks.get(download.request.id);
         switch (download.state) {
           case STATE_STOPPED:
@@ -946,10 +1055,16 @@ public final class DownloadManager {
             break;
           case STATE_QUEUED:
             activeTask = syncQueuedDownload(activeTask, download);
+            if (activeTask == null) {
+              queuedDownloadCount++;
+            }
             break;
           case STATE_DOWNLOADING:
             Assertions.checkNotNull(activeTask);
-            syncDownloadingDownload(activeTask, download, accumulatingDownloadTaskCount);
+            syncDownloadingDownload(
+                activeTask,
+                download,
+                accumulatingDownloadTaskCount + higherPriorityQueuedDownloadCount);
             break;
           case STATE_REMOVING:
           case STATE_RESTARTING:
@@ -964,6 +1079,49 @@ public final class DownloadManager {
           accumulatingDownloadTaskCount++;
         }
       }
+      updateTaskQuotas();
+    }
+
+    /**
+     * Shares {@link #maxBytesPerSecond} between the active download tasks. Each task gets twice the
+     * share of a task whose download has the next lower priority.
+     */
+    private void updateTaskQuotas() {
+      ArrayList<Task> downloadTasks = new ArrayList<>();
+      ArrayList<Integer> priorities = new ArrayList<>();
+      for (int i = 0; i < downloads.size(); i++) {
+        Download download = downloads.get(i);
+        @Nullable Task activeTask = activeTasks.get(download.request.id);
+        if (activeTask != null && !activeTask.isRemove && !activeTask.isCanceled) {
+          downloadTasks.add(activeTask);
+          priorities.add(getPriority(download));
+        }
+      }
+      if (maxBytesPerSecond == C.LENGTH_UNSET) {
+        for (int i = 0; i < downloadTasks.size(); i++) {
+          downloadTasks.get(i).rateLimiter.setMaxBytesPerSecond(C.LENGTH_UNSET);
+        }
+        return;
+      }
+      // The downloads are sorted by decreasing priority, so the priority levels below that of each
+      // task can be counted from the end of the list.
+      int[] lowerPriorityLevels = new int[downloadTasks.size()];
+      int levels = 0;
+      for (int i = downloadTasks.size() - 2; i >= 0; i--) {
+        if (priorities.get(i) > priorities.get(i + 1)) {
+          levels++;
+        }
+        lowerPriorityLevels[i] = levels;
+      }
+      double totalWeight = 0;
+      for (int level : lowerPriorityLevels) {
+        totalWeight += Math.pow(2, level);
+      }
+      for (int i = 0; i < downloadTasks.size(); i++) {
+        double share = Math.pow(2, lowerPriorityLevels[i]) / totalWeight;
+        long taskMaxBytesPerSecond = Math.max(1, (long) (maxBytesPerSecond * share));
+        downloadTasks.get(i).rateLimiter.setMaxBytesPerSecond(taskMaxBytesPerSecond);
+      }
     }
 
     private void syncStoppedDownload(@Nullable Task activeTask) {
@@ -1118,6 +1276,7 @@ public final class DownloadManager {
               download.progress);
       // The download is now in a terminal state, so should not be in the downloads list.
       downloads.remove(getDownloadIndex(download.request.id));
+      downloadPriorities.remove(download.request.id);
       // We still need to update the download index and main thread.
       try {
         downloadIndex.putDownload(download);
@@ -1138,6 +1297,7 @@ public final class DownloadManager {
       } else {
         int removeIndex = getDownloadIndex(download.request.id);
         downloads.remove(removeIndex);
+        downloadPriorities.remove(download.request.id);
         try {
           downloadIndex.removeDownload(download.request.id);
         } catch (IOException e) {
@@ -1189,12 +1349,12 @@ public final class DownloadManager {
       int changedIndex = getDownloadIndex(download.request.id);
       if (changedIndex == C.INDEX_UNSET) {
         downloads.add(download);
-        Collections.sort(downloads, InternalHandler::compareStartTimes);
+        Collections.sort(downloads, this::compareDownloads);
       } else {
         boolean needsSort = download.startTimeMs != downloads.get(changedIndex).startTimeMs;
         downloads.set(changedIndex, download);
         if (needsSort) {
-          Collections.sort(downloads, InternalHandler::compareStartTimes);
+          Collections.sort(downloads, this::compareDownloads);
         }
       }
       try {
@@ -1250,7 +1410,32 @@ public final class DownloadManager {
           download.progress);
     }
 
-    private static int compareStartTimes(Download first, Download second) {
+    private int getPriority(Download download) {
+      @Nullable DownloadPriority downloadPriority = downloadPriorities.get(download.request.id);
+      return downloadPriority != null ? downloadPriority.priority : 0;
+    }
+
+    private long getDeadlineMs(Download download) {
+      @Nullable DownloadPriority downloadPriority = downloadPriorities.get(download.request.id);
+      return downloadPriority != null ? downloadPriority.deadlineMs : C.TIME_UNSET;
+    }
+
+    private int compareDownloads(Download first, Download second) {
+      int firstPriority = getPriority(first);
+      int secondPriority = getPriority(second);
+      if (firstPriority != secondPriority) {
+        return firstPriority > secondPriority ? -1 : 1;
+      }
+      long firstDeadlineMs = getDeadlineMs(first);
+      long secondDeadlineMs = getDeadlineMs(second);
+      if (firstDeadlineMs != secondDeadlineMs) {
+        if (firstDeadlineMs == C.TIME_UNSET) {
+          return 1;
+        } else if (secondDeadlineMs == C.TIME_UNSET) {
+          return -1;
+        }
+        return Util.compareLong(firstDeadlineMs, secondDeadlineMs);
+      }
       return Util.compareLong(first.startTimeMs, second.startTimeMs);
     }
   }
@@ -1262,6 +1447,7 @@ public final class DownloadManager {
     private final DownloadProgress downloadProgress;
     private final boolean isRemove;
     private final int minRetryCount;
+    private final DataRateLimiter rateLimiter;
 
     @Nullable private volatile InternalHandler internalHandler;
     private volatile boolean isCanceled;
@@ -1283,6 +1469,10 @@ public final class DownloadManager {
       this.minRetryCount = minRetryCount;
       this.internalHandler = internalHandler;
       contentLength = C.LENGTH_UNSET;
+      rateLimiter = new DataRateLimiter();
+      if (!isRemove) {
+        downloader.setRateLimiter(rateLimiter);
+      }
     }
 
     @SuppressWarnings("nullness:assignment.type.incompatible")
@@ -1296,6 +1486,7 @@ public final class DownloadManager {
       }
       if (!isCanceled) {
         isCanceled = true;
+        rateLimiter.cancel();
         downloader.cancel();
         interrupt();
       }
@@ -1365,6 +1556,19 @@ public final class DownloadManager {
     }
   }
 
+  private static final class DownloadPriority {
+
+    public final String id;
+    public final int priority;
+    public final long deadlineMs;
+
+    public DownloadPriority(String id, int priority, long deadlineMs) {
+      this.id = id;
+      this.priority = priority;
+      this.deadlineMs = deadlineMs;
+    }
+  }
+
   private static final class DownloadUpdate {
 
     public final Download download;
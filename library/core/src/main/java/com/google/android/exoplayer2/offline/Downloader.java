@@ -17,6 +17,7 @@ package com.google.android.exoplayer2.offline;
 
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataRateLimiter;
 import java.io.IOException;
 
 /** Downloads and removes a piece of content. */
@@ -50,6 +51,17 @@ public interface Downloader {
    */
   void download(@Nullable ProgressListener progressListener) throws IOException;
 
+  /**
+   * Sets a {@link DataRateLimiter} that limits the rate at which subsequent {@link #download}
+   * operations read data from upstream. Data that's already cached is not limited.
+   *
+   * <p>The default implementation does nothing, in which case the rate isn't limited.
+   *
+   * @param rateLimiter The {@link DataRateLimiter}, or {@code null} if the rate shouldn't be
+   *     limited.
+   */
+  default void setRateLimiter(@Nullable DataRateLimiter rateLimiter) {}
+
   /**
    * Cancels the download operation and prevents future download operations from running. The caller
    * should also interrupt the downloading thread immediately after calling this method.
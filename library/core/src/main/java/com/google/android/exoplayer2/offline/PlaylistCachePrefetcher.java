@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.offline;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheWriter;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+import com.google.android.exoplayer2.util.PriorityTaskManager.PriorityTooLowException;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Warms a cache with the start of the media items that will be played next, so that transitions to
+ * them read from the cache rather than waiting for the network.
+ *
+ * <p>The prefetcher either follows a {@link Player} set with {@link #setPlayer(Player)}, in which
+ * case it prefetches the items following the current item of the player's playlist, or is told
+ * which items to prefetch by calling {@link #prefetch(List)}. Whenever the items to prefetch
+ * change, any ongoing prefetching is canceled.
+ *
+ * <p>The start of each item is cached by a {@link CacheWriter} on a background thread, using a
+ * {@link CacheDataSource} created by {@link
+ * CacheDataSource.Factory#createDataSourceForDownloading()}. Hence if the factory has an upstream
+ * {@link PriorityTaskManager}, prefetching only proceeds when no higher priority task, such as
+ * playback, is loading. The number of bytes prefetched for each item is estimated from a duration
+ * and an assumed bitrate, and the total number of bytes prefetched for the upcoming items is
+ * limited by a byte budget.
+ *
+ * <p>For DASH, HLS and SmoothStreaming media items, the manifest is loaded and the segments that
+ * start within the duration are prefetched by the {@link SegmentDownloader} created by a {@link
+ * DefaultDownloaderFactory}, until the number of bytes for the item is reached. Only the
+ * representations selected by the {@link MediaItem.PlaybackProperties#streamKeys stream keys} of
+ * the item are prefetched, or all representations if it has none, so setting stream keys that
+ * select the representations likely to be played first makes better use of the byte budget.
+ * Adaptive items are skipped if the corresponding module is missing.
+ *
+ * <p>Public methods must be called on the application thread, which is the thread on which the
+ * player's listeners are called if a player is set.
+ */
+public final class PlaylistCachePrefetcher implements Player.EventListener {
+
+  /** The default number of upcoming playlist items to prefetch. */
+  public static final int DEFAULT_ITEM_COUNT = 1;
+  /** The default duration of media to prefetch for each item, in milliseconds. */
+  public static final long DEFAULT_DURATION_MS = 5_000;
+  /** The default bitrate assumed when estimating the length of the media to prefetch. */
+  public static final int DEFAULT_ASSUMED_BITRATE = 2_000_000;
+  /** The default maximum total number of bytes to prefetch for the upcoming items. */
+  public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  private static final String TAG = "PlaylistPrefetcher";
+
+  private final CacheDataSource.Factory cacheDataSourceFactory;
+  private final DownloaderFactory downloaderFactory;
+  private final ExecutorService executorService;
+  private final Timeline.Window window;
+  private final byte[] temporaryBuffer;
+
+  @Nullable private Player player;
+  private int itemCount;
+  private long durationMs;
+  private int assumedBitrate;
+  private long maxBytes;
+  private List<MediaItem> mediaItems;
+  @Nullable private PrefetchTask currentTask;
+
+  /**
+   * Creates an instance.
+   *
+   * @param cacheDataSourceFactory A {@link CacheDataSource.Factory} for the cache into which media
+   *     is prefetched. Should be the cache from which the player reads.
+   */
+  public PlaylistCachePrefetcher(CacheDataSource.Factory cacheDataSourceFactory) {
+    this.cacheDataSourceFactory = cacheDataSourceFactory;
+    // Segments are downloaded on the prefetching thread, one at a time.
+    downloaderFactory = new DefaultDownloaderFactory(cacheDataSourceFactory);
+    executorService = Util.newSingleThreadExecutor("ExoPlayer:PlaylistCachePrefetcher");
+    window = new Timeline.Window();
+    temporaryBuffer = new byte[CacheWriter.DEFAULT_BUFFER_SIZE_BYTES];
+    itemCount = DEFAULT_ITEM_COUNT;
+    durationMs = DEFAULT_DURATION_MS;
+    assumedBitrate = DEFAULT_ASSUMED_BITRATE;
+    maxBytes = DEFAULT_MAX_BYTES;
+    mediaItems = Collections.emptyList();
+  }
+
+  /**
+   * Sets the number of upcoming playlist items to prefetch when following a player. The default is
+   * {@link #DEFAULT_ITEM_COUNT}.
+   *
+   * @param itemCount The number of upcoming items to prefetch.
+   */
+  public void setItemCount(int itemCount) {
+    Assertions.checkArgument(itemCount >= 0);
+    this.itemCount = itemCount;
+    updateFromPlayer();
+  }
+
+  /**
+   * Sets the duration of media to prefetch for each item, and the bitrate assumed when estimating
+   * the number of bytes that correspond to it. The defaults are {@link #DEFAULT_DURATION_MS} and
+   * {@link #DEFAULT_ASSUMED_BITRATE}. Takes effect when the items to prefetch next change.
+   *
+   * @param durationMs The duration of media to prefetch for each item, in milliseconds.
+   * @param assumedBitrate The assumed bitrate of the media, in bits per second.
+   */
+  public void setDuration(long durationMs, int assumedBitrate) {
+    Assertions.checkArgument(durationMs >= 0 && assumedBitrate > 0);
+    this.durationMs = durationMs;
+    this.assumedBitrate = assumedBitrate;
+  }
+
+  /**
+   * Sets the maximum total number of bytes to prefetch for the upcoming items. The default is
+   * {@link #DEFAULT_MAX_BYTES}. Takes effect when the items to prefetch next change.
+   *
+   * @param maxBytes The maximum number of bytes to prefetch.
+   */
+  public void setMaxBytes(long maxBytes) {
+    Assertions.checkArgument(maxBytes >= 0);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Sets the player whose upcoming playlist items are prefetched, or {@code null} to stop following
+   * the current player.
+   *
+   * @param player The {@link Player}, or {@code null}.
+   */
+  public void setPlayer(@Nullable Player player) {
+    if (this.player != null) {
+      this.player.removeListener(this);
+    }
+    this.player = player;
+    if (player != null) {
+      player.addListener(this);
+      updateFromPlayer();
+    }
+  }
+
+  /**
+   * Prefetches the start of the specified media items, in order, canceling any ongoing
+   * prefetching unless the items are unchanged.
+   *
+   * @param mediaItems The media items to prefetch.
+   */
+  public void prefetch(List<MediaItem> mediaItems) {
+    if (mediaItems.equals(this.mediaItems)) {
+      return;
+    }
+    this.mediaItems = new ArrayList<>(mediaItems);
+    cancelCurrentTask();
+    long bytesPerItem = durationMs * assumedBitrate / (8 * C.MILLIS_PER_SECOND);
+    long remainingBytes = maxBytes;
+    List<PrefetchItem> items = new ArrayList<>();
+    for (int i = 0; i < mediaItems.size() && remainingBytes > 0; i++) {
+      @Nullable MediaItem.PlaybackProperties playbackProperties =
+          mediaItems.get(i).playbackProperties;
+      if (playbackProperties == null) {
+        continue;
+      }
+      long length = Math.min(bytesPerItem, remainingBytes);
+      @Nullable PrefetchItem item;
+      if (isProgressive(playbackProperties)) {
+        item =
+            new PrefetchItem(
+                new DataSpec.Builder()
+                    .setUri(playbackProperties.uri)
+                    .setKey(playbackProperties.customCacheKey)
+                    .setLength(length)
+                    .setFlags(DataSpec.FLAG_ALLOW_CACHE_FRAGMENTATION)
+                    .build());
+      } else {
+        @Nullable SegmentDownloader<?> downloader = createSegmentDownloader(playbackProperties);
+        item = downloader != null ? new PrefetchItem(downloader, length) : null;
+      }
+      if (item != null) {
+        remainingBytes -= length;
+        items.add(item);
+      }
+    }
+    if (!items.isEmpty()) {
+      PrefetchTask task =
+          new PrefetchTask(items, cacheDataSourceFactory.createDataSourceForDownloading());
+      task.future = executorService.submit(task);
+      currentTask = task;
+    }
+  }
+
+  /** Stops following the player, cancels any ongoing prefetching and releases the prefetcher. */
+  public void release() {
+    setPlayer(null);
+    cancelCurrentTask();
+    executorService.shutdown();
+  }
+
+  // Player.EventListener implementation.
+
+  @Override
+  public void onTimelineChanged(Timeline timeline, @Player.TimelineChangeReason int reason) {
+    updateFromPlayer();
+  }
+
+  @Override
+  public void onPositionDiscontinuity(@Player.DiscontinuityReason int reason) {
+    updateFromPlayer();
+  }
+
+  @Override
+  public void onRepeatModeChanged(@Player.RepeatMode int repeatMode) {
+    updateFromPlayer();
+  }
+
+  @Override
+  public void onShuffleModeEnabledChanged(boolean shuffleModeEnabled) {
+    updateFromPlayer();
+  }
+
+  // Internal methods.
+
+  private void updateFromPlayer() {
+    if (player == null) {
+      return;
+    }
+    Timeline timeline = player.getCurrentTimeline();
+    List<MediaItem> upcomingMediaItems = new ArrayList<>();
+    if (!timeline.isEmpty()) {
+      int windowIndex = player.getCurrentWindowIndex();
+      for (int i = 0; i < itemCount; i++) {
+        windowIndex =
+            timeline.getNextWindowIndex(
+                windowIndex, player.getRepeatMode(), player.getShuffleModeEnabled());
+        if (windowIndex == C.INDEX_UNSET) {
+          break;
+        }
+        upcomingMediaItems.add(timeline.getWindow(windowIndex, window).mediaItem);
+      }
+    }
+    prefetch(upcomingMediaItems);
+  }
+
+  private void cancelCurrentTask() {
+    if (currentTask != null) {
+      currentTask.cancel();
+      currentTask = null;
+    }
+  }
+
+  @Nullable
+  private SegmentDownloader<?> createSegmentDownloader(
+      MediaItem.PlaybackProperties playbackProperties) {
+    String type;
+    @C.ContentType
+    int contentType =
+        Util.inferContentTypeWithMimeType(playbackProperties.uri, playbackProperties.mimeType);
+    switch (contentType) {
+      case C.TYPE_DASH:
+        type = DownloadRequest.TYPE_DASH;
+        break;
+      case C.TYPE_HLS:
+        type = DownloadRequest.TYPE_HLS;
+        break;
+      case C.TYPE_SS:
+        type = DownloadRequest.TYPE_SS;
+        break;
+      default:
+        return null;
+    }
+    DownloadRequest request =
+        new DownloadRequest(
+            /* id= */ playbackProperties.uri.toString(),
+            type,
+            playbackProperties.uri,
+            playbackProperties.streamKeys,
+            /* customCacheKey= */ null,
+            /* data= */ null);
+    Downloader downloader;
+    try {
+      downloader = downloaderFactory.createDownloader(request);
+    } catch (IllegalStateException e) {
+      // The module for the type is missing.
+      return null;
+    }
+    if (!(downloader instanceof SegmentDownloader)) {
+      return null;
+    }
+    SegmentDownloader<?> segmentDownloader = (SegmentDownloader<?>) downloader;
+    segmentDownloader.setMaxDurationUs(C.msToUs(Math.max(durationMs, 1)));
+    return segmentDownloader;
+  }
+
+  private static boolean isProgressive(MediaItem.PlaybackProperties playbackProperties) {
+    return Util.inferContentTypeWithMimeType(playbackProperties.uri, playbackProperties.mimeType)
+        == C.TYPE_OTHER;
+  }
+
+  /** The start of a progressive or an adaptive media item to prefetch. */
+  private static final class PrefetchItem {
+
+    @Nullable public final DataSpec dataSpec;
+    @Nullable public final SegmentDownloader<?> downloader;
+    public final long maxBytes;
+
+    /** Creates an item for progressive media, whose data spec is bounded by the number of bytes. */
+    public PrefetchItem(DataSpec dataSpec) {
+      this.dataSpec = dataSpec;
+      this.downloader = null;
+      this.maxBytes = dataSpec.length;
+    }
+
+    /** Creates an item for adaptive media, which is prefetched up to a number of bytes. */
+    public PrefetchItem(SegmentDownloader<?> downloader, long maxBytes) {
+      this.dataSpec = null;
+      this.downloader = downloader;
+      this.maxBytes = maxBytes;
+    }
+  }
+
+  private final class PrefetchTask implements Runnable {
+
+    private final List<PrefetchItem> items;
+    private final CacheDataSource dataSource;
+    private final AtomicBoolean isCanceled;
+
+    @Nullable public volatile Future<?> future;
+    @Nullable private volatile Downloader currentDownloader;
+
+    public PrefetchTask(List<PrefetchItem> items, CacheDataSource dataSource) {
+      this.items = items;
+      this.dataSource = dataSource;
+      isCanceled = new AtomicBoolean();
+    }
+
+    public void cancel() {
+      isCanceled.set(true);
+      @Nullable Downloader currentDownloader = this.currentDownloader;
+      if (currentDownloader != null) {
+        currentDownloader.cancel();
+      }
+      @Nullable Future<?> future = this.future;
+      if (future != null) {
+        // Interrupt the task if it's blocked waiting for higher priority tasks.
+        future.cancel(/* mayInterruptIfRunning= */ true);
+      }
+    }
+
+    @Override
+    public void run() {
+      @Nullable
+      PriorityTaskManager priorityTaskManager = dataSource.getUpstreamPriorityTaskManager();
+      if (priorityTaskManager != null) {
+        priorityTaskManager.add(C.PRIORITY_DOWNLOAD);
+      }
+      try {
+        for (int i = 0; i < items.size() && !isCanceled.get(); i++) {
+          PrefetchItem item = items.get(i);
+          if (item.dataSpec != null) {
+            prefetch(item.dataSpec, priorityTaskManager);
+          } else {
+            prefetch(Assertions.checkNotNull(item.downloader), item.maxBytes);
+          }
+        }
+      } catch (InterruptedException | InterruptedIOException e) {
+        // The task was canceled.
+      } finally {
+        if (priorityTaskManager != null) {
+          priorityTaskManager.remove(C.PRIORITY_DOWNLOAD);
+        }
+      }
+    }
+
+    private void prefetch(DataSpec dataSpec, @Nullable PriorityTaskManager priorityTaskManager)
+        throws InterruptedException, InterruptedIOException {
+      CacheWriter cacheWriter =
+          new CacheWriter(
+              dataSource,
+              dataSpec,
+              /* allowShortContent= */ true,
+              isCanceled,
+              temporaryBuffer,
+              /* progressListener= */ null);
+      while (!isCanceled.get()) {
+        if (priorityTaskManager != null) {
+          priorityTaskManager.proceed(dataSource.getUpstreamPriority());
+        }
+        try {
+          cacheWriter.cache();
+          return;
+        } catch (PriorityTooLowException e) {
+          // The next loop iteration will block until the task is able to proceed.
+        } catch (InterruptedIOException e) {
+          throw e;
+        } catch (IOException e) {
+          // Prefetching is best effort, so move on to the next item.
+          Log.w(TAG, "Failed to prefetch " + dataSpec.uri, e);
+          return;
+        }
+      }
+    }
+
+    private void prefetch(Downloader downloader, long maxBytes) {
+      // The downloader is published before checking for cancelation, so that it's either canceled
+      // here or by cancel().
+      currentDownloader = downloader;
+      try {
+        if (isCanceled.get()) {
+          return;
+        }
+        // The downloader blocks while higher priority tasks are loading, and is canceled once the
+        // number of bytes for the item is reached.
+        downloader.download(
+            (contentLength, bytesDownloaded, percentDownloaded) -> {
+              if (bytesDownloaded >= maxBytes) {
+                downloader.cancel();
+              }
+            });
+      } catch (InterruptedIOException e) {
+        // The task was canceled.
+      } catch (IOException e) {
+        // Prefetching is best effort, so move on to the next item.
+        Log.w(TAG, "Failed to prefetch adaptive media", e);
+      } finally {
+        currentDownloader = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.offline;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+
+/**
+ * Blocks a download until a {@link PriorityTaskManager} allows it to proceed, and backs off after
+ * the download has been preempted by a higher priority task such as playback.
+ *
+ * <p>Playback loads media in bursts, so a download that resumes as soon as a burst ends is likely
+ * to be preempted again shortly after. After each preemption the download waits for an increasing
+ * delay before it resumes. The delay is reset once the download has been able to run for {@link
+ * #RESET_RUN_TIME_MS} without being preempted.
+ */
+/* package */ final class PriorityBackoff {
+
+  /** The delay after the first preemption, in milliseconds. */
+  @VisibleForTesting /* package */ static final long INITIAL_DELAY_MS = 1000;
+  /** The maximum delay, in milliseconds. */
+  @VisibleForTesting /* package */ static final long MAX_DELAY_MS = 30_000;
+  /** The time for which a download must run without being preempted to reset the delay. */
+  @VisibleForTesting /* package */ static final long RESET_RUN_TIME_MS = 60_000;
+
+  private final PriorityTaskManager priorityTaskManager;
+  private final int priority;
+  private final Clock clock;
+
+  private int preemptionCount;
+  private boolean preemptedSinceProceed;
+  private long proceedTimeMs;
+
+  /**
+   * Creates an instance.
+   *
+   * @param priorityTaskManager The {@link PriorityTaskManager} that the download yields to.
+   * @param priority The priority of the download.
+   */
+  public PriorityBackoff(PriorityTaskManager priorityTaskManager, int priority) {
+    this(priorityTaskManager, priority, Clock.DEFAULT);
+  }
+
+  @VisibleForTesting
+  /* package */ PriorityBackoff(
+      PriorityTaskManager priorityTaskManager, int priority, Clock clock) {
+    this.priorityTaskManager = priorityTaskManager;
+    this.priority = priority;
+    this.clock = clock;
+    proceedTimeMs = C.TIME_UNSET;
+  }
+
+  /**
+   * Blocks until the download is allowed to proceed. If the download has been preempted, then
+   * additionally waits for the current backoff delay, and blocks again if higher priority tasks
+   * were added in the meantime.
+   *
+   * @throws InterruptedException If the thread is interrupted, for example because the download was
+   *     canceled.
+   */
+  public void proceed() throws InterruptedException {
+    priorityTaskManager.proceed(priority);
+    if (preemptedSinceProceed) {
+      Thread.sleep(getDelayMs());
+      priorityTaskManager.proceed(priority);
+    }
+    preemptedSinceProceed = false;
+    proceedTimeMs = clock.elapsedRealtime();
+  }
+
+  /** Called when the download is preempted by a higher priority task. */
+  public void onPreempted() {
+    if (preemptedSinceProceed) {
+      // Parallel loads of the same download were preempted by the same task.
+      return;
+    }
+    preemptedSinceProceed = true;
+    if (proceedTimeMs != C.TIME_UNSET
+        && clock.elapsedRealtime() - proceedTimeMs >= RESET_RUN_TIME_MS) {
+      preemptionCount = 0;
+    }
+    preemptionCount++;
+  }
+
+  /** Returns the delay before the download resumes, in milliseconds. */
+  @VisibleForTesting
+  /* package */ long getDelayMs() {
+    if (preemptionCount == 0) {
+      return 0;
+    }
+    int shift = Math.min(preemptionCount - 1, 30);
+    return Math.min(INITIAL_DELAY_MS << shift, MAX_DELAY_MS);
+  }
+}
@@ -19,7 +19,9 @@ import android.net.Uri;
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.upstream.DataRateLimiter;
 import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
 import com.google.android.exoplayer2.upstream.cache.CacheWriter;
 import com.google.android.exoplayer2.util.Assertions;
@@ -33,9 +35,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public final class ProgressiveDownloader implements Downloader {
 
   private final DataSpec dataSpec;
-  private final CacheDataSource dataSource;
+  private final CacheDataSource.Factory cacheDataSourceFactory;
   private final AtomicBoolean isCanceled;
 
+  @Nullable private volatile DataRateLimiter rateLimiter;
+
   /** @deprecated Use {@link #ProgressiveDownloader(MediaItem, CacheDataSource.Factory)} instead. */
   @SuppressWarnings("deprecation")
   @Deprecated
@@ -91,12 +95,18 @@ public final class ProgressiveDownloader implements Downloader {
             .setKey(mediaItem.playbackProperties.customCacheKey)
             .setFlags(DataSpec.FLAG_ALLOW_CACHE_FRAGMENTATION)
             .build();
-    dataSource = cacheDataSourceFactory.createDataSourceForDownloading();
+    this.cacheDataSourceFactory = cacheDataSourceFactory;
     isCanceled = new AtomicBoolean();
   }
 
+  @Override
+  public void setRateLimiter(@Nullable DataRateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
   @Override
   public void download(@Nullable ProgressListener progressListener) throws IOException {
+    CacheDataSource dataSource = cacheDataSourceFactory.createDataSourceForDownloading(rateLimiter);
     CacheWriter cacheWriter =
         new CacheWriter(
             dataSource,
@@ -107,20 +117,25 @@ public final class ProgressiveDownloader implements Downloader {
             progressListener == null ? null : new ProgressForwarder(progressListener));
 
     @Nullable PriorityTaskManager priorityTaskManager = dataSource.getUpstreamPriorityTaskManager();
+    @Nullable PriorityBackoff priorityBackoff = null;
     if (priorityTaskManager != null) {
       priorityTaskManager.add(C.PRIORITY_DOWNLOAD);
+      priorityBackoff = new PriorityBackoff(priorityTaskManager, dataSource.getUpstreamPriority());
     }
     try {
       boolean finished = false;
       while (!finished && !isCanceled.get()) {
-        if (priorityTaskManager != null) {
-          priorityTaskManager.proceed(dataSource.getUpstreamPriority());
+        if (priorityBackoff != null) {
+          priorityBackoff.proceed();
         }
         try {
           cacheWriter.cache();
           finished = true;
         } catch (PriorityTooLowException e) {
           // The next loop iteration will block until the task is able to proceed.
+          if (priorityBackoff != null) {
+            priorityBackoff.onPreempted();
+          }
         }
       }
     } catch (InterruptedException e) {
@@ -139,7 +154,8 @@ public final class ProgressiveDownloader implements Downloader {
 
   @Override
   public void remove() {
-    dataSource.getCache().removeResource(dataSource.getCacheKeyFactory().buildCacheKey(dataSpec));
+    Cache cache = Assertions.checkNotNull(cacheDataSourceFactory.getCache());
+    cache.removeResource(cacheDataSourceFactory.getCacheKeyFactory().buildCacheKey(dataSpec));
   }
 
   private static final class ProgressForwarder implements CacheWriter.ProgressListener {
@@ -21,6 +21,7 @@ import android.net.Uri;
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.upstream.DataRateLimiter;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.ParsingLoadable;
@@ -31,10 +32,12 @@ import com.google.android.exoplayer2.upstream.cache.CacheKeyFactory;
 import com.google.android.exoplayer2.upstream.cache.CacheWriter;
 import com.google.android.exoplayer2.upstream.cache.ContentMetadata;
 import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.ConditionVariable;
 import com.google.android.exoplayer2.util.PriorityTaskManager;
 import com.google.android.exoplayer2.util.PriorityTaskManager.PriorityTooLowException;
 import com.google.android.exoplayer2.util.Util;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -70,6 +73,9 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
     }
   }
 
+  /** The default maximum number of segments that are downloaded in parallel. */
+  public static final int DEFAULT_MAX_PARALLEL_SEGMENT_DOWNLOADS = 4;
+
   private static final int BUFFER_SIZE_BYTES = 128 * 1024;
   private static final long MAX_MERGED_SEGMENT_START_TIME_DIFF_US = 20 * C.MICROS_PER_SECOND;
 
@@ -80,6 +86,17 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
   private final Executor executor;
   private final AtomicBoolean isCanceled;
 
+  /**
+   * Cancelation signal for the segment downloads of the current {@link #download} call, or null if
+   * no download is in progress. Set on cancelation, or when a segment download fails and the
+   * remaining segment downloads need to be stopped.
+   */
+  @Nullable private volatile AtomicBoolean segmentDownloadsCanceled;
+
+  @Nullable private volatile DataRateLimiter rateLimiter;
+  private volatile int maxParallelSegmentDownloads;
+  private volatile long maxDurationUs;
+
   /**
    * @param mediaItem The {@link MediaItem} to be downloaded.
    * @param manifestParser A parser for manifests belonging to the media to be downloaded.
@@ -87,7 +104,8 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
    *     download will be written.
    * @param executor An {@link Executor} used to make requests for the media being downloaded.
    *     Providing an {@link Executor} that uses multiple threads will speed up the download by
-   *     allowing parts of it to be executed in parallel.
+   *     allowing parts of it to be executed in parallel. The number of segments that are
+   *     downloaded in parallel is also limited by {@link #setMaxParallelSegmentDownloads(int)}.
    */
   public SegmentDownloader(
       MediaItem mediaItem,
@@ -101,6 +119,42 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
     this.cacheDataSourceFactory = cacheDataSourceFactory;
     this.executor = executor;
     isCanceled = new AtomicBoolean();
+    maxParallelSegmentDownloads = DEFAULT_MAX_PARALLEL_SEGMENT_DOWNLOADS;
+    maxDurationUs = C.TIME_UNSET;
+  }
+
+  /**
+   * Sets the maximum number of segments that are downloaded in parallel by subsequent {@link
+   * #download} operations. Each segment download uses its own connection, so this also limits the
+   * number of connections that are open at the same time. The default value is {@link
+   * #DEFAULT_MAX_PARALLEL_SEGMENT_DOWNLOADS}.
+   *
+   * <p>Segment downloads are also limited by the number of threads of the {@link Executor} passed
+   * to the constructor.
+   *
+   * @param maxParallelSegmentDownloads The maximum number of segments downloaded in parallel.
+   */
+  public final void setMaxParallelSegmentDownloads(int maxParallelSegmentDownloads) {
+    Assertions.checkArgument(maxParallelSegmentDownloads > 0);
+    this.maxParallelSegmentDownloads = maxParallelSegmentDownloads;
+  }
+
+  /**
+   * Limits subsequent {@link #download} operations to the segments that start within a duration
+   * from the start of the media, so that only the start of the media is downloaded. Progress is
+   * reported for these segments only. There's no limit by default.
+   *
+   * @param maxDurationUs The duration from the start of the media within which segments must start
+   *     to be downloaded, or {@link C#TIME_UNSET} to download all segments.
+   */
+  public final void setMaxDurationUs(long maxDurationUs) {
+    Assertions.checkArgument(maxDurationUs == C.TIME_UNSET || maxDurationUs > 0);
+    this.maxDurationUs = maxDurationUs;
+  }
+
+  @Override
+  public final void setRateLimiter(@Nullable DataRateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
   }
 
   @Override
@@ -108,13 +162,22 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
     @Nullable
     PriorityTaskManager priorityTaskManager =
         cacheDataSourceFactory.getUpstreamPriorityTaskManager();
+    @Nullable PriorityBackoff priorityBackoff = null;
     if (priorityTaskManager != null) {
       priorityTaskManager.add(C.PRIORITY_DOWNLOAD);
     }
     try {
       Cache cache = Assertions.checkNotNull(cacheDataSourceFactory.getCache());
       CacheKeyFactory cacheKeyFactory = cacheDataSourceFactory.getCacheKeyFactory();
-      CacheDataSource dataSource = cacheDataSourceFactory.createDataSourceForDownloading();
+      // Segment downloads share the rate limiter, so that the rate is limited for the download as a
+      // whole rather than for each segment.
+      @Nullable DataRateLimiter rateLimiter = this.rateLimiter;
+      CacheDataSource dataSource =
+          cacheDataSourceFactory.createDataSourceForDownloading(rateLimiter);
+      if (priorityTaskManager != null) {
+        priorityBackoff =
+            new PriorityBackoff(priorityTaskManager, dataSource.getUpstreamPriority());
+      }
 
       // Get the manifest and all of the segments.
       M manifest = getManifest(dataSource, manifestDataSpec);
@@ -123,6 +186,16 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
       }
       List<Segment> segments = getSegments(dataSource, manifest, /* allowIncompleteList= */ false);
       Collections.sort(segments);
+      long maxDurationUs = this.maxDurationUs;
+      if (maxDurationUs != C.TIME_UNSET) {
+        // The segments are sorted, so the segments to skip are at the end of the list.
+        int segmentCount = 0;
+        while (segmentCount < segments.size()
+            && segments.get(segmentCount).startTimeUs < maxDurationUs) {
+          segmentCount++;
+        }
+        segments.subList(segmentCount, segments.size()).clear();
+      }
       mergeSegments(segments, cacheKeyFactory);
 
       // Scan the segments, removing any that are fully downloaded.
@@ -169,29 +242,91 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
                   bytesDownloaded,
                   segmentsDownloaded)
               : null;
-      byte[] temporaryBuffer = new byte[BUFFER_SIZE_BYTES];
-      int segmentIndex = 0;
-      while (!isCanceled.get() && segmentIndex < segments.size()) {
-        if (priorityTaskManager != null) {
-          priorityTaskManager.proceed(dataSource.getUpstreamPriority());
+      AtomicBoolean segmentDownloadsCanceled = new AtomicBoolean();
+      this.segmentDownloadsCanceled = segmentDownloadsCanceled;
+      if (isCanceled.get()) {
+        segmentDownloadsCanceled.set(true);
+      }
+      ArrayDeque<Segment> pendingSegments = new ArrayDeque<>(segments);
+      ArrayDeque<SegmentDownloadRunnable> recycledRunnables = new ArrayDeque<>();
+      ArrayList<SegmentDownloadRunnable> activeRunnables = new ArrayList<>();
+      // Opened whenever a segment download finishes.
+      ConditionVariable segmentDownloadFinished = new ConditionVariable();
+      int maxParallelSegmentDownloads = this.maxParallelSegmentDownloads;
+      try {
+        while (!isCanceled.get() && (!pendingSegments.isEmpty() || !activeRunnables.isEmpty())) {
+          if (!pendingSegments.isEmpty() && activeRunnables.size() < maxParallelSegmentDownloads) {
+            // Block until there aren't any higher priority tasks.
+            if (priorityBackoff != null) {
+              priorityBackoff.proceed();
+            }
+
+            // Create and execute a runnable to download the next segment. Each runnable uses its
+            // own CacheDataSource and temporary buffer, since neither can be shared between
+            // threads.
+            CacheDataSource segmentDataSource;
+            byte[] temporaryBuffer;
+            if (!recycledRunnables.isEmpty()) {
+              SegmentDownloadRunnable recycledRunnable = recycledRunnables.removeFirst();
+              segmentDataSource = recycledRunnable.dataSource;
+              temporaryBuffer = recycledRunnable.temporaryBuffer;
+            } else {
+              segmentDataSource =
+                  cacheDataSourceFactory.createDataSourceForDownloading(rateLimiter);
+              temporaryBuffer = new byte[BUFFER_SIZE_BYTES];
+            }
+            Segment segment = pendingSegments.removeFirst();
+            SegmentDownloadRunnable downloadRunnable =
+                new SegmentDownloadRunnable(
+                    segment,
+                    segmentDataSource,
+                    segmentDownloadsCanceled,
+                    temporaryBuffer,
+                    progressNotifier,
+                    segmentDownloadFinished);
+            activeRunnables.add(downloadRunnable);
+            executor.execute(downloadRunnable);
+
+            // Don't move on to the next segment until the runnable for this segment has started.
+            // This drip feeds runnables to the executor so that segments are started in order, and
+            // bounds the number of runnables that are queued but not yet started to one.
+            downloadRunnable.blockUntilStarted();
+          } else {
+            // The maximum number of segments are being downloaded, or there are no more segments
+            // to start. Wait for a segment download to finish.
+            segmentDownloadFinished.block();
+          }
+
+          // Clean up runnables that have finished. The condition is closed first, so that a
+          // runnable that finishes after the scan opens it again for the next iteration.
+          segmentDownloadFinished.close();
+          for (int i = activeRunnables.size() - 1; i >= 0; i--) {
+            SegmentDownloadRunnable activeRunnable = activeRunnables.get(i);
+            if (activeRunnable.isDone()) {
+              activeRunnables.remove(i);
+              recycledRunnables.addLast(activeRunnable);
+              @Nullable IOException exception = activeRunnable.exception;
+              if (exception instanceof PriorityTooLowException) {
+                // Schedule the segment again. A later loop iteration will block until the task is
+                // able to proceed.
+                pendingSegments.addFirst(activeRunnable.segment);
+                if (priorityBackoff != null) {
+                  priorityBackoff.onPreempted();
+                }
+              } else if (exception != null && !isCanceled.get()) {
+                throw exception;
+              }
+            }
+          }
         }
-        CacheWriter cacheWriter =
-            new CacheWriter(
-                dataSource,
-                segments.get(segmentIndex).dataSpec,
-                /* allowShortContent= */ false,
-                isCanceled,
-                temporaryBuffer,
-                progressNotifier);
-        try {
-          cacheWriter.cache();
-          segmentIndex++;
-          if (progressNotifier != null) {
-            progressNotifier.onSegmentDownloaded();
+      } finally {
+        // Make sure no runnables are still writing to the cache when this method returns.
+        this.segmentDownloadsCanceled = null;
+        if (!activeRunnables.isEmpty()) {
+          segmentDownloadsCanceled.set(true);
+          for (int i = 0; i < activeRunnables.size(); i++) {
+            activeRunnables.get(i).blockUntilDoneUninterruptible();
           }
-        } catch (PriorityTooLowException e) {
-          // The next loop iteration will block until the task is able to proceed, then try and
-          // download the same segment again.
         }
       }
     } catch (InterruptedException e) {
@@ -206,6 +341,10 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
   @Override
   public void cancel() {
     isCanceled.set(true);
+    @Nullable AtomicBoolean segmentDownloadsCanceled = this.segmentDownloadsCanceled;
+    if (segmentDownloadsCanceled != null) {
+      segmentDownloadsCanceled.set(true);
+    }
   }
 
   @Override
@@ -298,6 +437,10 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
         && dataSpec1.httpRequestHeaders.equals(dataSpec2.httpRequestHeaders);
   }
 
+  /**
+   * Aggregates progress of the segments being downloaded. Methods may be called concurrently by
+   * {@link SegmentDownloadRunnable SegmentDownloadRunnables} running on different threads.
+   */
   private static final class ProgressNotifier implements CacheWriter.ProgressListener {
 
     private final ProgressListener progressListener;
@@ -322,12 +465,12 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
     }
 
     @Override
-    public void onProgress(long requestLength, long bytesCached, long newBytesCached) {
+    public synchronized void onProgress(long requestLength, long bytesCached, long newBytesCached) {
       bytesDownloaded += newBytesCached;
       progressListener.onProgress(contentLength, bytesDownloaded, getPercentDownloaded());
     }
 
-    public void onSegmentDownloaded() {
+    public synchronized void onSegmentDownloaded() {
       segmentsDownloaded++;
       progressListener.onProgress(contentLength, bytesDownloaded, getPercentDownloaded());
     }
@@ -342,4 +485,71 @@ public abstract class SegmentDownloader<M extends FilterableManifest<M>> impleme
       }
     }
   }
+
+  private static final class SegmentDownloadRunnable implements Runnable {
+
+    public final Segment segment;
+    public final CacheDataSource dataSource;
+    public final byte[] temporaryBuffer;
+
+    @Nullable private final ProgressNotifier progressNotifier;
+    private final CacheWriter cacheWriter;
+    private final ConditionVariable started;
+    private final ConditionVariable done;
+    private final ConditionVariable finished;
+
+    @Nullable private volatile IOException exception;
+
+    public SegmentDownloadRunnable(
+        Segment segment,
+        CacheDataSource dataSource,
+        AtomicBoolean isCanceled,
+        byte[] temporaryBuffer,
+        @Nullable ProgressNotifier progressNotifier,
+        ConditionVariable finished) {
+      this.segment = segment;
+      this.dataSource = dataSource;
+      this.temporaryBuffer = temporaryBuffer;
+      this.progressNotifier = progressNotifier;
+      this.cacheWriter =
+          new CacheWriter(
+              dataSource,
+              segment.dataSpec,
+              /* allowShortContent= */ false,
+              isCanceled,
+              temporaryBuffer,
+              progressNotifier);
+      started = new ConditionVariable();
+      done = new ConditionVariable();
+      this.finished = finished;
+    }
+
+    @Override
+    public void run() {
+      started.open();
+      try {
+        cacheWriter.cache();
+        if (progressNotifier != null) {
+          progressNotifier.onSegmentDownloaded();
+        }
+      } catch (IOException e) {
+        exception = e;
+      } finally {
+        done.open();
+        finished.open();
+      }
+    }
+
+    public boolean isDone() {
+      return done.isOpen();
+    }
+
+    public void blockUntilStarted() throws InterruptedException {
+      started.block();
+    }
+
+    public void blockUntilDoneUninterruptible() {
+      done.blockUninterruptible();
+    }
+  }
 }
@@ -22,28 +22,45 @@ import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
 import com.google.android.exoplayer2.extractor.TrackOutput.CryptoData;
 import com.google.android.exoplayer2.source.SampleQueue.SampleExtrasHolder;
 import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.AllocationSpillFile;
 import com.google.android.exoplayer2.upstream.Allocator;
 import com.google.android.exoplayer2.upstream.DataReader;
+import com.google.android.exoplayer2.util.Log;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 import com.google.android.exoplayer2.util.Util;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 
 /** A queue of media sample data. */
 /* package */ class SampleDataQueue {
 
+  private static final String TAG = "SampleDataQueue";
+
   private static final int INITIAL_SCRATCH_SIZE = 32;
+  private static final int MAX_DIRECT_WRITE_SCRATCH_SIZE = 16 * 1024;
 
   private final Allocator allocator;
   private final int allocationLength;
   private final ParsableByteArray scratch;
 
+  // Used to stage data read from a DataReader into allocations backed by direct buffers.
+  @Nullable private byte[] directWriteScratch;
+
+  // Used to spill data that has already been read to disk. Accessed only by the consuming thread.
+  @Nullable private final AllocationSpillFile spillFile;
+  private final ArrayDeque<AllocationNode> spillingAllocationNodes;
+  private boolean spillFailed;
+
   // References into the linked list of allocations.
   private AllocationNode firstAllocationNode;
   private AllocationNode readAllocationNode;
   private AllocationNode writeAllocationNode;
+  // The first node that has not been spilled. All preceding nodes have been spilled, or are being
+  // spilled.
+  private AllocationNode spillAllocationNode;
 
   // Accessed only by the loading thread (or the consuming thread when there is no loading thread).
   private long totalBytesWritten;
@@ -55,6 +72,9 @@ import java.util.Arrays;
     firstAllocationNode = new AllocationNode(/* startPosition= */ 0, allocationLength);
     readAllocationNode = firstAllocationNode;
     writeAllocationNode = firstAllocationNode;
+    spillAllocationNode = firstAllocationNode;
+    spillFile = allocator.getBackBufferSpillFile();
+    spillingAllocationNodes = new ArrayDeque<>();
   }
 
   // Called by the consuming thread, but only when there is no loading thread.
@@ -65,7 +85,11 @@ import java.util.Arrays;
     firstAllocationNode = new AllocationNode(0, allocationLength);
     readAllocationNode = firstAllocationNode;
     writeAllocationNode = firstAllocationNode;
+    spillAllocationNode = firstAllocationNode;
     totalBytesWritten = 0;
+    // Spills of the cleared nodes have been canceled.
+    spillingAllocationNodes.clear();
+    spillFailed = false;
     allocator.trim();
   }
 
@@ -83,6 +107,7 @@ import java.util.Arrays;
       firstAllocationNode = new AllocationNode(this.totalBytesWritten, allocationLength);
       readAllocationNode = firstAllocationNode;
       writeAllocationNode = firstAllocationNode;
+      spillAllocationNode = firstAllocationNode;
     } else {
       // Find the last node containing at least 1 byte of data that we need to keep.
       AllocationNode lastNodeToKeep = firstAllocationNode;
@@ -102,6 +127,9 @@ import java.util.Arrays;
       if (readAllocationNode == firstNodeToDiscard) {
         readAllocationNode = lastNodeToKeep.next;
       }
+      if (spillAllocationNode.startPosition >= firstNodeToDiscard.startPosition) {
+        spillAllocationNode = lastNodeToKeep.next;
+      }
     }
   }
 
@@ -146,6 +174,7 @@ import java.util.Arrays;
       buffer.ensureSpaceForWrite(extrasHolder.size);
       readData(extrasHolder.offset, buffer.data, extrasHolder.size);
     }
+    maybeSpillReadData();
   }
 
   /**
@@ -161,7 +190,12 @@ import java.util.Arrays;
     while (absolutePosition >= firstAllocationNode.endPosition) {
       // Advance firstAllocationNode to the specified absolute position. Also clear nodes that are
       // advanced past, and return their underlying allocations to the allocator.
-      allocator.release(firstAllocationNode.allocation);
+      if (firstAllocationNode.allocation != null) {
+        allocator.release(firstAllocationNode.allocation);
+      } else {
+        Util.castNonNull(spillFile).free(firstAllocationNode.spillSlot);
+      }
+      // Clearing the node cancels any spill that's still in progress.
       firstAllocationNode = firstAllocationNode.clear();
     }
     if (readAllocationNode.startPosition < firstAllocationNode.startPosition) {
@@ -169,6 +203,9 @@ import java.util.Arrays;
       // remaining node.
       readAllocationNode = firstAllocationNode;
     }
+    if (spillAllocationNode.startPosition < firstAllocationNode.startPosition) {
+      spillAllocationNode = firstAllocationNode;
+    }
   }
 
   // Called by the loading thread.
@@ -179,11 +216,26 @@ import java.util.Arrays;
 
   public int sampleData(DataReader input, int length, boolean allowEndOfInput) throws IOException {
     length = preAppend(length);
-    int bytesAppended =
-        input.read(
-            writeAllocationNode.allocation.data,
-            writeAllocationNode.translateOffset(totalBytesWritten),
-            length);
+    @Nullable ByteBuffer writeBuffer = writeAllocationNode.writeBuffer;
+    int bytesAppended;
+    if (writeBuffer == null) {
+      bytesAppended =
+          input.read(
+              writeAllocationNode.allocation.getData(),
+              writeAllocationNode.translateOffset(totalBytesWritten),
+              length);
+    } else {
+      // DataReader can only read into an array, so stage the data in a scratch array.
+      if (directWriteScratch == null) {
+        directWriteScratch = new byte[Math.min(allocationLength, MAX_DIRECT_WRITE_SCRATCH_SIZE)];
+      }
+      length = Math.min(length, directWriteScratch.length);
+      bytesAppended = input.read(directWriteScratch, /* offset= */ 0, length);
+      if (bytesAppended != C.RESULT_END_OF_INPUT) {
+        writeBuffer.position(writeAllocationNode.translateOffset(totalBytesWritten));
+        writeBuffer.put(directWriteScratch, /* offset= */ 0, bytesAppended);
+      }
+    }
     if (bytesAppended == C.RESULT_END_OF_INPUT) {
       if (allowEndOfInput) {
         return C.RESULT_END_OF_INPUT;
@@ -197,10 +249,16 @@ import java.util.Arrays;
   public void sampleData(ParsableByteArray buffer, int length) {
     while (length > 0) {
       int bytesAppended = preAppend(length);
-      buffer.readBytes(
-          writeAllocationNode.allocation.data,
-          writeAllocationNode.translateOffset(totalBytesWritten),
-          bytesAppended);
+      @Nullable ByteBuffer writeBuffer = writeAllocationNode.writeBuffer;
+      if (writeBuffer == null) {
+        buffer.readBytes(
+            writeAllocationNode.allocation.getData(),
+            writeAllocationNode.translateOffset(totalBytesWritten),
+            bytesAppended);
+      } else {
+        writeBuffer.position(writeAllocationNode.translateOffset(totalBytesWritten));
+        buffer.readBytes(writeBuffer, bytesAppended);
+      }
       length -= bytesAppended;
       postAppend(bytesAppended);
     }
@@ -305,8 +363,14 @@ import java.util.Arrays;
     int remaining = length;
     while (remaining > 0) {
       int toCopy = Math.min(remaining, (int) (readAllocationNode.endPosition - absolutePosition));
-      Allocation allocation = readAllocationNode.allocation;
-      target.put(allocation.data, readAllocationNode.translateOffset(absolutePosition), toCopy);
+      int offset = readAllocationNode.translateOffset(absolutePosition);
+      @Nullable ByteBuffer readBuffer = readAllocationNode.readBuffer;
+      if (readBuffer == null) {
+        target.put(readAllocationNode.allocation.getData(), offset, toCopy);
+      } else {
+        readBuffer.limit(offset + toCopy).position(offset);
+        target.put(readBuffer);
+      }
       remaining -= toCopy;
       absolutePosition += toCopy;
       if (absolutePosition == readAllocationNode.endPosition) {
@@ -327,13 +391,15 @@ import java.util.Arrays;
     int remaining = length;
     while (remaining > 0) {
       int toCopy = Math.min(remaining, (int) (readAllocationNode.endPosition - absolutePosition));
-      Allocation allocation = readAllocationNode.allocation;
-      System.arraycopy(
-          allocation.data,
-          readAllocationNode.translateOffset(absolutePosition),
-          target,
-          length - remaining,
-          toCopy);
+      int offset = readAllocationNode.translateOffset(absolutePosition);
+      @Nullable ByteBuffer readBuffer = readAllocationNode.readBuffer;
+      if (readBuffer == null) {
+        System.arraycopy(
+            readAllocationNode.allocation.getData(), offset, target, length - remaining, toCopy);
+      } else {
+        readBuffer.limit(offset + toCopy).position(offset);
+        readBuffer.get(target, length - remaining, toCopy);
+      }
       remaining -= toCopy;
       absolutePosition += toCopy;
       if (absolutePosition == readAllocationNode.endPosition) {
@@ -365,19 +431,83 @@ import java.util.Arrays;
     // Bulk release allocations for performance (it's significantly faster when using
     // DefaultAllocator because the allocator's lock only needs to be acquired and released once)
     // [Internal: See b/29542039].
-    int allocationCount =
+    int nodeCount =
         (writeAllocationNode.wasInitialized ? 1 : 0)
             + ((int) (writeAllocationNode.startPosition - fromNode.startPosition)
                 / allocationLength);
-    Allocation[] allocationsToRelease = new Allocation[allocationCount];
+    Allocation[] allocationsToRelease = new Allocation[nodeCount];
+    int allocationCount = 0;
     AllocationNode currentNode = fromNode;
-    for (int i = 0; i < allocationsToRelease.length; i++) {
-      allocationsToRelease[i] = currentNode.allocation;
+    for (int i = 0; i < nodeCount; i++) {
+      if (currentNode.allocation != null) {
+        allocationsToRelease[allocationCount++] = currentNode.allocation;
+      } else {
+        Util.castNonNull(spillFile).free(currentNode.spillSlot);
+      }
       currentNode = currentNode.clear();
     }
+    if (allocationCount < nodeCount) {
+      allocationsToRelease = Arrays.copyOf(allocationsToRelease, allocationCount);
+    }
     allocator.release(allocationsToRelease);
   }
 
+  /**
+   * Starts spilling nodes containing data that has already been read to disk, except for the most
+   * recently read ones, and releases the allocations of nodes whose spills have finished. Does
+   * nothing if spilling is not enabled.
+   */
+  private void maybeSpillReadData() {
+    if (spillFile == null || spillFailed) {
+      return;
+    }
+    long spillEndPosition =
+        readAllocationNode.startPosition - spillFile.getInMemoryBackBufferBytes();
+    while (spillAllocationNode.endPosition <= spillEndPosition) {
+      // The data is copied on a background thread. The node keeps its allocation until then.
+      spillAllocationNode.pendingSpill =
+          spillFile.spill(Util.castNonNull(spillAllocationNode.allocation));
+      spillingAllocationNodes.addLast(spillAllocationNode);
+      spillAllocationNode = Util.castNonNull(spillAllocationNode.next);
+    }
+    while (!spillingAllocationNodes.isEmpty()) {
+      AllocationNode node = spillingAllocationNodes.peekFirst();
+      @Nullable AllocationSpillFile.Spill spill = node.pendingSpill;
+      if (spill != null && !spill.isDone()) {
+        // Finished spills are applied in order, so wait for this one before applying later ones.
+        return;
+      }
+      spillingAllocationNodes.removeFirst();
+      if (spill == null) {
+        // The node was cleared while it was being spilled.
+        continue;
+      }
+      node.pendingSpill = null;
+      int slot;
+      try {
+        slot = spill.getSlot();
+      } catch (IOException e) {
+        // Keep the remaining data in memory.
+        Log.w(TAG, "Failed to spill sample data.", e);
+        spillFailed = true;
+        cancelPendingSpills();
+        return;
+      }
+      allocator.release(Util.castNonNull(node.allocation));
+      node.spill(slot, spillFile.getSlotBuffer(slot));
+    }
+  }
+
+  private void cancelPendingSpills() {
+    while (!spillingAllocationNodes.isEmpty()) {
+      AllocationNode node = spillingAllocationNodes.removeFirst();
+      if (node.pendingSpill != null) {
+        node.pendingSpill.cancel();
+        node.pendingSpill = null;
+      }
+    }
+  }
+
   /**
    * Called before writing sample data to {@link #writeAllocationNode}. May cause {@link
    * #writeAllocationNode} to be initialized.
@@ -416,8 +546,30 @@ import java.util.Arrays;
     public final long endPosition;
     /** Whether the node has been initialized. Remains true after {@link #clear()}. */
     public boolean wasInitialized;
-    /** The {@link Allocation}, or {@code null} if the node is not initialized. */
+    /**
+     * The {@link Allocation}, or {@code null} if the node is not initialized or has been spilled.
+     */
     @Nullable public Allocation allocation;
+    /**
+     * The slot in the {@link AllocationSpillFile} holding the node's data if it has been spilled,
+     * or {@link C#INDEX_UNSET} otherwise.
+     */
+    public int spillSlot;
+    /**
+     * The spill of the node's {@link #allocation} if it's in progress, or {@code null} otherwise.
+     */
+    @Nullable public AllocationSpillFile.Spill pendingSpill;
+    /**
+     * A view of the {@link #allocation}'s {@link Allocation#buffer} or of the spilled data for use
+     * by the consuming thread, or {@code null} if the node is not initialized or its data is held
+     * in {@link Allocation#data}.
+     */
+    @Nullable public ByteBuffer readBuffer;
+    /**
+     * A view of the {@link #allocation}'s {@link Allocation#buffer} for use by the loading thread,
+     * or {@code null} if the node is not initialized or the allocation is not backed by a buffer.
+     */
+    @Nullable public ByteBuffer writeBuffer;
     /**
      * The next {@link AllocationNode} in the list, or {@code null} if the node has not been
      * initialized. Remains set after {@link #clear()}.
@@ -432,6 +584,7 @@ import java.util.Arrays;
     public AllocationNode(long startPosition, int allocationLength) {
       this.startPosition = startPosition;
       this.endPosition = startPosition + allocationLength;
+      spillSlot = C.INDEX_UNSET;
     }
 
     /**
@@ -443,27 +596,56 @@ import java.util.Arrays;
     public void initialize(Allocation allocation, AllocationNode next) {
       this.allocation = allocation;
       this.next = next;
+      @Nullable ByteBuffer buffer = allocation.buffer;
+      if (buffer != null) {
+        // The buffer may be shared with other allocations, so each thread needs its own view.
+        readBuffer = buffer.duplicate();
+        writeBuffer = buffer.duplicate();
+      }
       wasInitialized = true;
     }
 
     /**
-     * Gets the offset into the {@link #allocation}'s {@link Allocation#data} that corresponds to
-     * the specified absolute position.
+     * Replaces the node's {@link #allocation} with data that has been spilled to disk.
+     *
+     * @param spillSlot The slot in the {@link AllocationSpillFile} holding the node's data.
+     * @param spillBuffer A buffer whose content is the content of the slot.
+     */
+    public void spill(int spillSlot, ByteBuffer spillBuffer) {
+      this.spillSlot = spillSlot;
+      allocation = null;
+      readBuffer = spillBuffer;
+      writeBuffer = null;
+    }
+
+    /**
+     * Gets the offset into the {@link #allocation}'s {@link Allocation#data} or {@link
+     * Allocation#buffer}, or into the spilled data, that corresponds to the specified absolute
+     * position.
      *
      * @param absolutePosition The absolute position.
      * @return The corresponding offset into the allocation's data.
      */
     public int translateOffset(long absolutePosition) {
-      return (int) (absolutePosition - startPosition) + allocation.offset;
+      int allocationOffset = allocation != null ? allocation.offset : 0;
+      return (int) (absolutePosition - startPosition) + allocationOffset;
     }
 
     /**
-     * Clears {@link #allocation} and {@link #next}.
+     * Clears {@link #allocation}, its buffer views, {@link #spillSlot} and {@link #next}, and
+     * cancels the {@link #pendingSpill}.
      *
      * @return The cleared next {@link AllocationNode}.
      */
     public AllocationNode clear() {
+      if (pendingSpill != null) {
+        pendingSpill.cancel();
+        pendingSpill = null;
+      }
       allocation = null;
+      spillSlot = C.INDEX_UNSET;
+      readBuffer = null;
+      writeBuffer = null;
       AllocationNode temp = next;
       next = null;
       return temp;
@@ -15,8 +15,14 @@
  */
 package com.google.android.exoplayer2.upstream;
 
+import static com.google.android.exoplayer2.util.Assertions.checkStateNotNull;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import java.nio.ByteBuffer;
+
 /**
- * An allocation within a byte array.
+ * An allocation within a byte array, or within a direct {@link ByteBuffer}.
  * <p>
  * The allocation's length is obtained by calling {@link Allocator#getIndividualAllocationLength()}
  * on the {@link Allocator} from which it was obtained.
@@ -24,23 +30,83 @@ package com.google.android.exoplayer2.upstream;
 public final class Allocation {
 
   /**
-   * The array containing the allocated space. The allocated space might not be at the start of the
-   * array, and so {@link #offset} must be used when indexing into it.
+   * The array containing the allocated space, or {@code null} if the allocation is backed by a
+   * {@link #buffer}. The allocated space might not be at the start of the array, and so {@link
+   * #offset} must be used when indexing into it.
+   *
+   * @deprecated Use {@link #getData()}, which fails fast for allocations that are backed by a
+   *     {@link #buffer}, or check {@link #buffer} first.
+   */
+  @Deprecated @Nullable public final byte[] data;
+
+  /**
+   * The direct buffer containing the allocated space, or {@code null} if the allocation is backed
+   * by {@link #data}. The allocated space might not be at the start of the buffer, and so {@link
+   * #offset} must be used when indexing into it.
+   *
+   * <p>The buffer may be shared with other allocations and accessed from multiple threads. Its
+   * position and limit must not be modified. Use {@link ByteBuffer#duplicate()} to obtain an
+   * independent view for relative reads and writes.
    */
-  public final byte[] data;
+  @Nullable public final ByteBuffer buffer;
 
   /**
-   * The offset of the allocated space in {@link #data}.
+   * The offset of the allocated space in {@link #data}, or in {@link #buffer} if the allocation is
+   * backed by a buffer.
    */
   public final int offset;
 
+  /**
+   * The index of the allocation in the {@link DefaultAllocator} that created it, or {@link
+   * C#INDEX_UNSET}.
+   */
+  /* package */ final int allocatorIndex;
+
+  /**
+   * The index of the next allocation in the stack of available allocations of the {@link
+   * DefaultAllocator} that created it, while this allocation is available.
+   */
+  /* package */ int nextAvailableIndex;
+
   /**
    * @param data The array containing the allocated space.
    * @param offset The offset of the allocated space in {@code data}.
    */
   public Allocation(byte[] data, int offset) {
+    this(data, offset, /* allocatorIndex= */ C.INDEX_UNSET);
+  }
+
+  /**
+   * @param buffer The direct buffer containing the allocated space.
+   * @param offset The offset of the allocated space in {@code buffer}.
+   */
+  public Allocation(ByteBuffer buffer, int offset) {
+    this(buffer, offset, /* allocatorIndex= */ C.INDEX_UNSET);
+  }
+
+  /* package */ Allocation(byte[] data, int offset, int allocatorIndex) {
     this.data = data;
+    this.buffer = null;
+    this.offset = offset;
+    this.allocatorIndex = allocatorIndex;
+  }
+
+  /* package */ Allocation(ByteBuffer buffer, int offset, int allocatorIndex) {
+    this.data = null;
+    this.buffer = buffer;
     this.offset = offset;
+    this.allocatorIndex = allocatorIndex;
+  }
+
+  /**
+   * Returns the array containing the allocated space. The allocated space might not be at the start
+   * of the array, and so {@link #offset} must be used when indexing into it.
+   *
+   * @throws IllegalStateException If the allocation is backed by a {@link #buffer}.
+   */
+  @SuppressWarnings("deprecation") // Reading the deprecated field.
+  public byte[] getData() {
+    return checkStateNotNull(data);
   }
 
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A memory-mapped temporary file into which the contents of {@link Allocation}s holding media that
+ * has already been played can be spilled, so that a long back buffer can be retained without
+ * holding it in memory.
+ *
+ * <p>The file is divided into slots, each of which holds the contents of one allocation. Slots are
+ * mapped in segments, so that reading back a spilled allocation is a memory copy that the operating
+ * system pages in from disk as needed. Allocations are copied into the file on a background thread,
+ * so that spilling doesn't block playback.
+ *
+ * <p>A single file is shared by all sample queues whose {@link Allocator} returns it from {@link
+ * Allocator#getBackBufferSpillFile()}. The file is deleted, and its mappings are dropped, whenever
+ * none of its slots are in use.
+ *
+ * <p>The instance is thread-safe.
+ */
+public final class AllocationSpillFile {
+
+  /** A spill of an allocation into the file that may still be in progress. */
+  public final class Spill {
+
+    private final Allocation allocation;
+
+    // Guarded by this.
+    private boolean done;
+    private boolean canceled;
+    private int slot;
+    @Nullable private IOException exception;
+
+    private Spill(Allocation allocation) {
+      this.allocation = allocation;
+      slot = C.INDEX_UNSET;
+    }
+
+    /** Returns whether the allocation has been copied into the file, or copying it failed. */
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    /**
+     * Returns the slot holding the contents of the allocation. Must only be called once {@link
+     * #isDone()} returns true, and not after {@link #cancel()}. The caller takes ownership of the
+     * slot, and must {@link #free(int) free} it once it's no longer needed.
+     *
+     * @throws IOException If the allocation couldn't be copied into the file.
+     */
+    public synchronized int getSlot() throws IOException {
+      Assertions.checkState(done && !canceled);
+      if (exception != null) {
+        throw exception;
+      }
+      return slot;
+    }
+
+    /**
+     * Cancels the spill. The allocation won't be copied if it hasn't been already, and its slot is
+     * freed if it has.
+     */
+    public void cancel() {
+      int slotToFree;
+      synchronized (this) {
+        canceled = true;
+        slotToFree = slot;
+        slot = C.INDEX_UNSET;
+      }
+      if (slotToFree != C.INDEX_UNSET) {
+        free(slotToFree);
+      }
+    }
+
+    private void run() {
+      int slot = C.INDEX_UNSET;
+      @Nullable IOException exception = null;
+      boolean canceled;
+      synchronized (this) {
+        canceled = this.canceled;
+      }
+      if (!canceled) {
+        try {
+          slot = copyToNewSlot(allocation);
+        } catch (IOException e) {
+          exception = e;
+        }
+      }
+      int slotToFree = C.INDEX_UNSET;
+      synchronized (this) {
+        if (this.canceled) {
+          slotToFree = slot;
+        } else {
+          this.slot = slot;
+          this.exception = exception;
+        }
+        done = true;
+      }
+      if (slotToFree != C.INDEX_UNSET) {
+        free(slotToFree);
+      }
+      onSpillFinished();
+    }
+  }
+
+  /**
+   * The default number of bytes of already played media that sample queues keep in memory before
+   * spilling older data into the file, so that short seeks back don't read from the file.
+   */
+  public static final int DEFAULT_IN_MEMORY_BACK_BUFFER_BYTES = 8 * C.DEFAULT_BUFFER_SEGMENT_SIZE;
+
+  private static final int SLOTS_PER_SEGMENT = 32;
+
+  private final File directory;
+  private final int slotLength;
+  private final int inMemoryBackBufferBytes;
+  @Nullable private final Executor executor;
+
+  // Guarded by this.
+  private final ArrayList<MappedByteBuffer> segments;
+  @Nullable private File file;
+  @Nullable private RandomAccessFile randomAccessFile;
+  private int[] freeSlots;
+  private int freeSlotCount;
+  private int slotCount;
+  private int usedSlotCount;
+  private int pendingSpillCount;
+  @Nullable private ExecutorService ownedExecutor;
+
+  /**
+   * Creates an instance that spills allocations on a background thread that it owns. The thread is
+   * stopped whenever none of the file's slots are in use.
+   *
+   * @param directory The directory in which to create the file.
+   * @param slotLength The length of each slot, which must be equal to the individual allocation
+   *     length of the {@link Allocator} returning the file.
+   * @param inMemoryBackBufferBytes The number of bytes of already played media that sample queues
+   *     keep in memory before spilling older data into the file.
+   */
+  public AllocationSpillFile(File directory, int slotLength, int inMemoryBackBufferBytes) {
+    this(directory, slotLength, inMemoryBackBufferBytes, /* executor= */ null);
+  }
+
+  /**
+   * Creates an instance that spills allocations using the provided {@link Executor}.
+   *
+   * @param directory The directory in which to create the file.
+   * @param slotLength The length of each slot, which must be equal to the individual allocation
+   *     length of the {@link Allocator} returning the file.
+   * @param inMemoryBackBufferBytes The number of bytes of already played media that sample queues
+   *     keep in memory before spilling older data into the file.
+   * @param executor The {@link Executor} used to copy allocations into the file, or {@code null}
+   *     to use a background thread owned by the instance.
+   */
+  public AllocationSpillFile(
+      File directory, int slotLength, int inMemoryBackBufferBytes, @Nullable Executor executor) {
+    Assertions.checkArgument(slotLength > 0);
+    Assertions.checkArgument(inMemoryBackBufferBytes >= 0);
+    this.directory = directory;
+    this.slotLength = slotLength;
+    this.inMemoryBackBufferBytes = inMemoryBackBufferBytes;
+    this.executor = executor;
+    segments = new ArrayList<>();
+    freeSlots = new int[SLOTS_PER_SEGMENT];
+  }
+
+  /** Returns the length of each slot. */
+  public int getSlotLength() {
+    return slotLength;
+  }
+
+  /**
+   * Returns the number of bytes of already played media that sample queues keep in memory before
+   * spilling older data into the file.
+   */
+  public int getInMemoryBackBufferBytes() {
+    return inMemoryBackBufferBytes;
+  }
+
+  /**
+   * Starts copying the contents of an allocation into a free slot, creating the file if necessary.
+   * The caller must keep the allocation until the returned {@link Spill} is done or canceled.
+   *
+   * @param allocation The allocation to spill.
+   * @return The {@link Spill}.
+   */
+  public Spill spill(Allocation allocation) {
+    Spill spill = new Spill(allocation);
+    Executor executor;
+    synchronized (this) {
+      pendingSpillCount++;
+      if (this.executor != null) {
+        executor = this.executor;
+      } else {
+        if (ownedExecutor == null) {
+          ownedExecutor = Util.newSingleThreadExecutor("ExoPlayer:AllocationSpillFile");
+        }
+        executor = ownedExecutor;
+      }
+    }
+    executor.execute(spill::run);
+    return spill;
+  }
+
+  /**
+   * Returns a new buffer whose content is the content of a slot, with its position set to zero and
+   * its limit set to the slot length.
+   *
+   * @param slot The index of the slot.
+   */
+  public synchronized ByteBuffer getSlotBuffer(int slot) {
+    ByteBuffer buffer = segments.get(slot / SLOTS_PER_SEGMENT).duplicate();
+    int offset = (slot % SLOTS_PER_SEGMENT) * slotLength;
+    buffer.limit(offset + slotLength).position(offset);
+    return buffer.slice();
+  }
+
+  /**
+   * Marks a slot as free, so that it can be reused. The file is deleted once none of its slots are
+   * in use.
+   *
+   * @param slot The index of the slot.
+   */
+  public synchronized void free(int slot) {
+    if (freeSlotCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+    }
+    freeSlots[freeSlotCount++] = slot;
+    usedSlotCount--;
+    maybeRelease();
+  }
+
+  private int copyToNewSlot(Allocation allocation) throws IOException {
+    int slot;
+    ByteBuffer target;
+    synchronized (this) {
+      slot = freeSlotCount > 0 ? freeSlots[--freeSlotCount] : newSlot();
+      usedSlotCount++;
+      target = getSlotBuffer(slot);
+    }
+    if (allocation.buffer != null) {
+      ByteBuffer source = allocation.buffer.duplicate();
+      source.limit(allocation.offset + slotLength).position(allocation.offset);
+      target.put(source);
+    } else {
+      target.put(allocation.getData(), allocation.offset, slotLength);
+    }
+    return slot;
+  }
+
+  private synchronized void onSpillFinished() {
+    pendingSpillCount--;
+    maybeRelease();
+  }
+
+  // Guarded by this.
+  private int newSlot() throws IOException {
+    if (slotCount == segments.size() * SLOTS_PER_SEGMENT) {
+      if (randomAccessFile == null) {
+        file = File.createTempFile("ExoPlayerSampleData", /* suffix= */ null, directory);
+        randomAccessFile = new RandomAccessFile(file, "rw");
+      }
+      long segmentLength = (long) SLOTS_PER_SEGMENT * slotLength;
+      // Mapping a region beyond the end of the file grows the file.
+      segments.add(
+          randomAccessFile
+              .getChannel()
+              .map(FileChannel.MapMode.READ_WRITE, segments.size() * segmentLength, segmentLength));
+    }
+    return slotCount++;
+  }
+
+  // Guarded by this.
+  private void maybeRelease() {
+    if (usedSlotCount > 0 || pendingSpillCount > 0) {
+      return;
+    }
+    // Java doesn't allow mappings to be unmapped explicitly. Dropping the references allows them
+    // to be unmapped once any remaining views have been garbage collected.
+    segments.clear();
+    freeSlotCount = 0;
+    slotCount = 0;
+    Util.closeQuietly(randomAccessFile);
+    randomAccessFile = null;
+    if (file != null) {
+      file.delete();
+      file = null;
+    }
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+      ownedExecutor = null;
+    }
+  }
+}
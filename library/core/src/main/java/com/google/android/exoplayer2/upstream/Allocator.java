@@ -15,6 +15,8 @@
  */
 package com.google.android.exoplayer2.upstream;
 
+import androidx.annotation.Nullable;
+
 /**
  * A source of allocations.
  */
@@ -33,14 +35,16 @@ public interface Allocator {
   /**
    * Releases an {@link Allocation} back to the allocator.
    *
-   * @param allocation The {@link Allocation} being released.
+   * @param allocation The {@link Allocation} being released. Must have been obtained from {@link
+   *     #allocate()} on this allocator, and not already released.
    */
   void release(Allocation allocation);
 
   /**
    * Releases an array of {@link Allocation}s back to the allocator.
    *
-   * @param allocations The array of {@link Allocation}s being released.
+   * @param allocations The array of {@link Allocation}s being released. Each must have been
+   *     obtained from {@link #allocate()} on this allocator, and not already released.
    */
   void release(Allocation[] allocations);
 
@@ -60,4 +64,14 @@ public interface Allocator {
    */
   int getIndividualAllocationLength();
 
+  /**
+   * Returns an {@link AllocationSpillFile} into which the contents of allocations holding media
+   * that has already been played may be spilled, or {@code null} if they should be kept in memory.
+   * Spilling allows a long back buffer to be retained without allocating memory for it.
+   */
+  @Nullable
+  default AllocationSpillFile getBackBufferSpillFile() {
+    return null;
+  }
+
 }
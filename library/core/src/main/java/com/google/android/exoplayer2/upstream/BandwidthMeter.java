@@ -17,6 +17,7 @@ package com.google.android.exoplayer2.upstream;
 
 import android.os.Handler;
 import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
 
 /**
  * Provides estimates of the currently available bandwidth.
@@ -47,6 +48,19 @@ public interface BandwidthMeter {
   /** Returns the estimated bitrate. */
   long getBitrateEstimate();
 
+  /**
+   * Returns the estimated time to first byte of a request, in microseconds, or {@link
+   * C#TIME_UNSET} if no estimate is available.
+   *
+   * <p>The time to first byte is the time between starting to open a data source and the start of
+   * the data transfer, and is excluded from the bitrate estimate. The time to load {@code n} bytes
+   * can therefore be estimated as the time to first byte plus {@code n * 8} bits divided by the
+   * {@link #getBitrateEstimate() estimated bitrate}.
+   */
+  default long getTimeToFirstByteEstimateUs() {
+    return C.TIME_UNSET;
+  }
+
   /**
    * Returns the {@link TransferListener} that this instance uses to gather bandwidth information
    * from data transfers. May be null if the implementation does not listen to data transfers.
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.util.AtomicFile;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Persists recent bitrate estimates per network, so that {@link DefaultBandwidthMeter} can start
+ * from the last estimate for the current network instead of a default estimate for the network
+ * type.
+ *
+ * <p>Networks are identified by fingerprints computed by {@link DefaultBandwidthMeter}. At most
+ * {@link #MAX_ENTRY_COUNT} networks are stored, and estimates older than {@link #MAX_AGE_MS} are
+ * ignored. The file is read and written on an {@link Executor}, so that the callers of the store
+ * never wait for file operations. Loading starts when the store is first used, and until it
+ * completes only estimates that were put since then are returned. An instance can be shared
+ * between bandwidth meters, and is thread-safe.
+ */
+public final class BandwidthPriorStore {
+
+  /** Listener for the persisted estimates being loaded. */
+  public interface Listener {
+
+    /**
+     * Called on the executor once the persisted estimates have been loaded.
+     *
+     * @param bandwidthPriorStore The store.
+     */
+    void onLoaded(BandwidthPriorStore bandwidthPriorStore);
+  }
+
+  /** The maximum number of networks for which an estimate is stored. */
+  public static final int MAX_ENTRY_COUNT = 16;
+  /** The maximum age of a stored estimate, in milliseconds. */
+  public static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+  private static final String TAG = "BandwidthPriorStore";
+
+  private static final int VERSION = 1;
+
+  private final AtomicFile atomicFile;
+  private final Executor executor;
+  private final Clock clock;
+  // Held while the file is read or written, so that snapshots are written in order. Must be
+  // acquired before the lock of the store.
+  private final Object fileLock;
+  private final HashMap<String, Entry> entries;
+  private final List<Listener> listeners;
+
+  private boolean loadStarted;
+  private boolean loaded;
+  private boolean hasUnsavedChanges;
+  private boolean writeScheduled;
+
+  /**
+   * Creates an instance.
+   *
+   * @param file The file in which estimates are stored. Should be in the app's private storage,
+   *     and must not be used by other instances.
+   * @param executor The {@link Executor} on which the file is read and written, such as a single
+   *     thread executor shared with other background work.
+   */
+  public BandwidthPriorStore(File file, Executor executor) {
+    this(file, executor, Clock.DEFAULT);
+  }
+
+  @VisibleForTesting
+  /* package */ BandwidthPriorStore(File file, Executor executor, Clock clock) {
+    atomicFile = new AtomicFile(file);
+    this.executor = executor;
+    this.clock = clock;
+    fileLock = new Object();
+    entries = new HashMap<>();
+    listeners = new ArrayList<>();
+  }
+
+  /**
+   * Starts loading the persisted estimates, if loading hasn't started yet. The listener is called
+   * once loading completes, unless the estimates have already been loaded.
+   *
+   * @param listener The {@link Listener}.
+   */
+  public void load(Listener listener) {
+    synchronized (this) {
+      if (loaded) {
+        return;
+      }
+      listeners.add(listener);
+    }
+    maybeStartLoad();
+  }
+
+  /**
+   * Returns the stored bitrate estimate for a network, or null if there's no recent estimate or if
+   * the persisted estimates haven't been loaded yet.
+   *
+   * @param networkFingerprint The fingerprint of the network.
+   * @return The bitrate estimate in bits per second, or null.
+   */
+  @Nullable
+  public Long getBitrateEstimate(String networkFingerprint) {
+    maybeStartLoad();
+    synchronized (this) {
+      @Nullable Entry entry = entries.get(networkFingerprint);
+      if (entry == null || clock.currentTimeMillis() - entry.updateTimeMs > MAX_AGE_MS) {
+        return null;
+      }
+      return entry.bitrateEstimate;
+    }
+  }
+
+  /**
+   * Stores a bitrate estimate for a network, replacing any previous estimate. If the maximum
+   * number of networks is exceeded, the least recently updated network is removed. The estimates
+   * are written to the file on the executor.
+   *
+   * @param networkFingerprint The fingerprint of the network.
+   * @param bitrateEstimate The bitrate estimate in bits per second.
+   */
+  public void putBitrateEstimate(String networkFingerprint, long bitrateEstimate) {
+    maybeStartLoad();
+    synchronized (this) {
+      entries.put(networkFingerprint, new Entry(bitrateEstimate, clock.currentTimeMillis()));
+      removeExcessEntries();
+      hasUnsavedChanges = true;
+    }
+    maybeScheduleWrite();
+  }
+
+  // Tasks are executed without holding the lock of the store, in case the executor runs them on
+  // the calling thread.
+
+  private void maybeStartLoad() {
+    synchronized (this) {
+      if (loadStarted) {
+        return;
+      }
+      loadStarted = true;
+    }
+    executor.execute(this::loadFile);
+  }
+
+  private void maybeScheduleWrite() {
+    synchronized (this) {
+      // Writing before loading completes would discard the persisted estimates.
+      if (!loaded || !hasUnsavedChanges || writeScheduled) {
+        return;
+      }
+      writeScheduled = true;
+    }
+    executor.execute(this::writeFile);
+  }
+
+  private void loadFile() {
+    HashMap<String, Entry> persistedEntries = new HashMap<>();
+    synchronized (fileLock) {
+      if (atomicFile.exists() && !readFile(persistedEntries)) {
+        Log.w(TAG, "Discarding invalid bitrate estimates");
+        persistedEntries.clear();
+        atomicFile.delete();
+      }
+    }
+    List<Listener> listeners;
+    synchronized (this) {
+      // Estimates put while loading are more recent than the persisted ones.
+      for (Map.Entry<String, Entry> entry : persistedEntries.entrySet()) {
+        if (!entries.containsKey(entry.getKey())) {
+          entries.put(entry.getKey(), entry.getValue());
+        }
+      }
+      removeExcessEntries();
+      loaded = true;
+      listeners = new ArrayList<>(this.listeners);
+      this.listeners.clear();
+    }
+    maybeScheduleWrite();
+    for (int i = 0; i < listeners.size(); i++) {
+      listeners.get(i).onLoaded(this);
+    }
+  }
+
+  private boolean readFile(HashMap<String, Entry> entries) {
+    @Nullable DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(atomicFile.openRead()));
+      if (input.readInt() != VERSION) {
+        return false;
+      }
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        String networkFingerprint = input.readUTF();
+        long bitrateEstimate = input.readLong();
+        long updateTimeMs = input.readLong();
+        entries.put(networkFingerprint, new Entry(bitrateEstimate, updateTimeMs));
+      }
+      return input.read() == -1;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      Util.closeQuietly(input);
+    }
+  }
+
+  private void writeFile() {
+    synchronized (fileLock) {
+      HashMap<String, Entry> entries;
+      synchronized (this) {
+        writeScheduled = false;
+        hasUnsavedChanges = false;
+        entries = new HashMap<>(this.entries);
+      }
+      @Nullable DataOutputStream output = null;
+      try {
+        OutputStream outputStream = atomicFile.startWrite();
+        output = new DataOutputStream(outputStream);
+        output.writeInt(VERSION);
+        output.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          output.writeUTF(entry.getKey());
+          output.writeLong(entry.getValue().bitrateEstimate);
+          output.writeLong(entry.getValue().updateTimeMs);
+        }
+        atomicFile.endWrite(output);
+        output = null;
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to write bitrate estimates", e);
+      } finally {
+        Util.closeQuietly(output);
+      }
+    }
+  }
+
+  private void removeExcessEntries() {
+    while (entries.size() > MAX_ENTRY_COUNT) {
+      removeLeastRecentlyUpdatedEntry();
+    }
+  }
+
+  private void removeLeastRecentlyUpdatedEntry() {
+    @Nullable String oldestNetworkFingerprint = null;
+    long oldestUpdateTimeMs = Long.MAX_VALUE;
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (entry.getValue().updateTimeMs < oldestUpdateTimeMs) {
+        oldestNetworkFingerprint = entry.getKey();
+        oldestUpdateTimeMs = entry.getValue().updateTimeMs;
+      }
+    }
+    entries.remove(oldestNetworkFingerprint);
+  }
+
+  private static final class Entry {
+
+    public final long bitrateEstimate;
+    public final long updateTimeMs;
+
+    public Entry(long bitrateEstimate, long updateTimeMs) {
+      this.bitrateEstimate = bitrateEstimate;
+      this.updateTimeMs = updateTimeMs;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Clock;
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the rate at which data is transferred by one or more threads.
+ *
+ * <p>Threads call {@link #awaitAvailable()} before each transfer, and {@link
+ * #onBytesTransferred(int)} after it. {@link #awaitAvailable()} blocks for as long as the bytes
+ * transferred since the rate was last changed exceed what the rate allows. Time during which no
+ * transfer is pending does not accumulate, so transfers that follow a pause can't exceed the
+ * rate.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class DataRateLimiter {
+
+  private final Clock clock;
+
+  private volatile long maxBytesPerSecond;
+  private volatile boolean canceled;
+
+  // Guarded by this.
+  private long windowStartTimeMs;
+  // Guarded by this.
+  private long windowBytesTransferred;
+
+  /** Creates an instance that doesn't limit the rate until a rate is set. */
+  public DataRateLimiter() {
+    this(Clock.DEFAULT);
+  }
+
+  @VisibleForTesting
+  /* package */ DataRateLimiter(Clock clock) {
+    this.clock = clock;
+    maxBytesPerSecond = C.LENGTH_UNSET;
+  }
+
+  /**
+   * Sets the maximum rate at which data is transferred.
+   *
+   * @param maxBytesPerSecond The maximum rate in bytes per second, or {@link C#LENGTH_UNSET} if the
+   *     rate shouldn't be limited.
+   */
+  public synchronized void setMaxBytesPerSecond(long maxBytesPerSecond) {
+    Assertions.checkArgument(maxBytesPerSecond > 0 || maxBytesPerSecond == C.LENGTH_UNSET);
+    if (this.maxBytesPerSecond == maxBytesPerSecond) {
+      return;
+    }
+    this.maxBytesPerSecond = maxBytesPerSecond;
+    windowStartTimeMs = clock.elapsedRealtime();
+    windowBytesTransferred = 0;
+    notifyAll();
+  }
+
+  /**
+   * Returns the maximum rate at which data is transferred, in bytes per second, or {@link
+   * C#LENGTH_UNSET} if the rate isn't limited.
+   */
+  public long getMaxBytesPerSecond() {
+    return maxBytesPerSecond;
+  }
+
+  /**
+   * Cancels the limiter. Threads blocked in {@link #awaitAvailable()} are woken, and it throws for
+   * all subsequent calls.
+   */
+  public synchronized void cancel() {
+    canceled = true;
+    notifyAll();
+  }
+
+  /**
+   * Blocks until the next transfer can proceed without exceeding the rate.
+   *
+   * @throws InterruptedIOException If the calling thread is interrupted, or if the limiter is
+   *     canceled.
+   */
+  public void awaitAvailable() throws InterruptedIOException {
+    if (maxBytesPerSecond == C.LENGTH_UNSET && !canceled) {
+      return;
+    }
+    synchronized (this) {
+      while (true) {
+        if (canceled) {
+          throw new InterruptedIOException();
+        }
+        long maxBytesPerSecond = this.maxBytesPerSecond;
+        if (maxBytesPerSecond == C.LENGTH_UNSET) {
+          return;
+        }
+        long delayMs =
+            windowStartTimeMs
+                + windowBytesTransferred * 1000 / maxBytesPerSecond
+                - clock.elapsedRealtime();
+        if (delayMs <= 0) {
+          return;
+        }
+        try {
+          wait(delayMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+
+  /**
+   * Records that a transfer has completed.
+   *
+   * @param bytesTransferred The number of bytes transferred.
+   */
+  public void onBytesTransferred(int bytesTransferred) {
+    if (maxBytesPerSecond == C.LENGTH_UNSET) {
+      return;
+    }
+    synchronized (this) {
+      long maxBytesPerSecond = this.maxBytesPerSecond;
+      if (maxBytesPerSecond == C.LENGTH_UNSET) {
+        return;
+      }
+      long nowMs = clock.elapsedRealtime();
+      if (windowStartTimeMs + windowBytesTransferred * 1000 / maxBytesPerSecond < nowMs) {
+        // The transfers have fallen behind the rate. Restart the window so that the time during
+        // which nothing was transferred can't be used to exceed the rate.
+        windowStartTimeMs = nowMs;
+        windowBytesTransferred = 0;
+      }
+      windowBytesTransferred += bytesTransferred;
+    }
+  }
+}
@@ -16,26 +16,62 @@
 package com.google.android.exoplayer2.upstream;
 
 import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Util;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.checkerframework.checker.nullness.compatqual.NullableType;
 
 /**
  * Default implementation of {@link Allocator}.
+ *
+ * <p>Reusing and releasing allocations doesn't acquire any locks, so that loading threads calling
+ * {@link #allocate()} and playback threads releasing allocations don't contend, even when an
+ * instance is shared by multiple players. Available allocations are kept in a lock-free stack,
+ * which is linked through the allocations themselves so that releasing doesn't create any
+ * objects. A lock is only acquired when a new allocation is created, and when {@link #trim()}
+ * discards allocations.
+ *
+ * <p>Only allocations obtained from {@link #allocate()} on the same instance can be released. Other
+ * allocations are rejected with an {@link IllegalArgumentException}, rather than being added to the
+ * pool.
  */
 public final class DefaultAllocator implements Allocator {
 
-  private static final int AVAILABLE_EXTRA_CAPACITY = 100;
+  private static final int INITIAL_REGISTRY_CAPACITY = 16;
 
   private final boolean trimOnReset;
   private final int individualAllocationSize;
+  private final boolean useDirectBuffers;
   @Nullable private final byte[] initialAllocationBlock;
-  private final Allocation[] singleAllocationReleaseHolder;
+  @Nullable private final ByteBuffer initialAllocationBuffer;
+
+  /**
+   * The head of the stack of available allocations. The low 32 bits hold the index of the top
+   * allocation, or {@link C#INDEX_UNSET} if the stack is empty. The high 32 bits hold a stamp that
+   * changes whenever the head changes, so that compare-and-set fails if the top allocation was
+   * popped and pushed again in the meantime (the ABA problem).
+   */
+  private final AtomicLong availableHead;
 
-  private int targetBufferSize;
-  private int allocatedCount;
-  private int availableCount;
-  private Allocation[] availableAllocations;
+  private final AtomicInteger allocatedCount;
+  private final AtomicInteger availableCount;
+  private final Object registryLock;
+
+  @Nullable private volatile AllocationSpillFile backBufferSpillFile;
+  private volatile int targetBufferSize;
+
+  // The allocations that haven't been discarded, by index. Replaced when it needs to grow. Written
+  // while holding registryLock.
+  private volatile AtomicReferenceArray<@NullableType Allocation> registry;
+  // Guarded by registryLock.
+  private int[] freeIndices;
+  private int freeIndexCount;
+  private int registeredIndexCount;
 
   /**
    * Constructs an instance without creating any {@link Allocation}s up front.
@@ -60,31 +96,87 @@ public final class DefaultAllocator implements Allocator {
    */
   public DefaultAllocator(boolean trimOnReset, int individualAllocationSize,
       int initialAllocationCount) {
+    this(
+        trimOnReset,
+        individualAllocationSize,
+        initialAllocationCount,
+        /* useDirectBuffers= */ false);
+  }
+
+  /**
+   * Constructs an instance with some {@link Allocation}s created up front, optionally backed by
+   * direct {@link ByteBuffer}s.
+   *
+   * <p>Allocations backed by direct buffers are held outside of the Java heap, which reduces heap
+   * pressure and garbage collector work when large amounts of media are buffered. Their data is
+   * exposed through {@link Allocation#buffer} rather than {@link Allocation#data}, and so they
+   * should only be used with components that support both, such as {@link
+   * com.google.android.exoplayer2.source.SampleQueue}.
+   *
+   * <p>Note: {@link Allocation}s created up front will never be discarded by {@link #trim()}.
+   *
+   * @param trimOnReset Whether memory is freed when the allocator is reset. Should be true unless
+   *     the allocator will be re-used by multiple player instances.
+   * @param individualAllocationSize The length of each individual {@link Allocation}.
+   * @param initialAllocationCount The number of allocations to create up front.
+   * @param useDirectBuffers Whether allocations are backed by direct {@link ByteBuffer}s rather
+   *     than by byte arrays.
+   */
+  public DefaultAllocator(
+      boolean trimOnReset,
+      int individualAllocationSize,
+      int initialAllocationCount,
+      boolean useDirectBuffers) {
     Assertions.checkArgument(individualAllocationSize > 0);
     Assertions.checkArgument(initialAllocationCount >= 0);
     this.trimOnReset = trimOnReset;
     this.individualAllocationSize = individualAllocationSize;
-    this.availableCount = initialAllocationCount;
-    this.availableAllocations = new Allocation[initialAllocationCount + AVAILABLE_EXTRA_CAPACITY];
-    if (initialAllocationCount > 0) {
+    this.useDirectBuffers = useDirectBuffers;
+    availableHead = new AtomicLong(packHead(/* stamp= */ 0, C.INDEX_UNSET));
+    allocatedCount = new AtomicInteger();
+    availableCount = new AtomicInteger();
+    registryLock = new Object();
+    registry =
+        new AtomicReferenceArray<>(Math.max(INITIAL_REGISTRY_CAPACITY, initialAllocationCount));
+    freeIndices = new int[INITIAL_REGISTRY_CAPACITY];
+    registeredIndexCount = initialAllocationCount;
+    Allocation[] initialAllocations = new Allocation[initialAllocationCount];
+    if (initialAllocationCount > 0 && useDirectBuffers) {
+      initialAllocationBlock = null;
+      initialAllocationBuffer =
+          ByteBuffer.allocateDirect(initialAllocationCount * individualAllocationSize);
+      for (int i = 0; i < initialAllocationCount; i++) {
+        int allocationOffset = i * individualAllocationSize;
+        initialAllocations[i] =
+            new Allocation(initialAllocationBuffer, allocationOffset, /* allocatorIndex= */ i);
+      }
+    } else if (initialAllocationCount > 0) {
       initialAllocationBlock = new byte[initialAllocationCount * individualAllocationSize];
+      initialAllocationBuffer = null;
       for (int i = 0; i < initialAllocationCount; i++) {
         int allocationOffset = i * individualAllocationSize;
-        availableAllocations[i] = new Allocation(initialAllocationBlock, allocationOffset);
+        initialAllocations[i] =
+            new Allocation(initialAllocationBlock, allocationOffset, /* allocatorIndex= */ i);
       }
     } else {
       initialAllocationBlock = null;
+      initialAllocationBuffer = null;
+    }
+    for (int i = 0; i < initialAllocationCount; i++) {
+      registry.set(i, initialAllocations[i]);
+    }
+    if (initialAllocationCount > 0) {
+      pushAvailable(initialAllocations, initialAllocationCount);
     }
-    singleAllocationReleaseHolder = new Allocation[1];
   }
 
-  public synchronized void reset() {
+  public void reset() {
     if (trimOnReset) {
       setTargetBufferSize(0);
     }
   }
 
-  public synchronized void setTargetBufferSize(int targetBufferSize) {
+  public void setTargetBufferSize(int targetBufferSize) {
     boolean targetBufferSizeReduced = targetBufferSize < this.targetBufferSize;
     this.targetBufferSize = targetBufferSize;
     if (targetBufferSizeReduced) {
@@ -92,84 +184,134 @@ public final class DefaultAllocator implements Allocator {
     }
   }
 
+  /**
+   * Sets the {@link AllocationSpillFile} returned by {@link #getBackBufferSpillFile()}. Only
+   * affects sample queues created after the call.
+   *
+   * @param backBufferSpillFile The {@link AllocationSpillFile} into which back buffer data may be
+   *     spilled, or {@code null} to keep it in memory. Its slot length must be equal to the
+   *     individual allocation length.
+   */
+  public void setBackBufferSpillFile(@Nullable AllocationSpillFile backBufferSpillFile) {
+    Assertions.checkArgument(
+        backBufferSpillFile == null
+            || backBufferSpillFile.getSlotLength() == individualAllocationSize);
+    this.backBufferSpillFile = backBufferSpillFile;
+  }
+
   @Override
-  public synchronized Allocation allocate() {
-    allocatedCount++;
-    Allocation allocation;
-    if (availableCount > 0) {
-      allocation = availableAllocations[--availableCount];
-      availableAllocations[availableCount] = null;
-    } else {
-      allocation = new Allocation(new byte[individualAllocationSize], 0);
+  public Allocation allocate() {
+    allocatedCount.incrementAndGet();
+    while (true) {
+      long head = availableHead.get();
+      int index = getIndex(head);
+      if (index == C.INDEX_UNSET) {
+        return createAllocation();
+      }
+      @Nullable Allocation allocation = getRegisteredAllocation(index);
+      // If the allocation was discarded or replaced since the head was read, the head has changed
+      // and the compare-and-set fails.
+      if (allocation != null
+          && availableHead.compareAndSet(
+              head, packHead(getStamp(head) + 1, allocation.nextAvailableIndex))) {
+        availableCount.decrementAndGet();
+        return allocation;
+      }
     }
-    return allocation;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IllegalArgumentException If the allocation wasn't obtained from this allocator.
+   */
   @Override
-  public synchronized void release(Allocation allocation) {
-    singleAllocationReleaseHolder[0] = allocation;
-    release(singleAllocationReleaseHolder);
+  public void release(Allocation allocation) {
+    checkRegistered(allocation);
+    while (true) {
+      long head = availableHead.get();
+      allocation.nextAvailableIndex = getIndex(head);
+      if (availableHead.compareAndSet(
+          head, packHead(getStamp(head) + 1, allocation.allocatorIndex))) {
+        break;
+      }
+    }
+    availableCount.incrementAndGet();
+    allocatedCount.decrementAndGet();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IllegalArgumentException If any of the allocations wasn't obtained from this allocator.
+   *     In this case none of the allocations are released.
+   */
   @Override
-  public synchronized void release(Allocation[] allocations) {
-    if (availableCount + allocations.length >= availableAllocations.length) {
-      availableAllocations = Arrays.copyOf(availableAllocations,
-          Math.max(availableAllocations.length * 2, availableCount + allocations.length));
+  public void release(Allocation[] allocations) {
+    if (allocations.length == 0) {
+      return;
     }
     for (Allocation allocation : allocations) {
-      availableAllocations[availableCount++] = allocation;
+      checkRegistered(allocation);
     }
-    allocatedCount -= allocations.length;
-    // Wake up threads waiting for the allocated size to drop.
-    notifyAll();
+    pushAvailable(allocations, allocations.length);
+    allocatedCount.addAndGet(-allocations.length);
   }
 
   @Override
-  public synchronized void trim() {
+  public void trim() {
     int targetAllocationCount = Util.ceilDivide(targetBufferSize, individualAllocationSize);
-    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount);
-    if (targetAvailableCount >= availableCount) {
+    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount.get());
+    if (targetAvailableCount >= availableCount.get()) {
       // We're already at or below the target.
       return;
     }
 
-    if (initialAllocationBlock != null) {
-      // Some allocations are backed by an initial block. We need to make sure that we hold onto all
-      // such allocations. Re-order the available allocations so that the ones backed by the initial
-      // block come first.
-      int lowIndex = 0;
-      int highIndex = availableCount - 1;
-      while (lowIndex <= highIndex) {
-        Allocation lowAllocation = availableAllocations[lowIndex];
-        if (lowAllocation.data == initialAllocationBlock) {
-          lowIndex++;
+    // Take ownership of all available allocations, and push back the ones to keep.
+    long head;
+    do {
+      head = availableHead.get();
+    } while (!availableHead.compareAndSet(
+        head, packHead(getStamp(head) + 1, /* index= */ C.INDEX_UNSET)));
+    AtomicReferenceArray<@NullableType Allocation> registry = this.registry;
+    int takenCount = 0;
+    int initialCount = 0;
+    for (int index = getIndex(head);
+        index != C.INDEX_UNSET;
+        index = Assertions.checkNotNull(registry.get(index)).nextAvailableIndex) {
+      takenCount++;
+      if (isInitialAllocation(Assertions.checkNotNull(registry.get(index)))) {
+        initialCount++;
+      }
+    }
+    availableCount.addAndGet(-takenCount);
+    // We need to make sure that we hold onto all allocations backed by the initial block.
+    int keepCount = Math.min(takenCount, Math.max(targetAvailableCount, initialCount));
+    int nonInitialToKeep = keepCount - initialCount;
+    Allocation[] allocationsToKeep = new Allocation[keepCount];
+    int keptCount = 0;
+    synchronized (registryLock) {
+      for (int index = getIndex(head); index != C.INDEX_UNSET; ) {
+        Allocation allocation = Assertions.checkNotNull(registry.get(index));
+        index = allocation.nextAvailableIndex;
+        if (isInitialAllocation(allocation)) {
+          allocationsToKeep[keptCount++] = allocation;
+        } else if (nonInitialToKeep > 0) {
+          allocationsToKeep[keptCount++] = allocation;
+          nonInitialToKeep--;
         } else {
-          Allocation highAllocation = availableAllocations[highIndex];
-          if (highAllocation.data != initialAllocationBlock) {
-            highIndex--;
-          } else {
-            availableAllocations[lowIndex++] = highAllocation;
-            availableAllocations[highIndex--] = lowAllocation;
-          }
+          unregister(allocation);
         }
       }
-      // lowIndex is the index of the first allocation not backed by an initial block.
-      targetAvailableCount = Math.max(targetAvailableCount, lowIndex);
-      if (targetAvailableCount >= availableCount) {
-        // We're already at or below the target.
-        return;
-      }
     }
-
-    // Discard allocations beyond the target.
-    Arrays.fill(availableAllocations, targetAvailableCount, availableCount, null);
-    availableCount = targetAvailableCount;
+    if (keepCount > 0) {
+      pushAvailable(allocationsToKeep, keepCount);
+    }
   }
 
   @Override
-  public synchronized int getTotalBytesAllocated() {
-    return allocatedCount * individualAllocationSize;
+  public int getTotalBytesAllocated() {
+    return allocatedCount.get() * individualAllocationSize;
   }
 
   @Override
@@ -177,4 +319,96 @@ public final class DefaultAllocator implements Allocator {
     return individualAllocationSize;
   }
 
+  @Override
+  @Nullable
+  public AllocationSpillFile getBackBufferSpillFile() {
+    return backBufferSpillFile;
+  }
+
+  private Allocation createAllocation() {
+    // Create the backing memory before acquiring the lock, since it may take a while.
+    @Nullable ByteBuffer buffer = null;
+    @Nullable byte[] data = null;
+    if (useDirectBuffers) {
+      buffer = ByteBuffer.allocateDirect(individualAllocationSize);
+    } else {
+      data = new byte[individualAllocationSize];
+    }
+    synchronized (registryLock) {
+      int index = freeIndexCount > 0 ? freeIndices[--freeIndexCount] : registeredIndexCount++;
+      AtomicReferenceArray<@NullableType Allocation> registry = this.registry;
+      if (index >= registry.length()) {
+        AtomicReferenceArray<@NullableType Allocation> newRegistry =
+            new AtomicReferenceArray<>(registry.length() * 2);
+        for (int i = 0; i < registry.length(); i++) {
+          newRegistry.set(i, registry.get(i));
+        }
+        registry = newRegistry;
+        this.registry = newRegistry;
+      }
+      Allocation allocation =
+          buffer != null
+              ? new Allocation(buffer, /* offset= */ 0, index)
+              : new Allocation(Assertions.checkNotNull(data), /* offset= */ 0, index);
+      registry.set(index, allocation);
+      return allocation;
+    }
+  }
+
+  /** Removes an allocation from the registry. Must be called holding the registry lock. */
+  private void unregister(Allocation allocation) {
+    registry.set(allocation.allocatorIndex, null);
+    if (freeIndexCount == freeIndices.length) {
+      freeIndices = Arrays.copyOf(freeIndices, freeIndices.length * 2);
+    }
+    freeIndices[freeIndexCount++] = allocation.allocatorIndex;
+  }
+
+  @Nullable
+  private Allocation getRegisteredAllocation(int index) {
+    AtomicReferenceArray<@NullableType Allocation> registry = this.registry;
+    return index < registry.length() ? registry.get(index) : null;
+  }
+
+  private void checkRegistered(Allocation allocation) {
+    Assertions.checkArgument(
+        allocation.allocatorIndex != C.INDEX_UNSET
+            && getRegisteredAllocation(allocation.allocatorIndex) == allocation);
+  }
+
+  /** Pushes the first {@code count} allocations onto the stack of available allocations. */
+  private void pushAvailable(Allocation[] allocations, int count) {
+    for (int i = 0; i < count - 1; i++) {
+      allocations[i].nextAvailableIndex = allocations[i + 1].allocatorIndex;
+    }
+    Allocation first = allocations[0];
+    Allocation last = allocations[count - 1];
+    while (true) {
+      long head = availableHead.get();
+      last.nextAvailableIndex = getIndex(head);
+      if (availableHead.compareAndSet(head, packHead(getStamp(head) + 1, first.allocatorIndex))) {
+        break;
+      }
+    }
+    availableCount.addAndGet(count);
+  }
+
+  private boolean isInitialAllocation(Allocation allocation) {
+    return initialAllocationBuffer != null
+        ? allocation.buffer == initialAllocationBuffer
+        : allocation.getData() == initialAllocationBlock;
+  }
+
+  private static long packHead(int stamp, int index) {
+    return ((long) stamp << 32) | (index & 0xFFFFFFFFL);
+  }
+
+  private static int getStamp(long head) {
+    return (int) (head >>> 32);
+  }
+
+  private static int getIndex(long head) {
+    return (int) head;
+  }
+
 }
@@ -15,13 +15,19 @@
  */
 package com.google.android.exoplayer2.upstream;
 
+import android.Manifest;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
 import android.os.Handler;
 import android.os.Looper;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
 import android.util.SparseArray;
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
@@ -31,10 +37,14 @@ import com.google.android.exoplayer2.util.EventDispatcher;
 import com.google.android.exoplayer2.util.SlidingPercentile;
 import com.google.android.exoplayer2.util.Util;
 import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 /**
@@ -44,6 +54,11 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
  * time a transfer ends. The initial estimate is based on the current operator's network country
  * code or the locale of the user, as well as the network connection type. This can be configured in
  * the {@link Builder}.
+ *
+ * <p>Each sample covers a period during which at least one transfer is in progress, so concurrent
+ * transfers contribute to a single aggregate bitrate rather than to overlapping samples. The time
+ * to first byte of each transfer, from {@link #onTransferInitializing} to {@link #onTransferStart},
+ * is excluded from the samples and estimated separately as the median of recent transfers.
  */
 public final class DefaultBandwidthMeter implements BandwidthMeter, TransferListener {
 
@@ -99,6 +114,7 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
     private int slidingWindowMaxWeight;
     private Clock clock;
     private boolean resetOnNetworkTypeChange;
+    @Nullable private BandwidthPriorStore bandwidthPriorStore;
 
     /**
      * Creates a builder with default parameters and without listener.
@@ -190,6 +206,24 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
       return this;
     }
 
+    /**
+     * Sets a {@link BandwidthPriorStore} in which the bitrate estimate is persisted for the current
+     * network. If set, the initial bitrate estimate for a network is the persisted estimate, if
+     * any, instead of the default estimate for the network type. The default estimate is used
+     * until the store has been loaded. The default value is {@code null}.
+     *
+     * <p>Networks are identified by their type and, where available, a hash of the Wi-Fi SSID or
+     * of the mobile network operator. The SSID is only available if the app holds the {@code
+     * ACCESS_WIFI_STATE} permission, and on recent API levels a location permission.
+     *
+     * @param bandwidthPriorStore The {@link BandwidthPriorStore}, or {@code null}.
+     * @return This builder.
+     */
+    public Builder setBandwidthPriorStore(@Nullable BandwidthPriorStore bandwidthPriorStore) {
+      this.bandwidthPriorStore = bandwidthPriorStore;
+      return this;
+    }
+
     /**
      * Builds the bandwidth meter.
      *
@@ -201,7 +235,8 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
           initialBitrateEstimates,
           slidingWindowMaxWeight,
           clock,
-          resetOnNetworkTypeChange);
+          resetOnNetworkTypeChange,
+          bandwidthPriorStore);
     }
 
     private static SparseArray<Long> getInitialBitrateEstimatesForCountry(String countryCode) {
@@ -253,22 +288,35 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
 
   private static final int ELAPSED_MILLIS_FOR_ESTIMATE = 2000;
   private static final int BYTES_TRANSFERRED_FOR_ESTIMATE = 512 * 1024;
+  /** The number of recent transfers whose time to first byte is used for the estimate. */
+  private static final int TIME_TO_FIRST_BYTE_SAMPLE_COUNT = 10;
+  /** The SSID reported by {@link WifiInfo#getSSID()} if it's unavailable. */
+  private static final String UNKNOWN_SSID = "<unknown ssid>";
+  /** The minimum interval between writes of the bitrate estimate to the prior store. */
+  private static final long PERSIST_INTERVAL_MS = 10_000;
 
   @Nullable private final Context context;
   private final SparseArray<Long> initialBitrateEstimates;
   private final EventDispatcher<EventListener> eventDispatcher;
   private final SlidingPercentile slidingPercentile;
+  private final SlidingPercentile timeToFirstByteSlidingPercentile;
+  private final WeakHashMap<DataSource, Long> transferInitializingTimesMs;
   private final Clock clock;
+  @Nullable private final BandwidthPriorStore bandwidthPriorStore;
 
   private int streamCount;
   private long sampleStartTimeMs;
   private long sampleBytesTransferred;
 
   @C.NetworkType private int networkType;
+  @Nullable private String networkFingerprint;
+  private long lastPersistTimeMs;
+  private boolean bitrateEstimateMeasured;
   private long totalElapsedTimeMs;
   private long totalBytesTransferred;
   private long bitrateEstimate;
   private long lastReportedBitrateEstimate;
+  private long timeToFirstByteEstimateUs;
 
   private boolean networkTypeOverrideSet;
   @C.NetworkType private int networkTypeOverride;
@@ -281,7 +329,8 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
         /* initialBitrateEstimates= */ new SparseArray<>(),
         DEFAULT_SLIDING_WINDOW_MAX_WEIGHT,
         Clock.DEFAULT,
-        /* resetOnNetworkTypeChange= */ false);
+        /* resetOnNetworkTypeChange= */ false,
+        /* bandwidthPriorStore= */ null);
   }
 
   private DefaultBandwidthMeter(
@@ -289,21 +338,32 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
       SparseArray<Long> initialBitrateEstimates,
       int maxWeight,
       Clock clock,
-      boolean resetOnNetworkTypeChange) {
+      boolean resetOnNetworkTypeChange,
+      @Nullable BandwidthPriorStore bandwidthPriorStore) {
     this.context = context == null ? null : context.getApplicationContext();
     this.initialBitrateEstimates = initialBitrateEstimates;
     this.eventDispatcher = new EventDispatcher<>();
     this.slidingPercentile = new SlidingPercentile(maxWeight);
+    this.timeToFirstByteSlidingPercentile = new SlidingPercentile(TIME_TO_FIRST_BYTE_SAMPLE_COUNT);
+    // Weak keys, since sources that fail to open don't report the end of the transfer.
+    this.transferInitializingTimesMs = new WeakHashMap<>();
     this.clock = clock;
+    this.bandwidthPriorStore = bandwidthPriorStore;
+    timeToFirstByteEstimateUs = C.TIME_UNSET;
+    lastPersistTimeMs = C.TIME_UNSET;
     // Set the initial network type and bitrate estimate
     networkType = context == null ? C.NETWORK_TYPE_UNKNOWN : Util.getNetworkType(context);
-    bitrateEstimate = getInitialBitrateEstimateForNetworkType(networkType);
+    networkFingerprint = getNetworkFingerprint(networkType);
+    bitrateEstimate = getInitialBitrateEstimate(networkType, networkFingerprint);
     // Register to receive connectivity actions if possible.
     if (context != null && resetOnNetworkTypeChange) {
       ConnectivityActionReceiver connectivityActionReceiver =
           ConnectivityActionReceiver.getInstance(context);
       connectivityActionReceiver.register(/* bandwidthMeter= */ this);
     }
+    if (bandwidthPriorStore != null) {
+      bandwidthPriorStore.load(store -> onBandwidthPriorStoreLoaded());
+    }
   }
 
   /**
@@ -325,6 +385,11 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
     return bitrateEstimate;
   }
 
+  @Override
+  public synchronized long getTimeToFirstByteEstimateUs() {
+    return timeToFirstByteEstimateUs;
+  }
+
   @Override
   public TransferListener getTransferListener() {
     return this;
@@ -341,8 +406,12 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
   }
 
   @Override
-  public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
-    // Do nothing.
+  public synchronized void onTransferInitializing(
+      DataSource source, DataSpec dataSpec, boolean isNetwork) {
+    if (!isTransferAtFullNetworkSpeed(dataSpec, isNetwork)) {
+      return;
+    }
+    transferInitializingTimesMs.put(source, clock.elapsedRealtime());
   }
 
   @Override
@@ -351,6 +420,13 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
     if (!isTransferAtFullNetworkSpeed(dataSpec, isNetwork)) {
       return;
     }
+    @Nullable Long transferInitializingTimeMs = transferInitializingTimesMs.remove(source);
+    if (transferInitializingTimeMs != null) {
+      long timeToFirstByteMs = clock.elapsedRealtime() - transferInitializingTimeMs;
+      timeToFirstByteSlidingPercentile.addSample(/* weight= */ 1, timeToFirstByteMs);
+      timeToFirstByteEstimateUs =
+          C.msToUs((long) timeToFirstByteSlidingPercentile.getPercentile(0.5f));
+    }
     if (streamCount == 0) {
       sampleStartTimeMs = clock.elapsedRealtime();
     }
@@ -382,6 +458,8 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
       if (totalElapsedTimeMs >= ELAPSED_MILLIS_FOR_ESTIMATE
           || totalBytesTransferred >= BYTES_TRANSFERRED_FOR_ESTIMATE) {
         bitrateEstimate = (long) slidingPercentile.getPercentile(0.5f);
+        bitrateEstimateMeasured = true;
+        maybePersistBitrateEstimate(nowMs);
       }
       maybeNotifyBandwidthSample(sampleElapsedTimeMs, sampleBytesTransferred, bitrateEstimate);
       sampleStartTimeMs = nowMs;
@@ -395,7 +473,9 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
         networkTypeOverrideSet
             ? networkTypeOverride
             : (context == null ? C.NETWORK_TYPE_UNKNOWN : Util.getNetworkType(context));
-    if (this.networkType == networkType) {
+    @Nullable String networkFingerprint = getNetworkFingerprint(networkType);
+    if (this.networkType == networkType
+        && Util.areEqual(this.networkFingerprint, networkFingerprint)) {
       return;
     }
 
@@ -408,7 +488,8 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
     }
 
     // Reset the bitrate estimate and report it, along with any bytes transferred.
-    this.bitrateEstimate = getInitialBitrateEstimateForNetworkType(networkType);
+    this.networkFingerprint = networkFingerprint;
+    this.bitrateEstimate = getInitialBitrateEstimate(networkType, networkFingerprint);
     long nowMs = clock.elapsedRealtime();
     int sampleElapsedTimeMs = streamCount > 0 ? (int) (nowMs - sampleStartTimeMs) : 0;
     maybeNotifyBandwidthSample(sampleElapsedTimeMs, sampleBytesTransferred, bitrateEstimate);
@@ -418,7 +499,25 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
     sampleBytesTransferred = 0;
     totalBytesTransferred = 0;
     totalElapsedTimeMs = 0;
+    lastPersistTimeMs = C.TIME_UNSET;
+    bitrateEstimateMeasured = false;
     slidingPercentile.reset();
+    timeToFirstByteSlidingPercentile.reset();
+    timeToFirstByteEstimateUs = C.TIME_UNSET;
+  }
+
+  private synchronized void onBandwidthPriorStoreLoaded() {
+    if (bitrateEstimateMeasured || networkFingerprint == null) {
+      return;
+    }
+    // Replace the default estimate for the network type with the persisted estimate, if any.
+    @Nullable
+    Long priorBitrateEstimate =
+        Assertions.checkNotNull(bandwidthPriorStore).getBitrateEstimate(networkFingerprint);
+    if (priorBitrateEstimate != null) {
+      bitrateEstimate = priorBitrateEstimate;
+      maybeNotifyBandwidthSample(/* elapsedMs= */ 0, /* bytesTransferred= */ 0, bitrateEstimate);
+    }
   }
 
   private void maybeNotifyBandwidthSample(
@@ -431,6 +530,89 @@ public final class DefaultBandwidthMeter implements BandwidthMeter, TransferList
         listener -> listener.onBandwidthSample(elapsedMs, bytesTransferred, bitrateEstimate));
   }
 
+  private void maybePersistBitrateEstimate(long nowMs) {
+    if (bandwidthPriorStore == null
+        || networkFingerprint == null
+        || (lastPersistTimeMs != C.TIME_UNSET && nowMs - lastPersistTimeMs < PERSIST_INTERVAL_MS)) {
+      return;
+    }
+    bandwidthPriorStore.putBitrateEstimate(networkFingerprint, bitrateEstimate);
+    lastPersistTimeMs = nowMs;
+  }
+
+  private long getInitialBitrateEstimate(
+      @C.NetworkType int networkType, @Nullable String networkFingerprint) {
+    if (bandwidthPriorStore != null && networkFingerprint != null) {
+      @Nullable
+      Long priorBitrateEstimate = bandwidthPriorStore.getBitrateEstimate(networkFingerprint);
+      if (priorBitrateEstimate != null) {
+        return priorBitrateEstimate;
+      }
+    }
+    return getInitialBitrateEstimateForNetworkType(networkType);
+  }
+
+  /**
+   * Returns a fingerprint of the current network, or null if no {@link BandwidthPriorStore} is
+   * set. The fingerprint consists of the network type and, if available, a hash of the Wi-Fi SSID
+   * or mobile network operator.
+   */
+  @Nullable
+  private String getNetworkFingerprint(@C.NetworkType int networkType) {
+    if (bandwidthPriorStore == null || context == null) {
+      return null;
+    }
+    @Nullable String networkName = null;
+    switch (networkType) {
+      case C.NETWORK_TYPE_WIFI:
+        networkName = getWifiSsid(context);
+        break;
+      case C.NETWORK_TYPE_2G:
+      case C.NETWORK_TYPE_3G:
+      case C.NETWORK_TYPE_4G:
+      case C.NETWORK_TYPE_5G:
+      case C.NETWORK_TYPE_CELLULAR_UNKNOWN:
+        @Nullable
+        TelephonyManager telephonyManager =
+            (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        networkName = telephonyManager != null ? telephonyManager.getNetworkOperator() : null;
+        break;
+      default:
+        break;
+    }
+    if (TextUtils.isEmpty(networkName)) {
+      return Integer.toString(networkType);
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(Util.getUtf8Bytes(networkName));
+      return networkType + ":" + Util.toHexString(Arrays.copyOf(digest, /* newLength= */ 8));
+    } catch (NoSuchAlgorithmException e) {
+      return Integer.toString(networkType);
+    }
+  }
+
+  @Nullable
+  private static String getWifiSsid(Context context) {
+    if (context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_WIFI_STATE)
+        != PackageManager.PERMISSION_GRANTED) {
+      return null;
+    }
+    @Nullable
+    WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+    if (wifiManager == null) {
+      return null;
+    }
+    try {
+      @Nullable WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+      @Nullable String ssid = wifiInfo != null ? wifiInfo.getSSID() : null;
+      // The SSID is unknown if the app doesn't hold a location permission.
+      return UNKNOWN_SSID.equals(ssid) ? null : ssid;
+    } catch (SecurityException e) {
+      // Expected if permission was revoked.
+      return null;
+    }
+  }
+
   private long getInitialBitrateEstimateForNetworkType(@C.NetworkType int networkType) {
     Long initialBitrateEstimate = initialBitrateEstimates.get(networkType);
     if (initialBitrateEstimate == null) {
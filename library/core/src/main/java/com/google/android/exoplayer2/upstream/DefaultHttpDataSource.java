@@ -64,6 +64,11 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
    * The default read timeout, in milliseconds.
    */
   public static final int DEFAULT_READ_TIMEOUT_MILLIS = 8 * 1000;
+  /**
+   * The maximum number of unread bytes that are drained when a source is closed with connection
+   * reuse enabled. See {@link #setConnectionReuseEnabled(boolean)}.
+   */
+  public static final int MAX_CONNECTION_REUSE_DRAIN_BYTES = 64 * 1024;
 
   private static final String TAG = "DefaultHttpDataSource";
   private static final int MAX_REDIRECTS = 20; // Same limit as okhttp.
@@ -82,6 +87,8 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
   private final RequestProperties requestProperties;
 
   @Nullable private Predicate<String> contentTypePredicate;
+  private boolean connectionReuseEnabled;
+  @Nullable private HttpConnectionMetrics connectionMetrics;
   @Nullable private DataSpec dataSpec;
   @Nullable private HttpURLConnection connection;
   @Nullable private InputStream inputStream;
@@ -233,6 +240,33 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
     this.contentTypePredicate = contentTypePredicate;
   }
 
+  /**
+   * Sets whether connections should be released for reuse when the source is closed.
+   *
+   * <p>By default the connection is disconnected when the source is closed, which may close the
+   * underlying socket and require a new TCP and TLS handshake for the next request to the same
+   * host. If connection reuse is enabled, and the length of the response is known and no more than
+   * {@link #MAX_CONNECTION_REUSE_DRAIN_BYTES} unread bytes of it remain, then they're drained when
+   * the source is closed, and the connection is returned to the keep-alive pool of {@link
+   * HttpURLConnection} rather than being disconnected. Otherwise the connection is disconnected as
+   * usual.
+   *
+   * @param connectionReuseEnabled Whether connections should be released for reuse.
+   */
+  public void setConnectionReuseEnabled(boolean connectionReuseEnabled) {
+    this.connectionReuseEnabled = connectionReuseEnabled;
+  }
+
+  /**
+   * Sets the {@link HttpConnectionMetrics} to which requests and closed connections are reported.
+   *
+   * @param connectionMetrics The {@link HttpConnectionMetrics}, or {@code null} to clear metrics
+   *     that were previously set.
+   */
+  public void setConnectionMetrics(@Nullable HttpConnectionMetrics connectionMetrics) {
+    this.connectionMetrics = connectionMetrics;
+  }
+
   @Override
   @Nullable
   public Uri getUri() {
@@ -292,6 +326,9 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
       throw new HttpDataSourceException(
           "Unable to connect", e, dataSpec, HttpDataSourceException.TYPE_OPEN);
     }
+    if (connectionMetrics != null) {
+      connectionMetrics.onRequest(connection.getURL());
+    }
 
     // Check for a valid response code.
     if (responseCode < 200 || responseCode > 299) {
@@ -305,7 +342,13 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
         throw new HttpDataSourceException(
             "Error reading non-2xx response body", e, dataSpec, HttpDataSourceException.TYPE_OPEN);
       }
-      closeConnectionQuietly();
+      if (connectionReuseEnabled) {
+        // The error response body has been read fully, so the connection can be reused.
+        Util.closeQuietly(errorStream);
+        releaseConnection(/* drainedBytes= */ 0);
+      } else {
+        closeConnectionQuietly();
+      }
       InvalidResponseCodeException exception =
           new InvalidResponseCodeException(
               responseCode, responseMessage, headers, dataSpec, errorResponseBody);
@@ -373,18 +416,31 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
 
   @Override
   public void close() throws HttpDataSourceException {
+    long drainedBytes = C.LENGTH_UNSET;
+    boolean responseEnded = false;
     try {
       if (inputStream != null) {
-        maybeTerminateInputStream(connection, bytesRemaining());
+        responseEnded = bytesRemaining() == 0 && bytesSkipped == bytesToSkip;
+        if (connectionReuseEnabled) {
+          drainedBytes = drainInputStream(inputStream);
+        }
+        if (drainedBytes == C.LENGTH_UNSET) {
+          maybeTerminateInputStream(connection, bytesRemaining());
+        }
         try {
           inputStream.close();
         } catch (IOException e) {
+          drainedBytes = C.LENGTH_UNSET;
           throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_CLOSE);
         }
       }
     } finally {
       inputStream = null;
-      closeConnectionQuietly();
+      if (drainedBytes != C.LENGTH_UNSET) {
+        releaseConnection(drainedBytes);
+      } else {
+        closeConnectionQuietly(responseEnded);
+      }
       if (opened) {
         opened = false;
         transferEnded();
@@ -764,11 +820,83 @@ public class DefaultHttpDataSource extends BaseDataSource implements HttpDataSou
   }
 
 
+  /**
+   * Reads the remainder of the response, so that the connection can be reused. Does nothing if the
+   * length of the response is unknown, or if more than {@link #MAX_CONNECTION_REUSE_DRAIN_BYTES}
+   * remain, so that closing the source never reads an unbounded amount of data.
+   *
+   * @param inputStream The input stream of the response.
+   * @return The number of bytes drained, or {@link C#LENGTH_UNSET} if the end of the response
+   *     wasn't reached.
+   */
+  private long drainInputStream(InputStream inputStream) {
+    long bytesRemaining = bytesRemaining();
+    if (bytesRemaining == C.LENGTH_UNSET) {
+      return C.LENGTH_UNSET;
+    }
+    long bytesToDrain = bytesRemaining + (bytesToSkip - bytesSkipped);
+    if (bytesToDrain > MAX_CONNECTION_REUSE_DRAIN_BYTES) {
+      return C.LENGTH_UNSET;
+    }
+    byte[] skipBuffer = skipBufferReference.getAndSet(null);
+    if (skipBuffer == null) {
+      skipBuffer = new byte[4096];
+    }
+    long drainedBytes = 0;
+    try {
+      // Read one byte past the expected end, to check that the response ends there.
+      while (drainedBytes <= bytesToDrain) {
+        int readLength = (int) Math.min(skipBuffer.length, bytesToDrain - drainedBytes + 1);
+        int read = inputStream.read(skipBuffer, 0, readLength);
+        if (read == -1) {
+          return drainedBytes;
+        }
+        drainedBytes += read;
+      }
+    } catch (IOException e) {
+      // The connection can't be reused.
+    } finally {
+      skipBufferReference.set(skipBuffer);
+    }
+    return C.LENGTH_UNSET;
+  }
+
+  /**
+   * Releases the current connection for reuse without disconnecting it, if there is one. The input
+   * stream of the connection must have been read to the end and closed.
+   *
+   * @param drainedBytes The number of unread bytes that were drained before the connection was
+   *     released.
+   */
+  private void releaseConnection(long drainedBytes) {
+    if (connection != null) {
+      if (connectionMetrics != null) {
+        connectionMetrics.onConnectionClosed(
+            connection.getURL(), /* released= */ true, drainedBytes);
+      }
+      connection = null;
+    }
+  }
+
   /**
    * Closes the current connection quietly, if there is one.
    */
   private void closeConnectionQuietly() {
+    closeConnectionQuietly(/* responseEnded= */ false);
+  }
+
+  /**
+   * Closes the current connection quietly, if there is one.
+   *
+   * @param responseEnded Whether the response was read to the end. In this case the connection may
+   *     have been returned to the keep-alive pool before it's disconnected.
+   */
+  private void closeConnectionQuietly(boolean responseEnded) {
     if (connection != null) {
+      if (connectionMetrics != null) {
+        connectionMetrics.onConnectionClosed(
+            connection.getURL(), /* released= */ responseEnded, /* drainedBytes= */ 0);
+      }
       try {
         connection.disconnect();
       } catch (Exception e) {
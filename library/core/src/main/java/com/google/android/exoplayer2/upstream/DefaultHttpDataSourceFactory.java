@@ -29,6 +29,9 @@ public final class DefaultHttpDataSourceFactory extends BaseFactory {
   private final int readTimeoutMillis;
   private final boolean allowCrossProtocolRedirects;
 
+  private boolean connectionReuseEnabled;
+  @Nullable private HttpConnectionMetrics connectionMetrics;
+
   /**
    * Constructs a DefaultHttpDataSourceFactory. Sets {@link
    * DefaultHttpDataSource#DEFAULT_CONNECT_TIMEOUT_MILLIS} as the connection timeout, {@link
@@ -101,6 +104,32 @@ public final class DefaultHttpDataSourceFactory extends BaseFactory {
     this.allowCrossProtocolRedirects = allowCrossProtocolRedirects;
   }
 
+  /**
+   * Sets whether the created data sources release connections for reuse when they're closed. See
+   * {@link DefaultHttpDataSource#setConnectionReuseEnabled(boolean)}.
+   *
+   * @param connectionReuseEnabled Whether connections should be released for reuse.
+   * @return This factory.
+   */
+  public DefaultHttpDataSourceFactory setConnectionReuseEnabled(boolean connectionReuseEnabled) {
+    this.connectionReuseEnabled = connectionReuseEnabled;
+    return this;
+  }
+
+  /**
+   * Sets the {@link HttpConnectionMetrics} shared by the created data sources. See {@link
+   * DefaultHttpDataSource#setConnectionMetrics(HttpConnectionMetrics)}.
+   *
+   * @param connectionMetrics The {@link HttpConnectionMetrics}, or {@code null} if metrics
+   *     shouldn't be collected.
+   * @return This factory.
+   */
+  public DefaultHttpDataSourceFactory setConnectionMetrics(
+      @Nullable HttpConnectionMetrics connectionMetrics) {
+    this.connectionMetrics = connectionMetrics;
+    return this;
+  }
+
   @Override
   protected DefaultHttpDataSource createDataSourceInternal(
       HttpDataSource.RequestProperties defaultRequestProperties) {
@@ -111,6 +140,8 @@ public final class DefaultHttpDataSourceFactory extends BaseFactory {
             readTimeoutMillis,
             allowCrossProtocolRedirects,
             defaultRequestProperties);
+    dataSource.setConnectionReuseEnabled(connectionReuseEnabled);
+    dataSource.setConnectionMetrics(connectionMetrics);
     if (listener != null) {
       dataSource.addTransferListener(listener);
     }
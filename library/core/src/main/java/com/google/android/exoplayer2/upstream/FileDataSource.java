@@ -26,8 +26,18 @@ import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
-/** A {@link DataSource} for reading local files. */
+/**
+ * A {@link DataSource} for reading local files.
+ *
+ * <p>By default, each {@link #read(byte[], int, int)} call is a read system call on the file. If
+ * memory mapping is enabled, the file is instead mapped into memory in regions of up to {@value
+ * #MAX_MAPPED_REGION_LENGTH} bytes, and reads copy directly from the mapped region. This avoids a
+ * system call per read, which is most beneficial when reading local or fully cached media with
+ * small reads, as extractors do.
+ */
 public final class FileDataSource extends BaseDataSource {
 
   /** Thrown when a {@link FileDataSource} encounters an error reading a file. */
@@ -46,6 +56,7 @@ public final class FileDataSource extends BaseDataSource {
   public static final class Factory implements DataSource.Factory {
 
     @Nullable private TransferListener listener;
+    private boolean useMemoryMapping;
 
     /**
      * Sets a {@link TransferListener} for {@link FileDataSource} instances created by this factory.
@@ -58,9 +69,23 @@ public final class FileDataSource extends BaseDataSource {
       return this;
     }
 
+    /**
+     * Sets whether {@link FileDataSource} instances created by this factory read files by mapping
+     * them into memory. See {@link FileDataSource#FileDataSource(boolean)}.
+     *
+     * <p>The default is {@code false}.
+     *
+     * @param useMemoryMapping Whether to read files by mapping them into memory.
+     * @return This factory.
+     */
+    public Factory setUseMemoryMapping(boolean useMemoryMapping) {
+      this.useMemoryMapping = useMemoryMapping;
+      return this;
+    }
+
     @Override
     public FileDataSource createDataSource() {
-      FileDataSource dataSource = new FileDataSource();
+      FileDataSource dataSource = new FileDataSource(useMemoryMapping);
       if (listener != null) {
         dataSource.addTransferListener(listener);
       }
@@ -68,13 +93,29 @@ public final class FileDataSource extends BaseDataSource {
     }
   }
 
+  /** The maximum length of a region of the file that's mapped into memory at once. */
+  public static final int MAX_MAPPED_REGION_LENGTH = 32 * 1024 * 1024;
+
+  private final boolean useMemoryMapping;
+
   @Nullable private RandomAccessFile file;
+  @Nullable private MappedByteBuffer mappedRegion;
   @Nullable private Uri uri;
+  private long filePosition;
   private long bytesRemaining;
   private boolean opened;
 
   public FileDataSource() {
+    this(/* useMemoryMapping= */ false);
+  }
+
+  /**
+   * @param useMemoryMapping Whether to read files by mapping them into memory, rather than with a
+   *     system call per read.
+   */
+  public FileDataSource(boolean useMemoryMapping) {
     super(/* isNetwork= */ false);
+    this.useMemoryMapping = useMemoryMapping;
   }
 
   @Override
@@ -87,6 +128,7 @@ public final class FileDataSource extends BaseDataSource {
 
       this.file = openLocalFile(uri);
       file.seek(dataSpec.position);
+      filePosition = dataSpec.position;
       bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? file.length() - dataSpec.position
           : dataSpec.length;
       if (bytesRemaining < 0) {
@@ -111,8 +153,11 @@ public final class FileDataSource extends BaseDataSource {
     } else {
       int bytesRead;
       try {
+        int bytesToRead = (int) Math.min(bytesRemaining, readLength);
         bytesRead =
-            castNonNull(file).read(buffer, offset, (int) Math.min(bytesRemaining, readLength));
+            useMemoryMapping
+                ? readMapped(buffer, offset, bytesToRead)
+                : castNonNull(file).read(buffer, offset, bytesToRead);
       } catch (IOException e) {
         throw new FileDataSourceException(e);
       }
@@ -143,6 +188,8 @@ public final class FileDataSource extends BaseDataSource {
       throw new FileDataSourceException(e);
     } finally {
       file = null;
+      // The mapping is released when the buffer is garbage collected.
+      mappedRegion = null;
       if (opened) {
         opened = false;
         transferEnded();
@@ -150,6 +197,26 @@ public final class FileDataSource extends BaseDataSource {
     }
   }
 
+  private int readMapped(byte[] buffer, int offset, int readLength) throws IOException {
+    @Nullable MappedByteBuffer mappedRegion = this.mappedRegion;
+    if (mappedRegion == null || !mappedRegion.hasRemaining()) {
+      FileChannel channel = castNonNull(file).getChannel();
+      // Never map beyond the end of the file, since accessing such a mapping is undefined.
+      long regionLength =
+          Math.min(
+              Math.min(bytesRemaining, MAX_MAPPED_REGION_LENGTH), channel.size() - filePosition);
+      if (regionLength <= 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      mappedRegion = channel.map(FileChannel.MapMode.READ_ONLY, filePosition, regionLength);
+      this.mappedRegion = mappedRegion;
+    }
+    int bytesRead = Math.min(readLength, mappedRegion.remaining());
+    mappedRegion.get(buffer, offset, bytesRead);
+    filePosition += bytesRead;
+    return bytesRead;
+  }
+
   private static RandomAccessFile openLocalFile(Uri uri) throws FileDataSourceException {
     try {
       return new RandomAccessFile(Assertions.checkNotNull(uri.getPath()), "r");
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.source.LoadEventInfo;
+import com.google.android.exoplayer2.source.MediaLoadData;
+import com.google.android.exoplayer2.upstream.LoadErrorHandlingPolicy.LoadErrorInfo;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.SlidingPercentile;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link HttpDataSource} that hedges slow requests by issuing a duplicate request.
+ *
+ * <p>When opened with a GET {@link DataSpec}, the request is made by an upstream {@link
+ * HttpDataSource} on the provided {@link Executor}. If the upstream source hasn't received the
+ * response within the hedge delay, a second upstream source makes the same request, optionally to
+ * an alternate host returned by a {@link ResolvingDataSource.Resolver}. Whichever request is
+ * opened first is used, and the other one is abandoned. The thread opening an abandoned request is
+ * interrupted, which cancels the request if the upstream source supports it, and the upstream
+ * source is closed as soon as its {@link DataSource#open(DataSpec)} call returns.
+ *
+ * <p>{@link TransferListener TransferListeners} aren't added to the upstream sources. They're
+ * notified by this source instead, and only of the transfer of the request that's used, so that
+ * abandoned requests don't affect bandwidth and response time estimates.
+ *
+ * <p>The hedge delay is a percentile of the recent time to response of requests made by data
+ * sources created by the same {@link Factory}. A second request is also made immediately if the
+ * first request fails with an error that the {@link LoadErrorHandlingPolicy} considers retryable,
+ * and a request that fails with a fatal error fails the open call without waiting for the other
+ * request.
+ *
+ * <p>Any {@link HttpDataSource.Factory} can be used upstream, including {@link
+ * DefaultHttpDataSourceFactory} and the factories of the OkHttp and Cronet extensions. Requests
+ * with other HTTP methods aren't hedged, since they may not be idempotent.
+ */
+public final class HedgingHttpDataSource extends BaseDataSource implements HttpDataSource {
+
+  /** {@link HttpDataSource.Factory} for {@link HedgingHttpDataSource} instances. */
+  public static final class Factory implements HttpDataSource.Factory {
+
+    private final HttpDataSource.Factory upstreamFactory;
+    private final Executor executor;
+    private final ResponseTimeEstimate responseTimeEstimate;
+
+    @Nullable private ResolvingDataSource.Resolver hedgeResolver;
+    private LoadErrorHandlingPolicy loadErrorHandlingPolicy;
+    private int dataType;
+
+    /**
+     * Creates an instance.
+     *
+     * @param upstreamFactory The {@link HttpDataSource.Factory} for the upstream data sources that
+     *     make the requests. Default request properties are read from and set on this factory.
+     * @param executor An {@link Executor} on which upstream data sources are opened. Must be able
+     *     to run two tasks concurrently for each open data source.
+     */
+    public Factory(HttpDataSource.Factory upstreamFactory, Executor executor) {
+      this.upstreamFactory = upstreamFactory;
+      this.executor = executor;
+      responseTimeEstimate = new ResponseTimeEstimate();
+      loadErrorHandlingPolicy = new DefaultLoadErrorHandlingPolicy();
+      dataType = C.DATA_TYPE_UNKNOWN;
+    }
+
+    /**
+     * Sets a {@link ResolvingDataSource.Resolver} that resolves the {@link DataSpec} of hedge
+     * requests, for example to an alternate host. If not set, hedge requests are made with the
+     * original {@link DataSpec}.
+     *
+     * @param hedgeResolver The {@link ResolvingDataSource.Resolver} for hedge requests.
+     * @return This factory.
+     */
+    public Factory setHedgeResolver(@Nullable ResolvingDataSource.Resolver hedgeResolver) {
+      this.hedgeResolver = hedgeResolver;
+      return this;
+    }
+
+    /**
+     * Sets the {@link LoadErrorHandlingPolicy} that decides whether a failed request should be
+     * hedged. The default is a {@link DefaultLoadErrorHandlingPolicy}.
+     *
+     * @param loadErrorHandlingPolicy The {@link LoadErrorHandlingPolicy}.
+     * @return This factory.
+     */
+    public Factory setLoadErrorHandlingPolicy(LoadErrorHandlingPolicy loadErrorHandlingPolicy) {
+      this.loadErrorHandlingPolicy = loadErrorHandlingPolicy;
+      return this;
+    }
+
+    /**
+     * Sets the data type reported to the {@link LoadErrorHandlingPolicy}. The default is {@link
+     * C#DATA_TYPE_UNKNOWN}.
+     *
+     * @param dataType One of the {@link C C.DATA_TYPE_*} constants.
+     * @return This factory.
+     */
+    public Factory setDataType(int dataType) {
+      this.dataType = dataType;
+      return this;
+    }
+
+    @Override
+    public HedgingHttpDataSource createDataSource() {
+      return new HedgingHttpDataSource(
+          upstreamFactory,
+          executor,
+          hedgeResolver,
+          loadErrorHandlingPolicy,
+          dataType,
+          responseTimeEstimate,
+          Clock.DEFAULT);
+    }
+
+    @Override
+    public RequestProperties getDefaultRequestProperties() {
+      return upstreamFactory.getDefaultRequestProperties();
+    }
+
+    /** @deprecated Use {@link #getDefaultRequestProperties} instead. */
+    @Deprecated
+    @Override
+    public void setDefaultRequestProperty(String name, String value) {
+      upstreamFactory.getDefaultRequestProperties().set(name, value);
+    }
+
+    /** @deprecated Use {@link #getDefaultRequestProperties} instead. */
+    @Deprecated
+    @Override
+    public void clearDefaultRequestProperty(String name) {
+      upstreamFactory.getDefaultRequestProperties().remove(name);
+    }
+
+    /** @deprecated Use {@link #getDefaultRequestProperties} instead. */
+    @Deprecated
+    @Override
+    public void clearAllDefaultRequestProperties() {
+      upstreamFactory.getDefaultRequestProperties().clear();
+    }
+  }
+
+  /** The percentile of recent response times after which a request is hedged. */
+  public static final float HEDGE_PERCENTILE = 0.95f;
+  /** The hedge delay used until enough response times have been measured, in milliseconds. */
+  public static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+  /** The minimum hedge delay, in milliseconds. */
+  public static final long MIN_HEDGE_DELAY_MS = 50;
+
+  private final HttpDataSource.Factory upstreamFactory;
+  private final Executor executor;
+  @Nullable private final ResolvingDataSource.Resolver hedgeResolver;
+  private final LoadErrorHandlingPolicy loadErrorHandlingPolicy;
+  private final int dataType;
+  private final ResponseTimeEstimate responseTimeEstimate;
+  private final Clock clock;
+  private final RequestProperties requestProperties;
+
+  @Nullable private HttpDataSource openedDataSource;
+  private boolean opened;
+
+  @VisibleForTesting
+  /* package */ HedgingHttpDataSource(
+      HttpDataSource.Factory upstreamFactory,
+      Executor executor,
+      @Nullable ResolvingDataSource.Resolver hedgeResolver,
+      LoadErrorHandlingPolicy loadErrorHandlingPolicy,
+      int dataType,
+      ResponseTimeEstimate responseTimeEstimate,
+      Clock clock) {
+    super(/* isNetwork= */ true);
+    this.upstreamFactory = upstreamFactory;
+    this.executor = executor;
+    this.hedgeResolver = hedgeResolver;
+    this.loadErrorHandlingPolicy = loadErrorHandlingPolicy;
+    this.dataType = dataType;
+    this.responseTimeEstimate = responseTimeEstimate;
+    this.clock = clock;
+    requestProperties = new RequestProperties();
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws HttpDataSourceException {
+    transferInitializing(dataSpec);
+    long length = openInternal(dataSpec);
+    opened = true;
+    transferStarted(dataSpec);
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+    int bytesRead = Assertions.checkNotNull(openedDataSource).read(buffer, offset, readLength);
+    if (bytesRead > 0) {
+      bytesTransferred(bytesRead);
+    }
+    return bytesRead;
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    return openedDataSource != null ? openedDataSource.getUri() : null;
+  }
+
+  @Override
+  public int getResponseCode() {
+    return openedDataSource != null ? openedDataSource.getResponseCode() : -1;
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return openedDataSource != null
+        ? openedDataSource.getResponseHeaders()
+        : Collections.emptyMap();
+  }
+
+  @Override
+  public void setRequestProperty(String name, String value) {
+    requestProperties.set(name, value);
+  }
+
+  @Override
+  public void clearRequestProperty(String name) {
+    requestProperties.remove(name);
+  }
+
+  @Override
+  public void clearAllRequestProperties() {
+    requestProperties.clear();
+  }
+
+  @Override
+  public void close() throws HttpDataSourceException {
+    if (openedDataSource != null) {
+      try {
+        openedDataSource.close();
+      } finally {
+        openedDataSource = null;
+        if (opened) {
+          opened = false;
+          transferEnded();
+        }
+      }
+    }
+  }
+
+  /** Returns the current hedge delay, in milliseconds. */
+  @VisibleForTesting
+  /* package */ long getHedgeDelayMs() {
+    return responseTimeEstimate.getHedgeDelayMs();
+  }
+
+  private long openInternal(DataSpec dataSpec) throws HttpDataSourceException {
+    if (dataSpec.httpMethod != DataSpec.HTTP_METHOD_GET) {
+      // Assigned before opening, so that close() closes the data source if opening fails.
+      openedDataSource = createUpstreamDataSource();
+      return openedDataSource.open(dataSpec);
+    }
+    Object lock = new Object();
+    Request primaryRequest = new Request(dataSpec, /* isHedge= */ false, lock);
+    executor.execute(primaryRequest);
+    @Nullable Request hedgeRequest = null;
+    long hedgeTimeMs = clock.elapsedRealtime() + responseTimeEstimate.getHedgeDelayMs();
+    synchronized (lock) {
+      try {
+        while (true) {
+          if (primaryRequest.opened) {
+            return useRequest(primaryRequest, hedgeRequest);
+          } else if (hedgeRequest != null && hedgeRequest.opened) {
+            return useRequest(hedgeRequest, primaryRequest);
+          }
+          @Nullable HttpDataSourceException primaryException = primaryRequest.exception;
+          @Nullable
+          HttpDataSourceException hedgeException =
+              hedgeRequest != null ? hedgeRequest.exception : null;
+          if ((primaryException != null && hedgeException != null)
+              || (primaryException != null && isFatal(dataSpec, primaryException))
+              || (hedgeException != null && isFatal(dataSpec, hedgeException))) {
+            // Waiting for the other request isn't worthwhile.
+            primaryRequest.abandon();
+            if (hedgeRequest != null) {
+              hedgeRequest.abandon();
+            }
+            throw primaryException != null ? primaryException : hedgeException;
+          }
+          long nowMs = clock.elapsedRealtime();
+          if (hedgeRequest == null && (primaryException != null || nowMs >= hedgeTimeMs)) {
+            hedgeRequest = new Request(dataSpec, /* isHedge= */ true, lock);
+            executor.execute(hedgeRequest);
+          } else if (hedgeRequest == null) {
+            lock.wait(hedgeTimeMs - nowMs);
+          } else {
+            lock.wait();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        primaryRequest.abandon();
+        if (hedgeRequest != null) {
+          hedgeRequest.abandon();
+        }
+        throw new HttpDataSourceException(
+            new InterruptedIOException(), dataSpec, HttpDataSourceException.TYPE_OPEN);
+      }
+    }
+  }
+
+  private long useRequest(Request request, @Nullable Request otherRequest) {
+    if (otherRequest != null) {
+      otherRequest.abandon();
+    }
+    openedDataSource = request.dataSource;
+    return request.length;
+  }
+
+  private boolean isFatal(DataSpec dataSpec, HttpDataSourceException exception) {
+    LoadErrorInfo loadErrorInfo =
+        new LoadErrorInfo(
+            new LoadEventInfo(LoadEventInfo.getNewId(), dataSpec, clock.elapsedRealtime()),
+            new MediaLoadData(dataType),
+            exception,
+            /* errorCount= */ 1);
+    return loadErrorHandlingPolicy.getRetryDelayMsFor(loadErrorInfo) == C.TIME_UNSET;
+  }
+
+  private HttpDataSource createUpstreamDataSource() {
+    HttpDataSource dataSource = upstreamFactory.createDataSource();
+    for (Map.Entry<String, String> property : requestProperties.getSnapshot().entrySet()) {
+      dataSource.setRequestProperty(property.getKey(), property.getValue());
+    }
+    return dataSource;
+  }
+
+  /** Opens an upstream data source on the executor. State is guarded by the lock of the open. */
+  private final class Request implements Runnable {
+
+    private final DataSpec dataSpec;
+    private final boolean isHedge;
+    private final Object lock;
+    private final HttpDataSource dataSource;
+
+    private boolean opened;
+    private boolean abandoned;
+    private long length;
+    @Nullable private HttpDataSourceException exception;
+    @Nullable private Thread openingThread;
+
+    public Request(DataSpec dataSpec, boolean isHedge, Object lock) {
+      this.dataSpec = dataSpec;
+      this.isHedge = isHedge;
+      this.lock = lock;
+      // Created on the calling thread, since request properties aren't thread-safe.
+      dataSource = createUpstreamDataSource();
+    }
+
+    /**
+     * Abandons the request. If the data source is opened, then it's closed. Otherwise the thread
+     * opening it is interrupted, and it's closed when the pending open call returns. Must be called
+     * holding the lock.
+     */
+    public void abandon() {
+      abandoned = true;
+      if (opened) {
+        opened = false;
+        Util.closeQuietly(dataSource);
+      } else if (openingThread != null) {
+        openingThread.interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      synchronized (lock) {
+        if (abandoned) {
+          // The open call returned before the request started.
+          return;
+        }
+        openingThread = Thread.currentThread();
+      }
+      long startTimeMs = clock.elapsedRealtime();
+      long length = C.LENGTH_UNSET;
+      @Nullable HttpDataSourceException exception = null;
+      try {
+        DataSpec requestDataSpec = dataSpec;
+        if (isHedge && hedgeResolver != null) {
+          requestDataSpec = hedgeResolver.resolveDataSpec(dataSpec);
+        }
+        length = dataSource.open(requestDataSpec);
+        responseTimeEstimate.addResponseTime(clock.elapsedRealtime() - startTimeMs);
+      } catch (HttpDataSourceException e) {
+        exception = e;
+      } catch (IOException e) {
+        exception = new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_OPEN);
+      }
+      synchronized (lock) {
+        openingThread = null;
+        if (abandoned) {
+          Util.closeQuietly(dataSource);
+        } else if (exception != null) {
+          this.exception = exception;
+          // Close the data source as required after a failed open.
+          Util.closeQuietly(dataSource);
+        } else {
+          this.length = length;
+          opened = true;
+        }
+        lock.notifyAll();
+      }
+      // Clear an interrupt from abandon(), so that it doesn't affect the next task run by the
+      // executor on this thread.
+      Thread.interrupted();
+    }
+  }
+
+  /** Estimates the hedge delay from the recent response times of requests. Thread-safe. */
+  /* package */ static final class ResponseTimeEstimate {
+
+    private static final int MAX_SAMPLE_COUNT = 100;
+    private static final int MIN_SAMPLE_COUNT = 10;
+
+    private final SlidingPercentile slidingPercentile;
+
+    private int sampleCount;
+
+    public ResponseTimeEstimate() {
+      slidingPercentile = new SlidingPercentile(MAX_SAMPLE_COUNT);
+    }
+
+    public synchronized void addResponseTime(long responseTimeMs) {
+      slidingPercentile.addSample(/* weight= */ 1, responseTimeMs);
+      sampleCount++;
+    }
+
+    public synchronized long getHedgeDelayMs() {
+      if (sampleCount < MIN_SAMPLE_COUNT) {
+        return DEFAULT_HEDGE_DELAY_MS;
+      }
+      return Math.max(MIN_HEDGE_DELAY_MS, (long) slidingPercentile.getPercentile(HEDGE_PERCENTILE));
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.util.Clock;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the HTTP requests made by {@link DefaultHttpDataSource} instances, and estimates how many
+ * of them were able to reuse a kept-alive connection, per host.
+ *
+ * <p>{@link java.net.HttpURLConnection} doesn't expose whether a request was sent on a pooled
+ * connection. The counts are therefore estimated from the connections that the data sources
+ * released for reuse: a request is counted as reusing a connection if a connection to the same
+ * host was released within the keep-alive duration, and hasn't been counted as reused already.
+ * Other requests are counted as new connections, each of which requires a TCP handshake, and a TLS
+ * handshake for HTTPS. Some implementations of {@link java.net.HttpURLConnection}, such as the one
+ * in the JDK, drain and pool connections even when they're disconnected, in which case the counts
+ * underestimate reuse.
+ *
+ * <p>An instance can be shared between data sources, and is thread-safe.
+ */
+public final class HttpConnectionMetrics {
+
+  /** The default time for which a released connection is assumed to be kept alive. */
+  public static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+  /** Connection counts for a host, or for all hosts. */
+  public static final class Counts {
+
+    /** The number of requests. */
+    public final int requestCount;
+    /**
+     * The estimated number of requests that reused a kept-alive connection. This is the number of
+     * requests made within the keep-alive duration after a connection to the same host was
+     * released, so it may differ from the actual number of reused connections.
+     */
+    public final int estimatedReusedConnectionCount;
+    /**
+     * The estimated number of requests that required a new connection. This is {@link
+     * #requestCount} minus {@link #estimatedReusedConnectionCount}.
+     */
+    public final int estimatedNewConnectionCount;
+    /** The number of connections that were disconnected instead of being released for reuse. */
+    public final int discardedConnectionCount;
+    /** The number of unread bytes that were drained so that connections could be reused. */
+    public final long drainedBytes;
+
+    /* package */ Counts(
+        int requestCount,
+        int estimatedReusedConnectionCount,
+        int estimatedNewConnectionCount,
+        int discardedConnectionCount,
+        long drainedBytes) {
+      this.requestCount = requestCount;
+      this.estimatedReusedConnectionCount = estimatedReusedConnectionCount;
+      this.estimatedNewConnectionCount = estimatedNewConnectionCount;
+      this.discardedConnectionCount = discardedConnectionCount;
+      this.drainedBytes = drainedBytes;
+    }
+  }
+
+  private final long keepAliveDurationMs;
+  private final Clock clock;
+  private final HashMap<String, HostState> hostStates;
+
+  /** Creates an instance with a keep-alive duration of {@link #DEFAULT_KEEP_ALIVE_DURATION_MS}. */
+  public HttpConnectionMetrics() {
+    this(DEFAULT_KEEP_ALIVE_DURATION_MS);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param keepAliveDurationMs The time for which a released connection is assumed to be kept alive
+   *     by the connection pool, in milliseconds.
+   */
+  public HttpConnectionMetrics(long keepAliveDurationMs) {
+    this(keepAliveDurationMs, Clock.DEFAULT);
+  }
+
+  @VisibleForTesting
+  /* package */ HttpConnectionMetrics(long keepAliveDurationMs, Clock clock) {
+    this.keepAliveDurationMs = keepAliveDurationMs;
+    this.clock = clock;
+    hostStates = new HashMap<>();
+  }
+
+  /**
+   * Returns the counts for a host.
+   *
+   * @param host The host, in the form {@code scheme://host:port}.
+   */
+  public synchronized Counts getCounts(String host) {
+    @Nullable HostState hostState = hostStates.get(host);
+    return hostState != null ? hostState.toCounts() : new Counts(0, 0, 0, 0, 0);
+  }
+
+  /** Returns the counts for all hosts, keyed by host in the form {@code scheme://host:port}. */
+  public synchronized Map<String, Counts> getCountsByHost() {
+    HashMap<String, Counts> countsByHost = new HashMap<>();
+    for (Map.Entry<String, HostState> entry : hostStates.entrySet()) {
+      countsByHost.put(entry.getKey(), entry.getValue().toCounts());
+    }
+    return Collections.unmodifiableMap(countsByHost);
+  }
+
+  /** Returns the sum of the counts for all hosts. */
+  public synchronized Counts getTotalCounts() {
+    int requestCount = 0;
+    int estimatedReusedConnectionCount = 0;
+    int estimatedNewConnectionCount = 0;
+    int discardedConnectionCount = 0;
+    long drainedBytes = 0;
+    for (HostState hostState : hostStates.values()) {
+      requestCount += hostState.requestCount;
+      estimatedReusedConnectionCount += hostState.estimatedReusedConnectionCount;
+      estimatedNewConnectionCount +=
+          hostState.requestCount - hostState.estimatedReusedConnectionCount;
+      discardedConnectionCount += hostState.discardedConnectionCount;
+      drainedBytes += hostState.drainedBytes;
+    }
+    return new Counts(
+        requestCount,
+        estimatedReusedConnectionCount,
+        estimatedNewConnectionCount,
+        discardedConnectionCount,
+        drainedBytes);
+  }
+
+  /** Resets all counts. */
+  public synchronized void reset() {
+    hostStates.clear();
+  }
+
+  /** Called when a response is received for a request to the specified URL. */
+  /* package */ synchronized void onRequest(URL url) {
+    HostState hostState = getHostState(url);
+    hostState.requestCount++;
+    hostState.removeExpiredConnections(clock.elapsedRealtime() - keepAliveDurationMs);
+    if (!hostState.idleConnectionReleaseTimesMs.isEmpty()) {
+      hostState.idleConnectionReleaseTimesMs.removeLast();
+      hostState.estimatedReusedConnectionCount++;
+    }
+  }
+
+  /**
+   * Called when the connection used for a request to the specified URL is closed.
+   *
+   * @param url The URL.
+   * @param released Whether the connection was released for reuse, rather than disconnected.
+   * @param drainedBytes The number of unread bytes that were drained before the connection was
+   *     released.
+   */
+  /* package */ synchronized void onConnectionClosed(URL url, boolean released, long drainedBytes) {
+    HostState hostState = getHostState(url);
+    if (released) {
+      hostState.idleConnectionReleaseTimesMs.addLast(clock.elapsedRealtime());
+      hostState.drainedBytes += drainedBytes;
+    } else {
+      hostState.discardedConnectionCount++;
+    }
+  }
+
+  private HostState getHostState(URL url) {
+    String host = getHost(url);
+    @Nullable HostState hostState = hostStates.get(host);
+    if (hostState == null) {
+      hostState = new HostState();
+      hostStates.put(host, hostState);
+    }
+    return hostState;
+  }
+
+  /** Returns the key of the host of a URL, in the form {@code scheme://host:port}. */
+  /* package */ static String getHost(URL url) {
+    int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    return url.getProtocol() + "://" + url.getHost() + ":" + port;
+  }
+
+  private static final class HostState {
+
+    public final ArrayDeque<Long> idleConnectionReleaseTimesMs;
+
+    public int requestCount;
+    public int estimatedReusedConnectionCount;
+    public int discardedConnectionCount;
+    public long drainedBytes;
+
+    public HostState() {
+      idleConnectionReleaseTimesMs = new ArrayDeque<>();
+    }
+
+    public void removeExpiredConnections(long minReleaseTimeMs) {
+      while (!idleConnectionReleaseTimesMs.isEmpty()
+          && idleConnectionReleaseTimesMs.peekFirst() < minReleaseTimeMs) {
+        idleConnectionReleaseTimesMs.removeFirst();
+      }
+    }
+
+    public Counts toCounts() {
+      return new Counts(
+          requestCount,
+          estimatedReusedConnectionCount,
+          requestCount - estimatedReusedConnectionCount,
+          discardedConnectionCount,
+          drainedBytes);
+    }
+  }
+}
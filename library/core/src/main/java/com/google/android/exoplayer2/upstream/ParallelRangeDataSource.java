@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.Util;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link DataSource} that loads a large resource through several concurrent range requests.
+ *
+ * <p>When opened with a {@link DataSpec} whose remaining length is at least twice the chunk size,
+ * the range is split into chunks. The first chunk is read from the initial request, and the other
+ * chunks are loaded by separate upstream {@link DataSource DataSources} on the provided {@link
+ * Executor}. The chunks are returned from {@link #read(byte[], int, int)} in order, as soon as
+ * their data arrives. At most {@code maxBufferedChunkCount} chunks, including the one being read,
+ * are held in memory.
+ *
+ * <p>The number of concurrent requests starts at {@link #DEFAULT_INITIAL_CONNECTION_COUNT} and is
+ * adapted to the measured throughput: it's increased while doing so increases the throughput, up
+ * to {@code maxConnectionCount}, and decreased if the throughput drops.
+ *
+ * <p>This is useful for progressive media loaded over high-latency links, where the throughput of a
+ * single connection is limited by its congestion window. The range is only split if the response
+ * to the initial request shows that the server supports range requests, through an {@code
+ * Accept-Ranges: bytes} or a {@code Content-Range} header. Smaller resources, resources of unknown
+ * length, responses without range support, and requests that aren't plain GET requests are passed
+ * through to a single upstream {@link DataSource}.
+ */
+public final class ParallelRangeDataSource implements DataSource {
+
+  /** {@link DataSource.Factory} for {@link ParallelRangeDataSource} instances. */
+  public static final class Factory implements DataSource.Factory {
+
+    private final DataSource.Factory upstreamFactory;
+    private final Executor executor;
+
+    private int chunkSize;
+    private int maxConnectionCount;
+    private int maxBufferedChunkCount;
+
+    /**
+     * Creates an instance.
+     *
+     * @param upstreamFactory A {@link DataSource.Factory} for the upstream data sources. A data
+     *     source is created for each chunk.
+     * @param executor An {@link Executor} on which chunks are loaded. Must be able to run at least
+     *     {@code maxConnectionCount} tasks concurrently for all of them to be used.
+     */
+    public Factory(DataSource.Factory upstreamFactory, Executor executor) {
+      this.upstreamFactory = upstreamFactory;
+      this.executor = executor;
+      chunkSize = DEFAULT_CHUNK_SIZE;
+      maxConnectionCount = DEFAULT_MAX_CONNECTION_COUNT;
+      maxBufferedChunkCount = DEFAULT_MAX_BUFFERED_CHUNK_COUNT;
+    }
+
+    /**
+     * Sets the size of the range loaded by each request. The default is {@link
+     * #DEFAULT_CHUNK_SIZE}.
+     *
+     * @param chunkSize The chunk size, in bytes.
+     * @return This factory.
+     */
+    public Factory setChunkSize(int chunkSize) {
+      Assertions.checkArgument(chunkSize > 0);
+      this.chunkSize = chunkSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests. The default is {@link
+     * #DEFAULT_MAX_CONNECTION_COUNT}.
+     *
+     * @param maxConnectionCount The maximum number of concurrent requests.
+     * @return This factory.
+     */
+    public Factory setMaxConnectionCount(int maxConnectionCount) {
+      Assertions.checkArgument(maxConnectionCount > 0);
+      this.maxConnectionCount = maxConnectionCount;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of chunks that are held in memory, including the chunk being read.
+     * The default is {@link #DEFAULT_MAX_BUFFERED_CHUNK_COUNT}.
+     *
+     * @param maxBufferedChunkCount The maximum number of buffered chunks.
+     * @return This factory.
+     */
+    public Factory setMaxBufferedChunkCount(int maxBufferedChunkCount) {
+      Assertions.checkArgument(maxBufferedChunkCount > 0);
+      this.maxBufferedChunkCount = maxBufferedChunkCount;
+      return this;
+    }
+
+    @Override
+    public ParallelRangeDataSource createDataSource() {
+      return new ParallelRangeDataSource(
+          upstreamFactory,
+          executor,
+          chunkSize,
+          maxConnectionCount,
+          maxBufferedChunkCount,
+          Clock.DEFAULT);
+    }
+  }
+
+  /** The default size of the range loaded by each request, in bytes. */
+  public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+  /** The default maximum number of concurrent requests. */
+  public static final int DEFAULT_MAX_CONNECTION_COUNT = 4;
+  /** The default maximum number of chunks held in memory. */
+  public static final int DEFAULT_MAX_BUFFERED_CHUNK_COUNT = 8;
+  /** The number of concurrent requests with which loading starts. */
+  public static final int DEFAULT_INITIAL_CONNECTION_COUNT = 2;
+
+  /**
+   * The relative change in throughput, measured over a round of chunks, above which the number of
+   * concurrent requests is increased, or below which it's decreased.
+   */
+  private static final float THROUGHPUT_CHANGE_THRESHOLD = 0.1f;
+
+  private final DataSource.Factory upstreamFactory;
+  private final Executor executor;
+  private final int chunkSize;
+  private final int maxConnectionCount;
+  private final int maxBufferedChunkCount;
+  private final Clock clock;
+  private final List<TransferListener> transferListeners;
+
+  @Nullable private DataSource passthroughDataSource;
+  @Nullable private ChunkLoader chunkLoader;
+  @Nullable private Uri uri;
+  private Map<String, List<String>> responseHeaders;
+
+  @VisibleForTesting
+  /* package */ ParallelRangeDataSource(
+      DataSource.Factory upstreamFactory,
+      Executor executor,
+      int chunkSize,
+      int maxConnectionCount,
+      int maxBufferedChunkCount,
+      Clock clock) {
+    this.upstreamFactory = upstreamFactory;
+    this.executor = executor;
+    this.chunkSize = chunkSize;
+    this.maxConnectionCount = maxConnectionCount;
+    this.maxBufferedChunkCount = maxBufferedChunkCount;
+    this.clock = clock;
+    transferListeners = new ArrayList<>();
+    responseHeaders = Collections.emptyMap();
+  }
+
+  @Override
+  public void addTransferListener(TransferListener transferListener) {
+    Assertions.checkNotNull(transferListener);
+    transferListeners.add(transferListener);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    DataSource firstDataSource = createUpstreamDataSource();
+    // Assigned before opening, so that close() closes the data source if opening fails.
+    passthroughDataSource = firstDataSource;
+    long length = firstDataSource.open(dataSpec);
+    uri = firstDataSource.getUri();
+    responseHeaders = firstDataSource.getResponseHeaders();
+    if (length == C.LENGTH_UNSET
+        || length < 2L * chunkSize
+        || dataSpec.httpMethod != DataSpec.HTTP_METHOD_GET
+        || dataSpec.isFlagSet(DataSpec.FLAG_ALLOW_GZIP)
+        || !supportsRangeRequests(responseHeaders)) {
+      return length;
+    }
+    passthroughDataSource = null;
+    // Load the other chunks from the URI that the first request was redirected to, if any.
+    DataSpec chunksDataSpec = uri != null ? dataSpec.withUri(uri) : dataSpec;
+    chunkLoader = new ChunkLoader(chunksDataSpec, length, firstDataSource);
+    chunkLoader.start();
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (passthroughDataSource != null) {
+      return passthroughDataSource.read(buffer, offset, readLength);
+    }
+    return Assertions.checkNotNull(chunkLoader).read(buffer, offset, readLength);
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public void close() throws IOException {
+    uri = null;
+    responseHeaders = Collections.emptyMap();
+    if (chunkLoader != null) {
+      chunkLoader.cancel();
+      chunkLoader = null;
+    }
+    if (passthroughDataSource != null) {
+      try {
+        passthroughDataSource.close();
+      } finally {
+        passthroughDataSource = null;
+      }
+    }
+  }
+
+  /** Returns the current target number of concurrent requests, for testing. */
+  @VisibleForTesting
+  /* package */ int getTargetConnectionCount() {
+    return chunkLoader != null ? chunkLoader.getTargetConnectionCount() : 0;
+  }
+
+  /**
+   * Returns whether response headers show that the server supports range requests. A {@code
+   * Content-Range} header is returned with partial content.
+   */
+  private static boolean supportsRangeRequests(Map<String, List<String>> responseHeaders) {
+    for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+      @Nullable String name = header.getKey();
+      if ("Content-Range".equalsIgnoreCase(name)) {
+        return true;
+      }
+      if ("Accept-Ranges".equalsIgnoreCase(name)) {
+        for (String value : header.getValue()) {
+          if (Util.toLowerInvariant(value).contains("bytes")) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private DataSource createUpstreamDataSource() {
+    DataSource dataSource = upstreamFactory.createDataSource();
+    for (int i = 0; i < transferListeners.size(); i++) {
+      dataSource.addTransferListener(transferListeners.get(i));
+    }
+    return dataSource;
+  }
+
+  /** Loads the chunks of a single opened range. */
+  private final class ChunkLoader {
+
+    private final DataSpec dataSpec;
+    private final long length;
+    private final int chunkCount;
+    private final ArrayDeque<Chunk> loadingChunks;
+    private final ArrayDeque<byte[]> recycledBuffers;
+    private final ArrayList<ChunkLoadable> activeLoadables;
+
+    @Nullable private DataSource firstDataSource;
+    private boolean canceled;
+    private int nextChunkIndex;
+    private int activeLoadCount;
+    private int targetConnectionCount;
+
+    private long readPosition;
+    private int readChunkOffset;
+
+    private long activeStartTimeMs;
+    private long periodActiveTimeMs;
+    private long periodLoadedBytes;
+    private int periodLoadedChunkCount;
+    private boolean periodLimitedByBuffers;
+    private double lastPeriodThroughput;
+
+    public ChunkLoader(DataSpec dataSpec, long length, DataSource firstDataSource) {
+      this.dataSpec = dataSpec;
+      this.length = length;
+      this.firstDataSource = firstDataSource;
+      chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+      loadingChunks = new ArrayDeque<>();
+      recycledBuffers = new ArrayDeque<>();
+      activeLoadables = new ArrayList<>();
+      targetConnectionCount = Math.min(DEFAULT_INITIAL_CONNECTION_COUNT, maxConnectionCount);
+      lastPeriodThroughput = -1;
+    }
+
+    public synchronized void start() {
+      startLoads();
+    }
+
+    public synchronized int getTargetConnectionCount() {
+      return targetConnectionCount;
+    }
+
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      if (readLength == 0) {
+        return 0;
+      }
+      if (readPosition == length) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      Chunk chunk;
+      int bytesAvailable;
+      synchronized (this) {
+        // The next chunk may not be queued yet if the loads of consumed chunks haven't ended.
+        @Nullable Chunk nextChunk = loadingChunks.peekFirst();
+        while (nextChunk == null
+            || (nextChunk.bytesLoaded == readChunkOffset && nextChunk.exception == null)) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+          nextChunk = loadingChunks.peekFirst();
+        }
+        chunk = nextChunk;
+        if (chunk.bytesLoaded == readChunkOffset) {
+          throw Assertions.checkNotNull(chunk.exception);
+        }
+        bytesAvailable = chunk.bytesLoaded - readChunkOffset;
+      }
+      int bytesRead = Math.min(readLength, bytesAvailable);
+      System.arraycopy(chunk.data, readChunkOffset, buffer, offset, bytesRead);
+      readChunkOffset += bytesRead;
+      readPosition += bytesRead;
+      if (readChunkOffset == chunk.length) {
+        synchronized (this) {
+          loadingChunks.removeFirst();
+          recycledBuffers.addLast(chunk.data);
+          readChunkOffset = 0;
+          startLoads();
+        }
+      }
+      return bytesRead;
+    }
+
+    public void cancel() {
+      @Nullable DataSource firstDataSource;
+      synchronized (this) {
+        canceled = true;
+        loadingChunks.clear();
+        recycledBuffers.clear();
+        // Interrupt loads that are in progress, so that their connections are released promptly.
+        for (int i = 0; i < activeLoadables.size(); i++) {
+          activeLoadables.get(i).interrupt();
+        }
+        // The first data source is closed here if its chunk hasn't started loading.
+        firstDataSource = this.firstDataSource;
+        this.firstDataSource = null;
+        notifyAll();
+      }
+      if (firstDataSource != null) {
+        Util.closeQuietly(firstDataSource);
+      }
+    }
+
+    /** Starts loading chunks while there are free connections and buffers. */
+    private void startLoads() {
+      while (!canceled
+          && activeLoadCount < targetConnectionCount
+          && nextChunkIndex < chunkCount
+          && loadingChunks.size() < maxBufferedChunkCount) {
+        long chunkPosition = (long) nextChunkIndex * chunkSize;
+        int chunkLength = (int) Math.min(chunkSize, length - chunkPosition);
+        @Nullable byte[] data = recycledBuffers.pollFirst();
+        if (data == null) {
+          data = new byte[chunkSize];
+        }
+        Chunk chunk = new Chunk(chunkPosition, chunkLength, data);
+        @Nullable DataSource dataSource = null;
+        if (nextChunkIndex == 0) {
+          dataSource = firstDataSource;
+          firstDataSource = null;
+        }
+        nextChunkIndex++;
+        if (activeLoadCount++ == 0) {
+          activeStartTimeMs = clock.elapsedRealtime();
+        }
+        loadingChunks.addLast(chunk);
+        executor.execute(new ChunkLoadable(chunk, dataSource));
+      }
+      if (!canceled && activeLoadCount < targetConnectionCount && nextChunkIndex < chunkCount) {
+        // Loads are held back because the reader hasn't consumed the buffered chunks.
+        periodLimitedByBuffers = true;
+      }
+    }
+
+    private synchronized void onBytesLoaded(Chunk chunk, int bytesLoaded) {
+      chunk.bytesLoaded += bytesLoaded;
+      notifyAll();
+    }
+
+    private synchronized boolean onLoadStarted(ChunkLoadable loadable) {
+      if (canceled) {
+        return false;
+      }
+      loadable.loadingThread = Thread.currentThread();
+      activeLoadables.add(loadable);
+      return true;
+    }
+
+    private synchronized void onLoadEnded(
+        ChunkLoadable loadable, Chunk chunk, @Nullable IOException exception) {
+      activeLoadables.remove(loadable);
+      loadable.loadingThread = null;
+      if (--activeLoadCount == 0) {
+        periodActiveTimeMs += clock.elapsedRealtime() - activeStartTimeMs;
+      }
+      if (exception != null) {
+        chunk.exception = exception;
+      } else {
+        updateTargetConnectionCount(chunk.length);
+      }
+      startLoads();
+      notifyAll();
+    }
+
+    /**
+     * Adapts the number of concurrent requests after each round of chunks, comparing the
+     * throughput of the round with that of the previous round. The throughput is measured over the
+     * time during which loads were active. Rounds during which loads were held back by the buffer
+     * limit aren't compared, because their throughput is limited by the reader rather than by the
+     * number of requests.
+     */
+    private void updateTargetConnectionCount(int loadedBytes) {
+      periodLoadedBytes += loadedBytes;
+      if (++periodLoadedChunkCount < targetConnectionCount) {
+        return;
+      }
+      long nowMs = clock.elapsedRealtime();
+      long activeTimeMs = periodActiveTimeMs;
+      if (activeLoadCount > 0) {
+        activeTimeMs += nowMs - activeStartTimeMs;
+        activeStartTimeMs = nowMs;
+      }
+      if (!periodLimitedByBuffers) {
+        double throughput = periodLoadedBytes / (double) Math.max(1, activeTimeMs);
+        if (lastPeriodThroughput < 0
+            || throughput > lastPeriodThroughput * (1 + THROUGHPUT_CHANGE_THRESHOLD)) {
+          // The first round, or the last change helped. Try another connection.
+          targetConnectionCount = Math.min(targetConnectionCount + 1, maxConnectionCount);
+        } else if (throughput < lastPeriodThroughput * (1 - THROUGHPUT_CHANGE_THRESHOLD)) {
+          targetConnectionCount = Math.max(targetConnectionCount - 1, 1);
+        }
+        lastPeriodThroughput = throughput;
+      }
+      periodActiveTimeMs = 0;
+      periodLoadedBytes = 0;
+      periodLoadedChunkCount = 0;
+      periodLimitedByBuffers = false;
+    }
+
+    private synchronized boolean isCanceled() {
+      return canceled;
+    }
+
+    private final class ChunkLoadable implements Runnable {
+
+      private final Chunk chunk;
+      @Nullable private final DataSource openedDataSource;
+
+      // Guarded by ChunkLoader.this.
+      @Nullable private Thread loadingThread;
+
+      public ChunkLoadable(Chunk chunk, @Nullable DataSource openedDataSource) {
+        this.chunk = chunk;
+        this.openedDataSource = openedDataSource;
+      }
+
+      @Override
+      public void run() {
+        @Nullable IOException exception = null;
+        DataSource dataSource =
+            openedDataSource != null ? openedDataSource : createUpstreamDataSource();
+        try {
+          if (onLoadStarted(this) && openedDataSource == null) {
+            dataSource.open(dataSpec.subrange(chunk.position, chunk.length));
+          }
+          int bytesLoaded = 0;
+          while (bytesLoaded < chunk.length && !isCanceled()) {
+            int bytesRead = dataSource.read(chunk.data, bytesLoaded, chunk.length - bytesLoaded);
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+              throw new EOFException();
+            }
+            bytesLoaded += bytesRead;
+            onBytesLoaded(chunk, bytesRead);
+          }
+        } catch (IOException e) {
+          exception = e;
+        } finally {
+          Util.closeQuietly(dataSource);
+          onLoadEnded(this, chunk, exception);
+          // Clear an interrupt from cancel(), so that it doesn't affect the next task run by the
+          // executor on this thread.
+          Thread.interrupted();
+        }
+      }
+
+      // Guarded by ChunkLoader.this.
+      public void interrupt() {
+        if (loadingThread != null) {
+          loadingThread.interrupt();
+        }
+      }
+    }
+  }
+
+  private static final class Chunk {
+
+    public final long position;
+    public final int length;
+    public final byte[] data;
+
+    public int bytesLoaded;
+    @Nullable public IOException exception;
+
+    public Chunk(long position, int length, byte[] data) {
+      this.position = position;
+      this.length = length;
+      this.data = data;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Util;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memory-bounded cache of parsed manifests, shared between the parsers returned by {@link
+ * #wrap(ParsingLoadable.Parser)}.
+ *
+ * <p>Manifests are keyed by the parser type and the URI from which they were loaded. The loaded
+ * data acts as the validator of a cached manifest: a parser wrapped by this cache reads the full
+ * response and computes its digest, and only parses it if no manifest was cached for the same URI
+ * and digest. Opening the same title repeatedly, or refreshing a live manifest that hasn't changed,
+ * then skips parsing. Using a {@link com.google.android.exoplayer2.upstream.cache.CacheDataSource}
+ * to load the manifests additionally avoids downloading them again.
+ *
+ * <p>The size of a cached manifest is estimated by the length of the data from which it was parsed.
+ * Manifests are evicted in least recently used order when the total size exceeds {@code maxBytes}.
+ * The parsed manifests must be immutable, since they're returned to every loader that loads the
+ * same data.
+ */
+public final class ParsedManifestCache {
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, Entry> entries;
+
+  private long size;
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxBytes The maximum total length of the data from which the cached manifests were
+   *     parsed, in bytes.
+   */
+  public ParsedManifestCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    entries =
+        new LinkedHashMap<>(
+            /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+  }
+
+  /**
+   * Returns a {@link ParsingLoadable.Parser} that returns manifests from this cache, and parses
+   * manifests that aren't cached with the specified parser.
+   *
+   * @param parser The parser of the manifests.
+   * @param <T> The type of the manifests.
+   * @return The caching parser.
+   */
+  public <T> ParsingLoadable.Parser<T> wrap(ParsingLoadable.Parser<T> parser) {
+    return new CachingParser<>(parser);
+  }
+
+  /** Returns the total length of the data from which the cached manifests were parsed. */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /** Removes all manifests from the cache. */
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+
+  @Nullable
+  private synchronized Object get(String key, byte[] digest) {
+    @Nullable Entry entry = entries.get(key);
+    return entry != null && Arrays.equals(entry.digest, digest) ? entry.manifest : null;
+  }
+
+  private synchronized void put(String key, Entry entry) {
+    if (entry.length > maxBytes) {
+      return;
+    }
+    @Nullable Entry previousEntry = entries.put(key, entry);
+    if (previousEntry != null) {
+      size -= previousEntry.length;
+    }
+    size += entry.length;
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (size > maxBytes && iterator.hasNext()) {
+      size -= iterator.next().getValue().length;
+      iterator.remove();
+    }
+  }
+
+  private static byte[] computeDigest(byte[] data) throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private final class CachingParser<T> implements ParsingLoadable.Parser<T> {
+
+    private final ParsingLoadable.Parser<T> parser;
+
+    public CachingParser(ParsingLoadable.Parser<T> parser) {
+      this.parser = parser;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // Entries with the same key are parsed by the same parser type.
+    public T parse(Uri uri, InputStream inputStream) throws IOException {
+      byte[] data = Util.toByteArray(inputStream);
+      byte[] digest = computeDigest(data);
+      String key = parser.getClass().getName() + "|" + uri;
+      @Nullable Object cachedManifest = get(key, digest);
+      if (cachedManifest != null) {
+        return (T) cachedManifest;
+      }
+      T manifest = parser.parse(uri, new ByteArrayInputStream(data));
+      put(key, new Entry(digest, Assertions.checkNotNull(manifest), data.length));
+      return manifest;
+    }
+  }
+
+  private static final class Entry {
+
+    public final byte[] digest;
+    public final Object manifest;
+    public final int length;
+
+    public Entry(byte[] digest, Object manifest, int length) {
+      this.digest = digest;
+      this.manifest = manifest;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link DataSource} that limits the rate at which data is read from an upstream {@link
+ * DataSource} using a {@link DataRateLimiter}.
+ *
+ * <p>Calls to {@link #read(byte[], int, int)} block until the {@link DataRateLimiter} allows them
+ * to proceed. They throw {@link java.io.InterruptedIOException} if the reading thread is
+ * interrupted or the {@link DataRateLimiter} is canceled while blocked.
+ */
+public final class RateLimitedDataSource implements DataSource {
+
+  private final DataSource upstream;
+  private final DataRateLimiter rateLimiter;
+
+  /**
+   * @param upstream The upstream {@link DataSource}.
+   * @param rateLimiter The {@link DataRateLimiter} that limits the rate of reads.
+   */
+  public RateLimitedDataSource(DataSource upstream, DataRateLimiter rateLimiter) {
+    this.upstream = Assertions.checkNotNull(upstream);
+    this.rateLimiter = Assertions.checkNotNull(rateLimiter);
+  }
+
+  @Override
+  public void addTransferListener(TransferListener transferListener) {
+    upstream.addTransferListener(transferListener);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    return upstream.open(dataSpec);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    rateLimiter.awaitAvailable();
+    int bytesRead = upstream.read(buffer, offset, readLength);
+    if (bytesRead > 0) {
+      rateLimiter.onBytesTransferred(bytesRead);
+    }
+    return bytesRead;
+  }
+
+  @Override
+  @Nullable
+  public Uri getUri() {
+    return upstream.getUri();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return upstream.getResponseHeaders();
+  }
+
+  @Override
+  public void close() throws IOException {
+    upstream.close();
+  }
+}
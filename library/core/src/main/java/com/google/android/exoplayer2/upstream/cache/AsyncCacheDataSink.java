@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.ConditionVariable;
+import com.google.android.exoplayer2.util.Log;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link DataSink} that writes to an underlying sink, typically a {@link CacheDataSink}, on a
+ * separate I/O thread, so that the thread writing to this sink isn't slowed down by disk writes and
+ * cache commits.
+ *
+ * <p>Data written to this sink is copied into a bounded pool of buffers, which are handed to the
+ * I/O thread when full. If all of the buffers are waiting to be written, {@link #write(byte[], int,
+ * int)} blocks until one becomes available, so writing to this sink can only get a bounded amount
+ * ahead of the underlying sink.
+ *
+ * <p>The operations of each sink are executed sequentially on an {@link Executor} provided by the
+ * application, which may be shared by many sinks. Each operation is submitted to the executor
+ * separately, so a sink whose writes are slow doesn't hold up the other sinks, even if the executor
+ * has a single thread.
+ *
+ * <p>{@link #close()} blocks until all data has been written and the underlying sink has been
+ * closed. This ensures that a {@link CacheDataSink} commits its files before {@link
+ * CacheDataSource} releases the corresponding holes in the cache. The wait is bounded by a timeout,
+ * and ends early if the closing thread is interrupted. In both cases, data that hasn't been written
+ * yet is discarded rather than cached, and a {@link CacheDataSink} deletes its partially written
+ * file rather than committing it. Errors thrown by the underlying sink are thrown from the next
+ * call to {@link #write(byte[], int, int)} or {@link #close()}.
+ */
+public final class AsyncCacheDataSink implements DataSink {
+
+  /** {@link DataSink.Factory} for {@link AsyncCacheDataSink} instances. */
+  public static final class Factory implements DataSink.Factory {
+
+    private final DataSink.Factory dataSinkFactory;
+    private final Executor executor;
+    private int bufferCount;
+    private int bufferSize;
+    private long closeTimeoutMs;
+
+    /**
+     * Creates an instance.
+     *
+     * @param dataSinkFactory A factory for the underlying sinks, typically a {@link
+     *     CacheDataSink.Factory}.
+     * @param executor The {@link Executor} on which the underlying sinks are written. It may be
+     *     shared with other components, and may execute tasks in parallel. The application is
+     *     responsible for shutting it down once the sinks are no longer used.
+     */
+    public Factory(DataSink.Factory dataSinkFactory, Executor executor) {
+      this.dataSinkFactory = dataSinkFactory;
+      this.executor = executor;
+      bufferCount = DEFAULT_BUFFER_COUNT;
+      bufferSize = DEFAULT_BUFFER_SIZE;
+      closeTimeoutMs = DEFAULT_CLOSE_TIMEOUT_MS;
+    }
+
+    /**
+     * Sets the number and size of the buffers used to hand data to the I/O thread. Together they
+     * bound how far writing to the sink can get ahead of the underlying sink.
+     *
+     * <p>The defaults are {@link #DEFAULT_BUFFER_COUNT} and {@link #DEFAULT_BUFFER_SIZE}.
+     *
+     * @param bufferCount The number of buffers.
+     * @param bufferSize The size of each buffer in bytes.
+     * @return This factory.
+     */
+    public Factory setBuffers(int bufferCount, int bufferSize) {
+      Assertions.checkArgument(bufferCount > 0 && bufferSize > 0);
+      this.bufferCount = bufferCount;
+      this.bufferSize = bufferSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum time that {@link #close()} waits for the data to be written and the
+     * underlying sink to be closed, after which the data that hasn't been written is discarded. The
+     * default is {@link #DEFAULT_CLOSE_TIMEOUT_MS}.
+     *
+     * @param closeTimeoutMs The timeout in milliseconds.
+     * @return This factory.
+     */
+    public Factory setCloseTimeoutMs(long closeTimeoutMs) {
+      Assertions.checkArgument(closeTimeoutMs >= 0);
+      this.closeTimeoutMs = closeTimeoutMs;
+      return this;
+    }
+
+    @Override
+    public AsyncCacheDataSink createDataSink() {
+      return new AsyncCacheDataSink(
+          dataSinkFactory.createDataSink(), executor, bufferCount, bufferSize, closeTimeoutMs);
+    }
+  }
+
+  /** The default number of buffers. */
+  public static final int DEFAULT_BUFFER_COUNT = 8;
+  /** The default size of each buffer, in bytes. */
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  /** The default maximum time that {@link #close()} waits, in milliseconds. */
+  public static final long DEFAULT_CLOSE_TIMEOUT_MS = 5_000;
+
+  private static final String TAG = "AsyncCacheDataSink";
+
+  private final DataSink dataSink;
+  private final Executor executor;
+  private final ArrayBlockingQueue<byte[]> freeBuffers;
+  private final int bufferCount;
+  private final int bufferSize;
+  private final long closeTimeoutMs;
+  private final ConditionVariable closed;
+
+  // Guarded by pendingTasks.
+  private final ArrayDeque<Runnable> pendingTasks;
+  private boolean runnerScheduled;
+  private boolean taskExecuting;
+
+  private int allocatedBufferCount;
+  @Nullable private byte[] currentBuffer;
+  private int currentBufferLength;
+  @Nullable private volatile IOException error;
+
+  /**
+   * Creates an instance with the default close timeout.
+   *
+   * @param dataSink The underlying {@link DataSink}.
+   * @param executor The {@link Executor} on which the underlying sink is written. It may execute
+   *     tasks in parallel.
+   * @param bufferCount The number of buffers used to hand data to the I/O thread.
+   * @param bufferSize The size of each buffer in bytes.
+   */
+  public AsyncCacheDataSink(DataSink dataSink, Executor executor, int bufferCount, int bufferSize) {
+    this(dataSink, executor, bufferCount, bufferSize, DEFAULT_CLOSE_TIMEOUT_MS);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param dataSink The underlying {@link DataSink}.
+   * @param executor The {@link Executor} on which the underlying sink is written. It may execute
+   *     tasks in parallel.
+   * @param bufferCount The number of buffers used to hand data to the I/O thread.
+   * @param bufferSize The size of each buffer in bytes.
+   * @param closeTimeoutMs The maximum time that {@link #close()} waits for the data to be written,
+   *     in milliseconds.
+   */
+  public AsyncCacheDataSink(
+      DataSink dataSink, Executor executor, int bufferCount, int bufferSize, long closeTimeoutMs) {
+    Assertions.checkArgument(bufferCount > 0 && bufferSize > 0 && closeTimeoutMs >= 0);
+    this.dataSink = dataSink;
+    this.executor = executor;
+    this.bufferCount = bufferCount;
+    this.bufferSize = bufferSize;
+    this.closeTimeoutMs = closeTimeoutMs;
+    freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+    closed = new ConditionVariable();
+    pendingTasks = new ArrayDeque<>();
+  }
+
+  @Override
+  public void open(DataSpec dataSpec) throws IOException {
+    error = null;
+    execute(
+        () -> {
+          try {
+            dataSink.open(dataSpec);
+          } catch (IOException e) {
+            error = e;
+          }
+        });
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    maybeThrowError();
+    while (length > 0) {
+      if (currentBuffer == null) {
+        currentBuffer = obtainBuffer();
+        currentBufferLength = 0;
+      }
+      int bytesToCopy = Math.min(length, bufferSize - currentBufferLength);
+      System.arraycopy(buffer, offset, currentBuffer, currentBufferLength, bytesToCopy);
+      currentBufferLength += bytesToCopy;
+      offset += bytesToCopy;
+      length -= bytesToCopy;
+      if (currentBufferLength == bufferSize) {
+        submitCurrentBuffer();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (currentBuffer != null) {
+      submitCurrentBuffer();
+    }
+    closed.close();
+    execute(
+        () -> {
+          try {
+            dataSink.close();
+          } catch (IOException e) {
+            if (error == null) {
+              error = e;
+            }
+          } finally {
+            closed.open();
+          }
+        });
+    boolean interrupted = false;
+    boolean isClosed;
+    try {
+      isClosed = closed.block(closeTimeoutMs);
+    } catch (InterruptedException e) {
+      interrupted = true;
+      isClosed = false;
+    }
+    if (!isClosed) {
+      discardPendingTasks();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    maybeThrowError();
+  }
+
+  /**
+   * Discards the operations that haven't started yet, waits for the running operation to finish,
+   * and discards the underlying sink if it hasn't been closed. The underlying sink must not be
+   * used after this method returns, since the holes in the cache it was writing to may be released.
+   */
+  private void discardPendingTasks() {
+    synchronized (pendingTasks) {
+      pendingTasks.clear();
+      // The running operation writes at most one buffer, so this wait is short.
+      boolean interrupted = false;
+      while (taskExecuting) {
+        try {
+          pendingTasks.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (closed.isOpen()) {
+      // The underlying sink was closed by the last operation.
+      return;
+    }
+    Log.w(TAG, "Discarding data that wasn't written in time");
+    if (dataSink instanceof CacheDataSink) {
+      ((CacheDataSink) dataSink).discard();
+    } else {
+      try {
+        dataSink.close();
+      } catch (IOException e) {
+        // The data is being discarded anyway.
+      }
+    }
+    // Buffers held by discarded writes are never returned, so start over with new buffers.
+    freeBuffers.clear();
+    allocatedBufferCount = 0;
+    closed.open();
+  }
+
+  private byte[] obtainBuffer() throws InterruptedIOException {
+    @Nullable byte[] buffer = freeBuffers.poll();
+    if (buffer != null) {
+      return buffer;
+    }
+    if (allocatedBufferCount < bufferCount) {
+      allocatedBufferCount++;
+      return new byte[bufferSize];
+    }
+    try {
+      // Wait for the I/O thread to finish writing a buffer.
+      return freeBuffers.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void submitCurrentBuffer() {
+    byte[] buffer = Assertions.checkNotNull(currentBuffer);
+    int length = currentBufferLength;
+    currentBuffer = null;
+    currentBufferLength = 0;
+    execute(
+        () -> {
+          try {
+            if (error == null) {
+              dataSink.write(buffer, /* offset= */ 0, length);
+            }
+          } catch (IOException e) {
+            error = e;
+          } finally {
+            freeBuffers.add(buffer);
+          }
+        });
+  }
+
+  /**
+   * Executes an operation on the underlying sink once the previous operations have finished. Each
+   * operation is submitted to the executor separately, so that operations of other sinks sharing
+   * the executor can run in between.
+   */
+  private void execute(Runnable task) {
+    synchronized (pendingTasks) {
+      pendingTasks.addLast(task);
+      if (runnerScheduled) {
+        return;
+      }
+      runnerScheduled = true;
+    }
+    executor.execute(this::runNextTask);
+  }
+
+  private void runNextTask() {
+    @Nullable Runnable task;
+    synchronized (pendingTasks) {
+      task = pendingTasks.pollFirst();
+      if (task == null) {
+        // The pending operations were discarded.
+        runnerScheduled = false;
+        return;
+      }
+      taskExecuting = true;
+    }
+    boolean hasMoreTasks;
+    try {
+      task.run();
+    } finally {
+      synchronized (pendingTasks) {
+        taskExecuting = false;
+        pendingTasks.notifyAll();
+        hasMoreTasks = !pendingTasks.isEmpty();
+        runnerScheduled = hasMoreTasks;
+      }
+    }
+    if (hasMoreTasks) {
+      executor.execute(this::runNextTask);
+    }
+  }
+
+  private void maybeThrowError() throws IOException {
+    @Nullable IOException error = this.error;
+    if (error != null) {
+      throw error;
+    }
+  }
+}
@@ -225,6 +225,23 @@ public final class CacheDataSink implements DataSink {
     }
   }
 
+  /**
+   * Closes the sink without committing the data written to the current cache file, which is
+   * deleted. Files that were already committed because they reached the fragment size are kept.
+   * Must be used instead of {@link #close()} if the holes in the cache that the sink was writing to
+   * may have been released.
+   */
+  public void discard() {
+    if (outputStream == null) {
+      return;
+    }
+    Util.closeQuietly(outputStream);
+    outputStream = null;
+    File fileToDelete = file;
+    file = null;
+    fileToDelete.delete();
+  }
+
   private void openNextOutputStream() throws IOException {
     long length =
         dataSpec.length == C.LENGTH_UNSET
@@ -19,6 +19,8 @@ import android.net.Uri;
 import androidx.annotation.IntDef;
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataRateLimiter;
 import com.google.android.exoplayer2.upstream.DataSink;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSourceException;
@@ -26,16 +28,19 @@ import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.DummyDataSource;
 import com.google.android.exoplayer2.upstream.FileDataSource;
 import com.google.android.exoplayer2.upstream.PriorityDataSource;
+import com.google.android.exoplayer2.upstream.RateLimitedDataSource;
 import com.google.android.exoplayer2.upstream.TeeDataSource;
 import com.google.android.exoplayer2.upstream.TransferListener;
 import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.PriorityTaskManager;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -61,6 +66,9 @@ public final class CacheDataSource implements DataSource {
     private int upstreamPriority;
     @CacheDataSource.Flags private int flags;
     @Nullable private CacheDataSource.EventListener eventListener;
+    private long maxCoalescedGapBytes;
+    @Nullable private CacheMetrics cacheMetrics;
+    @Nullable private MemoryCache memoryCache;
 
     public Factory() {
       cacheReadDataSourceFactory = new FileDataSource.Factory();
@@ -228,6 +236,57 @@ public final class CacheDataSource implements DataSource {
       return this;
     }
 
+    /**
+     * Sets the maximum length of cached data between two uncached ranges of a resource for the
+     * ranges to be requested from upstream together.
+     *
+     * <p>When a resource is cached in many small fragments, reading it otherwise requires a
+     * separate upstream request for each uncached range and a separate cache file to be opened for
+     * each cached range. Coalescing nearby uncached ranges replaces these with a single upstream
+     * request, at the cost of requesting up to {@code maxCoalescedGapBytes} of already cached data
+     * again for each coalesced range. Cached data requested again is not written to the cache.
+     *
+     * <p>The default is {@code 0}, meaning uncached ranges are always requested separately.
+     *
+     * @param maxCoalescedGapBytes The maximum length of cached data between uncached ranges that
+     *     are requested together, in bytes.
+     * @return This factory.
+     */
+    public Factory setMaxCoalescedGapBytes(long maxCoalescedGapBytes) {
+      Assertions.checkArgument(maxCoalescedGapBytes >= 0);
+      this.maxCoalescedGapBytes = maxCoalescedGapBytes;
+      return this;
+    }
+
+    /**
+     * Sets the {@link CacheMetrics} in which cache hits and misses, bytes read, and the time spent
+     * locking and opening cached spans are recorded.
+     *
+     * <p>The default is {@code null}.
+     *
+     * @param cacheMetrics The {@link CacheMetrics}, or {@code null} to not record metrics.
+     * @return This factory.
+     */
+    public Factory setCacheMetrics(@Nullable CacheMetrics cacheMetrics) {
+      this.cacheMetrics = cacheMetrics;
+      return this;
+    }
+
+    /**
+     * Sets the {@link MemoryCache} in which small resources that are fully read are held, so that
+     * they can be read again without any file I/O. The {@link MemoryCache} must be backed by the
+     * same {@link Cache} as this factory.
+     *
+     * <p>The default is {@code null}.
+     *
+     * @param memoryCache The {@link MemoryCache}, or {@code null} to read all data from the cache.
+     * @return This factory.
+     */
+    public Factory setMemoryCache(@Nullable MemoryCache memoryCache) {
+      this.memoryCache = memoryCache;
+      return this;
+    }
+
     @Override
     public CacheDataSource createDataSource() {
       return createDataSourceInternal(
@@ -248,10 +307,28 @@ public final class CacheDataSource implements DataSource {
      * @return An instance suitable for downloading content.
      */
     public CacheDataSource createDataSourceForDownloading() {
+      return createDataSourceForDownloading(/* upstreamRateLimiter= */ null);
+    }
+
+    /**
+     * Returns an instance suitable for downloading content, as {@link
+     * #createDataSourceForDownloading()}, whose reads from upstream are limited by the specified
+     * {@link DataRateLimiter}. Reads from the cache are not limited.
+     *
+     * @param upstreamRateLimiter The {@link DataRateLimiter} that limits the rate of reads from
+     *     upstream, or {@code null} if the rate shouldn't be limited.
+     * @return An instance suitable for downloading content.
+     */
+    public CacheDataSource createDataSourceForDownloading(
+        @Nullable DataRateLimiter upstreamRateLimiter) {
+      @Nullable
+      DataSource upstreamDataSource =
+          upstreamDataSourceFactory != null ? upstreamDataSourceFactory.createDataSource() : null;
+      if (upstreamDataSource != null && upstreamRateLimiter != null) {
+        upstreamDataSource = new RateLimitedDataSource(upstreamDataSource, upstreamRateLimiter);
+      }
       return createDataSourceInternal(
-          upstreamDataSourceFactory != null ? upstreamDataSourceFactory.createDataSource() : null,
-          flags | FLAG_BLOCK_ON_CACHE,
-          C.PRIORITY_DOWNLOAD);
+          upstreamDataSource, flags | FLAG_BLOCK_ON_CACHE, C.PRIORITY_DOWNLOAD);
     }
 
     /**
@@ -293,7 +370,10 @@ public final class CacheDataSource implements DataSource {
           flags,
           upstreamPriorityTaskManager,
           upstreamPriority,
-          eventListener);
+          eventListener,
+          maxCoalescedGapBytes,
+          cacheMetrics,
+          memoryCache);
     }
   }
 
@@ -374,15 +454,20 @@ public final class CacheDataSource implements DataSource {
   private final Cache cache;
   private final DataSource cacheReadDataSource;
   @Nullable private final DataSource cacheWriteDataSource;
+  @Nullable private final DataSource coalescingCacheWriteDataSource;
+  @Nullable private final HoleFillingDataSink holeFillingDataSink;
   private final DataSource upstreamDataSource;
   private final CacheKeyFactory cacheKeyFactory;
   @Nullable private final PriorityTaskManager upstreamPriorityTaskManager;
   private final int upstreamPriority;
   @Nullable private final EventListener eventListener;
+  @Nullable private final CacheMetrics cacheMetrics;
+  @Nullable private final MemoryCache memoryCache;
 
   private final boolean blockOnCache;
   private final boolean ignoreCacheOnError;
   private final boolean ignoreCacheForUnsetLengthRequests;
+  private final long maxCoalescedGapBytes;
 
   @Nullable private Uri actualUri;
   @Nullable private DataSpec requestDataSpec;
@@ -391,10 +476,13 @@ public final class CacheDataSource implements DataSource {
   private long readPosition;
   private long bytesRemaining;
   @Nullable private CacheSpan currentHoleSpan;
+  @Nullable private List<CacheSpan> currentCoalescedHoleSpans;
   private boolean seenCacheError;
   private boolean currentRequestIgnoresCache;
   private long totalCachedBytesRead;
   private long checkCachePosition;
+  @Nullable private DataSource memoryReadDataSource;
+  @Nullable private ByteArrayOutputStream memoryWriteBuffer;
 
   /**
    * Constructs an instance with default {@link DataSource} and {@link DataSink} instances for
@@ -493,7 +581,10 @@ public final class CacheDataSource implements DataSource {
         flags,
         /* upstreamPriorityTaskManager= */ null,
         /* upstreamPriority= */ C.PRIORITY_PLAYBACK,
-        eventListener);
+        eventListener,
+        /* maxCoalescedGapBytes= */ 0,
+        /* cacheMetrics= */ null,
+        /* memoryCache= */ null);
   }
 
   private CacheDataSource(
@@ -505,7 +596,10 @@ public final class CacheDataSource implements DataSource {
       @Flags int flags,
       @Nullable PriorityTaskManager upstreamPriorityTaskManager,
       int upstreamPriority,
-      @Nullable EventListener eventListener) {
+      @Nullable EventListener eventListener,
+      long maxCoalescedGapBytes,
+      @Nullable CacheMetrics cacheMetrics,
+      @Nullable MemoryCache memoryCache) {
     this.cache = cache;
     this.cacheReadDataSource = cacheReadDataSource;
     this.cacheKeyFactory = cacheKeyFactory != null ? cacheKeyFactory : CacheKeyFactory.DEFAULT;
@@ -530,7 +624,18 @@ public final class CacheDataSource implements DataSource {
       this.upstreamDataSource = DummyDataSource.INSTANCE;
       this.cacheWriteDataSource = null;
     }
+    if (cacheWriteDataSource != null && maxCoalescedGapBytes > 0) {
+      holeFillingDataSink = new HoleFillingDataSink(Assertions.checkNotNull(cacheWriteDataSink));
+      coalescingCacheWriteDataSource =
+          new TeeDataSource(this.upstreamDataSource, holeFillingDataSink);
+    } else {
+      holeFillingDataSink = null;
+      coalescingCacheWriteDataSource = null;
+    }
+    this.maxCoalescedGapBytes = maxCoalescedGapBytes;
     this.eventListener = eventListener;
+    this.cacheMetrics = cacheMetrics;
+    this.memoryCache = memoryCache;
   }
 
   /** Returns the {@link Cache} used by this instance. */
@@ -581,6 +686,18 @@ public final class CacheDataSource implements DataSource {
         notifyCacheIgnored(reason);
       }
 
+      if (memoryCache != null && !currentRequestIgnoresCache) {
+        @Nullable byte[] data = memoryCache.get(key);
+        if (data != null && openMemoryReadSource(data)) {
+          return bytesRemaining;
+        }
+        if (dataSpec.position == 0
+            && (dataSpec.length == C.LENGTH_UNSET
+                || dataSpec.length <= memoryCache.getMaxEntryBytes())) {
+          memoryWriteBuffer = new ByteArrayOutputStream();
+        }
+      }
+
       if (dataSpec.length != C.LENGTH_UNSET || currentRequestIgnoresCache) {
         bytesRemaining = dataSpec.length;
       } else {
@@ -614,13 +731,25 @@ public final class CacheDataSource implements DataSource {
       }
       int bytesRead = currentDataSource.read(buffer, offset, readLength);
       if (bytesRead != C.RESULT_END_OF_INPUT) {
-        if (isReadingFromCache()) {
+        boolean isReadingFromCache = isReadingFromCache();
+        if (isReadingFromCache) {
           totalCachedBytesRead += bytesRead;
         }
+        if (cacheMetrics != null) {
+          cacheMetrics.recordBytesRead(requestDataSpec.key, isReadingFromCache, bytesRead);
+        }
         readPosition += bytesRead;
         if (bytesRemaining != C.LENGTH_UNSET) {
           bytesRemaining -= bytesRead;
         }
+        if (memoryWriteBuffer != null) {
+          if (memoryWriteBuffer.size() + bytesRead
+              > Assertions.checkNotNull(memoryCache).getMaxEntryBytes()) {
+            memoryWriteBuffer = null;
+          } else {
+            memoryWriteBuffer.write(buffer, offset, bytesRead);
+          }
+        }
       } else if (currentDataSpecLengthUnset) {
         setNoBytesRemainingAndMaybeStoreLength();
       } else if (bytesRemaining > 0 || bytesRemaining == C.LENGTH_UNSET) {
@@ -658,7 +787,10 @@ public final class CacheDataSource implements DataSource {
 
   @Override
   public void close() throws IOException {
-    requestDataSpec = null;
+    @Nullable DataSpec requestDataSpec = this.requestDataSpec;
+    @Nullable ByteArrayOutputStream memoryWriteBuffer = this.memoryWriteBuffer;
+    this.requestDataSpec = null;
+    this.memoryWriteBuffer = null;
     actualUri = null;
     readPosition = 0;
     notifyBytesRead();
@@ -668,6 +800,9 @@ public final class CacheDataSource implements DataSource {
       handleBeforeThrow(e);
       throw e;
     }
+    if (memoryWriteBuffer != null && requestDataSpec != null) {
+      maybeWriteToMemoryCache(requestDataSpec, memoryWriteBuffer);
+    }
   }
 
   /**
@@ -689,19 +824,26 @@ public final class CacheDataSource implements DataSource {
     String key = requestDataSpec.key;
     if (currentRequestIgnoresCache) {
       nextSpan = null;
-    } else if (blockOnCache) {
-      try {
-        nextSpan = cache.startReadWrite(key, readPosition, bytesRemaining);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        throw new InterruptedIOException();
-      }
     } else {
-      nextSpan = cache.startReadWriteNonBlocking(key, readPosition, bytesRemaining);
+      long startTimeNs = System.nanoTime();
+      if (blockOnCache) {
+        try {
+          nextSpan = cache.startReadWrite(key, readPosition, bytesRemaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      } else {
+        nextSpan = cache.startReadWriteNonBlocking(key, readPosition, bytesRemaining);
+      }
+      if (cacheMetrics != null) {
+        cacheMetrics.recordLockWait(key, (System.nanoTime() - startTimeNs) / 1000);
+      }
     }
 
     DataSpec nextDataSpec;
     DataSource nextDataSource;
+    @Nullable List<CacheSpan> coalescedHoleSpans = null;
     if (nextSpan == null) {
       // The data is locked in the cache, or we're ignoring the cache. Bypass the cache and read
       // from upstream.
@@ -737,9 +879,20 @@ public final class CacheDataSource implements DataSource {
           length = Math.min(length, bytesRemaining);
         }
       }
+      if (coalescingCacheWriteDataSource != null && bytesRemaining != C.LENGTH_UNSET) {
+        List<CacheSpan> holeSpans = getCoalescedHoleSpans(key, nextSpan);
+        if (holeSpans.size() > 1) {
+          // Request the following holes too, and fill all of them with the data that's read.
+          coalescedHoleSpans = holeSpans;
+          CacheSpan lastHoleSpan = holeSpans.get(holeSpans.size() - 1);
+          length = lastHoleSpan.position + lastHoleSpan.length - readPosition;
+        }
+      }
       nextDataSpec =
           requestDataSpec.buildUpon().setPosition(readPosition).setLength(length).build();
-      if (cacheWriteDataSource != null) {
+      if (coalescedHoleSpans != null) {
+        nextDataSource = Assertions.checkNotNull(coalescingCacheWriteDataSource);
+      } else if (cacheWriteDataSource != null) {
         nextDataSource = cacheWriteDataSource;
       } else {
         nextDataSource = upstreamDataSource;
@@ -762,20 +915,33 @@ public final class CacheDataSource implements DataSource {
       try {
         closeCurrentSource();
       } catch (Throwable e) {
-        if (nextSpan.isHoleSpan()) {
-          // Release the hole span before throwing, else we'll hold it forever.
+        // Release the hole spans before throwing, else we'll hold them forever.
+        if (coalescedHoleSpans != null) {
+          releaseHoleSpans(coalescedHoleSpans);
+        } else if (nextSpan.isHoleSpan()) {
           cache.releaseHoleSpan(nextSpan);
         }
         throw e;
       }
     }
 
-    if (nextSpan != null && nextSpan.isHoleSpan()) {
+    if (coalescedHoleSpans != null) {
+      currentCoalescedHoleSpans = coalescedHoleSpans;
+      Assertions.checkNotNull(holeFillingDataSink).setHoleSpans(coalescedHoleSpans);
+    } else if (nextSpan != null && nextSpan.isHoleSpan()) {
       currentHoleSpan = nextSpan;
     }
     currentDataSource = nextDataSource;
     currentDataSpecLengthUnset = nextDataSpec.length == C.LENGTH_UNSET;
+    long openStartTimeNs = System.nanoTime();
     long resolvedLength = nextDataSource.open(nextDataSpec);
+    if (cacheMetrics != null) {
+      if (isReadingFromCache()) {
+        cacheMetrics.recordCacheHit(key, (System.nanoTime() - openStartTimeNs) / 1000);
+      } else {
+        cacheMetrics.recordCacheMiss(key);
+      }
+    }
 
     // Update bytesRemaining, actualUri and (if writing to cache) the cache metadata.
     ContentMetadataMutations mutations = new ContentMetadataMutations();
@@ -793,6 +959,88 @@ public final class CacheDataSource implements DataSource {
     }
   }
 
+  /**
+   * Opens {@link #memoryReadDataSource} to read the requested range from the specified data, held
+   * in {@link #memoryCache}. Returns whether the data contains the requested range.
+   */
+  private boolean openMemoryReadSource(byte[] data) throws IOException {
+    DataSpec requestDataSpec = Assertions.checkNotNull(this.requestDataSpec);
+    if (requestDataSpec.position >= data.length
+        || (requestDataSpec.length != C.LENGTH_UNSET
+            && requestDataSpec.position + requestDataSpec.length > data.length)) {
+      return false;
+    }
+    DataSource memoryReadDataSource = new ByteArrayDataSource(data);
+    this.memoryReadDataSource = memoryReadDataSource;
+    currentDataSource = memoryReadDataSource;
+    checkCachePosition = Long.MAX_VALUE;
+    bytesRemaining = memoryReadDataSource.open(requestDataSpec);
+    if (cacheMetrics != null) {
+      cacheMetrics.recordMemoryCacheHit(Assertions.checkNotNull(requestDataSpec.key));
+    }
+    return true;
+  }
+
+  /**
+   * Adds the data read by a request to {@link #memoryCache}, if the request read the complete
+   * resource.
+   */
+  private void maybeWriteToMemoryCache(
+      DataSpec requestDataSpec, ByteArrayOutputStream memoryWriteBuffer) {
+    String key = Assertions.checkNotNull(requestDataSpec.key);
+    if (bytesRemaining != 0
+        || (requestDataSpec.length != C.LENGTH_UNSET
+            && memoryWriteBuffer.size()
+                != ContentMetadata.getContentLength(cache.getContentMetadata(key)))) {
+      // The request ended early, or only read part of the resource.
+      return;
+    }
+    Assertions.checkNotNull(memoryCache).put(key, memoryWriteBuffer.toByteArray());
+  }
+
+  /**
+   * Returns the hole spans to fill with a single upstream request, starting with the specified hole
+   * span. Following holes are included if they're separated from the previous hole by at most
+   * {@link #maxCoalescedGapBytes} of cached data, are within the remaining requested range, and can
+   * be locked without blocking. The returned hole spans, other than the specified one, are locked.
+   */
+  private List<CacheSpan> getCoalescedHoleSpans(String key, CacheSpan holeSpan)
+      throws CacheException {
+    List<CacheSpan> holeSpans = new ArrayList<>();
+    holeSpans.add(holeSpan);
+    long endPosition = readPosition + bytesRemaining;
+    while (!holeSpan.isOpenEnded()) {
+      long gapPosition = holeSpan.position + holeSpan.length;
+      long gapLength =
+          gapPosition < endPosition
+              ? cache.getCachedLength(key, gapPosition, maxCoalescedGapBytes + 1)
+              : 0;
+      if (gapLength <= 0 || gapLength > maxCoalescedGapBytes) {
+        break;
+      }
+      long nextHolePosition = gapPosition + gapLength;
+      if (nextHolePosition >= endPosition) {
+        break;
+      }
+      @Nullable
+      CacheSpan nextHoleSpan =
+          cache.startReadWriteNonBlocking(key, nextHolePosition, endPosition - nextHolePosition);
+      if (nextHoleSpan == null || nextHoleSpan.isCached) {
+        // The hole is being filled by another reader, or has already been filled.
+        break;
+      }
+      holeSpans.add(nextHoleSpan);
+      holeSpan = nextHoleSpan;
+    }
+    return holeSpans;
+  }
+
+  private void releaseHoleSpans(List<CacheSpan> holeSpans) {
+    for (int i = 0; i < holeSpans.size(); i++) {
+      cache.releaseHoleSpan(holeSpans.get(i));
+    }
+  }
+
   private void setNoBytesRemainingAndMaybeStoreLength() throws IOException {
     bytesRemaining = 0;
     if (isWritingToCache()) {
@@ -816,11 +1064,14 @@ public final class CacheDataSource implements DataSource {
   }
 
   private boolean isReadingFromCache() {
-    return currentDataSource == cacheReadDataSource;
+    return currentDataSource == cacheReadDataSource
+        || (memoryReadDataSource != null && currentDataSource == memoryReadDataSource);
   }
 
   private boolean isWritingToCache() {
-    return currentDataSource == cacheWriteDataSource;
+    return currentDataSource == cacheWriteDataSource
+        || (coalescingCacheWriteDataSource != null
+            && currentDataSource == coalescingCacheWriteDataSource);
   }
 
   private void closeCurrentSource() throws IOException {
@@ -831,11 +1082,16 @@ public final class CacheDataSource implements DataSource {
       currentDataSource.close();
     } finally {
       currentDataSource = null;
+      memoryReadDataSource = null;
       currentDataSpecLengthUnset = false;
       if (currentHoleSpan != null) {
         cache.releaseHoleSpan(currentHoleSpan);
         currentHoleSpan = null;
       }
+      if (currentCoalescedHoleSpans != null) {
+        releaseHoleSpans(currentCoalescedHoleSpans);
+        currentCoalescedHoleSpans = null;
+      }
     }
   }
 
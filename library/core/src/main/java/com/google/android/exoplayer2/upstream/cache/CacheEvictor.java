@@ -35,6 +35,9 @@ public interface CacheEvictor extends Cache.Listener {
    */
   void onCacheInitialized();
 
+  /** Called when the cache is released. The default implementation does nothing. */
+  default void onCacheReleased() {}
+
   /**
    * Called when a writer starts writing to the cache.
    *
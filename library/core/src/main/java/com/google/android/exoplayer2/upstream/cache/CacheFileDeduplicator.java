@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Deduplicates the files of a {@link SimpleCache}, so that identical content cached under different
+ * keys, such as initialization segments, ad creatives and bumpers that are shared between titles,
+ * is only stored once.
+ *
+ * <p>When a file of at most {@code maxFileLength} bytes is committed to the cache, its SHA-256
+ * digest is computed. If a file with the same digest is already in the cache, the new file is
+ * replaced by a hard link to it. The file system keeps a reference count for the shared data, which
+ * is only deleted once every span that refers to it has been removed from the cache.
+ *
+ * <p>Each span still accounts for its full length in {@link SimpleCache#getCacheSpace()}, so cache
+ * evictors don't need to be aware of deduplication. {@link #getDeduplicatedBytes()} returns the
+ * number of bytes of storage that are currently being saved. Only files committed while the
+ * deduplicator is set are deduplicated. Hard links require API level 26, and deduplication is
+ * disabled on earlier versions.
+ *
+ * <p>The digests of deduplicated files are persisted in the metadata of their content in the cache
+ * index, so that files committed after the cache is reinitialized can be linked to files that were
+ * committed before.
+ *
+ * <p>Set an instance with {@link SimpleCache#setFileDeduplicator(CacheFileDeduplicator)}. An
+ * instance must only be set on a single cache.
+ */
+public final class CacheFileDeduplicator {
+
+  /** The default maximum length of the files that are deduplicated, in bytes. */
+  public static final long DEFAULT_MAX_FILE_LENGTH = 2 * 1024 * 1024;
+
+  /** The name of the content metadata entry that maps span positions to file digests. */
+  /* package */ static final String METADATA_KEY_DIGESTS = "exo_dedup";
+
+  private static final String TAG = "CacheFileDeduplicator";
+  private static final String LINK_SUFFIX = ".link";
+
+  private final long maxFileLength;
+  private final HashMap<String, ArrayList<File>> filesByDigest;
+  private final HashMap<File, String> digestsByFile;
+
+  private long deduplicatedBytes;
+
+  /** Creates an instance that deduplicates files of up to {@link #DEFAULT_MAX_FILE_LENGTH}. */
+  public CacheFileDeduplicator() {
+    this(DEFAULT_MAX_FILE_LENGTH);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxFileLength The maximum length of the files that are deduplicated, in bytes. Computing
+   *     the digest of a file requires reading it, so larger files take longer to commit. The
+   *     digest is computed without holding the cache lock.
+   */
+  public CacheFileDeduplicator(long maxFileLength) {
+    this.maxFileLength = maxFileLength;
+    filesByDigest = new HashMap<>();
+    digestsByFile = new HashMap<>();
+  }
+
+  /** Returns the number of bytes of storage currently saved by deduplication. */
+  public synchronized long getDeduplicatedBytes() {
+    return deduplicatedBytes;
+  }
+
+  /**
+   * Computes the digest of a file that's about to be committed to the cache. Called without holding
+   * the cache lock, since it requires reading the file.
+   *
+   * @param file The file.
+   * @param length The length of the file.
+   * @return The digest, or {@code null} if the file shouldn't be deduplicated.
+   */
+  @Nullable
+  /* package */ String computeDigest(File file, long length) {
+    if (Util.SDK_INT < 26 || length > maxFileLength) {
+      return null;
+    }
+    try {
+      return computeDigest(file);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to compute digest: " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Called when a file is about to be committed to the cache. If an identical file is already in
+   * the cache, the file is replaced by a hard link to it.
+   *
+   * @param file The file.
+   * @param length The length of the file.
+   * @param digest The digest of the file, as returned by {@link #computeDigest(File, long)}.
+   * @return Whether the file is tracked, in which case its digest should be persisted.
+   */
+  /* package */ synchronized boolean onFileCommitted(File file, long length, String digest) {
+    @Nullable ArrayList<File> files = filesByDigest.get(digest);
+    if (files == null) {
+      files = new ArrayList<>();
+      filesByDigest.put(digest, files);
+    } else if (!files.isEmpty()) {
+      File existingFile = files.get(0);
+      if (existingFile.length() != length || !Api26.replaceWithLink(file, existingFile)) {
+        // Leave the file as it is, rather than tracking data that may be stored twice.
+        return false;
+      }
+      deduplicatedBytes += length;
+    }
+    files.add(file);
+    digestsByFile.put(file, digest);
+    return true;
+  }
+
+  /**
+   * Called when the deduplicator is set on a cache, for each file in the cache whose digest was
+   * persisted. The file is tracked if it's the first file with the digest, or if it's a link to the
+   * files already tracked with the digest.
+   *
+   * @param file The file.
+   * @param length The length of the file.
+   * @param digest The persisted digest of the file.
+   */
+  /* package */ synchronized void onFileLoaded(File file, long length, String digest) {
+    if (Util.SDK_INT < 26 || digestsByFile.containsKey(file)) {
+      return;
+    }
+    @Nullable ArrayList<File> files = filesByDigest.get(digest);
+    if (files == null) {
+      files = new ArrayList<>();
+      filesByDigest.put(digest, files);
+    } else if (!files.isEmpty()) {
+      if (!Api26.isSameFile(file, files.get(0))) {
+        return;
+      }
+      deduplicatedBytes += length;
+    }
+    files.add(file);
+    digestsByFile.put(file, digest);
+  }
+
+  /**
+   * Called when a file in the cache is renamed.
+   *
+   * @param oldFile The file before it was renamed.
+   * @param newFile The file after it was renamed.
+   */
+  /* package */ synchronized void onFileRenamed(File oldFile, File newFile) {
+    @Nullable String digest = digestsByFile.remove(oldFile);
+    if (digest == null) {
+      return;
+    }
+    ArrayList<File> files = filesByDigest.get(digest);
+    files.set(files.indexOf(oldFile), newFile);
+    digestsByFile.put(newFile, digest);
+  }
+
+  /**
+   * Called when a file is removed from the cache.
+   *
+   * @param file The file.
+   * @param length The length of the file.
+   */
+  /* package */ synchronized void onFileRemoved(File file, long length) {
+    @Nullable String digest = digestsByFile.remove(file);
+    if (digest == null) {
+      return;
+    }
+    ArrayList<File> files = filesByDigest.get(digest);
+    files.remove(file);
+    if (files.isEmpty()) {
+      filesByDigest.remove(digest);
+    } else {
+      // The data is still referenced by the remaining files.
+      deduplicatedBytes -= length;
+    }
+  }
+
+  /** Returns the file digests persisted in content metadata, keyed by span position. */
+  /* package */ static HashMap<Long, String> readDigests(ContentMetadata metadata) {
+    HashMap<Long, String> digests = new HashMap<>();
+    @Nullable
+    byte[] digestsMetadata = metadata.get(METADATA_KEY_DIGESTS, /* defaultValue= */ (byte[]) null);
+    if (digestsMetadata == null) {
+      return digests;
+    }
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(digestsMetadata));
+    try {
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        long position = input.readLong();
+        digests.put(position, input.readUTF());
+      }
+    } catch (IOException e) {
+      // The entry is invalid, so ignore it.
+      Log.w(TAG, "Failed to read digests", e);
+      digests.clear();
+    }
+    return digests;
+  }
+
+  /**
+   * Returns the value of the {@link #METADATA_KEY_DIGESTS} metadata entry for file digests keyed by
+   * span position.
+   */
+  /* package */ static byte[] writeDigests(Map<Long, String> digests) {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(outputStream);
+    try {
+      output.writeInt(digests.size());
+      for (Map.Entry<Long, String> entry : digests.entrySet()) {
+        output.writeLong(entry.getKey());
+        output.writeUTF(entry.getValue());
+      }
+      output.flush();
+    } catch (IOException e) {
+      // Never happens when writing to a byte array.
+      throw new IllegalStateException(e);
+    }
+    return outputStream.toByteArray();
+  }
+
+  private static String computeDigest(File file) throws IOException {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    byte[] buffer = new byte[16 * 1024];
+    try (InputStream inputStream = new FileInputStream(file)) {
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer)) != -1) {
+        messageDigest.update(buffer, 0, bytesRead);
+      }
+    }
+    return Util.toHexString(messageDigest.digest());
+  }
+
+  @RequiresApi(26)
+  private static final class Api26 {
+
+    /**
+     * Atomically replaces {@code file} with a hard link to {@code target}, returning whether it
+     * succeeded.
+     */
+    public static boolean replaceWithLink(File file, File target) {
+      File linkFile = new File(file.getPath() + LINK_SUFFIX);
+      try {
+        Files.createLink(linkFile.toPath(), target.toPath());
+      } catch (IOException | UnsupportedOperationException | SecurityException e) {
+        Log.w(TAG, "Failed to link: " + file, e);
+        return false;
+      }
+      if (!linkFile.renameTo(file)) {
+        linkFile.delete();
+        return false;
+      }
+      return true;
+    }
+
+    /** Returns whether two paths refer to the same file, such as two hard links to it. */
+    public static boolean isSameFile(File file1, File file2) {
+      try {
+        return Files.isSameFile(file1.toPath(), file2.toPath());
+      } catch (IOException | SecurityException e) {
+        return false;
+      }
+    }
+  }
+}
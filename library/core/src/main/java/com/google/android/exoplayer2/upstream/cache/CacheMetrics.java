@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects metrics about the use of a cache.
+ *
+ * <p>An instance is shared by the components that use a cache. Reads are recorded by {@link
+ * CacheDataSource} instances created by a {@link CacheDataSource.Factory} to which the instance is
+ * set with {@link CacheDataSource.Factory#setCacheMetrics(CacheMetrics)}, and removals and index
+ * stores are recorded by a {@link SimpleCache} to which it's set with {@link
+ * SimpleCache#setCacheMetrics(CacheMetrics)}. The collected metrics can be polled from any thread
+ * by calling {@link #getSnapshot()} or {@link #getSnapshot(String)}.
+ */
+public final class CacheMetrics {
+
+  /** An immutable snapshot of cache metrics. */
+  public static final class Snapshot {
+
+    /** A snapshot in which all of the metrics are zero. */
+    public static final Snapshot EMPTY =
+        new Snapshot(
+            /* cacheHitCount= */ 0,
+            /* cacheMissCount= */ 0,
+            /* cachedBytesRead= */ 0,
+            /* upstreamBytesRead= */ 0,
+            /* lockWaitCount= */ 0,
+            /* totalLockWaitTimeUs= */ 0,
+            /* spanOpenCount= */ 0,
+            /* totalSpanOpenTimeUs= */ 0,
+            /* evictedBytes= */ 0,
+            /* removedBytes= */ 0,
+            /* staleBytes= */ 0,
+            /* indexStoreCount= */ 0,
+            /* totalIndexStoreTimeUs= */ 0);
+
+    /** The number of times data was read from a cached span. */
+    public final long cacheHitCount;
+    /** The number of times data was read from upstream because it wasn't cached or was locked. */
+    public final long cacheMissCount;
+    /** The number of bytes read from the cache. */
+    public final long cachedBytesRead;
+    /** The number of bytes read from upstream. */
+    public final long upstreamBytesRead;
+    /** The number of times a span was looked up, and its range locked if it wasn't cached. */
+    public final long lockWaitCount;
+    /** The total time spent looking up and locking spans, in microseconds. */
+    public final long totalLockWaitTimeUs;
+    /** The number of times a cached span was opened for reading. */
+    public final long spanOpenCount;
+    /** The total time spent opening cached spans for reading, in microseconds. */
+    public final long totalSpanOpenTimeUs;
+    /** The number of bytes removed from the cache by its {@link CacheEvictor}. */
+    public final long evictedBytes;
+    /** The number of bytes removed from the cache by calls to remove resources or spans. */
+    public final long removedBytes;
+    /** The number of bytes removed from the cache because their files were missing or modified. */
+    public final long staleBytes;
+    /** The number of times the cache index was stored. */
+    public final long indexStoreCount;
+    /** The total time spent storing the cache index, in microseconds. */
+    public final long totalIndexStoreTimeUs;
+
+    /* package */ Snapshot(
+        long cacheHitCount,
+        long cacheMissCount,
+        long cachedBytesRead,
+        long upstreamBytesRead,
+        long lockWaitCount,
+        long totalLockWaitTimeUs,
+        long spanOpenCount,
+        long totalSpanOpenTimeUs,
+        long evictedBytes,
+        long removedBytes,
+        long staleBytes,
+        long indexStoreCount,
+        long totalIndexStoreTimeUs) {
+      this.cacheHitCount = cacheHitCount;
+      this.cacheMissCount = cacheMissCount;
+      this.cachedBytesRead = cachedBytesRead;
+      this.upstreamBytesRead = upstreamBytesRead;
+      this.lockWaitCount = lockWaitCount;
+      this.totalLockWaitTimeUs = totalLockWaitTimeUs;
+      this.spanOpenCount = spanOpenCount;
+      this.totalSpanOpenTimeUs = totalSpanOpenTimeUs;
+      this.evictedBytes = evictedBytes;
+      this.removedBytes = removedBytes;
+      this.staleBytes = staleBytes;
+      this.indexStoreCount = indexStoreCount;
+      this.totalIndexStoreTimeUs = totalIndexStoreTimeUs;
+    }
+
+    /**
+     * Returns the fraction of reads that were served from the cache, or {@code 0} if there were no
+     * reads.
+     */
+    public double getHitRatio() {
+      long readCount = cacheHitCount + cacheMissCount;
+      return readCount == 0 ? 0 : (double) cacheHitCount / readCount;
+    }
+
+    /**
+     * Returns the fraction of bytes that were read from the cache, or {@code 0} if no bytes were
+     * read.
+     */
+    public double getByteHitRatio() {
+      long bytesRead = cachedBytesRead + upstreamBytesRead;
+      return bytesRead == 0 ? 0 : (double) cachedBytesRead / bytesRead;
+    }
+
+    /**
+     * Returns the metrics accumulated since an earlier snapshot.
+     *
+     * @param earlierSnapshot An earlier snapshot from the same {@link CacheMetrics}.
+     * @return The difference between this snapshot and the earlier one.
+     */
+    public Snapshot minus(Snapshot earlierSnapshot) {
+      return new Snapshot(
+          cacheHitCount - earlierSnapshot.cacheHitCount,
+          cacheMissCount - earlierSnapshot.cacheMissCount,
+          cachedBytesRead - earlierSnapshot.cachedBytesRead,
+          upstreamBytesRead - earlierSnapshot.upstreamBytesRead,
+          lockWaitCount - earlierSnapshot.lockWaitCount,
+          totalLockWaitTimeUs - earlierSnapshot.totalLockWaitTimeUs,
+          spanOpenCount - earlierSnapshot.spanOpenCount,
+          totalSpanOpenTimeUs - earlierSnapshot.totalSpanOpenTimeUs,
+          evictedBytes - earlierSnapshot.evictedBytes,
+          removedBytes - earlierSnapshot.removedBytes,
+          staleBytes - earlierSnapshot.staleBytes,
+          indexStoreCount - earlierSnapshot.indexStoreCount,
+          totalIndexStoreTimeUs - earlierSnapshot.totalIndexStoreTimeUs);
+    }
+  }
+
+  /**
+   * Reasons for removing spans from the cache. One of {@link #REMOVAL_REASON_EVICTED}, {@link
+   * #REMOVAL_REASON_REMOVED} or {@link #REMOVAL_REASON_STALE}.
+   */
+  @Documented
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({REMOVAL_REASON_EVICTED, REMOVAL_REASON_REMOVED, REMOVAL_REASON_STALE})
+  public @interface RemovalReason {}
+  /** The span was removed by the cache's {@link CacheEvictor}. */
+  public static final int REMOVAL_REASON_EVICTED = 0;
+  /** The span was removed by a call to remove it or its resource. */
+  public static final int REMOVAL_REASON_REMOVED = 1;
+  /** The span was removed because its file was missing or modified. */
+  public static final int REMOVAL_REASON_STALE = 2;
+
+  /** The default maximum number of keys for which per-key metrics are kept. */
+  public static final int DEFAULT_MAX_TRACKED_KEYS = 100;
+
+  private final Map<String, Counters> countersByKey;
+  private final Counters counters;
+
+  /** Creates an instance that keeps per-key metrics for up to {@link #DEFAULT_MAX_TRACKED_KEYS}. */
+  public CacheMetrics() {
+    this(DEFAULT_MAX_TRACKED_KEYS);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxTrackedKeys The maximum number of keys for which per-key metrics are kept. When
+   *     exceeded, the metrics of the least recently read key are discarded.
+   */
+  public CacheMetrics(int maxTrackedKeys) {
+    countersByKey =
+        new LinkedHashMap<String, Counters>(
+            /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Counters> eldest) {
+            return size() > maxTrackedKeys;
+          }
+        };
+    counters = new Counters();
+  }
+
+  /** Returns a snapshot of the metrics aggregated over all keys. */
+  public synchronized Snapshot getSnapshot() {
+    return counters.toSnapshot();
+  }
+
+  /**
+   * Returns a snapshot of the metrics for a single key. Only the metrics recorded by {@link
+   * CacheDataSource} are kept per key, so the removal and index store metrics of the returned
+   * snapshot are zero. If no metrics are kept for the key, {@link Snapshot#EMPTY} is returned.
+   *
+   * @param key The cache key.
+   * @return A snapshot of the metrics for the key.
+   */
+  public synchronized Snapshot getSnapshot(String key) {
+    @Nullable Counters keyCounters = countersByKey.get(key);
+    return keyCounters != null ? keyCounters.toSnapshot() : Snapshot.EMPTY;
+  }
+
+  /** Resets all metrics to zero. */
+  public synchronized void reset() {
+    countersByKey.clear();
+    counters.reset();
+  }
+
+  /* package */ synchronized void recordLockWait(String key, long waitTimeUs) {
+    Counters keyCounters = getCountersForKey(key);
+    counters.lockWaitCount++;
+    keyCounters.lockWaitCount++;
+    counters.totalLockWaitTimeUs += waitTimeUs;
+    keyCounters.totalLockWaitTimeUs += waitTimeUs;
+  }
+
+  /* package */ synchronized void recordCacheHit(String key, long spanOpenTimeUs) {
+    Counters keyCounters = getCountersForKey(key);
+    counters.cacheHitCount++;
+    keyCounters.cacheHitCount++;
+    counters.spanOpenCount++;
+    keyCounters.spanOpenCount++;
+    counters.totalSpanOpenTimeUs += spanOpenTimeUs;
+    keyCounters.totalSpanOpenTimeUs += spanOpenTimeUs;
+  }
+
+  /* package */ synchronized void recordMemoryCacheHit(String key) {
+    // Reads from a MemoryCache don't open a span.
+    counters.cacheHitCount++;
+    getCountersForKey(key).cacheHitCount++;
+  }
+
+  /* package */ synchronized void recordCacheMiss(String key) {
+    counters.cacheMissCount++;
+    getCountersForKey(key).cacheMissCount++;
+  }
+
+  /* package */ synchronized void recordBytesRead(String key, boolean fromCache, long bytesRead) {
+    Counters keyCounters = getCountersForKey(key);
+    if (fromCache) {
+      counters.cachedBytesRead += bytesRead;
+      keyCounters.cachedBytesRead += bytesRead;
+    } else {
+      counters.upstreamBytesRead += bytesRead;
+      keyCounters.upstreamBytesRead += bytesRead;
+    }
+  }
+
+  /* package */ synchronized void recordSpanRemoved(long length, @RemovalReason int reason) {
+    switch (reason) {
+      case REMOVAL_REASON_EVICTED:
+        counters.evictedBytes += length;
+        break;
+      case REMOVAL_REASON_REMOVED:
+        counters.removedBytes += length;
+        break;
+      case REMOVAL_REASON_STALE:
+      default:
+        counters.staleBytes += length;
+        break;
+    }
+  }
+
+  /* package */ synchronized void recordIndexStored(long storeTimeUs) {
+    counters.indexStoreCount++;
+    counters.totalIndexStoreTimeUs += storeTimeUs;
+  }
+
+  private Counters getCountersForKey(String key) {
+    @Nullable Counters keyCounters = countersByKey.get(key);
+    if (keyCounters == null) {
+      keyCounters = new Counters();
+      countersByKey.put(key, keyCounters);
+    }
+    return keyCounters;
+  }
+
+  private static final class Counters {
+
+    public long cacheHitCount;
+    public long cacheMissCount;
+    public long cachedBytesRead;
+    public long upstreamBytesRead;
+    public long lockWaitCount;
+    public long totalLockWaitTimeUs;
+    public long spanOpenCount;
+    public long totalSpanOpenTimeUs;
+    public long evictedBytes;
+    public long removedBytes;
+    public long staleBytes;
+    public long indexStoreCount;
+    public long totalIndexStoreTimeUs;
+
+    public Snapshot toSnapshot() {
+      return new Snapshot(
+          cacheHitCount,
+          cacheMissCount,
+          cachedBytesRead,
+          upstreamBytesRead,
+          lockWaitCount,
+          totalLockWaitTimeUs,
+          spanOpenCount,
+          totalSpanOpenTimeUs,
+          evictedBytes,
+          removedBytes,
+          staleBytes,
+          indexStoreCount,
+          totalIndexStoreTimeUs);
+    }
+
+    public void reset() {
+      cacheHitCount = 0;
+      cacheMissCount = 0;
+      cachedBytesRead = 0;
+      upstreamBytesRead = 0;
+      lockWaitCount = 0;
+      totalLockWaitTimeUs = 0;
+      spanOpenCount = 0;
+      totalSpanOpenTimeUs = 0;
+      evictedBytes = 0;
+      removedBytes = 0;
+      staleBytes = 0;
+      indexStoreCount = 0;
+      totalIndexStoreTimeUs = 0;
+    }
+  }
+}
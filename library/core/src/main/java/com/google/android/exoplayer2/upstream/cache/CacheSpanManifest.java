@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.AtomicFile;
+import com.google.android.exoplayer2.util.Util;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A manifest of the spans in a {@link SimpleCache}, which allows the cache to be initialized
+ * without listing the cache directory and parsing the name of every cache file.
+ *
+ * <p>The manifest is written whenever the cache stores its content index, and a few seconds after
+ * spans are modified without the index being stored. It's deleted when the spans are modified, so
+ * that an existing manifest describes the spans that were in the cache when it was written even if
+ * the process was killed afterwards, unless the cache directory was modified externally. Such
+ * modifications are detected lazily, when the cache finds that a file no longer has the expected
+ * length. The manifest is also checked against the {@link CacheFileMetadataIndex} if one is used,
+ * and is considered stale if they disagree.
+ */
+/* package */ final class CacheSpanManifest {
+
+  /* package */ static final String FILE_NAME = "cached_content_spans.exm";
+
+  private static final int VERSION = 1;
+
+  private final File cacheDir;
+  private final AtomicFile atomicFile;
+
+  /** Returns whether the file is a manifest file. */
+  public static boolean isManifestFile(String fileName) {
+    // Atomic file backups add additional suffixes to the file name.
+    return fileName.startsWith(FILE_NAME);
+  }
+
+  /** @param cacheDir The cache directory, in which the manifest is stored. */
+  public CacheSpanManifest(File cacheDir) {
+    this.cacheDir = cacheDir;
+    atomicFile = new AtomicFile(new File(cacheDir, FILE_NAME));
+  }
+
+  /**
+   * Loads the spans from the manifest.
+   *
+   * @param uid The cache UID.
+   * @param contentIndex The content index, which must already have been initialized.
+   * @param fileMetadata Cache file metadata keyed by file name, or {@code null} if no file metadata
+   *     is available. If non-null, the manifest is only considered valid if it contains exactly the
+   *     files in the map, with the same lengths. The map is not modified.
+   * @return The spans, or {@code null} if the manifest doesn't exist, is stale or is invalid.
+   */
+  @WorkerThread
+  @Nullable
+  public List<SimpleCacheSpan> load(
+      long uid,
+      CachedContentIndex contentIndex,
+      @Nullable Map<String, CacheFileMetadata> fileMetadata) {
+    if (!atomicFile.exists()) {
+      return null;
+    }
+    @Nullable DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(atomicFile.openRead()));
+      if (input.readInt() != VERSION || input.readLong() != uid) {
+        return null;
+      }
+      int count = input.readInt();
+      if (count < 0 || (fileMetadata != null && count != fileMetadata.size())) {
+        return null;
+      }
+      List<SimpleCacheSpan> spans = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        int id = input.readInt();
+        String relativePath = input.readUTF();
+        long position = input.readLong();
+        long length = input.readLong();
+        long lastTouchTimestamp = input.readLong();
+        @Nullable String key = contentIndex.getKeyForId(id);
+        if (key == null || length <= 0) {
+          return null;
+        }
+        File file = new File(cacheDir, relativePath);
+        if (fileMetadata != null) {
+          @Nullable CacheFileMetadata metadata = fileMetadata.get(file.getName());
+          if (metadata == null || metadata.length != length) {
+            return null;
+          }
+          lastTouchTimestamp = metadata.lastTouchTimestamp;
+        }
+        spans.add(
+            SimpleCacheSpan.createCacheEntry(key, position, length, lastTouchTimestamp, file));
+      }
+      return input.read() == -1 ? spans : null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      Util.closeQuietly(input);
+    }
+  }
+
+  /**
+   * Writes the manifest, replacing any existing manifest.
+   *
+   * @param uid The cache UID.
+   * @param contents The content whose spans are written.
+   * @throws IOException If an error occurs writing the manifest.
+   */
+  @WorkerThread
+  public void store(long uid, Collection<CachedContent> contents) throws IOException {
+    int count = 0;
+    for (CachedContent cachedContent : contents) {
+      count += cachedContent.getSpans().size();
+    }
+    @Nullable DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(atomicFile.startWrite()));
+      output.writeInt(VERSION);
+      output.writeLong(uid);
+      output.writeInt(count);
+      for (CachedContent cachedContent : contents) {
+        for (SimpleCacheSpan span : cachedContent.getSpans()) {
+          File file = Assertions.checkNotNull(span.file);
+          // Cache files are in the cache directory or in one of its subdirectories.
+          @Nullable File parent = file.getParentFile();
+          String relativePath =
+              parent == null || parent.equals(cacheDir)
+                  ? file.getName()
+                  : parent.getName() + File.separator + file.getName();
+          output.writeInt(cachedContent.id);
+          output.writeUTF(relativePath);
+          output.writeLong(span.position);
+          output.writeLong(span.length);
+          output.writeLong(span.lastTouchTimestamp);
+        }
+      }
+      atomicFile.endWrite(output);
+      output = null;
+    } finally {
+      Util.closeQuietly(output);
+    }
+  }
+
+  /** Deletes the manifest. */
+  public void delete() {
+    atomicFile.delete();
+  }
+}
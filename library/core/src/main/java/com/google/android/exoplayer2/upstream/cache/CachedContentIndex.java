@@ -34,11 +34,14 @@ import com.google.android.exoplayer2.util.AtomicFile;
 import com.google.android.exoplayer2.util.ReusableBufferedOutputStream;
 import com.google.android.exoplayer2.util.Util;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -52,6 +55,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
@@ -64,10 +69,15 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
 /* package */ class CachedContentIndex {
 
   /* package */ static final String FILE_NAME_ATOMIC = "cached_content_index.exi";
+  /* package */ static final String FILE_NAME_JOURNAL = "cached_content_index.exj";
 
   private static final int INCREMENTAL_METADATA_READ_LENGTH = 10 * 1024 * 1024;
 
-  private final HashMap<String, CachedContent> keyToContent;
+  /**
+   * Maps keys to their corresponding content. A concurrent map is used so that {@link SimpleCache}
+   * can look up content for a key whilst the index is being modified for other keys.
+   */
+  private final ConcurrentHashMap<String, CachedContent> keyToContent;
   /**
    * Maps assigned ids to their corresponding keys. Also contains (id -> null) entries for ids that
    * have been removed from the index since it was last stored. This prevents reuse of these ids,
@@ -100,7 +110,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
   /** Returns whether the file is an index file. */
   public static boolean isIndexFile(String fileName) {
     // Atomic file backups add additional suffixes to the file name.
-    return fileName.startsWith(FILE_NAME_ATOMIC);
+    return fileName.startsWith(FILE_NAME_ATOMIC) || fileName.startsWith(FILE_NAME_JOURNAL);
   }
 
   /**
@@ -154,7 +164,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
       boolean legacyStorageEncrypt,
       boolean preferLegacyStorage) {
     Assertions.checkState(databaseProvider != null || legacyStorageDir != null);
-    keyToContent = new HashMap<>();
+    keyToContent = new ConcurrentHashMap<>();
     idToKey = new SparseArray<>();
     removedIds = new SparseBooleanArray();
     newIds = new SparseBooleanArray();
@@ -176,6 +186,31 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
   }
 
+  /**
+   * Creates an instance that stores the index in an append-only journal in {@code journalDir}.
+   * Storing the index appends only the changes made since it was last stored, so its cost is
+   * proportional to the number of changed entries rather than to the size of the index. An
+   * existing database or legacy index is migrated to the journal when the index is initialized.
+   *
+   * @param journalDir The directory in which the journal is stored.
+   * @param databaseProvider Provides the database from which an existing index is migrated, or
+   *     {@code null} to migrate from legacy storage in {@code journalDir}.
+   */
+  public CachedContentIndex(File journalDir, @Nullable DatabaseProvider databaseProvider) {
+    keyToContent = new ConcurrentHashMap<>();
+    idToKey = new SparseArray<>();
+    removedIds = new SparseBooleanArray();
+    newIds = new SparseBooleanArray();
+    storage = new JournalStorage(new File(journalDir, FILE_NAME_JOURNAL));
+    previousStorage =
+        databaseProvider != null
+            ? new DatabaseStorage(databaseProvider)
+            : new LegacyStorage(
+                new File(journalDir, FILE_NAME_ATOMIC),
+                /* secretKey= */ null,
+                /* encrypt= */ false);
+  }
+
   /**
    * Loads the index data for the given cache UID.
    *
@@ -249,7 +284,8 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
    * Returns a read only collection of all {@link CachedContent CachedContents} in the index.
    *
    * <p>Subsequent changes to the index are reflected in the returned collection. If the index is
-   * modified whilst iterating over the collection, the result of the iteration is undefined.
+   * modified whilst iterating over the collection, the iteration may or may not reflect the
+   * modification.
    */
   public Collection<CachedContent> getAll() {
     return Collections.unmodifiableCollection(keyToContent.values());
@@ -303,8 +339,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
   /**
    * Returns a set of all content keys. The set is backed by the {@code keyToContent} map, so
    * changes to the map are reflected in the set, and vice-versa. If the map is modified while an
-   * iteration over the set is in progress (except through the iterator's own remove operation), the
-   * results of the iteration are undefined.
+   * iteration over the set is in progress, the iteration may or may not reflect the modification.
    */
   public Set<String> getKeys() {
     return keyToContent.keySet();
@@ -454,7 +489,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
      * @param idToKey The id to key map to populate with persisted data.
      * @throws IOException If an error occurs loading the index.
      */
-    void load(HashMap<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
+    void load(Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
         throws IOException;
 
     /**
@@ -464,17 +499,17 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
      * @param content The key to content map to persist.
      * @throws IOException If an error occurs persisting the index.
      */
-    void storeFully(HashMap<String, CachedContent> content) throws IOException;
+    void storeFully(Map<String, CachedContent> content) throws IOException;
 
     /**
      * Ensures incremental changes to the index since the initial {@link #initialize(long)} or last
-     * {@link #storeFully(HashMap)} are persisted. The storage will have been notified of all such
+     * {@link #storeFully(Map)} are persisted. The storage will have been notified of all such
      * changes via {@link #onUpdate(CachedContent)} and {@link #onRemove(CachedContent, boolean)}.
      *
      * @param content The key to content map to persist.
      * @throws IOException If an error occurs persisting the index.
      */
-    void storeIncremental(HashMap<String, CachedContent> content) throws IOException;
+    void storeIncremental(Map<String, CachedContent> content) throws IOException;
 
     /**
      * Called when a {@link CachedContent} is added or updated.
@@ -547,7 +582,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
 
     @Override
     public void load(
-        HashMap<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
       Assertions.checkState(!changed);
       if (!readFile(content, idToKey)) {
         content.clear();
@@ -557,13 +592,13 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
 
     @Override
-    public void storeFully(HashMap<String, CachedContent> content) throws IOException {
+    public void storeFully(Map<String, CachedContent> content) throws IOException {
       writeFile(content);
       changed = false;
     }
 
     @Override
-    public void storeIncremental(HashMap<String, CachedContent> content) throws IOException {
+    public void storeIncremental(Map<String, CachedContent> content) throws IOException {
       if (!changed) {
         return;
       }
@@ -581,7 +616,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
 
     private boolean readFile(
-        HashMap<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
       if (!atomicFile.exists()) {
         return true;
       }
@@ -636,7 +671,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
       return true;
     }
 
-    private void writeFile(HashMap<String, CachedContent> content) throws IOException {
+    private void writeFile(Map<String, CachedContent> content) throws IOException {
       @Nullable DataOutputStream output = null;
       try {
         OutputStream outputStream = atomicFile.startWrite();
@@ -733,6 +768,282 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
   }
 
+  /**
+   * {@link Storage} implementation that appends changes to a journal file.
+   *
+   * <p>The journal consists of a version followed by records, each of which adds, updates or
+   * removes a single {@link CachedContent}. Each record is prefixed by its length and followed by a
+   * CRC32 checksum, so that a record that was only partially written (e.g. because the process was
+   * killed whilst appending) is detected and discarded when the journal is loaded, together with
+   * any records following it. The journal is compacted by rewriting it atomically when it contains
+   * many more records than there are entries in the index.
+   */
+  private static final class JournalStorage implements Storage {
+
+    private static final int VERSION = 1;
+    private static final int RECORD_TYPE_UPDATE = 0;
+    private static final int RECORD_TYPE_REMOVE = 1;
+    /** The minimum number of records in the journal before it's compacted. */
+    private static final int MIN_RECORD_COUNT_FOR_COMPACTION = 1000;
+    /** The maximum number of records per entry in the index before the journal is compacted. */
+    private static final int MAX_RECORDS_PER_ENTRY = 2;
+
+    private final File file;
+    private final AtomicFile atomicFile;
+    private final SparseArray<@NullableType CachedContent> pendingUpdates;
+    private final ByteArrayOutputStream recordOutputStream;
+    private final DataOutputStream recordOutput;
+    private final CRC32 crc32;
+
+    private int recordCount;
+    private boolean rewriteRequired;
+
+    public JournalStorage(File file) {
+      this.file = file;
+      atomicFile = new AtomicFile(file);
+      pendingUpdates = new SparseArray<>();
+      recordOutputStream = new ByteArrayOutputStream();
+      recordOutput = new DataOutputStream(recordOutputStream);
+      crc32 = new CRC32();
+      // Records can only be appended once the journal has been loaded or fully written.
+      rewriteRequired = true;
+    }
+
+    @Override
+    public void initialize(long uid) {
+      // Do nothing. The journal is stored in the cache directory, which is specific to the cache.
+    }
+
+    @Override
+    public boolean exists() {
+      return atomicFile.exists();
+    }
+
+    @Override
+    public void delete() {
+      atomicFile.delete();
+    }
+
+    @Override
+    public void load(
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
+      Assertions.checkState(pendingUpdates.size() == 0);
+      recordCount = 0;
+      // Rewrite the journal if it doesn't exist yet, so that records can be appended to it.
+      rewriteRequired = !atomicFile.exists();
+      if (!rewriteRequired && !readFile(content, idToKey)) {
+        content.clear();
+        idToKey.clear();
+        atomicFile.delete();
+        rewriteRequired = true;
+      }
+    }
+
+    @Override
+    public void storeFully(Map<String, CachedContent> content) throws IOException {
+      // Require a rewrite until this one succeeds, since a failure may leave the file in any state.
+      rewriteRequired = true;
+      @Nullable DataOutputStream output = null;
+      try {
+        output = new DataOutputStream(new BufferedOutputStream(atomicFile.startWrite()));
+        output.writeInt(VERSION);
+        for (CachedContent cachedContent : content.values()) {
+          writeUpdateRecord(cachedContent, output);
+        }
+        atomicFile.endWrite(output);
+        output = null;
+      } finally {
+        Util.closeQuietly(output);
+      }
+      recordCount = content.size();
+      rewriteRequired = false;
+      pendingUpdates.clear();
+    }
+
+    @Override
+    public void storeIncremental(Map<String, CachedContent> content) throws IOException {
+      if (pendingUpdates.size() == 0 && !rewriteRequired) {
+        return;
+      }
+      int newRecordCount = recordCount + pendingUpdates.size();
+      if (rewriteRequired
+          || (newRecordCount > MIN_RECORD_COUNT_FOR_COMPACTION
+              && newRecordCount > MAX_RECORDS_PER_ENTRY * content.size())) {
+        storeFully(content);
+        return;
+      }
+      // Require a rewrite if appending fails, since a partially appended record may be followed
+      // by records appended later, which would then be discarded when loading.
+      rewriteRequired = true;
+      FileOutputStream fileOutputStream = new FileOutputStream(file, /* append= */ true);
+      try {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+        for (int i = 0; i < pendingUpdates.size(); i++) {
+          @Nullable CachedContent cachedContent = pendingUpdates.valueAt(i);
+          if (cachedContent == null) {
+            writeRemoveRecord(pendingUpdates.keyAt(i), output);
+          } else {
+            writeUpdateRecord(cachedContent, output);
+          }
+        }
+        output.flush();
+        fileOutputStream.getFD().sync();
+      } finally {
+        Util.closeQuietly(fileOutputStream);
+      }
+      recordCount = newRecordCount;
+      rewriteRequired = false;
+      pendingUpdates.clear();
+    }
+
+    @Override
+    public void onUpdate(CachedContent cachedContent) {
+      pendingUpdates.put(cachedContent.id, cachedContent);
+    }
+
+    @Override
+    public void onRemove(CachedContent cachedContent, boolean neverStored) {
+      if (neverStored) {
+        pendingUpdates.delete(cachedContent.id);
+      } else {
+        pendingUpdates.put(cachedContent.id, null);
+      }
+    }
+
+    /**
+     * Reads the journal, returning whether it was valid. A truncated or corrupt final record is
+     * treated as valid, but causes the journal to be rewritten when the index is next stored.
+     */
+    private boolean readFile(
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey) {
+      @Nullable DataInputStream input = null;
+      try {
+        input = new DataInputStream(new BufferedInputStream(atomicFile.openRead()));
+        if (input.readInt() != VERSION) {
+          return false;
+        }
+        byte[] record = Util.EMPTY_BYTE_ARRAY;
+        while (true) {
+          int firstLengthByte = input.read();
+          if (firstLengthByte == -1) {
+            // The end of the journal.
+            return true;
+          }
+          int recordLength;
+          try {
+            recordLength =
+                (firstLengthByte << 24)
+                    | (input.readUnsignedByte() << 16)
+                    | input.readUnsignedShort();
+            if (recordLength <= 0) {
+              throw new EOFException();
+            }
+            record = readRecord(input, recordLength, record);
+            crc32.reset();
+            crc32.update(record, 0, recordLength);
+            if (input.readInt() != (int) crc32.getValue()) {
+              rewriteRequired = true;
+              return true;
+            }
+          } catch (EOFException e) {
+            rewriteRequired = true;
+            return true;
+          }
+          applyRecord(
+              new DataInputStream(new ByteArrayInputStream(record, 0, recordLength)),
+              content,
+              idToKey);
+          recordCount++;
+        }
+      } catch (IOException e) {
+        return false;
+      } finally {
+        Util.closeQuietly(input);
+      }
+    }
+
+    /**
+     * Reads a record of the given length into {@code buffer}, or into a new larger buffer if it's
+     * too small. The buffer is grown incrementally, to avoid OutOfMemoryError if a corrupt (and
+     * very large) length was read, in which case {@link EOFException} is expected to be thrown.
+     */
+    private static byte[] readRecord(DataInputStream input, int length, byte[] buffer)
+        throws IOException {
+      if (buffer.length >= length) {
+        input.readFully(buffer, 0, length);
+        return buffer;
+      }
+      int bytesRead = 0;
+      while (bytesRead != length) {
+        int nextBytesToRead = Math.min(length - bytesRead, INCREMENTAL_METADATA_READ_LENGTH);
+        buffer = Arrays.copyOf(buffer, bytesRead + nextBytesToRead);
+        input.readFully(buffer, bytesRead, nextBytesToRead);
+        bytesRead += nextBytesToRead;
+      }
+      return buffer;
+    }
+
+    private void writeUpdateRecord(CachedContent cachedContent, DataOutputStream output)
+        throws IOException {
+      recordOutputStream.reset();
+      recordOutput.writeByte(RECORD_TYPE_UPDATE);
+      recordOutput.writeInt(cachedContent.id);
+      recordOutput.writeUTF(cachedContent.key);
+      writeContentMetadata(cachedContent.getMetadata(), recordOutput);
+      writeRecord(output);
+    }
+
+    private void writeRemoveRecord(int id, DataOutputStream output) throws IOException {
+      recordOutputStream.reset();
+      recordOutput.writeByte(RECORD_TYPE_REMOVE);
+      recordOutput.writeInt(id);
+      writeRecord(output);
+    }
+
+    private void writeRecord(DataOutputStream output) throws IOException {
+      recordOutput.flush();
+      byte[] record = recordOutputStream.toByteArray();
+      crc32.reset();
+      crc32.update(record);
+      output.writeInt(record.length);
+      output.write(record);
+      output.writeInt((int) crc32.getValue());
+    }
+
+    private static void applyRecord(
+        DataInputStream record,
+        Map<String, CachedContent> content,
+        SparseArray<@NullableType String> idToKey)
+        throws IOException {
+      int type = record.readByte();
+      int id = record.readInt();
+      if (type == RECORD_TYPE_UPDATE) {
+        String key = record.readUTF();
+        DefaultContentMetadata metadata = readContentMetadata(record);
+        @Nullable CachedContent previousContent = content.get(key);
+        if (previousContent != null && previousContent.id != id) {
+          // The key was removed and re-added with a new id.
+          idToKey.remove(previousContent.id);
+        }
+        content.put(key, new CachedContent(id, key, metadata));
+        idToKey.put(id, key);
+      } else if (type == RECORD_TYPE_REMOVE) {
+        @Nullable String key = idToKey.get(id);
+        if (key == null) {
+          return;
+        }
+        idToKey.remove(id);
+        @Nullable CachedContent removedContent = content.get(key);
+        // Records are stored in order of id, so the key may already have been re-added.
+        if (removedContent != null && removedContent.id == id) {
+          content.remove(key);
+        }
+      } else {
+        throw new IOException("Invalid record type: " + type);
+      }
+    }
+  }
+
   /** {@link Storage} implementation that uses an SQL database. */
   private static final class DatabaseStorage implements Storage {
 
@@ -797,7 +1108,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
 
     @Override
     public void load(
-        HashMap<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
+        Map<String, CachedContent> content, SparseArray<@NullableType String> idToKey)
         throws IOException {
       Assertions.checkState(pendingUpdates.size() == 0);
       try {
@@ -840,7 +1151,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
 
     @Override
-    public void storeFully(HashMap<String, CachedContent> content) throws IOException {
+    public void storeFully(Map<String, CachedContent> content) throws IOException {
       try {
         SQLiteDatabase writableDatabase = databaseProvider.getWritableDatabase();
         writableDatabase.beginTransactionNonExclusive();
@@ -860,7 +1171,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
 
     @Override
-    public void storeIncremental(HashMap<String, CachedContent> content) throws IOException {
+    public void storeIncremental(Map<String, CachedContent> content) throws IOException {
       if (pendingUpdates.size() == 0) {
         return;
       }
@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.AtomicFile;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Evicts cache files based on how frequently and how recently they're accessed, so that content
+ * accessed by every playback session (e.g. manifests and initialization segments) isn't evicted
+ * when a large amount of content is played once.
+ *
+ * <p>The evictor follows the W-TinyLFU policy. Newly added spans enter a small admission window,
+ * which is ordered by recency. Spans leaving the window become candidates for the main region,
+ * which is a segmented LRU consisting of a probation segment and a protected segment for spans
+ * that have been read again. When the cache is full, a candidate is only admitted if it's more
+ * valuable than the spans that would have to be evicted to make room for it. Otherwise the
+ * candidate itself is evicted. Access frequencies are estimated with a count-min sketch, which
+ * also remembers spans that are no longer cached.
+ *
+ * <p>The value of a span is its access frequency multiplied by the cost of a miss, per byte of
+ * cache space. The cost of a miss is the length of the span plus a fixed per-request cost, which
+ * models the latency of requesting the span. Hence small spans that are accessed often are
+ * favored over large spans accessed equally often.
+ *
+ * <p>Unlike {@link LeastRecentlyUsedCacheEvictor}, this evictor makes room for a file once it's
+ * been added to the cache rather than when it's started, so the cache may temporarily exceed its
+ * maximum size by the length of the files being written.
+ *
+ * <p>If a state file is provided, the frequency sketch and the membership of the protected segment
+ * are persisted to it periodically on a background thread and when the cache is released, and
+ * restored when the cache is initialized. The background thread is owned by the evictor and stopped
+ * when the cache is released, unless an {@link Executor} is provided.
+ */
+public final class FrequencyBasedCacheEvictor implements CacheEvictor {
+
+  /** The default cost of a miss in addition to the length of the span, in bytes. */
+  public static final long DEFAULT_MISS_COST_BYTES = 128 * 1024;
+
+  private static final String TAG = "FrequencyEvictor";
+
+  private static final int WINDOW_PERCENTAGE = 1;
+  private static final int PROTECTED_PERCENTAGE = 80;
+  private static final int SKETCH_WIDTH = 1 << 14;
+  private static final int STATE_VERSION = 1;
+  /** The number of accesses after which the state is persisted. */
+  private static final int STATE_SAVE_INTERVAL = 1000;
+
+  private final long maxBytes;
+  private final long windowMaxBytes;
+  private final long protectedMaxBytes;
+  private final long missCostBytes;
+  @Nullable private final AtomicFile stateFile;
+  @Nullable private final Executor stateWriteExecutor;
+  private final FrequencySketch sketch;
+  private final LinkedHashSet<CacheSpan> window;
+  private final LinkedHashSet<CacheSpan> probation;
+  private final LinkedHashSet<CacheSpan> protectedSpans;
+  private final Object stateWriteLock;
+
+  private boolean initialized;
+  private long windowBytes;
+  private long probationBytes;
+  private long protectedBytes;
+  private int accessesSinceStateSaved;
+
+  // Guarded by stateWriteLock.
+  @Nullable private byte[] pendingState;
+  private boolean writingState;
+  @Nullable private ExecutorService ownedStateWriteExecutor;
+
+  /**
+   * Creates an instance that doesn't persist its state.
+   *
+   * @param maxBytes The maximum size of the cache in bytes.
+   */
+  public FrequencyBasedCacheEvictor(long maxBytes) {
+    this(maxBytes, DEFAULT_MISS_COST_BYTES, /* stateFile= */ null);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxBytes The maximum size of the cache in bytes.
+   * @param missCostBytes The cost of a miss in addition to the length of the span, in bytes. Larger
+   *     values favor keeping small spans.
+   * @param stateFile The file in which the state of the evictor is persisted, or {@code null} if
+   *     it shouldn't be persisted. Must not be in the cache directory, since the cache deletes
+   *     unrecognized files.
+   */
+  public FrequencyBasedCacheEvictor(long maxBytes, long missCostBytes, @Nullable File stateFile) {
+    this(maxBytes, missCostBytes, stateFile, /* stateWriteExecutor= */ null);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param maxBytes The maximum size of the cache in bytes.
+   * @param missCostBytes The cost of a miss in addition to the length of the span, in bytes. Larger
+   *     values favor keeping small spans.
+   * @param stateFile The file in which the state of the evictor is persisted, or {@code null} if
+   *     it shouldn't be persisted. Must not be in the cache directory, since the cache deletes
+   *     unrecognized files.
+   * @param stateWriteExecutor The {@link Executor} on which the state is periodically persisted, or
+   *     {@code null} to use a background thread owned by the evictor.
+   */
+  public FrequencyBasedCacheEvictor(
+      long maxBytes,
+      long missCostBytes,
+      @Nullable File stateFile,
+      @Nullable Executor stateWriteExecutor) {
+    Assertions.checkArgument(maxBytes > 0 && missCostBytes >= 0);
+    this.maxBytes = maxBytes;
+    this.missCostBytes = missCostBytes;
+    this.stateFile = stateFile != null ? new AtomicFile(stateFile) : null;
+    this.stateWriteExecutor = stateWriteExecutor;
+    long mainMaxBytes = maxBytes - maxBytes * WINDOW_PERCENTAGE / 100;
+    windowMaxBytes = maxBytes - mainMaxBytes;
+    protectedMaxBytes = mainMaxBytes * PROTECTED_PERCENTAGE / 100;
+    sketch = new FrequencySketch(SKETCH_WIDTH);
+    window = new LinkedHashSet<>();
+    probation = new LinkedHashSet<>();
+    protectedSpans = new LinkedHashSet<>();
+    stateWriteLock = new Object();
+  }
+
+  @Override
+  public boolean requiresCacheSpanTouches() {
+    return true;
+  }
+
+  @Override
+  public void onCacheInitialized() {
+    // Spans loaded by the cache were added to the probation segment. Order them by recency, and
+    // restore the persisted state.
+    List<CacheSpan> loadedSpans = new ArrayList<>(probation);
+    Collections.sort(loadedSpans, FrequencyBasedCacheEvictor::compareLastTouchTimestamps);
+    probation.clear();
+    probation.addAll(loadedSpans);
+    @Nullable HashSet<Integer> protectedSpanHashes = loadState();
+    if (protectedSpanHashes != null) {
+      for (int i = 0; i < loadedSpans.size(); i++) {
+        CacheSpan span = loadedSpans.get(i);
+        if (protectedSpanHashes.contains(hashSpan(span))
+            && protectedBytes + span.length <= protectedMaxBytes) {
+          probation.remove(span);
+          probationBytes -= span.length;
+          protectedSpans.add(span);
+          protectedBytes += span.length;
+        }
+      }
+    }
+    initialized = true;
+  }
+
+  @Override
+  public void onCacheReleased() {
+    if (stateFile != null) {
+      saveState(/* blocking= */ true);
+    }
+    synchronized (stateWriteLock) {
+      if (ownedStateWriteExecutor != null) {
+        ownedStateWriteExecutor.shutdown();
+        ownedStateWriteExecutor = null;
+      }
+    }
+  }
+
+  @Override
+  public void onStartFile(Cache cache, String key, long position, long length) {
+    // A file is written after a miss. Space is made when the span is added, since whether the span
+    // is admitted can only be decided once its length is known.
+    recordAccess(hashSpan(key, position));
+  }
+
+  @Override
+  public void onSpanAdded(Cache cache, CacheSpan span) {
+    if (!initialized) {
+      probation.add(span);
+      probationBytes += span.length;
+      return;
+    }
+    window.add(span);
+    windowBytes += span.length;
+    evictCache(cache);
+  }
+
+  @Override
+  public void onSpanRemoved(Cache cache, CacheSpan span) {
+    if (window.remove(span)) {
+      windowBytes -= span.length;
+    } else if (probation.remove(span)) {
+      probationBytes -= span.length;
+    } else if (protectedSpans.remove(span)) {
+      protectedBytes -= span.length;
+    }
+  }
+
+  @Override
+  public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+    recordAccess(hashSpan(newSpan));
+    if (window.remove(oldSpan)) {
+      windowBytes -= oldSpan.length;
+      window.add(newSpan);
+      windowBytes += newSpan.length;
+    } else if (probation.remove(oldSpan)) {
+      // The span was read again, so protect it.
+      probationBytes -= oldSpan.length;
+      addProtectedSpan(newSpan);
+    } else if (protectedSpans.remove(oldSpan)) {
+      protectedBytes -= oldSpan.length;
+      addProtectedSpan(newSpan);
+    } else {
+      // The span isn't tracked. Track it without evicting, since spans are touched when they're
+      // about to be read.
+      window.add(newSpan);
+      windowBytes += newSpan.length;
+    }
+  }
+
+  private void addProtectedSpan(CacheSpan span) {
+    protectedSpans.add(span);
+    protectedBytes += span.length;
+    // Demote the least recently used protected spans to the probation segment if needed.
+    Iterator<CacheSpan> iterator = protectedSpans.iterator();
+    while (protectedBytes > protectedMaxBytes && protectedSpans.size() > 1) {
+      CacheSpan demotedSpan = iterator.next();
+      iterator.remove();
+      protectedBytes -= demotedSpan.length;
+      probation.add(demotedSpan);
+      probationBytes += demotedSpan.length;
+    }
+  }
+
+  private void evictCache(Cache cache) {
+    // Move spans that overflow the window into the main region, if they're admitted.
+    while (windowBytes > windowMaxBytes && !window.isEmpty()) {
+      CacheSpan candidate = window.iterator().next();
+      window.remove(candidate);
+      windowBytes -= candidate.length;
+      probation.add(candidate);
+      probationBytes += candidate.length;
+      if (getTotalBytes() > maxBytes) {
+        admitOrEvict(cache, candidate);
+      }
+    }
+    // Evict the least recently used spans if more space is needed.
+    while (getTotalBytes() > maxBytes) {
+      CacheSpan victim;
+      if (!probation.isEmpty()) {
+        victim = probation.iterator().next();
+      } else if (!protectedSpans.isEmpty()) {
+        victim = protectedSpans.iterator().next();
+      } else {
+        victim = window.iterator().next();
+      }
+      removeSpan(cache, victim);
+    }
+  }
+
+  /**
+   * Evicts either the candidate, or the least recently used spans in the main region that need to
+   * be evicted to make room for it, whichever are less valuable.
+   */
+  private void admitOrEvict(Cache cache, CacheSpan candidate) {
+    long bytesToFree = getTotalBytes() - maxBytes;
+    List<CacheSpan> victims = new ArrayList<>();
+    long victimBytes = 0;
+    double victimValue = 0;
+    for (Iterator<CacheSpan> iterator = probation.iterator();
+        iterator.hasNext() && victimBytes < bytesToFree; ) {
+      CacheSpan span = iterator.next();
+      if (span != candidate) {
+        victims.add(span);
+        victimBytes += span.length;
+        victimValue += getValue(span);
+      }
+    }
+    for (Iterator<CacheSpan> iterator = protectedSpans.iterator();
+        iterator.hasNext() && victimBytes < bytesToFree; ) {
+      CacheSpan span = iterator.next();
+      victims.add(span);
+      victimBytes += span.length;
+      victimValue += getValue(span);
+    }
+    // Compare values per byte, since the victims may free more space than the candidate uses.
+    boolean admit =
+        !victims.isEmpty()
+            && getValue(candidate) / candidate.length > victimValue / victimBytes;
+    if (admit) {
+      for (int i = 0; i < victims.size(); i++) {
+        removeSpan(cache, victims.get(i));
+      }
+    } else {
+      removeSpan(cache, candidate);
+    }
+  }
+
+  /** Returns the expected cost of the misses that keeping a span avoids. */
+  private double getValue(CacheSpan span) {
+    return (double) sketch.getFrequency(hashSpan(span)) * (missCostBytes + span.length);
+  }
+
+  private long getTotalBytes() {
+    return windowBytes + probationBytes + protectedBytes;
+  }
+
+  private void removeSpan(Cache cache, CacheSpan span) {
+    cache.removeSpan(span);
+    // Stop tracking the span even if the cache didn't notify its removal (e.g. because it had
+    // already been removed), so that eviction always makes progress.
+    onSpanRemoved(cache, span);
+  }
+
+  private void recordAccess(int spanHash) {
+    sketch.increment(spanHash);
+    if (stateFile != null && ++accessesSinceStateSaved >= STATE_SAVE_INTERVAL) {
+      accessesSinceStateSaved = 0;
+      saveState(/* blocking= */ false);
+    }
+  }
+
+  /**
+   * Saves a snapshot of the state. The snapshot is taken on the calling thread, which holds the
+   * cache lock, and written by a single writer at a time so that snapshots are written in order.
+   *
+   * @param blocking Whether to write the snapshot on the calling thread, or to wait for the
+   *     background writer to write it. If {@code false}, the snapshot is written on the state write
+   *     executor.
+   */
+  private void saveState(boolean blocking) {
+    @Nullable byte[] state = serializeState();
+    if (state == null) {
+      return;
+    }
+    boolean startWriter;
+    @Nullable Executor executor = null;
+    synchronized (stateWriteLock) {
+      pendingState = state;
+      startWriter = !writingState;
+      writingState = true;
+      if (!startWriter && blocking) {
+        boolean interrupted = false;
+        while (writingState) {
+          try {
+            stateWriteLock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        return;
+      }
+      if (startWriter && !blocking) {
+        executor = getStateWriteExecutor();
+      }
+    }
+    if (!startWriter) {
+      return;
+    }
+    if (executor == null) {
+      writePendingStates();
+    } else {
+      executor.execute(this::writePendingStates);
+    }
+  }
+
+  // Guarded by stateWriteLock.
+  private Executor getStateWriteExecutor() {
+    if (stateWriteExecutor != null) {
+      return stateWriteExecutor;
+    }
+    if (ownedStateWriteExecutor == null) {
+      ownedStateWriteExecutor = Util.newSingleThreadExecutor("ExoPlayer:FrequencyEvictorState");
+    }
+    return ownedStateWriteExecutor;
+  }
+
+  private void writePendingStates() {
+    while (true) {
+      byte[] state;
+      synchronized (stateWriteLock) {
+        if (pendingState == null) {
+          writingState = false;
+          stateWriteLock.notifyAll();
+          return;
+        }
+        state = pendingState;
+        pendingState = null;
+      }
+      writeStateFile(state);
+    }
+  }
+
+  @Nullable
+  private byte[] serializeState() {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(outputStream);
+    try {
+      output.writeInt(STATE_VERSION);
+      sketch.writeState(output);
+      output.writeInt(protectedSpans.size());
+      for (CacheSpan span : protectedSpans) {
+        output.writeInt(hashSpan(span));
+      }
+      output.flush();
+    } catch (IOException e) {
+      // Never happens when writing to a byte array.
+      Log.w(TAG, "Failed to serialize evictor state", e);
+      return null;
+    }
+    return outputStream.toByteArray();
+  }
+
+  private void writeStateFile(byte[] state) {
+    AtomicFile stateFile = Assertions.checkNotNull(this.stateFile);
+    @Nullable OutputStream output = null;
+    try {
+      output = new BufferedOutputStream(stateFile.startWrite());
+      output.write(state);
+      stateFile.endWrite(output);
+      output = null;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to save evictor state", e);
+    } finally {
+      Util.closeQuietly(output);
+    }
+  }
+
+  /**
+   * Restores the frequency sketch from the state file, and returns the hashes of the spans that
+   * were protected, or {@code null} if there's no valid state.
+   */
+  @Nullable
+  private HashSet<Integer> loadState() {
+    if (stateFile == null || !stateFile.exists()) {
+      return null;
+    }
+    @Nullable DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(stateFile.openRead()));
+      if (input.readInt() != STATE_VERSION) {
+        return null;
+      }
+      sketch.readState(input);
+      int protectedSpanCount = input.readInt();
+      HashSet<Integer> protectedSpanHashes = new HashSet<>();
+      for (int i = 0; i < protectedSpanCount; i++) {
+        protectedSpanHashes.add(input.readInt());
+      }
+      return protectedSpanHashes;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to load evictor state", e);
+      return null;
+    } finally {
+      Util.closeQuietly(input);
+    }
+  }
+
+  private static int hashSpan(CacheSpan span) {
+    return hashSpan(span.key, span.position);
+  }
+
+  private static int hashSpan(String key, long position) {
+    return 31 * key.hashCode() + (int) (position ^ (position >>> 32));
+  }
+
+  private static int compareLastTouchTimestamps(CacheSpan lhs, CacheSpan rhs) {
+    return lhs.lastTouchTimestamp < rhs.lastTouchTimestamp
+        ? -1
+        : (lhs.lastTouchTimestamp == rhs.lastTouchTimestamp ? 0 : 1);
+  }
+}
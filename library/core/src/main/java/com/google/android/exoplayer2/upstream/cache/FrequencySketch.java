@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A count-min sketch that estimates how often items have been accessed, using a fixed amount of
+ * memory regardless of the number of items.
+ *
+ * <p>Each item is counted in one counter per row, and its estimated frequency is the minimum of
+ * these counters. Counters saturate at {@link #MAX_FREQUENCY}. Once the number of recorded accesses
+ * reaches ten times the width of the sketch, all counters are halved, so that the estimates favor
+ * recent accesses.
+ */
+/* package */ final class FrequencySketch {
+
+  /** The maximum estimated frequency. */
+  public static final int MAX_FREQUENCY = 15;
+
+  private static final int DEPTH = 4;
+  private static final int[] SEEDS = {0x97cb3127, 0xb3bd4cf5, 0x2f8d0a7b, 0x6c83f1f5};
+
+  private final int width;
+  private final byte[] counters;
+  private final int resetSampleSize;
+
+  private int sampleSize;
+
+  /**
+   * @param width The number of counters in each row, which must be a power of two. Should be at
+   *     least the number of items whose frequencies need to be distinguished.
+   */
+  public FrequencySketch(int width) {
+    Assertions.checkArgument(width > 0 && (width & (width - 1)) == 0);
+    this.width = width;
+    counters = new byte[DEPTH * width];
+    resetSampleSize = 10 * width;
+  }
+
+  /** Returns the estimated number of accesses to an item, between 0 and {@link #MAX_FREQUENCY}. */
+  public int getFrequency(int itemHash) {
+    int frequency = MAX_FREQUENCY;
+    for (int row = 0; row < DEPTH; row++) {
+      frequency = Math.min(frequency, counters[getIndex(itemHash, row)]);
+    }
+    return frequency;
+  }
+
+  /** Records an access to an item. */
+  public void increment(int itemHash) {
+    // Only increment the minimal counters (conservative update), which reduces overestimation.
+    int frequency = getFrequency(itemHash);
+    if (frequency == MAX_FREQUENCY) {
+      return;
+    }
+    for (int row = 0; row < DEPTH; row++) {
+      int index = getIndex(itemHash, row);
+      if (counters[index] == frequency) {
+        counters[index]++;
+      }
+    }
+    if (++sampleSize == resetSampleSize) {
+      reset();
+    }
+  }
+
+  /**
+   * Writes the state of the sketch.
+   *
+   * @param output The output to write to.
+   * @throws IOException If an error occurs writing the state.
+   */
+  public void writeState(DataOutputStream output) throws IOException {
+    output.writeInt(width);
+    output.writeInt(sampleSize);
+    output.write(counters);
+  }
+
+  /**
+   * Restores the state of the sketch from state written by {@link #writeState(DataOutputStream)}.
+   *
+   * @param input The input to read from.
+   * @throws IOException If an error occurs reading the state, or if the state was written by a
+   *     sketch with a different width.
+   */
+  public void readState(DataInputStream input) throws IOException {
+    if (input.readInt() != width) {
+      throw new IOException("Sketch width mismatch");
+    }
+    int sampleSize = input.readInt();
+    if (sampleSize < 0 || sampleSize >= resetSampleSize) {
+      throw new IOException("Invalid sample size: " + sampleSize);
+    }
+    byte[] counters = new byte[this.counters.length];
+    input.readFully(counters);
+    System.arraycopy(counters, 0, this.counters, 0, counters.length);
+    this.sampleSize = sampleSize;
+  }
+
+  private void reset() {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = (byte) (counters[i] >> 1);
+    }
+    sampleSize /= 2;
+  }
+
+  private int getIndex(int itemHash, int row) {
+    int hash = (itemHash + SEEDS[row]) * SEEDS[row];
+    hash ^= hash >>> 16;
+    return row * width + (hash & (width - 1));
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link DataSink} that receives a contiguous range of a resource, and writes only the parts of
+ * it that fall within a set of holes to an underlying sink. Data between the holes, which is
+ * already cached, is discarded.
+ *
+ * <p>The underlying sink is opened and closed once for each hole, with a {@link DataSpec} that
+ * covers only that hole.
+ */
+/* package */ final class HoleFillingDataSink implements DataSink {
+
+  private final DataSink dataSink;
+
+  @Nullable private List<CacheSpan> holeSpans;
+  @Nullable private DataSpec dataSpec;
+  private long position;
+  private int holeIndex;
+  private boolean dataSinkOpen;
+
+  /** @param dataSink The {@link DataSink} into which data within the holes is written. */
+  public HoleFillingDataSink(DataSink dataSink) {
+    this.dataSink = dataSink;
+  }
+
+  /**
+   * Sets the holes to fill for the next {@link #open(DataSpec)}.
+   *
+   * @param holeSpans The hole spans, in order of position. The first must start at the position of
+   *     the {@link DataSpec} that will be passed to {@link #open(DataSpec)}, and none may be open
+   *     ended.
+   */
+  public void setHoleSpans(List<CacheSpan> holeSpans) {
+    this.holeSpans = holeSpans;
+  }
+
+  @Override
+  public void open(DataSpec dataSpec) throws IOException {
+    Assertions.checkState(
+        holeSpans != null && !holeSpans.isEmpty() && holeSpans.get(0).position == dataSpec.position);
+    this.dataSpec = dataSpec;
+    position = dataSpec.position;
+    holeIndex = 0;
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    List<CacheSpan> holeSpans = Assertions.checkNotNull(this.holeSpans);
+    while (length > 0 && holeIndex < holeSpans.size()) {
+      CacheSpan holeSpan = holeSpans.get(holeIndex);
+      long holeEnd = holeSpan.position + holeSpan.length;
+      int bytesToConsume;
+      if (position < holeSpan.position) {
+        // Skip data that's already cached.
+        bytesToConsume = (int) Math.min(length, holeSpan.position - position);
+      } else {
+        if (!dataSinkOpen) {
+          DataSpec dataSpec = Assertions.checkNotNull(this.dataSpec);
+          dataSink.open(
+              dataSpec.subrange(holeSpan.position - dataSpec.position, holeSpan.length));
+          dataSinkOpen = true;
+        }
+        bytesToConsume = (int) Math.min(length, holeEnd - position);
+        dataSink.write(buffer, offset, bytesToConsume);
+      }
+      position += bytesToConsume;
+      offset += bytesToConsume;
+      length -= bytesToConsume;
+      if (position == holeEnd) {
+        closeDataSink();
+        holeIndex++;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    dataSpec = null;
+    holeSpans = null;
+    closeDataSink();
+  }
+
+  private void closeDataSink() throws IOException {
+    if (dataSinkOpen) {
+      dataSinkOpen = false;
+      dataSink.close();
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.Assertions;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded in-memory tier in front of a {@link Cache}, holding the complete data of small
+ * resources such as manifests, initialization segments and license responses.
+ *
+ * <p>Set an instance with {@link CacheDataSource.Factory#setMemoryCache(MemoryCache)}. A {@link
+ * CacheDataSource} that fully reads a resource of at most {@code maxEntryBytes} adds its data to
+ * the memory cache, in addition to writing it to the underlying cache. Subsequent reads of the
+ * resource are served from memory, without any file I/O.
+ *
+ * <p>Entries are evicted in least recently used order when the total size of the data exceeds
+ * {@code maxBytes}. An entry is invalidated when any of its spans is removed from the underlying
+ * cache, for example because the resource was removed or evicted.
+ */
+public final class MemoryCache {
+
+  /** The default maximum size of a single entry, in bytes. */
+  public static final int DEFAULT_MAX_ENTRY_BYTES = 256 * 1024;
+
+  private final Cache cache;
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private final LinkedHashMap<String, byte[]> entries;
+  private final Cache.Listener cacheListener;
+  // Written from cache listener callbacks, which mustn't acquire the lock of this instance.
+  private final Set<String> invalidatedKeys;
+
+  private long size;
+
+  /**
+   * Creates an instance with a maximum entry size of {@link #DEFAULT_MAX_ENTRY_BYTES}, or {@code
+   * maxBytes} if it's smaller.
+   *
+   * @param cache The underlying {@link Cache}.
+   * @param maxBytes The maximum total size of the data held in memory, in bytes.
+   */
+  public MemoryCache(Cache cache, long maxBytes) {
+    this(cache, maxBytes, (int) Math.min(DEFAULT_MAX_ENTRY_BYTES, maxBytes));
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param cache The underlying {@link Cache}.
+   * @param maxBytes The maximum total size of the data held in memory, in bytes.
+   * @param maxEntryBytes The maximum size of the data of a single resource, in bytes. Larger
+   *     resources are not held in memory.
+   */
+  public MemoryCache(Cache cache, long maxBytes, int maxEntryBytes) {
+    Assertions.checkArgument(maxEntryBytes > 0 && maxEntryBytes <= maxBytes);
+    this.cache = cache;
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+    entries =
+        new LinkedHashMap<>(
+            /* initialCapacity= */ 16, /* loadFactor= */ 0.75f, /* accessOrder= */ true);
+    cacheListener = new CacheListener();
+    invalidatedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  }
+
+  /** Returns the maximum size of the data of a single resource, in bytes. */
+  public int getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  /** Returns the total size of the data currently held in memory, in bytes. */
+  public synchronized long getSize() {
+    removeInvalidatedEntries();
+    return size;
+  }
+
+  /**
+   * Returns the data of the resource with the specified key, or {@code null} if it's not held in
+   * memory. The returned array must not be modified.
+   *
+   * @param key The cache key of the resource.
+   */
+  @Nullable
+  public synchronized byte[] get(String key) {
+    removeInvalidatedEntries();
+    return entries.get(key);
+  }
+
+  /**
+   * Holds the data of a resource in memory, evicting least recently used entries if necessary. Does
+   * nothing if the data is larger than {@link #getMaxEntryBytes()}, if none of the resource's data
+   * is held in the underlying cache, or if the underlying cache has been released.
+   *
+   * @param key The cache key of the resource.
+   * @param data The complete data of the resource. The array must not be modified after it's been
+   *     passed to this method.
+   */
+  public synchronized void put(String key, byte[] data) {
+    removeInvalidatedEntries();
+    if (data.length > maxEntryBytes || data.length == 0) {
+      return;
+    }
+    if (!entries.containsKey(key)) {
+      NavigableSet<CacheSpan> spans;
+      try {
+        spans = cache.addListener(key, cacheListener);
+      } catch (IllegalStateException e) {
+        // The underlying cache has been released.
+        return;
+      }
+      if (spans.isEmpty()) {
+        // Nothing is cached for the key, so removals of the resource couldn't invalidate the entry.
+        cache.removeListener(key, cacheListener);
+        return;
+      }
+    }
+    @Nullable byte[] previousData = entries.put(key, data);
+    if (previousData != null) {
+      size -= previousData.length;
+    }
+    size += data.length;
+    Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+    while (size > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, byte[]> eldestEntry = iterator.next();
+      iterator.remove();
+      onEntryRemoved(eldestEntry.getKey(), eldestEntry.getValue());
+    }
+  }
+
+  /**
+   * Removes the data of a resource from memory.
+   *
+   * @param key The cache key of the resource.
+   */
+  public synchronized void remove(String key) {
+    @Nullable byte[] data = entries.remove(key);
+    if (data != null) {
+      onEntryRemoved(key, data);
+    }
+  }
+
+  /** Removes all data from memory. */
+  public synchronized void clear() {
+    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+      cache.removeListener(entry.getKey(), cacheListener);
+    }
+    entries.clear();
+    invalidatedKeys.clear();
+    size = 0;
+  }
+
+  private void removeInvalidatedEntries() {
+    if (invalidatedKeys.isEmpty()) {
+      return;
+    }
+    Iterator<String> iterator = invalidatedKeys.iterator();
+    while (iterator.hasNext()) {
+      String key = iterator.next();
+      iterator.remove();
+      remove(key);
+    }
+  }
+
+  private void onEntryRemoved(String key, byte[] data) {
+    size -= data.length;
+    cache.removeListener(key, cacheListener);
+  }
+
+  private final class CacheListener implements Cache.Listener {
+
+    @Override
+    public void onSpanAdded(Cache cache, CacheSpan span) {
+      // Do nothing.
+    }
+
+    @Override
+    public void onSpanRemoved(Cache cache, CacheSpan span) {
+      invalidatedKeys.add(span.key);
+    }
+
+    @Override
+    public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+      // Do nothing. The data of the span is unchanged.
+    }
+  }
+}
@@ -30,12 +30,14 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A {@link Cache} implementation that maintains an in-memory representation.
@@ -45,6 +47,11 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
  * <p>To delete a SimpleCache, use {@link #delete(File, DatabaseProvider)} rather than deleting the
  * directory and its contents directly. This is necessary to ensure that associated index data is
  * also removed.
+ *
+ * <p>The cache is thread-safe. Queries and read/write locking for a single key only synchronize on
+ * a lock that's shared by a subset of keys, so threads accessing different keys don't block one
+ * another. A cache-wide lock is only held when the index is modified or persisted, when spans are
+ * evicted, and when listeners are notified.
  */
 public final class SimpleCache implements Cache {
 
@@ -59,20 +66,51 @@ public final class SimpleCache implements Cache {
 
   private static final String UID_FILE_SUFFIX = ".uid";
 
+  /** The number of locks between which keys are distributed. */
+  private static final int KEY_LOCK_COUNT = 32;
+
+  /**
+   * The delay after which the span manifest is stored once the spans have been modified without
+   * the content index being stored, so that bursts of modifications are written only once.
+   */
+  private static final long SPAN_MANIFEST_STORE_DELAY_MS = 5_000;
+
   private static final HashSet<File> lockedCacheDirs = new HashSet<>();
 
   private final File cacheDir;
   private final CacheEvictor evictor;
   private final CachedContentIndex contentIndex;
   @Nullable private final CacheFileMetadataIndex fileIndex;
+  private final CacheSpanManifest spanManifest;
   private final HashMap<String, ArrayList<Listener>> listeners;
   private final Random random;
   private final boolean touchCacheSpans;
-
-  private long uid;
-  private long totalSpace;
-  private boolean released;
-  private @MonotonicNonNull CacheException initializationException;
+  private final KeyLock[] keyLocks;
+
+  // Locking works as follows. The cache-wide lock is the monitor of the SimpleCache instance. Each
+  // key is also assigned one of keyLocks. Adding or removing CachedContent from the index, and
+  // modifying the spans or metadata of a CachedContent, requires both locks. Reading the spans or
+  // metadata of a CachedContent, or locking and unlocking its ranges, requires only the key lock.
+  // A thread holding a key lock without the cache-wide lock must not acquire any other lock. This
+  // ensures the cache-wide lock is always acquired first, and prevents deadlock between threads
+  // holding different key locks.
+  private volatile long uid;
+  // Whether the span manifest describes the spans in the cache. Guarded by the cache-wide lock.
+  private boolean spanManifestValid;
+  // Whether a store of the span manifest is scheduled. Guarded by the cache-wide lock.
+  private boolean spanManifestStoreScheduled;
+  // The executor on which the span manifest is stored after a delay, created on first use. Guarded
+  // by the cache-wide lock.
+  @Nullable private ScheduledThreadPoolExecutor spanManifestExecutor;
+  // Whether the evictor is being called, so that spans removed now are being evicted. Guarded by
+  // the cache-wide lock.
+  private boolean isEvicting;
+  @Nullable private CacheMetrics cacheMetrics;
+  @Nullable private volatile CacheFileDeduplicator fileDeduplicator;
+  private volatile long totalSpace;
+  private volatile boolean initialized;
+  private volatile boolean released;
+  @Nullable private volatile CacheException initializationException;
 
   /**
    * Returns whether {@code cacheFolder} is locked by a {@link SimpleCache} instance. To unlock the
@@ -239,6 +277,33 @@ public final class SimpleCache implements Cache {
             : null);
   }
 
+  /**
+   * Creates a cache whose index is stored in an append-only journal in the cache directory. The
+   * cache will delete any unrecognized files from the cache directory. Hence the directory cannot
+   * be used to store other files.
+   *
+   * <p>Storing the journal index only writes the entries that changed since it was last stored,
+   * whereas the legacy index is rewritten in full and the database index is updated in a database
+   * transaction. This makes it well suited to caches with a very large number of keys. An existing
+   * database or legacy index is migrated to the journal when the cache is initialized.
+   *
+   * @param cacheDir A dedicated cache directory.
+   * @param evictor The evictor to be used. For download use cases where cache eviction should not
+   *     occur, use {@link NoOpCacheEvictor}.
+   * @param databaseProvider Provides the database in which cache file metadata is stored, and from
+   *     which an existing database index is migrated, or {@code null} to derive file metadata from
+   *     the cache files and to migrate from an unencrypted legacy index.
+   * @return The cache.
+   */
+  public static SimpleCache createWithJournalIndex(
+      File cacheDir, CacheEvictor evictor, @Nullable DatabaseProvider databaseProvider) {
+    return new SimpleCache(
+        cacheDir,
+        evictor,
+        new CachedContentIndex(cacheDir, databaseProvider),
+        databaseProvider != null ? new CacheFileMetadataIndex(databaseProvider) : null);
+  }
+
   /* package */ SimpleCache(
       File cacheDir,
       CacheEvictor evictor,
@@ -252,9 +317,14 @@ public final class SimpleCache implements Cache {
     this.evictor = evictor;
     this.contentIndex = contentIndex;
     this.fileIndex = fileIndex;
+    spanManifest = new CacheSpanManifest(cacheDir);
     listeners = new HashMap<>();
     random = new Random();
     touchCacheSpans = evictor.requiresCacheSpanTouches();
+    keyLocks = new KeyLock[KEY_LOCK_COUNT];
+    for (int i = 0; i < KEY_LOCK_COUNT; i++) {
+      keyLocks[i] = new KeyLock();
+    }
     uid = UID_UNSET;
 
     // Start cache initialization.
@@ -266,6 +336,7 @@ public final class SimpleCache implements Cache {
           conditionVariable.open();
           initialize();
           SimpleCache.this.evictor.onCacheInitialized();
+          initialized = true;
         }
       }
     }.start();
@@ -277,17 +348,56 @@ public final class SimpleCache implements Cache {
    *
    * @throws CacheException If an error occurred during initialization.
    */
-  public synchronized void checkInitialization() throws CacheException {
+  public void checkInitialization() throws CacheException {
+    blockUntilInitialized();
+    @Nullable CacheException initializationException = this.initializationException;
     if (initializationException != null) {
       throw initializationException;
     }
   }
 
   @Override
-  public synchronized long getUid() {
+  public long getUid() {
+    blockUntilInitialized();
     return uid;
   }
 
+  /**
+   * Sets the {@link CacheMetrics} in which span removals and index stores are recorded.
+   *
+   * @param cacheMetrics The {@link CacheMetrics}, or {@code null} to stop recording metrics.
+   */
+  public synchronized void setCacheMetrics(@Nullable CacheMetrics cacheMetrics) {
+    this.cacheMetrics = cacheMetrics;
+  }
+
+  /**
+   * Sets the {@link CacheFileDeduplicator} that deduplicates files as they're committed to the
+   * cache. The deduplicator is told about files in the cache whose digests were persisted when they
+   * were committed, so that new files can be linked to them.
+   *
+   * @param fileDeduplicator The {@link CacheFileDeduplicator}, or {@code null} to stop
+   *     deduplicating files.
+   */
+  public synchronized void setFileDeduplicator(@Nullable CacheFileDeduplicator fileDeduplicator) {
+    this.fileDeduplicator = fileDeduplicator;
+    if (fileDeduplicator == null) {
+      return;
+    }
+    for (CachedContent cachedContent : contentIndex.getAll()) {
+      synchronized (getKeyLock(cachedContent.key)) {
+        HashMap<Long, String> digests =
+            CacheFileDeduplicator.readDigests(cachedContent.getMetadata());
+        for (SimpleCacheSpan span : cachedContent.getSpans()) {
+          @Nullable String digest = digests.get(span.position);
+          if (digest != null) {
+            fileDeduplicator.onFileLoaded(Assertions.checkNotNull(span.file), span.length, digest);
+          }
+        }
+      }
+    }
+  }
+
   @Override
   public synchronized void release() {
     if (released) {
@@ -295,11 +405,16 @@ public final class SimpleCache implements Cache {
     }
     listeners.clear();
     removeStaleSpans();
+    evictor.onCacheReleased();
     try {
-      contentIndex.store();
+      storeContentIndex();
     } catch (IOException e) {
       Log.e(TAG, "Storing index file failed", e);
     } finally {
+      if (spanManifestExecutor != null) {
+        spanManifestExecutor.shutdownNow();
+        spanManifestExecutor = null;
+      }
       unlockFolder(cacheDir);
       released = true;
     }
@@ -332,33 +447,43 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized NavigableSet<CacheSpan> getCachedSpans(String key) {
+  public NavigableSet<CacheSpan> getCachedSpans(String key) {
     Assertions.checkState(!released);
-    CachedContent cachedContent = contentIndex.get(key);
-    return cachedContent == null || cachedContent.isEmpty()
-        ? new TreeSet<>()
-        : new TreeSet<CacheSpan>(cachedContent.getSpans());
+    blockUntilInitialized();
+    synchronized (getKeyLock(key)) {
+      @Nullable CachedContent cachedContent = contentIndex.get(key);
+      return cachedContent == null || cachedContent.isEmpty()
+          ? new TreeSet<>()
+          : new TreeSet<CacheSpan>(cachedContent.getSpans());
+    }
   }
 
   @Override
-  public synchronized Set<String> getKeys() {
+  public Set<String> getKeys() {
     Assertions.checkState(!released);
+    blockUntilInitialized();
     return new HashSet<>(contentIndex.getKeys());
   }
 
   @Override
-  public synchronized long getCacheSpace() {
+  public long getCacheSpace() {
     Assertions.checkState(!released);
+    blockUntilInitialized();
     return totalSpace;
   }
 
   @Override
-  public synchronized CacheSpan startReadWrite(String key, long position, long length)
+  public CacheSpan startReadWrite(String key, long position, long length)
       throws InterruptedException, CacheException {
     Assertions.checkState(!released);
     checkInitialization();
 
+    KeyLock keyLock = getKeyLock(key);
     while (true) {
+      int notifyCount;
+      synchronized (keyLock) {
+        notifyCount = keyLock.notifyCount;
+      }
       CacheSpan span = startReadWriteNonBlocking(key, position, length);
       if (span != null) {
         return span;
@@ -368,49 +493,89 @@ public final class SimpleCache implements Cache {
         // 1. A span is added for the requested key that covers the requested position, in which
         //    case a read can be started.
         // 2. The lock for the requested key is released, in which case a write can be started.
-        wait();
+        // Comparing notify counts ensures we don't miss a notification that occurred after the
+        // attempt above, but before we started waiting.
+        synchronized (keyLock) {
+          while (keyLock.notifyCount == notifyCount) {
+            keyLock.wait();
+          }
+        }
       }
     }
   }
 
   @Override
   @Nullable
-  public synchronized CacheSpan startReadWriteNonBlocking(String key, long position, long length)
+  public CacheSpan startReadWriteNonBlocking(String key, long position, long length)
       throws CacheException {
     Assertions.checkState(!released);
     checkInitialization();
 
-    SimpleCacheSpan span = getSpan(key, position, length);
-
-    if (span.isCached) {
-      // Read case.
-      return touchSpan(key, span);
+    KeyLock keyLock = getKeyLock(key);
+    if (!touchCacheSpans) {
+      // If the content is already in the index and spans don't need to be touched, then the key
+      // lock is sufficient unless the span turns out to be stale.
+      synchronized (keyLock) {
+        @Nullable CachedContent cachedContent = contentIndex.get(key);
+        if (cachedContent != null) {
+          SimpleCacheSpan span = cachedContent.getSpan(position, length);
+          if (!span.isCached) {
+            // Write case, or null if the lock is not available.
+            return cachedContent.lockRange(position, span.length) ? span : null;
+          } else if (span.file.length() == span.length) {
+            // Read case.
+            return span;
+          }
+        }
+      }
     }
 
-    CachedContent cachedContent = contentIndex.getOrAdd(key);
-    if (cachedContent.lockRange(position, span.length)) {
-      // Write case.
-      return span;
-    }
+    synchronized (this) {
+      synchronized (keyLock) {
+        SimpleCacheSpan span = getSpan(key, position, length);
 
-    // Lock not available.
-    return null;
+        if (span.isCached) {
+          // Read case.
+          return touchSpan(key, span);
+        }
+
+        CachedContent cachedContent = contentIndex.getOrAdd(key);
+        if (cachedContent.lockRange(position, span.length)) {
+          // Write case.
+          return span;
+        }
+
+        // Lock not available.
+        return null;
+      }
+    }
   }
 
   @Override
-  public synchronized File startFile(String key, long position, long length) throws CacheException {
+  public File startFile(String key, long position, long length) throws CacheException {
     Assertions.checkState(!released);
     checkInitialization();
 
-    CachedContent cachedContent = contentIndex.get(key);
-    Assertions.checkNotNull(cachedContent);
-    Assertions.checkState(cachedContent.isFullyLocked(position, length));
-    if (!cacheDir.exists()) {
-      // For some reason the cache directory doesn't exist. Make a best effort to create it.
-      cacheDir.mkdirs();
-      removeStaleSpans();
+    CachedContent cachedContent;
+    synchronized (getKeyLock(key)) {
+      cachedContent = contentIndex.get(key);
+      Assertions.checkNotNull(cachedContent);
+      Assertions.checkState(cachedContent.isFullyLocked(position, length));
+    }
+    synchronized (this) {
+      if (!cacheDir.exists()) {
+        // For some reason the cache directory doesn't exist. Make a best effort to create it.
+        cacheDir.mkdirs();
+        removeStaleSpans();
+      }
+      boolean wasEvicting = isEvicting;
+      isEvicting = true;
+      try {
+        evictor.onStartFile(this, key, position, length);
+      } finally {
+        isEvicting = wasEvicting;
+      }
     }
-    evictor.onStartFile(this, key, position, length);
     // Randomly distribute files into subdirectories with a uniform distribution.
     File fileDir = new File(cacheDir, Integer.toString(random.nextInt(SUBDIRECTORY_COUNT)));
     if (!fileDir.exists()) {
@@ -421,7 +586,26 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized void commitFile(File file, long length) throws CacheException {
+  public void commitFile(File file, long length) throws CacheException {
+    // Compute the digest before acquiring the cache-wide lock, since it requires reading the file.
+    // The file isn't read by anything else until it's committed.
+    @Nullable CacheFileDeduplicator fileDeduplicator = this.fileDeduplicator;
+    @Nullable
+    String digest =
+        fileDeduplicator != null && length > 0
+            ? fileDeduplicator.computeDigest(file, length)
+            : null;
+    synchronized (this) {
+      commitFileInternal(file, length, fileDeduplicator, digest);
+    }
+  }
+
+  private void commitFileInternal(
+      File file,
+      long length,
+      @Nullable CacheFileDeduplicator fileDeduplicator,
+      @Nullable String digest)
+      throws CacheException {
     Assertions.checkState(!released);
     if (!file.exists()) {
       return;
@@ -433,15 +617,22 @@ public final class SimpleCache implements Cache {
 
     SimpleCacheSpan span =
         Assertions.checkNotNull(SimpleCacheSpan.createCacheEntry(file, length, contentIndex));
-    CachedContent cachedContent = Assertions.checkNotNull(contentIndex.get(span.key));
-    Assertions.checkState(cachedContent.isFullyLocked(span.position, span.length));
-
-    // Check if the span conflicts with the set content length
-    long contentLength = ContentMetadata.getContentLength(cachedContent.getMetadata());
-    if (contentLength != C.LENGTH_UNSET) {
-      Assertions.checkState((span.position + span.length) <= contentLength);
+    synchronized (getKeyLock(span.key)) {
+      CachedContent cachedContent = Assertions.checkNotNull(contentIndex.get(span.key));
+      Assertions.checkState(cachedContent.isFullyLocked(span.position, span.length));
+
+      // Check if the span conflicts with the set content length
+      long contentLength = ContentMetadata.getContentLength(cachedContent.getMetadata());
+      if (contentLength != C.LENGTH_UNSET) {
+        Assertions.checkState((span.position + span.length) <= contentLength);
+      }
     }
 
+    boolean isDeduplicated =
+        fileDeduplicator != null
+            && digest != null
+            && fileDeduplicator.onFileCommitted(file, length, digest);
+    updatePersistedDigest(span.key, span.position, isDeduplicated ? digest : null);
     if (fileIndex != null) {
       String fileName = file.getName();
       try {
@@ -452,55 +643,79 @@ public final class SimpleCache implements Cache {
     }
     addSpan(span);
     try {
-      contentIndex.store();
+      storeContentIndex();
     } catch (IOException e) {
       throw new CacheException(e);
     }
-    notifyAll();
   }
 
   @Override
-  public synchronized void releaseHoleSpan(CacheSpan holeSpan) {
+  public void releaseHoleSpan(CacheSpan holeSpan) {
     Assertions.checkState(!released);
-    CachedContent cachedContent = Assertions.checkNotNull(contentIndex.get(holeSpan.key));
-    cachedContent.unlockRange(holeSpan.position);
-    contentIndex.maybeRemove(cachedContent.key);
-    notifyAll();
+    KeyLock keyLock = getKeyLock(holeSpan.key);
+    boolean maybeRemove;
+    synchronized (keyLock) {
+      CachedContent cachedContent = Assertions.checkNotNull(contentIndex.get(holeSpan.key));
+      cachedContent.unlockRange(holeSpan.position);
+      maybeRemove = cachedContent.isEmpty() && cachedContent.isFullyUnlocked();
+      keyLock.notifyWaiters();
+    }
+    if (maybeRemove) {
+      // Removing the content from the index requires the cache-wide lock, which must be acquired
+      // before the key lock.
+      synchronized (this) {
+        synchronized (keyLock) {
+          contentIndex.maybeRemove(holeSpan.key);
+        }
+      }
+    }
   }
 
   @Override
   public synchronized void removeResource(String key) {
     Assertions.checkState(!released);
     for (CacheSpan span : getCachedSpans(key)) {
-      removeSpanInternal(span);
+      removeSpanInternal(span, CacheMetrics.REMOVAL_REASON_REMOVED);
     }
   }
 
   @Override
   public synchronized void removeSpan(CacheSpan span) {
     Assertions.checkState(!released);
-    removeSpanInternal(span);
+    @CacheMetrics.RemovalReason
+    int reason =
+        isEvicting ? CacheMetrics.REMOVAL_REASON_EVICTED : CacheMetrics.REMOVAL_REASON_REMOVED;
+    removeSpanInternal(span, reason);
   }
 
   @Override
-  public synchronized boolean isCached(String key, long position, long length) {
+  public boolean isCached(String key, long position, long length) {
     Assertions.checkState(!released);
-    @Nullable CachedContent cachedContent = contentIndex.get(key);
-    return cachedContent != null && cachedContent.getCachedBytesLength(position, length) >= length;
+    blockUntilInitialized();
+    synchronized (getKeyLock(key)) {
+      @Nullable CachedContent cachedContent = contentIndex.get(key);
+      return cachedContent != null
+          && cachedContent.getCachedBytesLength(position, length) >= length;
+    }
   }
 
   @Override
-  public synchronized long getCachedLength(String key, long position, long length) {
+  public long getCachedLength(String key, long position, long length) {
     Assertions.checkState(!released);
+    blockUntilInitialized();
     if (length == C.LENGTH_UNSET) {
       length = Long.MAX_VALUE;
     }
-    @Nullable CachedContent cachedContent = contentIndex.get(key);
-    return cachedContent != null ? cachedContent.getCachedBytesLength(position, length) : -length;
+    synchronized (getKeyLock(key)) {
+      @Nullable CachedContent cachedContent = contentIndex.get(key);
+      return cachedContent != null ? cachedContent.getCachedBytesLength(position, length) : -length;
+    }
   }
 
   @Override
-  public synchronized long getCachedBytes(String key, long position, long length) {
+  public long getCachedBytes(String key, long position, long length) {
+    Assertions.checkState(!released);
+    blockUntilInitialized();
     long endPosition = length == C.LENGTH_UNSET ? Long.MAX_VALUE : position + length;
     if (endPosition < 0) {
       // The calculation rolled over (length is probably Long.MAX_VALUE).
@@ -508,16 +723,18 @@ public final class SimpleCache implements Cache {
     }
     long currentPosition = position;
     long cachedBytes = 0;
-    while (currentPosition < endPosition) {
-      long maxRemainingLength = endPosition - currentPosition;
-      long blockLength = getCachedLength(key, currentPosition, maxRemainingLength);
-      if (blockLength > 0) {
-        cachedBytes += blockLength;
-      } else {
-        // There's a hole of length -blockLength.
-        blockLength = -blockLength;
+    synchronized (getKeyLock(key)) {
+      while (currentPosition < endPosition) {
+        long maxRemainingLength = endPosition - currentPosition;
+        long blockLength = getCachedLength(key, currentPosition, maxRemainingLength);
+        if (blockLength > 0) {
+          cachedBytes += blockLength;
+        } else {
+          // There's a hole of length -blockLength.
+          blockLength = -blockLength;
+        }
+        currentPosition += blockLength;
       }
-      currentPosition += blockLength;
     }
     return cachedBytes;
   }
@@ -528,18 +745,40 @@ public final class SimpleCache implements Cache {
     Assertions.checkState(!released);
     checkInitialization();
 
-    contentIndex.applyContentMetadataMutations(key, mutations);
+    synchronized (getKeyLock(key)) {
+      contentIndex.applyContentMetadataMutations(key, mutations);
+    }
     try {
-      contentIndex.store();
+      storeContentIndex();
     } catch (IOException e) {
       throw new CacheException(e);
     }
   }
 
   @Override
-  public synchronized ContentMetadata getContentMetadata(String key) {
+  public ContentMetadata getContentMetadata(String key) {
     Assertions.checkState(!released);
-    return contentIndex.getContentMetadata(key);
+    blockUntilInitialized();
+    synchronized (getKeyLock(key)) {
+      return contentIndex.getContentMetadata(key);
+    }
+  }
+
+  /**
+   * Blocks until the cache's in-memory representation has been initialized, if it hasn't been
+   * already.
+   */
+  private void blockUntilInitialized() {
+    if (!initialized) {
+      synchronized (this) {
+        // The initialization thread holds the cache-wide lock until initialization is complete.
+        Assertions.checkState(initialized);
+      }
+    }
+  }
+
+  private KeyLock getKeyLock(String key) {
+    return keyLocks[(key.hashCode() & Integer.MAX_VALUE) % KEY_LOCK_COUNT];
   }
 
   /** Ensures that the cache's in-memory representation has been initialized. */
@@ -575,13 +814,26 @@ public final class SimpleCache implements Cache {
 
     try {
       contentIndex.initialize(uid);
+      @Nullable Map<String, CacheFileMetadata> fileMetadata = null;
       if (fileIndex != null) {
         fileIndex.initialize(uid);
-        Map<String, CacheFileMetadata> fileMetadata = fileIndex.getAll();
-        loadDirectory(cacheDir, /* isRoot= */ true, files, fileMetadata);
-        fileIndex.removeAll(fileMetadata.keySet());
+        fileMetadata = fileIndex.getAll();
+      }
+      @Nullable
+      List<SimpleCacheSpan> manifestSpans = spanManifest.load(uid, contentIndex, fileMetadata);
+      if (manifestSpans != null) {
+        // The manifest is up to date, so there's no need to scan the cache directory. Files that
+        // were modified externally are detected when their spans are read.
+        for (int i = 0; i < manifestSpans.size(); i++) {
+          addSpan(manifestSpans.get(i));
+        }
+        spanManifestValid = true;
       } else {
-        loadDirectory(cacheDir, /* isRoot= */ true, files, /* fileMetadata= */ null);
+        spanManifest.delete();
+        loadDirectory(cacheDir, /* isRoot= */ true, files, fileMetadata);
+        if (fileIndex != null) {
+          fileIndex.removeAll(Assertions.checkNotNull(fileMetadata).keySet());
+        }
       }
     } catch (IOException e) {
       String message = "Failed to initialize cache indices: " + cacheDir;
@@ -592,7 +844,7 @@ public final class SimpleCache implements Cache {
 
     contentIndex.removeEmpty();
     try {
-      contentIndex.store();
+      storeContentIndex();
     } catch (IOException e) {
       Log.e(TAG, "Storing index file failed", e);
     }
@@ -628,8 +880,10 @@ public final class SimpleCache implements Cache {
         loadDirectory(file, /* isRoot= */ false, file.listFiles(), fileMetadata);
       } else {
         if (isRoot
-            && (CachedContentIndex.isIndexFile(fileName) || fileName.endsWith(UID_FILE_SUFFIX))) {
-          // Skip expected UID and index files in the root directory.
+            && (CachedContentIndex.isIndexFile(fileName)
+                || CacheSpanManifest.isManifestFile(fileName)
+                || fileName.endsWith(UID_FILE_SUFFIX))) {
+          // Skip expected UID, index and manifest files in the root directory.
           continue;
         }
         long length = C.LENGTH_UNSET;
@@ -678,9 +932,13 @@ public final class SimpleCache implements Cache {
       // Updating the file itself to incorporate the new last touch timestamp is much slower than
       // updating the file index. Hence we only update the file if we don't have a file index.
       updateFile = true;
+      invalidateSpanManifest();
     }
     SimpleCacheSpan newSpan =
         contentIndex.get(key).setLastTouchTimestamp(span, lastTouchTimestamp, updateFile);
+    if (fileDeduplicator != null && !Assertions.checkNotNull(span.file).equals(newSpan.file)) {
+      fileDeduplicator.onFileRenamed(span.file, Assertions.checkNotNull(newSpan.file));
+    }
     notifySpanTouched(span, newSpan);
     return newSpan;
   }
@@ -717,17 +975,33 @@ public final class SimpleCache implements Cache {
    * @param span The span to be added.
    */
   private void addSpan(SimpleCacheSpan span) {
-    contentIndex.getOrAdd(span.key).addSpan(span);
+    invalidateSpanManifest();
+    KeyLock keyLock = getKeyLock(span.key);
+    synchronized (keyLock) {
+      contentIndex.getOrAdd(span.key).addSpan(span);
+      keyLock.notifyWaiters();
+    }
     totalSpace += span.length;
     notifySpanAdded(span);
   }
 
-  private void removeSpanInternal(CacheSpan span) {
-    @Nullable CachedContent cachedContent = contentIndex.get(span.key);
-    if (cachedContent == null || !cachedContent.removeSpan(span)) {
-      return;
+  private void removeSpanInternal(CacheSpan span, @CacheMetrics.RemovalReason int reason) {
+    synchronized (getKeyLock(span.key)) {
+      @Nullable CachedContent cachedContent = contentIndex.get(span.key);
+      if (cachedContent == null || !cachedContent.removeSpan(span)) {
+        return;
+      }
+      updatePersistedDigest(span.key, span.position, /* digest= */ null);
+      contentIndex.maybeRemove(cachedContent.key);
     }
+    invalidateSpanManifest();
     totalSpace -= span.length;
+    if (cacheMetrics != null) {
+      cacheMetrics.recordSpanRemoved(span.length, reason);
+    }
+    if (fileDeduplicator != null) {
+      fileDeduplicator.onFileRemoved(Assertions.checkNotNull(span.file), span.length);
+    }
     if (fileIndex != null) {
       String fileName = span.file.getName();
       try {
@@ -738,10 +1012,106 @@ public final class SimpleCache implements Cache {
         Log.w(TAG, "Failed to remove file index entry for: " + fileName);
       }
     }
-    contentIndex.maybeRemove(cachedContent.key);
     notifySpanRemoved(span);
   }
 
+  /**
+   * Updates the file digest persisted in the content metadata for the span at a position, so that
+   * a stale digest is never associated with a different file. Must be called with the cache-wide
+   * lock held, for content that's in the index.
+   *
+   * @param key The key of the content.
+   * @param position The position of the span.
+   * @param digest The digest of the span's file, or {@code null} if the file isn't deduplicated.
+   */
+  private void updatePersistedDigest(String key, long position, @Nullable String digest) {
+    synchronized (getKeyLock(key)) {
+      ContentMetadata metadata = Assertions.checkNotNull(contentIndex.get(key)).getMetadata();
+      if (digest == null && !metadata.contains(CacheFileDeduplicator.METADATA_KEY_DIGESTS)) {
+        return;
+      }
+      HashMap<Long, String> digests = CacheFileDeduplicator.readDigests(metadata);
+      if (digest != null) {
+        digests.put(position, digest);
+      } else if (digests.remove(position) == null) {
+        return;
+      }
+      ContentMetadataMutations mutations = new ContentMetadataMutations();
+      if (digests.isEmpty()) {
+        mutations.remove(CacheFileDeduplicator.METADATA_KEY_DIGESTS);
+      } else {
+        byte[] newDigestsMetadata = CacheFileDeduplicator.writeDigests(digests);
+        mutations.set(CacheFileDeduplicator.METADATA_KEY_DIGESTS, newDigestsMetadata);
+      }
+      contentIndex.applyContentMetadataMutations(key, mutations);
+    }
+  }
+
+  /**
+   * Stores the content index, recording how long it took, followed by the span manifest. Must be
+   * called with the cache-wide lock held.
+   */
+  private void storeContentIndex() throws IOException {
+    long startTimeNs = System.nanoTime();
+    contentIndex.store();
+    if (cacheMetrics != null) {
+      cacheMetrics.recordIndexStored((System.nanoTime() - startTimeNs) / 1000);
+    }
+    storeSpanManifest();
+  }
+
+  /**
+   * Stores the span manifest, so that the next initialization doesn't need to scan the cache
+   * directory. Must be called with the cache-wide lock held, after the content index is stored.
+   */
+  private void storeSpanManifest() throws IOException {
+    if (spanManifestValid || initializationException != null) {
+      // The manifest is already up to date, or the cache was never initialized.
+      return;
+    }
+    spanManifest.store(uid, contentIndex.getAll());
+    spanManifestValid = true;
+  }
+
+  /**
+   * Deletes the span manifest if it's valid, since the spans in the cache are about to change, and
+   * schedules it to be stored again in case the content index isn't stored first. Must be called
+   * with the cache-wide lock held.
+   */
+  private void invalidateSpanManifest() {
+    if (spanManifestValid) {
+      spanManifest.delete();
+      spanManifestValid = false;
+    }
+    if (spanManifestStoreScheduled || released) {
+      return;
+    }
+    if (spanManifestExecutor == null) {
+      spanManifestExecutor =
+          new ScheduledThreadPoolExecutor(
+              /* corePoolSize= */ 1,
+              runnable -> new Thread(runnable, "ExoPlayer:SimpleCacheSpanManifest"));
+      // Don't keep an idle thread alive if the cache is never released.
+      spanManifestExecutor.setKeepAliveTime(SPAN_MANIFEST_STORE_DELAY_MS, TimeUnit.MILLISECONDS);
+      spanManifestExecutor.allowCoreThreadTimeOut(true);
+    }
+    spanManifestStoreScheduled = true;
+    spanManifestExecutor.schedule(
+        this::storeScheduledSpanManifest, SPAN_MANIFEST_STORE_DELAY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void storeScheduledSpanManifest() {
+    spanManifestStoreScheduled = false;
+    if (released) {
+      return;
+    }
+    try {
+      storeSpanManifest();
+    } catch (IOException e) {
+      Log.w(TAG, "Storing span manifest failed", e);
+    }
+  }
+
   /**
    * Scans all of the cached spans in the in-memory representation, removing any for which the
    * underlying file lengths no longer match.
@@ -756,7 +1126,7 @@ public final class SimpleCache implements Cache {
       }
     }
     for (int i = 0; i < spansToBeRemoved.size(); i++) {
-      removeSpanInternal(spansToBeRemoved.get(i));
+      removeSpanInternal(spansToBeRemoved.get(i), CacheMetrics.REMOVAL_REASON_STALE);
     }
   }
 
@@ -777,7 +1147,13 @@ public final class SimpleCache implements Cache {
         keyListeners.get(i).onSpanAdded(this, span);
       }
     }
-    evictor.onSpanAdded(this, span);
+    boolean wasEvicting = isEvicting;
+    isEvicting = true;
+    try {
+      evictor.onSpanAdded(this, span);
+    } finally {
+      isEvicting = wasEvicting;
+    }
   }
 
   private void notifySpanTouched(SimpleCacheSpan oldSpan, CacheSpan newSpan) {
@@ -787,7 +1163,13 @@ public final class SimpleCache implements Cache {
         keyListeners.get(i).onSpanTouched(this, oldSpan, newSpan);
       }
     }
-    evictor.onSpanTouched(this, oldSpan, newSpan);
+    boolean wasEvicting = isEvicting;
+    isEvicting = true;
+    try {
+      evictor.onSpanTouched(this, oldSpan, newSpan);
+    } finally {
+      isEvicting = wasEvicting;
+    }
   }
 
   /**
@@ -838,4 +1220,20 @@ public final class SimpleCache implements Cache {
   private static synchronized void unlockFolder(File cacheDir) {
     lockedCacheDirs.remove(cacheDir.getAbsoluteFile());
   }
+
+  /**
+   * A lock shared by a subset of keys, which threads wait on whilst the ranges they wish to lock
+   * are locked by other threads.
+   */
+  private static final class KeyLock {
+
+    /** Incremented each time waiting threads are notified. */
+    public int notifyCount;
+
+    /** Notifies waiting threads. Must only be called whilst holding this lock. */
+    public void notifyWaiters() {
+      notifyCount++;
+      notifyAll();
+    }
+  }
 }
@@ -140,6 +140,22 @@ import java.util.regex.Pattern;
     return new SimpleCacheSpan(key, position, length, lastTouchTimestamp, file);
   }
 
+  /**
+   * Creates a cache span for a cache file whose metadata is already known, without parsing the
+   * name of the file or querying the file system.
+   *
+   * @param key The cache key of the resource.
+   * @param position The position of the span in the resource.
+   * @param length The length of the cache file in bytes.
+   * @param lastTouchTimestamp The last touch timestamp.
+   * @param file The cache file.
+   * @return The span.
+   */
+  public static SimpleCacheSpan createCacheEntry(
+      String key, long position, long length, long lastTouchTimestamp, File file) {
+    return new SimpleCacheSpan(key, position, length, lastTouchTimestamp, file);
+  }
+
   /**
    * Upgrades the cache file if it is created by an earlier version of {@link SimpleCache}.
    *
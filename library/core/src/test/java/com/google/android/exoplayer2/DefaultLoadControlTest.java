@@ -34,6 +34,8 @@ public class DefaultLoadControlTest {
   private static final long MAX_BUFFER_US = C.msToUs(DefaultLoadControl.DEFAULT_MAX_BUFFER_MS);
   private static final long MIN_BUFFER_US = MAX_BUFFER_US / 2;
   private static final int TARGET_BUFFER_BYTES = C.DEFAULT_BUFFER_SEGMENT_SIZE * 2;
+  private static final long BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_US =
+      C.msToUs(DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS);
 
   private Builder builder;
   private DefaultAllocator allocator;
@@ -203,6 +205,109 @@ public class DefaultLoadControlTest {
         .isTrue();
   }
 
+  @Test
+  public void shouldContinueLoading_withBufferBudgetUsedByHigherPriorityPlayer_returnsFalse() {
+    SharedBufferBudget bufferBudget = new SharedBufferBudget(TARGET_BUFFER_BYTES);
+    DefaultLoadControl highPriorityLoadControl =
+        new Builder()
+            .setAllocator(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE))
+            .setTargetBufferBytes(TARGET_BUFFER_BYTES)
+            .setBufferBudget(bufferBudget, C.PRIORITY_PLAYBACK)
+            .createDefaultLoadControl();
+    highPriorityLoadControl.onTracksSelected(new Renderer[0], null, null);
+    builder.setPrioritizeTimeOverSizeThresholds(true);
+    builder.setBufferBudget(bufferBudget, C.PRIORITY_PLAYBACK - 1);
+    createDefaultLoadControl();
+    // The low priority player is only granted the minimum of one allocation.
+    allocator.allocate();
+
+    assertThat(
+            loadControl.shouldContinueLoading(
+                /* playbackPositionUs= */ 0, BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_US, SPEED))
+        .isFalse();
+    assertThat(
+            highPriorityLoadControl.shouldContinueLoading(
+                /* playbackPositionUs= */ 0, /* bufferedDurationUs= */ 0, SPEED))
+        .isTrue();
+  }
+
+  @Test
+  public void shouldContinueLoading_withExhaustedBufferBudget_continuesUntilPlaybackCanStart() {
+    SharedBufferBudget bufferBudget = new SharedBufferBudget(TARGET_BUFFER_BYTES);
+    DefaultLoadControl highPriorityLoadControl =
+        new Builder()
+            .setAllocator(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE))
+            .setTargetBufferBytes(TARGET_BUFFER_BYTES)
+            .setBufferBudget(bufferBudget, C.PRIORITY_PLAYBACK)
+            .createDefaultLoadControl();
+    highPriorityLoadControl.onTracksSelected(new Renderer[0], null, null);
+    builder.setBufferBudget(bufferBudget, C.PRIORITY_PLAYBACK - 1);
+    createDefaultLoadControl();
+
+    assertThat(
+            loadControl.shouldContinueLoading(
+                /* playbackPositionUs= */ 0, /* bufferedDurationUs= */ 0, SPEED))
+        .isTrue();
+    // Allocate beyond the minimum grant of one allocation.
+    allocator.allocate();
+    allocator.allocate();
+    assertThat(
+            loadControl.shouldContinueLoading(
+                /* playbackPositionUs= */ 0, /* bufferedDurationUs= */ 0, SPEED))
+        .isTrue();
+    assertThat(
+            loadControl.shouldContinueLoading(
+                /* playbackPositionUs= */ 0, BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_US, SPEED))
+        .isFalse();
+  }
+
+  @Test
+  public void shouldStartPlayback_withExhaustedBufferBudget_ignoresSizeThreshold() {
+    SharedBufferBudget bufferBudget = new SharedBufferBudget(TARGET_BUFFER_BYTES);
+    DefaultLoadControl highPriorityLoadControl =
+        new Builder()
+            .setAllocator(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE))
+            .setTargetBufferBytes(TARGET_BUFFER_BYTES)
+            .setBufferBudget(bufferBudget, C.PRIORITY_PLAYBACK)
+            .createDefaultLoadControl();
+    highPriorityLoadControl.onTracksSelected(new Renderer[0], null, null);
+    builder.setBufferBudget(bufferBudget, C.PRIORITY_PLAYBACK - 1);
+    createDefaultLoadControl();
+    allocator.allocate();
+
+    assertThat(
+            loadControl.shouldStartPlayback(
+                /* bufferedDurationUs= */ 0, SPEED, /* rebuffering= */ false))
+        .isFalse();
+    assertThat(
+            loadControl.shouldStartPlayback(
+                C.msToUs(DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS),
+                SPEED,
+                /* rebuffering= */ false))
+        .isTrue();
+  }
+
+  @Test
+  public void shouldContinueLoading_afterHigherPriorityPlayerReleased_returnsTrue() {
+    SharedBufferBudget bufferBudget = new SharedBufferBudget(TARGET_BUFFER_BYTES);
+    DefaultLoadControl highPriorityLoadControl =
+        new Builder()
+            .setAllocator(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE))
+            .setTargetBufferBytes(TARGET_BUFFER_BYTES)
+            .setBufferBudget(bufferBudget, C.PRIORITY_PLAYBACK)
+            .createDefaultLoadControl();
+    highPriorityLoadControl.onTracksSelected(new Renderer[0], null, null);
+    builder.setBufferBudget(bufferBudget, C.PRIORITY_PLAYBACK - 1);
+    createDefaultLoadControl();
+
+    highPriorityLoadControl.onReleased();
+
+    assertThat(
+            loadControl.shouldContinueLoading(
+                /* playbackPositionUs= */ 0, /* bufferedDurationUs= */ 0, SPEED))
+        .isTrue();
+  }
+
   private void createDefaultLoadControl() {
     builder.setAllocator(allocator).setTargetBufferBytes(TARGET_BUFFER_BYTES);
     loadControl = builder.createDefaultLoadControl();
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.SharedBufferBudget.Client;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link SharedBufferBudget}. */
+@RunWith(AndroidJUnit4.class)
+public final class SharedBufferBudgetTest {
+
+  private static final int ALLOCATION_SIZE = 16;
+
+  @Test
+  public void setRequestedBufferBytes_grantsInPriorityOrder() {
+    SharedBufferBudget budget = new SharedBufferBudget(/* budgetBytes= */ 100);
+    Client lowPriorityClient = budget.createClient(newAllocator(), /* priority= */ -1);
+    Client highPriorityClient = budget.createClient(newAllocator(), /* priority= */ 1);
+
+    lowPriorityClient.setRequestedBufferBytes(60);
+    highPriorityClient.setRequestedBufferBytes(60);
+
+    assertThat(highPriorityClient.getGrantedBufferBytes()).isEqualTo(60);
+    assertThat(highPriorityClient.isConstrained()).isFalse();
+    assertThat(lowPriorityClient.getGrantedBufferBytes()).isEqualTo(40);
+    assertThat(lowPriorityClient.isConstrained()).isTrue();
+    assertThat(budget.getClients())
+        .containsExactly(highPriorityClient, lowPriorityClient)
+        .inOrder();
+  }
+
+  @Test
+  public void setRequestedBufferBytes_withExhaustedBudget_grantsOneAllocation() {
+    SharedBufferBudget budget = new SharedBufferBudget(/* budgetBytes= */ 100);
+    Client highPriorityClient = budget.createClient(newAllocator(), /* priority= */ 1);
+    Client lowPriorityClient = budget.createClient(newAllocator(), /* priority= */ -1);
+
+    highPriorityClient.setRequestedBufferBytes(100);
+    lowPriorityClient.setRequestedBufferBytes(60);
+
+    assertThat(highPriorityClient.getGrantedBufferBytes()).isEqualTo(100 - ALLOCATION_SIZE);
+    assertThat(lowPriorityClient.getGrantedBufferBytes()).isEqualTo(ALLOCATION_SIZE);
+    assertThat(lowPriorityClient.isConstrained()).isTrue();
+  }
+
+  @Test
+  public void setRequestedBufferBytes_withClientAboveUpdatedGrant_notifiesListener() {
+    SharedBufferBudget budget = new SharedBufferBudget(/* budgetBytes= */ 100);
+    List<Client> overBudgetClients = new ArrayList<>();
+    List<Integer> excessBytes = new ArrayList<>();
+    budget.setListener(
+        (client, bytes) -> {
+          overBudgetClients.add(client);
+          excessBytes.add(bytes);
+        });
+    DefaultAllocator lowPriorityAllocator = newAllocator();
+    Client lowPriorityClient = budget.createClient(lowPriorityAllocator, /* priority= */ -1);
+    Client highPriorityClient = budget.createClient(newAllocator(), /* priority= */ 1);
+    lowPriorityClient.setRequestedBufferBytes(100);
+    for (int i = 0; i < 4; i++) {
+      lowPriorityAllocator.allocate();
+    }
+
+    highPriorityClient.setRequestedBufferBytes(100);
+
+    assertThat(overBudgetClients).containsExactly(lowPriorityClient);
+    assertThat(excessBytes).containsExactly(4 * ALLOCATION_SIZE - ALLOCATION_SIZE);
+  }
+
+  @Test
+  public void unregister_releasesGrantToOtherClients() {
+    SharedBufferBudget budget = new SharedBufferBudget(/* budgetBytes= */ 100);
+    Client client1 = budget.createClient(newAllocator(), /* priority= */ 0);
+    Client client2 = budget.createClient(newAllocator(), /* priority= */ 0);
+    client1.setRequestedBufferBytes(100);
+    client2.setRequestedBufferBytes(100);
+
+    client1.unregister();
+
+    assertThat(client2.getGrantedBufferBytes()).isEqualTo(100);
+    assertThat(budget.getClients()).containsExactly(client2);
+  }
+
+  @Test
+  public void getTotalBytesAllocated_sumsUsageOfClients() {
+    SharedBufferBudget budget = new SharedBufferBudget(/* budgetBytes= */ 100);
+    DefaultAllocator allocator1 = newAllocator();
+    DefaultAllocator allocator2 = newAllocator();
+    Client client1 = budget.createClient(allocator1, /* priority= */ 0);
+    Client client2 = budget.createClient(allocator2, /* priority= */ 0);
+    client1.setRequestedBufferBytes(50);
+    client2.setRequestedBufferBytes(50);
+
+    allocator1.allocate();
+    allocator2.allocate();
+    allocator2.allocate();
+
+    assertThat(client1.getTotalBytesAllocated()).isEqualTo(ALLOCATION_SIZE);
+    assertThat(client2.getTotalBytesAllocated()).isEqualTo(2 * ALLOCATION_SIZE);
+    assertThat(budget.getTotalBytesAllocated()).isEqualTo(3 * ALLOCATION_SIZE);
+  }
+
+  private static DefaultAllocator newAllocator() {
+    return new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.offline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.testutil.DownloadBuilder;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link BatchingDownloadIndex}. */
+@RunWith(AndroidJUnit4.class)
+public final class BatchingDownloadIndexTest {
+
+  private static final long FLUSH_INTERVAL_MS = 1000;
+
+  private ExoDatabaseProvider databaseProvider;
+  private DefaultDownloadIndex defaultDownloadIndex;
+  private FakeClock clock;
+  private BatchingDownloadIndex downloadIndex;
+
+  @Before
+  public void setUp() {
+    databaseProvider = new ExoDatabaseProvider(ApplicationProvider.getApplicationContext());
+    defaultDownloadIndex = new DefaultDownloadIndex(databaseProvider);
+    clock = new FakeClock(/* initialTimeMs= */ 0);
+    downloadIndex = new BatchingDownloadIndex(defaultDownloadIndex, FLUSH_INTERVAL_MS, clock);
+  }
+
+  @After
+  public void tearDown() {
+    databaseProvider.close();
+  }
+
+  @Test
+  public void putDownload_newDownload_isWrittenImmediately() throws Exception {
+    downloadIndex.putDownload(newDownload("id", Download.STATE_DOWNLOADING, /* percent= */ 0));
+
+    assertThat(defaultDownloadIndex.getDownload("id")).isNotNull();
+  }
+
+  @Test
+  public void putDownload_progressUpdate_isHeldUntilFlushInterval() throws Exception {
+    downloadIndex.putDownload(newDownload("id1", Download.STATE_DOWNLOADING, /* percent= */ 0));
+    downloadIndex.putDownload(newDownload("id2", Download.STATE_DOWNLOADING, /* percent= */ 0));
+
+    downloadIndex.putDownload(newDownload("id1", Download.STATE_DOWNLOADING, /* percent= */ 10));
+    clock.advanceTime(FLUSH_INTERVAL_MS - 1);
+    downloadIndex.putDownload(newDownload("id2", Download.STATE_DOWNLOADING, /* percent= */ 20));
+    assertThat(getPercentDownloaded("id1")).isEqualTo(0);
+    assertThat(getPercentDownloaded("id2")).isEqualTo(0);
+
+    clock.advanceTime(1);
+    downloadIndex.putDownload(newDownload("id1", Download.STATE_DOWNLOADING, /* percent= */ 30));
+    assertThat(getPercentDownloaded("id1")).isEqualTo(30);
+    assertThat(getPercentDownloaded("id2")).isEqualTo(20);
+  }
+
+  @Test
+  public void putDownload_stateChange_writesHeldUpdatesAndDownload() throws Exception {
+    downloadIndex.putDownload(newDownload("id1", Download.STATE_DOWNLOADING, /* percent= */ 0));
+    downloadIndex.putDownload(newDownload("id2", Download.STATE_DOWNLOADING, /* percent= */ 0));
+    downloadIndex.putDownload(newDownload("id1", Download.STATE_DOWNLOADING, /* percent= */ 10));
+
+    downloadIndex.putDownload(newDownload("id2", Download.STATE_COMPLETED, /* percent= */ 100));
+
+    assertThat(getPercentDownloaded("id1")).isEqualTo(10);
+    assertThat(defaultDownloadIndex.getDownload("id2").state).isEqualTo(Download.STATE_COMPLETED);
+  }
+
+  @Test
+  public void setDownloadingStatesToQueued_writesHeldUpdates() throws Exception {
+    downloadIndex.putDownload(newDownload("id", Download.STATE_DOWNLOADING, /* percent= */ 0));
+    downloadIndex.putDownload(newDownload("id", Download.STATE_DOWNLOADING, /* percent= */ 10));
+
+    downloadIndex.setDownloadingStatesToQueued();
+
+    Download download = defaultDownloadIndex.getDownload("id");
+    assertThat(download.state).isEqualTo(Download.STATE_QUEUED);
+    assertThat(download.getPercentDownloaded()).isEqualTo(10);
+  }
+
+  @Test
+  public void getDownload_returnsHeldUpdate() throws Exception {
+    downloadIndex.putDownload(newDownload("id", Download.STATE_DOWNLOADING, /* percent= */ 0));
+    downloadIndex.putDownload(newDownload("id", Download.STATE_DOWNLOADING, /* percent= */ 10));
+
+    assertThat(downloadIndex.getDownload("id").getPercentDownloaded()).isEqualTo(10);
+  }
+
+  @Test
+  public void removeDownload_discardsHeldUpdate() throws Exception {
+    downloadIndex.putDownload(newDownload("id", Download.STATE_DOWNLOADING, /* percent= */ 0));
+    downloadIndex.putDownload(newDownload("id", Download.STATE_DOWNLOADING, /* percent= */ 10));
+
+    downloadIndex.removeDownload("id");
+    downloadIndex.flush();
+
+    assertThat(defaultDownloadIndex.getDownload("id")).isNull();
+  }
+
+  private float getPercentDownloaded(String id) throws Exception {
+    return defaultDownloadIndex.getDownload(id).getPercentDownloaded();
+  }
+
+  private static Download newDownload(String id, @Download.State int state, float percent) {
+    return new DownloadBuilder(id)
+        .setState(state)
+        .setContentLength(100)
+        .setBytesDownloaded((long) percent)
+        .setPercentDownloaded(percent)
+        .build();
+  }
+}
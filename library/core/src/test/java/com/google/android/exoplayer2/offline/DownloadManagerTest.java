@@ -29,6 +29,7 @@ import com.google.android.exoplayer2.testutil.DummyMainThread;
 import com.google.android.exoplayer2.testutil.DummyMainThread.TestRunnable;
 import com.google.android.exoplayer2.testutil.TestDownloadManagerListener;
 import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataRateLimiter;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.ConditionVariable;
 import java.io.IOException;
@@ -377,6 +378,141 @@ public class DownloadManagerTest {
     assertCurrentDownloadCount(0);
   }
 
+  @Test
+  public void downloads_withEarlierDeadline_maxDownloadsIsOne_areStartedFirst() throws Throwable {
+    setupDownloadManager(/* maxParallelDownloads= */ 1);
+    postDownloadRequest(ID1);
+    postDownloadRequest(ID2);
+    postDownloadRequest(ID3);
+    postSetDownloadPriority(ID3, /* priority= */ 0, /* deadlineMs= */ NOW_MS);
+    FakeDownloader downloader0 = getDownloaderAt(0);
+    downloader0.assertId(ID1);
+    downloader0.assertDownloadStarted();
+
+    // The first download has the same priority as the third, so isn't preempted.
+    downloader0.finish();
+    assertCompleted(ID1);
+
+    // The third download has a deadline and the second doesn't, so the third should start next.
+    FakeDownloader downloader1 = getDownloaderAt(1);
+    downloader1.assertId(ID3);
+    downloader1.assertDownloadStarted();
+    downloader1.finish();
+    assertCompleted(ID3);
+
+    FakeDownloader downloader2 = getDownloaderAt(2);
+    downloader2.assertId(ID2);
+    downloader2.assertDownloadStarted();
+    downloader2.finish();
+    assertCompleted(ID2);
+
+    downloadManagerListener.blockUntilIdleAndThrowAnyFailure();
+    assertDownloaderCount(3);
+  }
+
+  @Test
+  public void download_withHigherPriority_maxDownloadsIsOne_preemptsLowerPriorityDownload()
+      throws Throwable {
+    setupDownloadManager(/* maxParallelDownloads= */ 1);
+    postDownloadRequest(ID1);
+    FakeDownloader downloader0 = getDownloaderAt(0);
+    downloader0.assertId(ID1);
+    downloader0.assertDownloadStarted();
+    postDownloadRequest(ID2);
+    assertQueued(ID2);
+
+    // Prioritizing the second download should cancel and requeue the first.
+    postSetDownloadPriority(ID2, /* priority= */ 1, /* deadlineMs= */ C.TIME_UNSET);
+    downloader0.assertCanceled();
+    FakeDownloader downloader1 = getDownloaderAt(1);
+    downloader1.assertId(ID2);
+    downloader1.assertDownloadStarted();
+    assertQueued(ID1);
+    downloader1.finish();
+    assertCompleted(ID2);
+
+    // The first download is resumed once the second has completed.
+    FakeDownloader downloader2 = getDownloaderAt(2);
+    downloader2.assertId(ID1);
+    downloader2.assertDownloadStarted();
+    downloader2.finish();
+    assertCompleted(ID1);
+
+    downloadManagerListener.blockUntilIdleAndThrowAnyFailure();
+    assertDownloaderCount(3);
+    assertCurrentDownloadCount(0);
+  }
+
+  @Test
+  public void setMaxBytesPerSecond_sharesRateEquallyBetweenDownloads() throws Throwable {
+    postDownloadRequest(ID1);
+    postDownloadRequest(ID2);
+    FakeDownloader downloader0 = getDownloaderAt(0);
+    FakeDownloader downloader1 = getDownloaderAt(1);
+    downloader0.assertDownloadStarted();
+    downloader1.assertDownloadStarted();
+
+    postSetMaxBytesPerSecond(1000);
+    postPauseDownloadsAndAssertCanceled(downloader0, downloader1);
+
+    downloader0.assertMaxBytesPerSecond(500);
+    downloader1.assertMaxBytesPerSecond(500);
+  }
+
+  @Test
+  public void setMaxBytesPerSecond_unset_removesRateLimit() throws Throwable {
+    postDownloadRequest(ID1);
+    FakeDownloader downloader0 = getDownloaderAt(0);
+    downloader0.assertDownloadStarted();
+
+    postSetMaxBytesPerSecond(1000);
+    postSetMaxBytesPerSecond(C.LENGTH_UNSET);
+    postPauseDownloadsAndAssertCanceled(downloader0);
+
+    downloader0.assertMaxBytesPerSecond(C.LENGTH_UNSET);
+  }
+
+  @Test
+  public void setMaxBytesPerSecond_withPriorities_givesHigherPriorityDownloadsLargerShares()
+      throws Throwable {
+    postDownloadRequest(ID1);
+    postDownloadRequest(ID2);
+    postDownloadRequest(ID3);
+    FakeDownloader downloader0 = getDownloaderAt(0);
+    FakeDownloader downloader1 = getDownloaderAt(1);
+    FakeDownloader downloader2 = getDownloaderAt(2);
+    downloader0.assertDownloadStarted();
+    downloader1.assertDownloadStarted();
+    downloader2.assertDownloadStarted();
+
+    postSetDownloadPriority(ID3, /* priority= */ 1, /* deadlineMs= */ C.TIME_UNSET);
+    postSetMaxBytesPerSecond(1000);
+    postPauseDownloadsAndAssertCanceled(downloader0, downloader1, downloader2);
+
+    // The third download gets twice the share of each of the others.
+    downloader0.assertMaxBytesPerSecond(250);
+    downloader1.assertMaxBytesPerSecond(250);
+    downloader2.assertMaxBytesPerSecond(500);
+  }
+
+  @Test
+  public void setMaxBytesPerSecond_afterDownloadCompletes_sharesRateBetweenRemainingDownloads()
+      throws Throwable {
+    postDownloadRequest(ID1);
+    postDownloadRequest(ID2);
+    FakeDownloader downloader0 = getDownloaderAt(0);
+    FakeDownloader downloader1 = getDownloaderAt(1);
+    downloader0.assertDownloadStarted();
+    downloader1.assertDownloadStarted();
+    postSetMaxBytesPerSecond(1000);
+
+    downloader1.finish();
+    assertCompleted(ID2);
+    postPauseDownloadsAndAssertCanceled(downloader0);
+
+    downloader0.assertMaxBytesPerSecond(1000);
+  }
+
   @Test
   public void downloadAndRemove_withDifferentIds_maxDownloadsIsOne_executeInParallel()
       throws Throwable {
@@ -705,6 +841,27 @@ public class DownloadManagerTest {
     runOnMainThread(() -> downloadManager.setStopReason(id, reason));
   }
 
+  private void postSetDownloadPriority(String id, int priority, long deadlineMs) {
+    runOnMainThread(() -> downloadManager.setDownloadPriority(id, priority, deadlineMs));
+  }
+
+  private void postSetMaxBytesPerSecond(long maxBytesPerSecond) {
+    runOnMainThread(() -> downloadManager.setMaxBytesPerSecond(maxBytesPerSecond));
+  }
+
+  /**
+   * Pauses the downloads and waits for the downloaders to be canceled. Since the pause is handled
+   * after all previously posted requests, their effects are visible to the caller once this method
+   * returns.
+   */
+  private void postPauseDownloadsAndAssertCanceled(FakeDownloader... downloaders)
+      throws InterruptedException {
+    postPauseDownloads();
+    for (FakeDownloader downloader : downloaders) {
+      downloader.assertCanceled();
+    }
+  }
+
   private void postDownloadRequest(String id, StreamKey... keys) {
     runOnMainThread(() -> downloadManager.addDownload(createDownloadRequest(id, keys)));
   }
@@ -842,6 +999,7 @@ public class DownloadManagerTest {
     private final AtomicInteger startCount;
     private final AtomicInteger bytesDownloaded;
 
+    @Nullable private volatile DataRateLimiter rateLimiter;
     private volatile boolean canceled;
     private volatile boolean enableDownloadIOException;
 
@@ -855,6 +1013,11 @@ public class DownloadManagerTest {
       bytesDownloaded = new AtomicInteger();
     }
 
+    @Override
+    public void setRateLimiter(@Nullable DataRateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+    }
+
     @Override
     public void cancel() {
       canceled = true;
@@ -935,6 +1098,11 @@ public class DownloadManagerTest {
       assertThat(canceled).isTrue();
     }
 
+    public void assertMaxBytesPerSecond(long maxBytesPerSecond) {
+      assertThat(Assertions.checkNotNull(rateLimiter).getMaxBytesPerSecond())
+          .isEqualTo(maxBytesPerSecond);
+    }
+
     // Internal methods.
 
     private void block() {
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.offline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.testutil.FakeDataSet;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.ConditionVariable;
+import com.google.android.exoplayer2.util.Util;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link PlaylistCachePrefetcher}. */
+@RunWith(AndroidJUnit4.class)
+public final class PlaylistCachePrefetcherTest {
+
+  private static final long TIMEOUT_MS = 10_000;
+  // 100 bytes per second of media.
+  private static final int ASSUMED_BITRATE = 800;
+
+  private File tempFolder;
+  private SimpleCache cache;
+  private PlaylistCachePrefetcher prefetcher;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFolder =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    cache = new SimpleCache(tempFolder, new NoOpCacheEvictor());
+    FakeDataSet fakeDataSet =
+        new FakeDataSet()
+            .setRandomData("item1", 1000)
+            .setRandomData("item2", 1000)
+            .setRandomData("item3.mpd", 1000);
+    CacheDataSource.Factory cacheDataSourceFactory =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(new FakeDataSource.Factory().setFakeDataSet(fakeDataSet));
+    prefetcher = new PlaylistCachePrefetcher(cacheDataSourceFactory);
+  }
+
+  @After
+  public void tearDown() {
+    prefetcher.release();
+    cache.release();
+    Util.recursiveDelete(tempFolder);
+  }
+
+  @Test
+  public void prefetch_cachesStartOfEachItem() throws Exception {
+    prefetcher.setDuration(/* durationMs= */ 2000, ASSUMED_BITRATE);
+
+    prefetcher.prefetch(ImmutableList.of(MediaItem.fromUri("item1"), MediaItem.fromUri("item2")));
+
+    waitForCachedBytes("item2", 200);
+    assertThat(cache.getCachedBytes("item1", 0, 1000)).isEqualTo(200);
+  }
+
+  @Test
+  public void prefetch_limitsTotalBytesToMaxBytes() throws Exception {
+    prefetcher.setDuration(/* durationMs= */ 2000, ASSUMED_BITRATE);
+    prefetcher.setMaxBytes(300);
+
+    prefetcher.prefetch(ImmutableList.of(MediaItem.fromUri("item1"), MediaItem.fromUri("item2")));
+
+    waitForCachedBytes("item2", 100);
+    assertThat(cache.getCachedBytes("item1", 0, 1000)).isEqualTo(200);
+  }
+
+  @Test
+  public void prefetch_withUnloadableAdaptiveItem_prefetchesNextItem() throws Exception {
+    prefetcher.setDuration(/* durationMs= */ 2000, ASSUMED_BITRATE);
+
+    // The adaptive item is skipped if the DASH module is missing, and fails to load otherwise.
+    prefetcher.prefetch(
+        ImmutableList.of(MediaItem.fromUri("item3.mpd"), MediaItem.fromUri("item1")));
+
+    waitForCachedBytes("item1", 200);
+  }
+
+  private void waitForCachedBytes(String key, long bytes) throws InterruptedException {
+    ConditionVariable spanAdded = TestUtil.createRobolectricConditionVariable();
+    Cache.Listener listener =
+        new Cache.Listener() {
+          @Override
+          public void onSpanAdded(Cache cache, CacheSpan span) {
+            spanAdded.open();
+          }
+
+          @Override
+          public void onSpanRemoved(Cache cache, CacheSpan span) {}
+
+          @Override
+          public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {}
+        };
+    cache.addListener(key, listener);
+    try {
+      while (true) {
+        spanAdded.close();
+        if (cache.getCachedBytes(key, 0, 1000) >= bytes) {
+          break;
+        }
+        assertThat(spanAdded.block(TIMEOUT_MS)).isTrue();
+      }
+    } finally {
+      cache.removeListener(key, listener);
+    }
+    assertThat(cache.getCachedBytes(key, 0, 1000)).isEqualTo(bytes);
+  }
+}
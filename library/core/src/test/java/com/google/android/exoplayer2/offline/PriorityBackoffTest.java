@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.offline;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link PriorityBackoff}. */
+@RunWith(AndroidJUnit4.class)
+public final class PriorityBackoffTest {
+
+  private FakeClock clock;
+  private PriorityBackoff priorityBackoff;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock(/* initialTimeMs= */ 0);
+    PriorityTaskManager priorityTaskManager = new PriorityTaskManager();
+    priorityTaskManager.add(C.PRIORITY_DOWNLOAD);
+    priorityBackoff = new PriorityBackoff(priorityTaskManager, C.PRIORITY_DOWNLOAD, clock);
+  }
+
+  @Test
+  public void getDelayMs_withoutPreemption_isZero() throws Exception {
+    priorityBackoff.proceed();
+
+    assertThat(priorityBackoff.getDelayMs()).isEqualTo(0);
+  }
+
+  @Test
+  public void getDelayMs_afterPreemption_isInitialDelay() throws Exception {
+    priorityBackoff.proceed();
+    priorityBackoff.onPreempted();
+
+    assertThat(priorityBackoff.getDelayMs()).isEqualTo(PriorityBackoff.INITIAL_DELAY_MS);
+  }
+
+  @Test
+  public void getDelayMs_afterPreemptionOfParallelLoads_countsSinglePreemption()
+      throws Exception {
+    priorityBackoff.proceed();
+    priorityBackoff.onPreempted();
+    priorityBackoff.onPreempted();
+    priorityBackoff.onPreempted();
+
+    assertThat(priorityBackoff.getDelayMs()).isEqualTo(PriorityBackoff.INITIAL_DELAY_MS);
+  }
+
+  @Test
+  public void getDelayMs_afterRepeatedPreemption_increases() throws Exception {
+    priorityBackoff.proceed();
+    priorityBackoff.onPreempted();
+    priorityBackoff.proceed();
+    priorityBackoff.onPreempted();
+
+    assertThat(priorityBackoff.getDelayMs()).isEqualTo(2 * PriorityBackoff.INITIAL_DELAY_MS);
+  }
+
+  @Test
+  public void getDelayMs_afterPreemptionFollowingLongRun_isReset() throws Exception {
+    priorityBackoff.proceed();
+    priorityBackoff.onPreempted();
+    priorityBackoff.proceed();
+    clock.advanceTime(PriorityBackoff.RESET_RUN_TIME_MS);
+    priorityBackoff.onPreempted();
+
+    assertThat(priorityBackoff.getDelayMs()).isEqualTo(PriorityBackoff.INITIAL_DELAY_MS);
+  }
+}
@@ -28,6 +28,7 @@ import static org.mockito.Mockito.when;
 
 import android.os.Looper;
 import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
@@ -37,14 +38,19 @@ import com.google.android.exoplayer2.drm.DrmInitData;
 import com.google.android.exoplayer2.drm.DrmSession;
 import com.google.android.exoplayer2.drm.DrmSessionManager;
 import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.testutil.FakeExtractorInput;
 import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.AllocationSpillFile;
 import com.google.android.exoplayer2.upstream.Allocator;
 import com.google.android.exoplayer2.upstream.DefaultAllocator;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.MediaSourceEventDispatcher;
 import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
 import com.google.common.primitives.Bytes;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
@@ -322,6 +328,154 @@ public final class SampleQueueTest {
     assertAllocationCount(0);
   }
 
+  @Test
+  public void readMultiSamplesWithDirectAllocations() {
+    allocator =
+        new DefaultAllocator(
+            /* trimOnReset= */ false,
+            ALLOCATION_SIZE,
+            /* initialAllocationCount= */ 4,
+            /* useDirectBuffers= */ true);
+    sampleQueue =
+        new SampleQueue(
+            allocator,
+            /* playbackLooper= */ Assertions.checkNotNull(Looper.myLooper()),
+            mockDrmSessionManager,
+            eventDispatcher);
+
+    writeTestData();
+    assertAllocationCount(10);
+    assertReadTestData();
+    sampleQueue.discardToRead();
+    assertAllocationCount(0);
+  }
+
+  @Test
+  public void readMultiWithSeekSpillsBackBuffer() throws Exception {
+    File spillDirectory =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    try {
+      DefaultAllocator spillingAllocator = new DefaultAllocator(false, ALLOCATION_SIZE);
+      spillingAllocator.setBackBufferSpillFile(
+          new AllocationSpillFile(
+              spillDirectory,
+              ALLOCATION_SIZE,
+              /* inMemoryBackBufferBytes= */ 4 * ALLOCATION_SIZE,
+              /* executor= */ Runnable::run));
+      allocator = spillingAllocator;
+      sampleQueue =
+          new SampleQueue(
+              allocator,
+              /* playbackLooper= */ Assertions.checkNotNull(Looper.myLooper()),
+              mockDrmSessionManager,
+              eventDispatcher);
+
+      writeTestData();
+      assertReadTestData();
+      // All but the 4 most recently read allocations are spilled.
+      assertAllocationCount(4);
+      assertThat(spillDirectory.listFiles()).hasLength(1);
+      // Seek back and read the spilled data again.
+      sampleQueue.seekTo(0);
+      assertReadTestData();
+      assertAllocationCount(4);
+      sampleQueue.discardToRead();
+      assertAllocationCount(0);
+      // The file is deleted once none of the spilled data is retained.
+      assertThat(spillDirectory.listFiles()).isEmpty();
+    } finally {
+      Util.recursiveDelete(spillDirectory);
+    }
+  }
+
+  @Test
+  public void readMultiWithPendingSpills_keepsAllocationsUntilSpilled() throws Exception {
+    File spillDirectory =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    try {
+      ArrayList<Runnable> pendingSpills = new ArrayList<>();
+      DefaultAllocator spillingAllocator = new DefaultAllocator(false, ALLOCATION_SIZE);
+      spillingAllocator.setBackBufferSpillFile(
+          new AllocationSpillFile(
+              spillDirectory,
+              ALLOCATION_SIZE,
+              /* inMemoryBackBufferBytes= */ 0,
+              /* executor= */ pendingSpills::add));
+      allocator = spillingAllocator;
+      sampleQueue =
+          new SampleQueue(
+              allocator,
+              /* playbackLooper= */ Assertions.checkNotNull(Looper.myLooper()),
+              mockDrmSessionManager,
+              eventDispatcher);
+
+      writeTestData();
+      assertReadTestData();
+      // The spills haven't run, so no allocations have been released.
+      assertThat(pendingSpills).isNotEmpty();
+      assertAllocationCount(10);
+      for (Runnable pendingSpill : pendingSpills) {
+        pendingSpill.run();
+      }
+      pendingSpills.clear();
+      // Reading again applies the finished spills.
+      sampleQueue.seekTo(0);
+      assertReadTestData();
+      assertThat(allocator.getTotalBytesAllocated()).isLessThan(10 * ALLOCATION_SIZE);
+
+      // Resetting cancels the spills that are still pending.
+      sampleQueue.reset();
+      for (Runnable pendingSpill : pendingSpills) {
+        pendingSpill.run();
+      }
+      assertAllocationCount(0);
+      assertThat(spillDirectory.listFiles()).isEmpty();
+    } finally {
+      Util.recursiveDelete(spillDirectory);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("ReferenceEquality")
+  public void readMultiSamplesFromDataReaderWithDirectAllocations() throws Exception {
+    allocator =
+        new DefaultAllocator(
+            /* trimOnReset= */ false,
+            ALLOCATION_SIZE,
+            /* initialAllocationCount= */ 0,
+            /* useDirectBuffers= */ true);
+    sampleQueue =
+        new SampleQueue(
+            allocator,
+            /* playbackLooper= */ Assertions.checkNotNull(Looper.myLooper()),
+            mockDrmSessionManager,
+            eventDispatcher);
+    FakeExtractorInput input = new FakeExtractorInput.Builder().setData(DATA).build();
+
+    int bytesWritten = 0;
+    while (bytesWritten < DATA.length) {
+      bytesWritten +=
+          sampleQueue.sampleData(
+              input, DATA.length - bytesWritten, /* allowEndOfInput= */ false);
+    }
+    Format format = null;
+    for (int i = 0; i < SAMPLE_TIMESTAMPS.length; i++) {
+      if (SAMPLE_FORMATS[i] != format) {
+        sampleQueue.format(SAMPLE_FORMATS[i]);
+        format = SAMPLE_FORMATS[i];
+      }
+      sampleQueue.sampleMetadata(
+          SAMPLE_TIMESTAMPS[i],
+          SAMPLE_FLAGS[i],
+          SAMPLE_SIZES[i],
+          SAMPLE_OFFSETS[i],
+          /* cryptoData= */ null);
+    }
+
+    assertAllocationCount(10);
+    assertReadTestData();
+  }
+
   @Test
   public void readMultiWithSeek() {
     writeTestData();
@@ -387,6 +541,28 @@ public final class SampleQueueTest {
     assertThat(inputBuffer.waitingForKeys).isFalse();
   }
 
+  @Test
+  public void readEncryptedSectionsWithDirectAllocations() {
+    allocator =
+        new DefaultAllocator(
+            /* trimOnReset= */ false,
+            ALLOCATION_SIZE,
+            /* initialAllocationCount= */ 0,
+            /* useDirectBuffers= */ true);
+    sampleQueue =
+        new SampleQueue(
+            allocator,
+            /* playbackLooper= */ Assertions.checkNotNull(Looper.myLooper()),
+            mockDrmSessionManager,
+            eventDispatcher);
+    when(mockDrmSession.getState()).thenReturn(DrmSession.STATE_OPENED_WITH_KEYS);
+    writeTestDataWithEncryptedSections();
+
+    assertReadFormat(/* formatRequired= */ false, FORMAT_ENCRYPTED);
+    assertReadEncryptedSample(/* sampleIndex= */ 0);
+    assertReadEncryptedSample(/* sampleIndex= */ 1);
+  }
+
   @Test
   public void readEncryptedSectionsPopulatesDrmSession() {
     when(mockDrmSession.getState()).thenReturn(DrmSession.STATE_OPENED_WITH_KEYS);
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link AllocationSpillFile}. */
+@RunWith(AndroidJUnit4.class)
+public final class AllocationSpillFileTest {
+
+  private static final int ALLOCATION_SIZE = 16;
+  private static final int TIMEOUT_MS = 10_000;
+
+  private File spillDirectory;
+
+  @Before
+  public void setUp() throws Exception {
+    spillDirectory =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+  }
+
+  @After
+  public void tearDown() {
+    Util.recursiveDelete(spillDirectory);
+  }
+
+  @Test
+  public void spill_copiesAllocationOnBackgroundThread() throws Exception {
+    AllocationSpillFile spillFile =
+        new AllocationSpillFile(spillDirectory, ALLOCATION_SIZE, /* inMemoryBackBufferBytes= */ 0);
+    byte[] data = TestUtil.buildTestData(ALLOCATION_SIZE + 4);
+    Allocation allocation = new Allocation(data, /* offset= */ 4);
+
+    AllocationSpillFile.Spill spill = spillFile.spill(allocation);
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (!spill.isDone() && System.currentTimeMillis() < deadlineMs) {
+      Thread.sleep(10);
+    }
+
+    assertThat(spill.isDone()).isTrue();
+    int slot = spill.getSlot();
+    ByteBuffer slotBuffer = spillFile.getSlotBuffer(slot);
+    byte[] spilledData = new byte[ALLOCATION_SIZE];
+    slotBuffer.get(spilledData);
+    assertThat(spilledData).isEqualTo(Arrays.copyOfRange(data, 4, data.length));
+    assertThat(spillDirectory.listFiles()).hasLength(1);
+  }
+
+  @Test
+  public void free_lastUsedSlot_deletesFile() throws Exception {
+    AllocationSpillFile spillFile =
+        new AllocationSpillFile(
+            spillDirectory,
+            ALLOCATION_SIZE,
+            /* inMemoryBackBufferBytes= */ 0,
+            /* executor= */ Runnable::run);
+    int slot1 = spillFile.spill(newAllocation()).getSlot();
+    int slot2 = spillFile.spill(newAllocation()).getSlot();
+
+    spillFile.free(slot1);
+    assertThat(spillDirectory.listFiles()).hasLength(1);
+    spillFile.free(slot2);
+
+    assertThat(spillDirectory.listFiles()).isEmpty();
+  }
+
+  @Test
+  public void cancel_beforeSpillRuns_doesNotCreateFile() {
+    ArrayList<Runnable> pendingSpills = new ArrayList<>();
+    AllocationSpillFile spillFile =
+        new AllocationSpillFile(
+            spillDirectory,
+            ALLOCATION_SIZE,
+            /* inMemoryBackBufferBytes= */ 0,
+            /* executor= */ pendingSpills::add);
+    AllocationSpillFile.Spill spill = spillFile.spill(newAllocation());
+
+    spill.cancel();
+    pendingSpills.get(0).run();
+
+    assertThat(spill.isDone()).isTrue();
+    assertThat(spillDirectory.listFiles()).isEmpty();
+  }
+
+  @Test
+  public void cancel_afterSpillRan_freesSlot() {
+    AllocationSpillFile spillFile =
+        new AllocationSpillFile(
+            spillDirectory,
+            ALLOCATION_SIZE,
+            /* inMemoryBackBufferBytes= */ 0,
+            /* executor= */ Runnable::run);
+    AllocationSpillFile.Spill spill = spillFile.spill(newAllocation());
+    assertThat(spillDirectory.listFiles()).hasLength(1);
+
+    spill.cancel();
+
+    assertThat(spillDirectory.listFiles()).isEmpty();
+  }
+
+  private static Allocation newAllocation() {
+    return new Allocation(TestUtil.buildTestData(ALLOCATION_SIZE), /* offset= */ 0);
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link BandwidthPriorStore}. */
+@RunWith(AndroidJUnit4.class)
+public final class BandwidthPriorStoreTest {
+
+  private File file;
+  private FakeClock clock;
+  private ArrayDeque<Runnable> pendingTasks;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Util.createTempFile(ApplicationProvider.getApplicationContext(), "BandwidthPriorStore");
+    assertThat(file.delete()).isTrue();
+    clock = new FakeClock(/* initialTimeMs= */ 0);
+    pendingTasks = new ArrayDeque<>();
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void getBitrateEstimate_withoutEstimate_returnsNull() {
+    BandwidthPriorStore store = new BandwidthPriorStore(file, Runnable::run, clock);
+
+    assertThat(store.getBitrateEstimate("network")).isNull();
+  }
+
+  @Test
+  public void getBitrateEstimate_fromNewInstance_returnsPersistedEstimate() {
+    new BandwidthPriorStore(file, Runnable::run, clock).putBitrateEstimate("network1", 1_000_000);
+    new BandwidthPriorStore(file, Runnable::run, clock).putBitrateEstimate("network2", 2_000_000);
+
+    BandwidthPriorStore store = new BandwidthPriorStore(file, Runnable::run, clock);
+
+    assertThat(store.getBitrateEstimate("network1")).isEqualTo(1_000_000);
+    assertThat(store.getBitrateEstimate("network2")).isEqualTo(2_000_000);
+  }
+
+  @Test
+  public void getBitrateEstimate_beforeLoaded_returnsNullAndLoadsOnExecutor() {
+    new BandwidthPriorStore(file, Runnable::run, clock).putBitrateEstimate("network", 1_000_000);
+    BandwidthPriorStore store = new BandwidthPriorStore(file, pendingTasks::add, clock);
+    AtomicBoolean loaded = new AtomicBoolean();
+    store.load(bandwidthPriorStore -> loaded.set(true));
+
+    assertThat(store.getBitrateEstimate("network")).isNull();
+    runPendingTasks();
+
+    assertThat(loaded.get()).isTrue();
+    assertThat(store.getBitrateEstimate("network")).isEqualTo(1_000_000);
+  }
+
+  @Test
+  public void putBitrateEstimate_beforeLoaded_keepsNewEstimateAndPersistedEstimates() {
+    BandwidthPriorStore previousStore = new BandwidthPriorStore(file, Runnable::run, clock);
+    previousStore.putBitrateEstimate("network1", 1_000_000);
+    previousStore.putBitrateEstimate("network2", 2_000_000);
+    BandwidthPriorStore store = new BandwidthPriorStore(file, pendingTasks::add, clock);
+
+    store.putBitrateEstimate("network1", 3_000_000);
+    runPendingTasks();
+    store = new BandwidthPriorStore(file, Runnable::run, clock);
+
+    assertThat(store.getBitrateEstimate("network1")).isEqualTo(3_000_000);
+    assertThat(store.getBitrateEstimate("network2")).isEqualTo(2_000_000);
+  }
+
+  @Test
+  public void getBitrateEstimate_afterMaxAge_returnsNull() {
+    BandwidthPriorStore store = new BandwidthPriorStore(file, Runnable::run, clock);
+    store.putBitrateEstimate("network", 1_000_000);
+
+    clock.advanceTime(BandwidthPriorStore.MAX_AGE_MS + 1);
+
+    assertThat(store.getBitrateEstimate("network")).isNull();
+  }
+
+  @Test
+  public void putBitrateEstimate_exceedingMaxEntryCount_removesLeastRecentlyUpdatedEstimate() {
+    BandwidthPriorStore store = new BandwidthPriorStore(file, Runnable::run, clock);
+    for (int i = 0; i < BandwidthPriorStore.MAX_ENTRY_COUNT; i++) {
+      store.putBitrateEstimate("network" + i, 1_000_000);
+      clock.advanceTime(1);
+    }
+    store.putBitrateEstimate("network0", 2_000_000);
+    clock.advanceTime(1);
+
+    store.putBitrateEstimate("newNetwork", 3_000_000);
+
+    assertThat(store.getBitrateEstimate("network0")).isEqualTo(2_000_000);
+    assertThat(store.getBitrateEstimate("network1")).isNull();
+    assertThat(store.getBitrateEstimate("newNetwork")).isEqualTo(3_000_000);
+  }
+
+  @Test
+  public void getBitrateEstimate_withCorruptFile_returnsNull() throws Exception {
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(new byte[] {1, 2, 3});
+    }
+
+    BandwidthPriorStore store = new BandwidthPriorStore(file, Runnable::run, clock);
+
+    assertThat(store.getBitrateEstimate("network")).isNull();
+  }
+
+  private void runPendingTasks() {
+    while (!pendingTasks.isEmpty()) {
+      pendingTasks.remove().run();
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.util.ConditionVariable;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link DataRateLimiter}. */
+@RunWith(AndroidJUnit4.class)
+public final class DataRateLimiterTest {
+
+  private static final int TIMEOUT_MS = 10_000;
+
+  private FakeClock clock;
+  private DataRateLimiter rateLimiter;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock(/* initialTimeMs= */ 0);
+    rateLimiter = new DataRateLimiter(clock);
+  }
+
+  @Test
+  public void awaitAvailable_withoutRate_doesNotBlock() throws Exception {
+    rateLimiter.onBytesTransferred(1_000_000);
+
+    rateLimiter.awaitAvailable();
+
+    assertThat(rateLimiter.getMaxBytesPerSecond()).isEqualTo(C.LENGTH_UNSET);
+  }
+
+  @Test
+  public void awaitAvailable_withinRate_doesNotBlock() throws Exception {
+    rateLimiter.setMaxBytesPerSecond(1000);
+    rateLimiter.onBytesTransferred(100);
+    clock.advanceTime(100);
+
+    rateLimiter.awaitAvailable();
+  }
+
+  @Test
+  public void awaitAvailable_aboveRate_blocksUntilRateIsMet() throws Exception {
+    rateLimiter.setMaxBytesPerSecond(1000);
+    rateLimiter.onBytesTransferred(100);
+    ConditionVariable available = TestUtil.createRobolectricConditionVariable();
+    AtomicReference<Exception> exception = new AtomicReference<>();
+
+    awaitAvailableOnNewThread(available, exception);
+
+    // The transfer is 100ms ahead of the rate.
+    assertThat(available.block(/* timeoutMs= */ 500)).isFalse();
+    clock.advanceTime(100);
+    assertThat(available.block(TIMEOUT_MS)).isTrue();
+    assertThat(exception.get()).isNull();
+  }
+
+  @Test
+  public void awaitAvailable_afterPause_doesNotAllowTransfersAboveRate() throws Exception {
+    rateLimiter.setMaxBytesPerSecond(1000);
+    clock.advanceTime(10_000);
+    rateLimiter.onBytesTransferred(100);
+    ConditionVariable available = TestUtil.createRobolectricConditionVariable();
+    AtomicReference<Exception> exception = new AtomicReference<>();
+
+    awaitAvailableOnNewThread(available, exception);
+
+    assertThat(available.block(/* timeoutMs= */ 500)).isFalse();
+    rateLimiter.setMaxBytesPerSecond(C.LENGTH_UNSET);
+    assertThat(available.block(TIMEOUT_MS)).isTrue();
+    assertThat(exception.get()).isNull();
+  }
+
+  @Test
+  public void cancel_wakesBlockedThreadWithException() throws Exception {
+    rateLimiter.setMaxBytesPerSecond(1000);
+    rateLimiter.onBytesTransferred(10_000);
+    ConditionVariable available = TestUtil.createRobolectricConditionVariable();
+    AtomicReference<Exception> exception = new AtomicReference<>();
+
+    awaitAvailableOnNewThread(available, exception);
+    rateLimiter.cancel();
+
+    assertThat(available.block(TIMEOUT_MS)).isTrue();
+    assertThat(exception.get()).isInstanceOf(InterruptedIOException.class);
+    assertThrows(InterruptedIOException.class, rateLimiter::awaitAvailable);
+  }
+
+  @Test
+  public void awaitAvailable_whenInterrupted_throws() {
+    rateLimiter.setMaxBytesPerSecond(1000);
+    rateLimiter.onBytesTransferred(10_000);
+
+    Thread.currentThread().interrupt();
+
+    assertThrows(InterruptedIOException.class, rateLimiter::awaitAvailable);
+    assertThat(Thread.interrupted()).isTrue();
+  }
+
+  private void awaitAvailableOnNewThread(
+      ConditionVariable available, AtomicReference<Exception> exception) {
+    new Thread(
+            () -> {
+              try {
+                rateLimiter.awaitAvailable();
+              } catch (InterruptedIOException e) {
+                exception.set(e);
+              }
+              available.open();
+            })
+        .start();
+  }
+}
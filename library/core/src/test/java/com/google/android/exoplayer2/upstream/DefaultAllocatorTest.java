@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link DefaultAllocator}. */
+@RunWith(AndroidJUnit4.class)
+public final class DefaultAllocatorTest {
+
+  private static final int ALLOCATION_SIZE = 16;
+
+  @Test
+  public void allocate_reusesReleasedAllocations() {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+
+    Allocation allocation1 = allocator.allocate();
+    Allocation allocation2 = allocator.allocate();
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(2 * ALLOCATION_SIZE);
+    allocator.release(new Allocation[] {allocation1, allocation2});
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(0);
+
+    assertThat(allocator.allocate()).isAnyOf(allocation1, allocation2);
+    assertThat(allocator.allocate()).isAnyOf(allocation1, allocation2);
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(2 * ALLOCATION_SIZE);
+  }
+
+  @Test
+  public void trim_discardsAvailableAllocationsBeyondTarget() {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    allocator.setTargetBufferSize(3 * ALLOCATION_SIZE);
+    Allocation[] allocations = new Allocation[4];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = allocator.allocate();
+    }
+    allocator.release(allocations);
+
+    allocator.trim();
+
+    Set<Allocation> reused = newIdentitySet();
+    for (int i = 0; i < allocations.length; i++) {
+      reused.add(allocator.allocate());
+    }
+    int reusedCount = 0;
+    for (Allocation allocation : allocations) {
+      if (reused.contains(allocation)) {
+        reusedCount++;
+      }
+    }
+    assertThat(reusedCount).isEqualTo(3);
+  }
+
+  @Test
+  public void reset_keepsInitialAllocations() {
+    DefaultAllocator allocator =
+        new DefaultAllocator(
+            /* trimOnReset= */ true,
+            ALLOCATION_SIZE,
+            /* initialAllocationCount= */ 2,
+            /* useDirectBuffers= */ false);
+    allocator.setTargetBufferSize(3 * ALLOCATION_SIZE);
+    Allocation initialAllocation1 = allocator.allocate();
+    Allocation initialAllocation2 = allocator.allocate();
+    Allocation extraAllocation = allocator.allocate();
+    allocator.release(new Allocation[] {initialAllocation1, initialAllocation2, extraAllocation});
+
+    allocator.reset();
+
+    Set<Allocation> reused = newIdentitySet();
+    for (int i = 0; i < 3; i++) {
+      reused.add(allocator.allocate());
+    }
+    assertThat(reused).containsAtLeast(initialAllocation1, initialAllocation2);
+    assertThat(reused).doesNotContain(extraAllocation);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation") // Testing the deprecated data field.
+  public void allocate_withDirectBuffers_hasNoData() {
+    DefaultAllocator allocator =
+        new DefaultAllocator(
+            /* trimOnReset= */ true,
+            ALLOCATION_SIZE,
+            /* initialAllocationCount= */ 0,
+            /* useDirectBuffers= */ true);
+
+    Allocation allocation = allocator.allocate();
+
+    assertThat(allocation.buffer).isNotNull();
+    assertThat(allocation.buffer.isDirect()).isTrue();
+    assertThat(allocation.data).isNull();
+    assertThrows(IllegalStateException.class, allocation::getData);
+  }
+
+  @Test
+  public void allocate_afterTrim_createsAllocationsDistinctFromAvailableOnes() {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    allocator.setTargetBufferSize(ALLOCATION_SIZE);
+    Allocation[] allocations = new Allocation[3];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = allocator.allocate();
+    }
+    allocator.release(allocations);
+    allocator.trim();
+
+    Set<Allocation> allocated = newIdentitySet();
+    for (int i = 0; i < 4; i++) {
+      allocated.add(allocator.allocate());
+    }
+
+    assertThat(allocated).hasSize(4);
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(4 * ALLOCATION_SIZE);
+  }
+
+  @Test
+  public void release_allocationFromOtherAllocator_throws() {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    DefaultAllocator otherAllocator =
+        new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    allocator.allocate();
+
+    assertThrows(
+        IllegalArgumentException.class, () -> allocator.release(otherAllocator.allocate()));
+  }
+
+  @Test
+  public void allocateAndRelease_onMultipleThreads_neverSharesAllocations() throws Exception {
+    DefaultAllocator allocator = new DefaultAllocator(/* trimOnReset= */ true, ALLOCATION_SIZE);
+    Set<Allocation> inUse = Collections.synchronizedSet(newIdentitySet());
+    AtomicBoolean sharedAllocation = new AtomicBoolean();
+    int threadCount = 4;
+    CountDownLatch startLatch = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < threadCount; i++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  startLatch.await();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  return;
+                }
+                for (int j = 0; j < 10_000; j++) {
+                  Allocation allocation = allocator.allocate();
+                  if (!inUse.add(allocation)) {
+                    sharedAllocation.set(true);
+                  }
+                  inUse.remove(allocation);
+                  allocator.release(allocation);
+                  if (j % 100 == 0) {
+                    allocator.trim();
+                  }
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    startLatch.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(sharedAllocation.get()).isFalse();
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(0);
+  }
+
+  private static Set<Allocation> newIdentitySet() {
+    return Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+}
@@ -28,6 +28,9 @@ import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.testutil.FakeClock;
 import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.Random;
 import org.junit.Before;
 import org.junit.Test;
@@ -541,6 +544,148 @@ public final class DefaultBandwidthMeterTest {
     assertThat(bitrateEstimatesAfterReset).isEqualTo(bitrateEstimatesWithNewInstance);
   }
 
+  @Test
+  public void timeToFirstByteEstimate_withoutTransfers_isUnset() {
+    DefaultBandwidthMeter bandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext()).build();
+
+    assertThat(bandwidthMeter.getTimeToFirstByteEstimateUs()).isEqualTo(C.TIME_UNSET);
+  }
+
+  @Test
+  public void timeToFirstByteEstimate_afterTransfers_isMedianTimeToFirstByte() {
+    FakeClock clock = new FakeClock(/* initialTimeMs= */ 0);
+    DefaultBandwidthMeter bandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setClock(clock)
+            .build();
+
+    simulateTransfer(bandwidthMeter, clock, /* timeToFirstByteMs= */ 100);
+    simulateTransfer(bandwidthMeter, clock, /* timeToFirstByteMs= */ 300);
+    simulateTransfer(bandwidthMeter, clock, /* timeToFirstByteMs= */ 200);
+
+    assertThat(bandwidthMeter.getTimeToFirstByteEstimateUs()).isEqualTo(200_000);
+  }
+
+  @Test
+  public void bitrateEstimate_excludesTimeToFirstByte() {
+    FakeClock clock = new FakeClock(/* initialTimeMs= */ 0);
+    DefaultBandwidthMeter bandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setClock(clock)
+            .build();
+
+    // 1 MB in 1 s, after a time to first byte of 1 s.
+    simulateTransfer(bandwidthMeter, clock, /* timeToFirstByteMs= */ 1000);
+
+    assertThat(bandwidthMeter.getBitrateEstimate()).isEqualTo(8_000_000);
+  }
+
+  @Test
+  public void bitrateEstimate_withConcurrentTransfers_isAggregateBitrate() {
+    FakeClock clock = new FakeClock(/* initialTimeMs= */ 0);
+    DefaultBandwidthMeter bandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setClock(clock)
+            .build();
+    DataSource dataSource1 = new FakeDataSource();
+    DataSource dataSource2 = new FakeDataSource();
+    DataSpec dataSpec = new DataSpec(Uri.parse("https://dummy.com"));
+
+    // Two transfers of 1 MB each, both in progress for the same second.
+    bandwidthMeter.onTransferStart(dataSource1, dataSpec, /* isNetwork= */ true);
+    bandwidthMeter.onTransferStart(dataSource2, dataSpec, /* isNetwork= */ true);
+    clock.advanceTime(1000);
+    bandwidthMeter.onBytesTransferred(
+        dataSource1, dataSpec, /* isNetwork= */ true, /* bytes= */ 1_000_000);
+    bandwidthMeter.onBytesTransferred(
+        dataSource2, dataSpec, /* isNetwork= */ true, /* bytes= */ 1_000_000);
+    bandwidthMeter.onTransferEnd(dataSource1, dataSpec, /* isNetwork= */ true);
+    bandwidthMeter.onTransferEnd(dataSource2, dataSpec, /* isNetwork= */ true);
+
+    assertThat(bandwidthMeter.getBitrateEstimate()).isEqualTo(16_000_000);
+  }
+
+  @Test
+  public void networkTypeOverride_resetsTimeToFirstByteEstimate() {
+    setActiveNetworkInfo(networkInfoWifi);
+    FakeClock clock = new FakeClock(/* initialTimeMs= */ 0);
+    DefaultBandwidthMeter bandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setClock(clock)
+            .build();
+    simulateTransfer(bandwidthMeter, clock, /* timeToFirstByteMs= */ 100);
+
+    bandwidthMeter.setNetworkTypeOverride(C.NETWORK_TYPE_4G);
+
+    assertThat(bandwidthMeter.getTimeToFirstByteEstimateUs()).isEqualTo(C.TIME_UNSET);
+  }
+
+  @Test
+  public void initialBitrateEstimate_withBandwidthPriorStore_usesPersistedEstimateForNetwork()
+      throws Exception {
+    File file =
+        Util.createTempFile(ApplicationProvider.getApplicationContext(), "BandwidthPriorStore");
+    assertThat(file.delete()).isTrue();
+    BandwidthPriorStore bandwidthPriorStore = new BandwidthPriorStore(file, Runnable::run);
+    setActiveNetworkInfo(networkInfoWifi);
+    FakeClock clock = new FakeClock(/* initialTimeMs= */ 0);
+    DefaultBandwidthMeter bandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setClock(clock)
+            .setBandwidthPriorStore(bandwidthPriorStore)
+            .build();
+    simulateTransfer(bandwidthMeter, clock, /* timeToFirstByteMs= */ 0);
+
+    DefaultBandwidthMeter wifiBandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setBandwidthPriorStore(new BandwidthPriorStore(file, Runnable::run))
+            .build();
+    setActiveNetworkInfo(networkInfo4g);
+    DefaultBandwidthMeter mobileBandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setBandwidthPriorStore(new BandwidthPriorStore(file, Runnable::run))
+            .build();
+    file.delete();
+
+    assertThat(wifiBandwidthMeter.getBitrateEstimate()).isEqualTo(8_000_000);
+    assertThat(mobileBandwidthMeter.getBitrateEstimate()).isNotEqualTo(8_000_000);
+  }
+
+  @Test
+  public void initialBitrateEstimate_withBandwidthPriorStoreLoadedLater_usesPersistedEstimate()
+      throws Exception {
+    File file =
+        Util.createTempFile(ApplicationProvider.getApplicationContext(), "BandwidthPriorStore");
+    assertThat(file.delete()).isTrue();
+    setActiveNetworkInfo(networkInfoWifi);
+    FakeClock clock = new FakeClock(/* initialTimeMs= */ 0);
+    DefaultBandwidthMeter bandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setClock(clock)
+            .setBandwidthPriorStore(new BandwidthPriorStore(file, Runnable::run))
+            .build();
+    simulateTransfer(bandwidthMeter, clock, /* timeToFirstByteMs= */ 0);
+    long defaultBitrateEstimate =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .build()
+            .getBitrateEstimate();
+    ArrayDeque<Runnable> pendingTasks = new ArrayDeque<>();
+
+    DefaultBandwidthMeter wifiBandwidthMeter =
+        new DefaultBandwidthMeter.Builder(ApplicationProvider.getApplicationContext())
+            .setBandwidthPriorStore(new BandwidthPriorStore(file, pendingTasks::add))
+            .build();
+    long bitrateEstimateBeforeLoaded = wifiBandwidthMeter.getBitrateEstimate();
+    while (!pendingTasks.isEmpty()) {
+      pendingTasks.remove().run();
+    }
+    file.delete();
+
+    assertThat(bitrateEstimateBeforeLoaded).isEqualTo(defaultBitrateEstimate);
+    assertThat(wifiBandwidthMeter.getBitrateEstimate()).isEqualTo(8_000_000);
+  }
+
   @Test
   @SuppressWarnings("deprecation")
   public void defaultInitialBitrateEstimate_withoutContext_isReasonable() {
@@ -565,6 +710,20 @@ public final class DefaultBandwidthMeterTest {
     Shadows.shadowOf(telephonyManager).setNetworkCountryIso(countryIso);
   }
 
+  /** Simulates a transfer of 1 MB in 1 s, after the specified time to first byte. */
+  private static void simulateTransfer(
+      DefaultBandwidthMeter bandwidthMeter, FakeClock clock, long timeToFirstByteMs) {
+    DataSource dataSource = new FakeDataSource();
+    DataSpec dataSpec = new DataSpec(Uri.parse("https://dummy.com"));
+    bandwidthMeter.onTransferInitializing(dataSource, dataSpec, /* isNetwork= */ true);
+    clock.advanceTime(timeToFirstByteMs);
+    bandwidthMeter.onTransferStart(dataSource, dataSpec, /* isNetwork= */ true);
+    clock.advanceTime(1000);
+    bandwidthMeter.onBytesTransferred(
+        dataSource, dataSpec, /* isNetwork= */ true, /* bytes= */ 1_000_000);
+    bandwidthMeter.onTransferEnd(dataSource, dataSpec, /* isNetwork= */ true);
+  }
+
   private static long[] simulateTransfers(DefaultBandwidthMeter bandwidthMeter, FakeClock clock) {
     long[] bitrateEstimates = new long[SIMULATED_TRANSFER_COUNT];
     Random random = new Random(/* seed= */ 0);
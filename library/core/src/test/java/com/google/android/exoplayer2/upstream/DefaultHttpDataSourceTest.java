@@ -21,6 +21,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertThrows;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.testutil.TestUtil;
 import java.util.HashMap;
 import java.util.Map;
@@ -128,4 +129,104 @@ public class DefaultHttpDataSourceTest {
     assertThat(exception.responseCode).isEqualTo(404);
     assertThat(exception.responseBody).isEqualTo(TestUtil.createByteArray(1, 2, 3));
   }
+
+  @Test
+  public void close_withConnectionReuseEnabled_reusesConnection() throws Exception {
+    MockWebServer mockWebServer = new MockWebServer();
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(new byte[1000])));
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(new byte[1000])));
+    HttpConnectionMetrics connectionMetrics = new HttpConnectionMetrics();
+    DefaultHttpDataSource dataSource = new DefaultHttpDataSource(/* userAgent= */ "testAgent");
+    dataSource.setConnectionReuseEnabled(true);
+    dataSource.setConnectionMetrics(connectionMetrics);
+    DataSpec dataSpec =
+        new DataSpec.Builder().setUri(mockWebServer.url("/test-path").toString()).build();
+
+    dataSource.open(dataSpec);
+    TestUtil.readToEnd(dataSource);
+    dataSource.close();
+    // Close the second request without reading, so that the remainder is drained.
+    dataSource.open(dataSpec);
+    dataSource.close();
+
+    assertThat(mockWebServer.takeRequest(10, SECONDS).getSequenceNumber()).isEqualTo(0);
+    assertThat(mockWebServer.takeRequest(10, SECONDS).getSequenceNumber()).isEqualTo(1);
+    HttpConnectionMetrics.Counts counts = connectionMetrics.getTotalCounts();
+    assertThat(counts.requestCount).isEqualTo(2);
+    assertThat(counts.estimatedReusedConnectionCount).isEqualTo(1);
+    assertThat(counts.estimatedNewConnectionCount).isEqualTo(1);
+    assertThat(counts.discardedConnectionCount).isEqualTo(0);
+    assertThat(counts.drainedBytes).isEqualTo(1000);
+  }
+
+  @Test
+  public void close_withConnectionReuseDisabled_countsDisconnectedConnections() throws Exception {
+    MockWebServer mockWebServer = new MockWebServer();
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(new byte[1000])));
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(new byte[1000])));
+    HttpConnectionMetrics connectionMetrics = new HttpConnectionMetrics();
+    DefaultHttpDataSource dataSource = new DefaultHttpDataSource(/* userAgent= */ "testAgent");
+    dataSource.setConnectionMetrics(connectionMetrics);
+    DataSpec dataSpec =
+        new DataSpec.Builder().setUri(mockWebServer.url("/test-path").toString()).build();
+
+    // Close the requests without reading, so that the connections are disconnected.
+    dataSource.open(dataSpec);
+    dataSource.close();
+    dataSource.open(dataSpec);
+    dataSource.close();
+
+    HttpConnectionMetrics.Counts counts =
+        connectionMetrics.getCounts(
+            HttpConnectionMetrics.getHost(mockWebServer.url("/test-path").url()));
+    assertThat(counts.requestCount).isEqualTo(2);
+    assertThat(counts.estimatedReusedConnectionCount).isEqualTo(0);
+    assertThat(counts.estimatedNewConnectionCount).isEqualTo(2);
+    assertThat(counts.discardedConnectionCount).isEqualTo(2);
+  }
+
+  @Test
+  public void close_withConnectionReuseEnabledAndLargeRemainder_countsDisconnectedConnection()
+      throws Exception {
+    MockWebServer mockWebServer = new MockWebServer();
+    int length = DefaultHttpDataSource.MAX_CONNECTION_REUSE_DRAIN_BYTES + 1;
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(new byte[length])));
+    mockWebServer.enqueue(new MockResponse().setBody(new Buffer().write(new byte[1000])));
+    HttpConnectionMetrics connectionMetrics = new HttpConnectionMetrics();
+    DefaultHttpDataSource dataSource = new DefaultHttpDataSource(/* userAgent= */ "testAgent");
+    dataSource.setConnectionReuseEnabled(true);
+    dataSource.setConnectionMetrics(connectionMetrics);
+    DataSpec dataSpec =
+        new DataSpec.Builder().setUri(mockWebServer.url("/test-path").toString()).build();
+
+    dataSource.open(dataSpec);
+    dataSource.close();
+    dataSource.open(dataSpec);
+    dataSource.close();
+
+    HttpConnectionMetrics.Counts counts = connectionMetrics.getTotalCounts();
+    assertThat(counts.estimatedReusedConnectionCount).isEqualTo(0);
+    assertThat(counts.discardedConnectionCount).isEqualTo(1);
+  }
+
+  @Test
+  public void close_withConnectionReuseEnabledAndUnknownLength_doesNotDrain() throws Exception {
+    MockWebServer mockWebServer = new MockWebServer();
+    mockWebServer.enqueue(
+        new MockResponse()
+            .setChunkedBody(new Buffer().write(new byte[1000]), /* maxChunkSize= */ 100));
+    HttpConnectionMetrics connectionMetrics = new HttpConnectionMetrics();
+    DefaultHttpDataSource dataSource = new DefaultHttpDataSource(/* userAgent= */ "testAgent");
+    dataSource.setConnectionReuseEnabled(true);
+    dataSource.setConnectionMetrics(connectionMetrics);
+    DataSpec dataSpec =
+        new DataSpec.Builder().setUri(mockWebServer.url("/test-path").toString()).build();
+
+    assertThat(dataSource.open(dataSpec)).isEqualTo(C.LENGTH_UNSET);
+    dataSource.close();
+
+    HttpConnectionMetrics.Counts counts = connectionMetrics.getTotalCounts();
+    assertThat(counts.discardedConnectionCount).isEqualTo(1);
+    assertThat(counts.drainedBytes).isEqualTo(0);
+  }
 }
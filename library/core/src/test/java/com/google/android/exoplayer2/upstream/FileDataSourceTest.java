@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.Arrays.copyOfRange;
+
+import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link FileDataSource}. */
+@RunWith(AndroidJUnit4.class)
+public final class FileDataSourceTest {
+
+  private static final byte[] DATA = TestUtil.buildTestData(/* length= */ 1024);
+
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Util.createTempFile(ApplicationProvider.getApplicationContext(), "FileDataSourceTest");
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(DATA);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void read_readsFile() throws Exception {
+    TestUtil.assertDataSourceContent(
+        new FileDataSource(),
+        new DataSpec(Uri.fromFile(file)),
+        DATA,
+        /* expectKnownLength= */ true);
+  }
+
+  @Test
+  public void read_withMemoryMapping_readsFile() throws Exception {
+    TestUtil.assertDataSourceContent(
+        new FileDataSource(/* useMemoryMapping= */ true),
+        new DataSpec(Uri.fromFile(file)),
+        DATA,
+        /* expectKnownLength= */ true);
+  }
+
+  @Test
+  public void read_withMemoryMappingAndRange_readsRange() throws Exception {
+    DataSpec dataSpec =
+        new DataSpec.Builder()
+            .setUri(Uri.fromFile(file))
+            .setPosition(100)
+            .setLength(500)
+            .build();
+
+    TestUtil.assertDataSourceContent(
+        new FileDataSource(/* useMemoryMapping= */ true),
+        dataSpec,
+        copyOfRange(DATA, 100, 600),
+        /* expectKnownLength= */ true);
+  }
+
+  @Test
+  public void read_withMemoryMappingAndLengthBeyondEndOfFile_readsToEndOfFile() throws Exception {
+    FileDataSource dataSource = new FileDataSource(/* useMemoryMapping= */ true);
+    DataSpec dataSpec =
+        new DataSpec.Builder()
+            .setUri(Uri.fromFile(file))
+            .setPosition(1000)
+            .setLength(100)
+            .build();
+
+    dataSource.open(dataSpec);
+    byte[] readData = new byte[100];
+    int bytesRead = dataSource.read(readData, /* offset= */ 0, readData.length);
+    int nextBytesRead = dataSource.read(readData, /* offset= */ 0, readData.length);
+    dataSource.close();
+
+    assertThat(bytesRead).isEqualTo(24);
+    assertThat(nextBytesRead).isEqualTo(C.RESULT_END_OF_INPUT);
+  }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.HttpDataSource.HttpDataSourceException;
+import com.google.android.exoplayer2.upstream.LoadErrorHandlingPolicy.LoadErrorInfo;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Clock;
+import com.google.android.exoplayer2.util.HandlerWrapper;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link HedgingHttpDataSource}. */
+@RunWith(AndroidJUnit4.class)
+public final class HedgingHttpDataSourceTest {
+
+  private static final Uri PRIMARY_URI = Uri.parse("https://primary.test/segment");
+  private static final Uri ALTERNATE_URI = Uri.parse("https://alternate.test/segment");
+  private static final byte[] PRIMARY_DATA =
+      TestUtil.buildTestData(/* length= */ 10, /* seed= */ 1);
+  private static final byte[] ALTERNATE_DATA =
+      TestUtil.buildTestData(/* length= */ 10, /* seed= */ 2);
+
+  private ExecutorService executorService;
+  private FakeHttpDataSourceFactory upstreamFactory;
+  private HedgingHttpDataSource.ResponseTimeEstimate responseTimeEstimate;
+  private CountDownLatch primaryOpenLatch;
+
+  @Before
+  public void setUp() {
+    executorService = Executors.newCachedThreadPool();
+    upstreamFactory = new FakeHttpDataSourceFactory();
+    upstreamFactory.responses.put(PRIMARY_URI, PRIMARY_DATA);
+    upstreamFactory.responses.put(ALTERNATE_URI, ALTERNATE_DATA);
+    responseTimeEstimate = new HedgingHttpDataSource.ResponseTimeEstimate();
+    primaryOpenLatch = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    primaryOpenLatch.countDown();
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void open_fastResponse_doesNotHedge() throws Exception {
+    HedgingHttpDataSource dataSource = createDataSource(new DefaultLoadErrorHandlingPolicy());
+
+    dataSource.open(new DataSpec(PRIMARY_URI));
+    byte[] data = TestUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(data).isEqualTo(PRIMARY_DATA);
+    assertThat(upstreamFactory.getOpenedUris()).containsExactly(PRIMARY_URI);
+  }
+
+  @Test
+  public void open_slowResponse_usesHedgeRequestToAlternateHost() throws Exception {
+    // Measure fast responses, so that the hedge delay is the minimum delay.
+    for (int i = 0; i < 10; i++) {
+      responseTimeEstimate.addResponseTime(/* responseTimeMs= */ 0);
+    }
+    upstreamFactory.primaryOpenLatch = primaryOpenLatch;
+    HedgingHttpDataSource dataSource = createDataSource(new DefaultLoadErrorHandlingPolicy());
+
+    dataSource.open(new DataSpec(PRIMARY_URI));
+    byte[] data = TestUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(dataSource.getHedgeDelayMs()).isEqualTo(HedgingHttpDataSource.MIN_HEDGE_DELAY_MS);
+    assertThat(data).isEqualTo(ALTERNATE_DATA);
+    assertThat(upstreamFactory.getOpenedUris()).containsExactly(ALTERNATE_URI);
+  }
+
+  @Test
+  public void open_slowResponse_notifiesTransferListenersOfUsedRequestOnly() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      responseTimeEstimate.addResponseTime(/* responseTimeMs= */ 0);
+    }
+    upstreamFactory.primaryOpenLatch = primaryOpenLatch;
+    HedgingHttpDataSource dataSource = createDataSource(new DefaultLoadErrorHandlingPolicy());
+    CountingTransferListener transferListener = new CountingTransferListener();
+    dataSource.addTransferListener(transferListener);
+
+    dataSource.open(new DataSpec(PRIMARY_URI));
+    TestUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(upstreamFactory.getAddedTransferListenerCount()).isEqualTo(0);
+    assertThat(transferListener.initializingCount).isEqualTo(1);
+    assertThat(transferListener.startCount).isEqualTo(1);
+    assertThat(transferListener.bytesTransferred).isEqualTo(ALTERNATE_DATA.length);
+    assertThat(transferListener.endCount).isEqualTo(1);
+  }
+
+  @Test
+  public void open_slowResponse_interruptsAbandonedRequest() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      responseTimeEstimate.addResponseTime(/* responseTimeMs= */ 0);
+    }
+    upstreamFactory.primaryOpenLatch = primaryOpenLatch;
+    HedgingHttpDataSource dataSource = createDataSource(new DefaultLoadErrorHandlingPolicy());
+
+    dataSource.open(new DataSpec(PRIMARY_URI));
+    dataSource.close();
+    executorService.shutdown();
+    executorService.awaitTermination(/* timeout= */ 10, TimeUnit.SECONDS);
+
+    assertThat(upstreamFactory.getInterruptedOpenCount()).isEqualTo(1);
+    assertThat(upstreamFactory.getOpenedUris()).containsExactly(ALTERNATE_URI);
+    assertThat(upstreamFactory.getOpenDataSourceCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void open_slowResponse_closesAbandonedRequestOnceOpened() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      responseTimeEstimate.addResponseTime(/* responseTimeMs= */ 0);
+    }
+    upstreamFactory.primaryOpenLatch = primaryOpenLatch;
+    upstreamFactory.ignoreInterrupts = true;
+    HedgingHttpDataSource dataSource = createDataSource(new DefaultLoadErrorHandlingPolicy());
+
+    dataSource.open(new DataSpec(PRIMARY_URI));
+    primaryOpenLatch.countDown();
+    dataSource.close();
+    executorService.shutdown();
+    executorService.awaitTermination(/* timeout= */ 10, TimeUnit.SECONDS);
+
+    assertThat(upstreamFactory.getOpenedUris()).containsExactly(ALTERNATE_URI, PRIMARY_URI);
+    assertThat(upstreamFactory.getOpenDataSourceCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void open_retryableError_hedgesImmediately() throws Exception {
+    upstreamFactory.responses.remove(PRIMARY_URI);
+    HedgingHttpDataSource dataSource = createDataSource(new DefaultLoadErrorHandlingPolicy());
+
+    dataSource.open(new DataSpec(PRIMARY_URI));
+    byte[] data = TestUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(data).isEqualTo(ALTERNATE_DATA);
+  }
+
+  @Test
+  public void open_fatalError_throwsWithoutHedging() throws Exception {
+    upstreamFactory.responses.remove(PRIMARY_URI);
+    LoadErrorHandlingPolicy fatalErrorPolicy =
+        new DefaultLoadErrorHandlingPolicy() {
+          @Override
+          public long getRetryDelayMsFor(LoadErrorInfo loadErrorInfo) {
+            return C.TIME_UNSET;
+          }
+        };
+    HedgingHttpDataSource dataSource = createDataSource(fatalErrorPolicy);
+
+    assertThrows(HttpDataSourceException.class, () -> dataSource.open(new DataSpec(PRIMARY_URI)));
+    assertThat(upstreamFactory.getOpenedUris()).isEmpty();
+  }
+
+  @Test
+  public void open_bothRequestsFail_throwsPrimaryError() throws Exception {
+    upstreamFactory.responses.clear();
+    HedgingHttpDataSource dataSource = createDataSource(new DefaultLoadErrorHandlingPolicy());
+
+    HttpDataSourceException exception =
+        assertThrows(
+            HttpDataSourceException.class, () -> dataSource.open(new DataSpec(PRIMARY_URI)));
+    assertThat(exception.dataSpec.uri).isEqualTo(PRIMARY_URI);
+  }
+
+  @Test
+  public void close_afterFailedNonGetOpen_closesUpstream() throws Exception {
+    upstreamFactory.responses.remove(PRIMARY_URI);
+    HedgingHttpDataSource dataSource = createDataSource(new DefaultLoadErrorHandlingPolicy());
+    DataSpec dataSpec =
+        new DataSpec.Builder()
+            .setUri(PRIMARY_URI)
+            .setHttpMethod(DataSpec.HTTP_METHOD_POST)
+            .setHttpBody(new byte[1])
+            .build();
+
+    assertThrows(HttpDataSourceException.class, () -> dataSource.open(dataSpec));
+    dataSource.close();
+
+    assertThat(upstreamFactory.getCloseCount()).isEqualTo(1);
+  }
+
+  private HedgingHttpDataSource createDataSource(LoadErrorHandlingPolicy loadErrorHandlingPolicy) {
+    return new HedgingHttpDataSource(
+        upstreamFactory,
+        executorService,
+        /* hedgeResolver= */ dataSpec -> dataSpec.withUri(ALTERNATE_URI),
+        loadErrorHandlingPolicy,
+        C.DATA_TYPE_MEDIA,
+        responseTimeEstimate,
+        new SystemTimeClock());
+  }
+
+  /**
+   * A {@link Clock} that advances with the system time, since the hedge delay elapses in real time
+   * on the loading thread.
+   */
+  private static final class SystemTimeClock implements Clock {
+
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+
+    @Override
+    public long elapsedRealtime() {
+      return System.nanoTime() / 1_000_000;
+    }
+
+    @Override
+    public long uptimeMillis() {
+      return elapsedRealtime();
+    }
+
+    @Override
+    public void sleep(long sleepTimeMs) {
+      Clock.DEFAULT.sleep(sleepTimeMs);
+    }
+
+    @Override
+    public HandlerWrapper createHandler(Looper looper, @Nullable Handler.Callback callback) {
+      return Clock.DEFAULT.createHandler(looper, callback);
+    }
+  }
+
+  /** Counts the events reported to it. */
+  private static final class CountingTransferListener implements TransferListener {
+
+    public int initializingCount;
+    public int startCount;
+    public int bytesTransferred;
+    public int endCount;
+
+    @Override
+    public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+      initializingCount++;
+    }
+
+    @Override
+    public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+      startCount++;
+    }
+
+    @Override
+    public void onBytesTransferred(
+        DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+      this.bytesTransferred += bytesTransferred;
+    }
+
+    @Override
+    public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+      endCount++;
+    }
+  }
+
+  /**
+   * Creates data sources that serve fixed responses, recording the URIs that were opened. Opening
+   * the primary URI can be blocked by a latch, and fails if interrupted unless interrupts are
+   * ignored.
+   */
+  private static final class FakeHttpDataSourceFactory extends HttpDataSource.BaseFactory {
+
+    public final Map<Uri, byte[]> responses;
+    @Nullable public volatile CountDownLatch primaryOpenLatch;
+    public volatile boolean ignoreInterrupts;
+
+    private final List<Uri> openedUris;
+    private int openDataSourceCount;
+    private int closeCount;
+    private int interruptedOpenCount;
+    private int addedTransferListenerCount;
+
+    public FakeHttpDataSourceFactory() {
+      responses = Collections.synchronizedMap(new HashMap<>());
+      openedUris = new ArrayList<>();
+    }
+
+    public synchronized List<Uri> getOpenedUris() {
+      return new ArrayList<>(openedUris);
+    }
+
+    public synchronized int getOpenDataSourceCount() {
+      return openDataSourceCount;
+    }
+
+    public synchronized int getCloseCount() {
+      return closeCount;
+    }
+
+    public synchronized int getInterruptedOpenCount() {
+      return interruptedOpenCount;
+    }
+
+    public synchronized int getAddedTransferListenerCount() {
+      return addedTransferListenerCount;
+    }
+
+    @Override
+    protected HttpDataSource createDataSourceInternal(
+        HttpDataSource.RequestProperties defaultRequestProperties) {
+      return new FakeHttpDataSource();
+    }
+
+    private final class FakeHttpDataSource implements HttpDataSource {
+
+      @Nullable private DataSource upstream;
+
+      @Override
+      public void addTransferListener(TransferListener transferListener) {
+        synchronized (FakeHttpDataSourceFactory.this) {
+          addedTransferListenerCount++;
+        }
+      }
+
+      @Override
+      public long open(DataSpec dataSpec) throws HttpDataSourceException {
+        @Nullable CountDownLatch openLatch = primaryOpenLatch;
+        if (dataSpec.uri.equals(PRIMARY_URI) && openLatch != null) {
+          awaitLatch(openLatch, dataSpec);
+        }
+        @Nullable byte[] data = responses.get(dataSpec.uri);
+        if (data == null) {
+          throw new HttpDataSourceException(dataSpec, HttpDataSourceException.TYPE_OPEN);
+        }
+        upstream = new ByteArrayDataSource(data);
+        try {
+          long length = upstream.open(dataSpec);
+          synchronized (FakeHttpDataSourceFactory.this) {
+            openedUris.add(dataSpec.uri);
+            openDataSourceCount++;
+          }
+          return length;
+        } catch (IOException e) {
+          throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_OPEN);
+        }
+      }
+
+      private void awaitLatch(CountDownLatch openLatch, DataSpec dataSpec)
+          throws HttpDataSourceException {
+        while (true) {
+          try {
+            openLatch.await();
+            return;
+          } catch (InterruptedException e) {
+            if (!ignoreInterrupts) {
+              synchronized (FakeHttpDataSourceFactory.this) {
+                interruptedOpenCount++;
+              }
+              throw new HttpDataSourceException(
+                  new InterruptedIOException(), dataSpec, HttpDataSourceException.TYPE_OPEN);
+            }
+          }
+        }
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+        try {
+          return Assertions.checkNotNull(upstream).read(buffer, offset, readLength);
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      @Nullable
+      @Override
+      public Uri getUri() {
+        return upstream != null ? upstream.getUri() : null;
+      }
+
+      @Override
+      public void close() {
+        synchronized (FakeHttpDataSourceFactory.this) {
+          closeCount++;
+          if (upstream != null) {
+            upstream = null;
+            openDataSourceCount--;
+          }
+        }
+      }
+
+      @Override
+      public void setRequestProperty(String name, String value) {}
+
+      @Override
+      public void clearRequestProperty(String name) {}
+
+      @Override
+      public void clearAllRequestProperties() {}
+
+      @Override
+      public int getResponseCode() {
+        return upstream != null ? 200 : -1;
+      }
+
+      @Override
+      public Map<String, List<String>> getResponseHeaders() {
+        return Collections.emptyMap();
+      }
+    }
+  }
+}
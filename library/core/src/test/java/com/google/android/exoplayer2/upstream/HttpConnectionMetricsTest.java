@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import java.net.URL;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link HttpConnectionMetrics}. */
+@RunWith(AndroidJUnit4.class)
+public final class HttpConnectionMetricsTest {
+
+  private static final long KEEP_ALIVE_DURATION_MS = 5000;
+
+  private FakeClock clock;
+  private HttpConnectionMetrics connectionMetrics;
+
+  @Before
+  public void setUp() {
+    clock = new FakeClock(/* initialTimeMs= */ 0);
+    connectionMetrics = new HttpConnectionMetrics(KEEP_ALIVE_DURATION_MS, clock);
+  }
+
+  @Test
+  public void onRequest_afterReleasedConnection_countsReusedConnection() throws Exception {
+    URL url = new URL("https://example.com/segment1.ts");
+
+    connectionMetrics.onRequest(url);
+    connectionMetrics.onConnectionClosed(url, /* released= */ true, /* drainedBytes= */ 10);
+    connectionMetrics.onRequest(new URL("https://example.com:443/segment2.ts"));
+
+    HttpConnectionMetrics.Counts counts = connectionMetrics.getCounts("https://example.com:443");
+    assertThat(counts.requestCount).isEqualTo(2);
+    assertThat(counts.estimatedReusedConnectionCount).isEqualTo(1);
+    assertThat(counts.estimatedNewConnectionCount).isEqualTo(1);
+    assertThat(counts.drainedBytes).isEqualTo(10);
+  }
+
+  @Test
+  public void onRequest_afterKeepAliveDuration_countsNewConnection() throws Exception {
+    URL url = new URL("https://example.com/segment1.ts");
+
+    connectionMetrics.onRequest(url);
+    connectionMetrics.onConnectionClosed(url, /* released= */ true, /* drainedBytes= */ 0);
+    clock.advanceTime(KEEP_ALIVE_DURATION_MS + 1);
+    connectionMetrics.onRequest(url);
+
+    HttpConnectionMetrics.Counts counts = connectionMetrics.getTotalCounts();
+    assertThat(counts.estimatedReusedConnectionCount).isEqualTo(0);
+    assertThat(counts.estimatedNewConnectionCount).isEqualTo(2);
+  }
+
+  @Test
+  public void onRequest_afterReleasedConnectionToOtherHost_countsNewConnection()
+      throws Exception {
+    URL url = new URL("https://example.com/segment1.ts");
+
+    connectionMetrics.onRequest(url);
+    connectionMetrics.onConnectionClosed(url, /* released= */ true, /* drainedBytes= */ 0);
+    connectionMetrics.onRequest(new URL("http://example.com/segment2.ts"));
+
+    assertThat(connectionMetrics.getCountsByHost()).hasSize(2);
+    assertThat(connectionMetrics.getCounts("http://example.com:80").estimatedNewConnectionCount)
+        .isEqualTo(1);
+    assertThat(connectionMetrics.getTotalCounts().estimatedReusedConnectionCount).isEqualTo(0);
+  }
+
+  @Test
+  public void onConnectionClosed_withoutRelease_countsDiscardedConnection() throws Exception {
+    URL url = new URL("https://example.com/segment1.ts");
+
+    connectionMetrics.onRequest(url);
+    connectionMetrics.onConnectionClosed(url, /* released= */ false, /* drainedBytes= */ 0);
+    connectionMetrics.onRequest(url);
+
+    HttpConnectionMetrics.Counts counts = connectionMetrics.getTotalCounts();
+    assertThat(counts.discardedConnectionCount).isEqualTo(1);
+    assertThat(counts.estimatedReusedConnectionCount).isEqualTo(0);
+  }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.FakeClock;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.util.ConditionVariable;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link ParallelRangeDataSource}. */
+@RunWith(AndroidJUnit4.class)
+public final class ParallelRangeDataSourceTest {
+
+  private static final int CHUNK_SIZE = 100;
+  private static final Uri URI = Uri.parse("https://example.test/media");
+  private static final int TIMEOUT_MS = 10_000;
+
+  private ExecutorService executorService;
+  private Executor executor;
+  private List<DataSpec> openedDataSpecs;
+  private AtomicInteger closedDataSourceCount;
+  private AtomicInteger blockedReadCount;
+  private AtomicInteger interruptedReadCount;
+  private boolean supportsRangeRequests;
+  private boolean blockRangeRequestReads;
+  private int maxBufferedChunkCount;
+
+  @Before
+  public void setUp() {
+    executorService = Executors.newFixedThreadPool(/* nThreads= */ 4);
+    executor = executorService;
+    openedDataSpecs = new ArrayList<>();
+    closedDataSourceCount = new AtomicInteger();
+    blockedReadCount = new AtomicInteger();
+    interruptedReadCount = new AtomicInteger();
+    supportsRangeRequests = true;
+    maxBufferedChunkCount = 8;
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void read_largeContent_returnsDataInOrderFromRangeRequests() throws Exception {
+    byte[] data = TestUtil.buildTestData(/* length= */ 10 * CHUNK_SIZE + 50);
+    ParallelRangeDataSource dataSource = createDataSource(data, /* failingPosition= */ -1);
+
+    long length = dataSource.open(new DataSpec(URI));
+    byte[] readData = TestUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(length).isEqualTo(data.length);
+    assertThat(readData).isEqualTo(data);
+    List<DataSpec> dataSpecs = getOpenedDataSpecs();
+    assertThat(dataSpecs).hasSize(11);
+    assertThat(dataSpecs.get(1).position).isEqualTo(CHUNK_SIZE);
+    assertThat(dataSpecs.get(1).length).isEqualTo(CHUNK_SIZE);
+    assertThat(dataSpecs.get(10).position).isEqualTo(10 * CHUNK_SIZE);
+    assertThat(dataSpecs.get(10).length).isEqualTo(50);
+  }
+
+  @Test
+  public void read_largeContentFromPosition_returnsRemainingData() throws Exception {
+    byte[] data = TestUtil.buildTestData(/* length= */ 5 * CHUNK_SIZE);
+    ParallelRangeDataSource dataSource = createDataSource(data, /* failingPosition= */ -1);
+
+    long length = dataSource.open(new DataSpec(URI, /* position= */ 30, /* length= */ 400));
+    byte[] readData = TestUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(length).isEqualTo(400);
+    assertThat(readData).isEqualTo(Arrays.copyOfRange(data, 30, 430));
+  }
+
+  @Test
+  public void read_smallContent_usesSingleRequest() throws Exception {
+    byte[] data = TestUtil.buildTestData(/* length= */ 2 * CHUNK_SIZE - 1);
+    ParallelRangeDataSource dataSource = createDataSource(data, /* failingPosition= */ -1);
+
+    dataSource.open(new DataSpec(URI));
+    byte[] readData = TestUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(readData).isEqualTo(data);
+    assertThat(getOpenedDataSpecs()).hasSize(1);
+  }
+
+  @Test
+  public void read_withoutRangeSupport_usesSingleRequest() throws Exception {
+    supportsRangeRequests = false;
+    byte[] data = TestUtil.buildTestData(/* length= */ 5 * CHUNK_SIZE);
+    ParallelRangeDataSource dataSource = createDataSource(data, /* failingPosition= */ -1);
+
+    dataSource.open(new DataSpec(URI));
+    byte[] readData = TestUtil.readToEnd(dataSource);
+    dataSource.close();
+
+    assertThat(readData).isEqualTo(data);
+    assertThat(getOpenedDataSpecs()).hasSize(1);
+  }
+
+  @Test
+  public void read_withFailingRangeRequest_throwsAfterReadingPrecedingData() throws Exception {
+    byte[] data = TestUtil.buildTestData(/* length= */ 5 * CHUNK_SIZE);
+    ParallelRangeDataSource dataSource =
+        createDataSource(data, /* failingPosition= */ 3 * CHUNK_SIZE);
+    dataSource.open(new DataSpec(URI));
+
+    byte[] readData = new byte[3 * CHUNK_SIZE];
+    int bytesRead = 0;
+    while (bytesRead < readData.length) {
+      bytesRead += dataSource.read(readData, bytesRead, readData.length - bytesRead);
+    }
+
+    assertThat(readData).isEqualTo(Arrays.copyOfRange(data, 0, 3 * CHUNK_SIZE));
+    assertThrows(IOException.class, () -> dataSource.read(readData, 0, readData.length));
+    dataSource.close();
+  }
+
+  @Test
+  public void close_afterFailedOpen_closesUpstream() throws Exception {
+    byte[] data = TestUtil.buildTestData(/* length= */ 5 * CHUNK_SIZE);
+    ParallelRangeDataSource dataSource = createDataSource(data, /* failingPosition= */ 0);
+
+    assertThrows(IOException.class, () -> dataSource.open(new DataSpec(URI)));
+    dataSource.close();
+
+    assertThat(closedDataSourceCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void read_withIncreasingThroughput_increasesConnectionCountToMax() throws Exception {
+    byte[] data = TestUtil.buildTestData(/* length= */ 10 * CHUNK_SIZE);
+    ParallelRangeDataSource dataSource = createDataSource(data, /* failingPosition= */ -1);
+
+    dataSource.open(new DataSpec(URI));
+    TestUtil.readToEnd(dataSource);
+
+    // The fake clock doesn't advance, so every round is measured as faster than the previous one.
+    assertThat(dataSource.getTargetConnectionCount()).isEqualTo(/* maxConnectionCount= */ 4);
+    dataSource.close();
+  }
+
+  @Test
+  public void read_withLoadsLimitedByBuffers_keepsConnectionCount() throws Exception {
+    // Load chunks synchronously when they're started, so that loads never overlap.
+    executor = Runnable::run;
+    maxBufferedChunkCount = 1;
+    byte[] data = TestUtil.buildTestData(/* length= */ 10 * CHUNK_SIZE);
+    ParallelRangeDataSource dataSource = createDataSource(data, /* failingPosition= */ -1);
+
+    dataSource.open(new DataSpec(URI));
+    byte[] readData = TestUtil.readToEnd(dataSource);
+
+    // The next chunk can only be loaded once the previous one has been read, so the throughput of
+    // the rounds isn't compared.
+    assertThat(readData).isEqualTo(data);
+    assertThat(dataSource.getTargetConnectionCount())
+        .isEqualTo(ParallelRangeDataSource.DEFAULT_INITIAL_CONNECTION_COUNT);
+    dataSource.close();
+  }
+
+  @Test
+  public void close_withBlockedRangeRequests_interruptsAndClosesThem() throws Exception {
+    blockRangeRequestReads = true;
+    byte[] data = TestUtil.buildTestData(/* length= */ 5 * CHUNK_SIZE);
+    ParallelRangeDataSource dataSource = createDataSource(data, /* failingPosition= */ -1);
+    dataSource.open(new DataSpec(URI));
+    // The first chunk is loaded from the initial request, then two range requests block.
+    waitForCount(blockedReadCount, 2);
+
+    dataSource.close();
+
+    waitForCount(interruptedReadCount, 2);
+    waitForCount(closedDataSourceCount, 3);
+  }
+
+  private ParallelRangeDataSource createDataSource(byte[] data, long failingPosition) {
+    DataSource.Factory upstreamFactory =
+        () -> new RecordingDataSource(new ByteArrayDataSource(data), failingPosition);
+    return new ParallelRangeDataSource(
+        upstreamFactory,
+        executor,
+        CHUNK_SIZE,
+        /* maxConnectionCount= */ 4,
+        maxBufferedChunkCount,
+        new FakeClock(/* initialTimeMs= */ 0));
+  }
+
+  private static void waitForCount(AtomicInteger count, int expectedCount)
+      throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (count.get() < expectedCount && System.currentTimeMillis() < deadlineMs) {
+      Thread.sleep(10);
+    }
+    assertThat(count.get()).isEqualTo(expectedCount);
+  }
+
+  /** Returns the opened data specs, ordered by position since chunks may be opened in any order. */
+  private List<DataSpec> getOpenedDataSpecs() {
+    synchronized (openedDataSpecs) {
+      List<DataSpec> dataSpecs = new ArrayList<>(openedDataSpecs);
+      Collections.sort(
+          dataSpecs, (first, second) -> Util.compareLong(first.position, second.position));
+      return dataSpecs;
+    }
+  }
+
+  /**
+   * Records opened data specs, fails to open at a given position, and optionally blocks reads of
+   * range requests until interrupted.
+   */
+  private final class RecordingDataSource implements DataSource {
+
+    private final DataSource upstream;
+    private final long failingPosition;
+
+    private boolean blockReads;
+
+    public RecordingDataSource(DataSource upstream, long failingPosition) {
+      this.upstream = upstream;
+      this.failingPosition = failingPosition;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {
+      upstream.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      synchronized (openedDataSpecs) {
+        openedDataSpecs.add(dataSpec);
+      }
+      if (dataSpec.position == failingPosition) {
+        throw new IOException();
+      }
+      blockReads = blockRangeRequestReads && dataSpec.position > 0;
+      return upstream.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      if (blockReads) {
+        blockedReadCount.incrementAndGet();
+        try {
+          new ConditionVariable().block();
+        } catch (InterruptedException e) {
+          interruptedReadCount.incrementAndGet();
+          throw new InterruptedIOException();
+        }
+      }
+      return upstream.read(buffer, offset, readLength);
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+      return upstream.getUri();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+      return supportsRangeRequests
+          ? Collections.singletonMap("Accept-Ranges", Collections.singletonList("bytes"))
+          : Collections.emptyMap();
+    }
+
+    @Override
+    public void close() throws IOException {
+      closedDataSourceCount.incrementAndGet();
+      upstream.close();
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.util.Util;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link ParsedManifestCache}. */
+@RunWith(AndroidJUnit4.class)
+public final class ParsedManifestCacheTest {
+
+  private static final Uri URI_1 = Uri.parse("https://example.com/manifest1.mpd");
+  private static final Uri URI_2 = Uri.parse("https://example.com/manifest2.mpd");
+
+  private CountingParser countingParser;
+
+  @Before
+  public void setUp() {
+    countingParser = new CountingParser();
+  }
+
+  @Test
+  public void parseSameData_returnsCachedManifest() throws IOException {
+    ParsingLoadable.Parser<String> parser =
+        new ParsedManifestCache(/* maxBytes= */ 100).wrap(countingParser);
+
+    String manifest1 = parse(parser, URI_1, "manifest");
+    String manifest2 = parse(parser, URI_1, "manifest");
+
+    assertThat(manifest2).isSameInstanceAs(manifest1);
+    assertThat(countingParser.parseCount).isEqualTo(1);
+  }
+
+  @Test
+  public void parseChangedData_parsesAgain() throws IOException {
+    ParsingLoadable.Parser<String> parser =
+        new ParsedManifestCache(/* maxBytes= */ 100).wrap(countingParser);
+
+    parse(parser, URI_1, "manifest");
+    String manifest = parse(parser, URI_1, "updated manifest");
+
+    assertThat(manifest).isEqualTo("updated manifest");
+    assertThat(countingParser.parseCount).isEqualTo(2);
+  }
+
+  @Test
+  public void parseSameDataFromDifferentUri_parsesAgain() throws IOException {
+    ParsingLoadable.Parser<String> parser =
+        new ParsedManifestCache(/* maxBytes= */ 100).wrap(countingParser);
+
+    parse(parser, URI_1, "manifest");
+    parse(parser, URI_2, "manifest");
+
+    assertThat(countingParser.parseCount).isEqualTo(2);
+  }
+
+  @Test
+  public void exceedMaxBytes_evictsLeastRecentlyUsedManifest() throws IOException {
+    ParsedManifestCache parsedManifestCache = new ParsedManifestCache(/* maxBytes= */ 10);
+    ParsingLoadable.Parser<String> parser = parsedManifestCache.wrap(countingParser);
+
+    parse(parser, URI_1, "manifest1");
+    parse(parser, URI_2, "manifest2");
+    parse(parser, URI_2, "manifest2");
+    parse(parser, URI_1, "manifest1");
+
+    assertThat(countingParser.parseCount).isEqualTo(3);
+    assertThat(parsedManifestCache.getSize()).isEqualTo(9);
+  }
+
+  private static String parse(ParsingLoadable.Parser<String> parser, Uri uri, String data)
+      throws IOException {
+    return parser.parse(uri, new ByteArrayInputStream(Util.getUtf8Bytes(data)));
+  }
+
+  private static final class CountingParser implements ParsingLoadable.Parser<String> {
+
+    public int parseCount;
+
+    @Override
+    public String parse(Uri uri, InputStream inputStream) throws IOException {
+      parseCount++;
+      return Util.fromUtf8Bytes(Util.toByteArray(inputStream));
+    }
+  }
+}
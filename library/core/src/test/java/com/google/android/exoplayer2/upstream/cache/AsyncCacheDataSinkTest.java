@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.CacheAsserts;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSink;
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link AsyncCacheDataSink}. */
+@RunWith(AndroidJUnit4.class)
+public final class AsyncCacheDataSinkTest {
+
+  private static final byte[] TEST_DATA = TestUtil.buildTestData(100);
+
+  private File tempFolder;
+  private SimpleCache cache;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFolder =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    cache = new SimpleCache(tempFolder, new NoOpCacheEvictor());
+    executor = Util.newSingleThreadExecutor("ExoPlayerTest:AsyncCacheDataSink");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+    cache.release();
+    Util.recursiveDelete(tempFolder);
+  }
+
+  @Test
+  public void readThroughCacheDataSource_writesDataToCache() throws Exception {
+    FakeDataSource upstream = new FakeDataSource();
+    upstream.getDataSet().setData("test_data", TEST_DATA);
+    CacheDataSource cacheDataSource =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(() -> upstream)
+            .setCacheWriteDataSinkFactory(
+                new AsyncCacheDataSink.Factory(new CacheDataSink.Factory().setCache(cache), executor)
+                    .setBuffers(/* bufferCount= */ 2, /* bufferSize= */ 7))
+            .createDataSource();
+    DataSpec dataSpec = new DataSpec(Uri.parse("test_data"));
+
+    CacheAsserts.assertReadData(cacheDataSource, dataSpec, TEST_DATA);
+
+    CacheAsserts.assertDataCached(cache, dataSpec, TEST_DATA);
+  }
+
+  @Test
+  public void write_blocksWhenAllBuffersArePending() throws Exception {
+    Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    AsyncCacheDataSink dataSink =
+        new AsyncCacheDataSink(
+            new ByteArrayDataSink(),
+            pendingTasks::add,
+            /* bufferCount= */ 1,
+            /* bufferSize= */ 10);
+    dataSink.open(new DataSpec(Uri.parse("test_data")));
+    // Fill the only buffer, which hands it to the executor.
+    dataSink.write(TEST_DATA, /* offset= */ 0, /* length= */ 10);
+
+    CountDownLatch writeReturned = new CountDownLatch(1);
+    Thread writingThread =
+        new Thread(
+            () -> {
+              try {
+                dataSink.write(TEST_DATA, /* offset= */ 10, /* length= */ 10);
+              } catch (IOException e) {
+                throw new IllegalStateException(e);
+              }
+              writeReturned.countDown();
+            });
+    writingThread.start();
+    assertThat(writeReturned.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    runPendingTasks(pendingTasks);
+    assertThat(writeReturned.await(10, TimeUnit.SECONDS)).isTrue();
+    writingThread.join();
+  }
+
+  @Test
+  public void write_withSharedExecutor_interleavesSinks() throws Exception {
+    Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    ByteArrayDataSink byteArrayDataSink1 = new ByteArrayDataSink();
+    ByteArrayDataSink byteArrayDataSink2 = new ByteArrayDataSink();
+    AsyncCacheDataSink dataSink1 =
+        new AsyncCacheDataSink(
+            byteArrayDataSink1, pendingTasks::add, /* bufferCount= */ 4, /* bufferSize= */ 10);
+    AsyncCacheDataSink dataSink2 =
+        new AsyncCacheDataSink(
+            byteArrayDataSink2, pendingTasks::add, /* bufferCount= */ 4, /* bufferSize= */ 10);
+    dataSink1.open(new DataSpec(Uri.parse("test_data")));
+    dataSink1.write(TEST_DATA, /* offset= */ 0, /* length= */ 30);
+    dataSink2.open(new DataSpec(Uri.parse("test_data")));
+    dataSink2.write(TEST_DATA, /* offset= */ 0, /* length= */ 10);
+
+    // Each sink submits one operation at a time, so the second sink doesn't wait for all of the
+    // operations of the first sink.
+    assertThat(pendingTasks).hasSize(2);
+    for (int i = 0; i < 4; i++) {
+      pendingTasks.remove().run();
+    }
+
+    assertThat(byteArrayDataSink1.getData()).isEqualTo(Arrays.copyOf(TEST_DATA, 10));
+    assertThat(byteArrayDataSink2.getData()).isEqualTo(Arrays.copyOf(TEST_DATA, 10));
+  }
+
+  @Test
+  public void close_whenInterrupted_discardsUnwrittenData() throws Exception {
+    Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    AsyncCacheDataSink dataSink =
+        new AsyncCacheDataSink(
+            new CacheDataSink(cache, /* fragmentSize= */ C.LENGTH_UNSET),
+            pendingTasks::add,
+            /* bufferCount= */ 2,
+            /* bufferSize= */ 10);
+    CacheSpan holeSpan = cache.startReadWrite("key", /* position= */ 0, C.LENGTH_UNSET);
+    dataSink.open(new DataSpec.Builder().setUri("test_data").setKey("key").build());
+    dataSink.write(TEST_DATA, /* offset= */ 0, /* length= */ 15);
+    // Write the first buffer to the cache file, without committing it.
+    runPendingTasks(pendingTasks);
+
+    Thread.currentThread().interrupt();
+    dataSink.close();
+
+    assertThat(Thread.interrupted()).isTrue();
+    cache.releaseHoleSpan(holeSpan);
+    assertThat(cache.getCachedSpans("key")).isEmpty();
+    assertThat(cache.getCacheSpace()).isEqualTo(0);
+    // Running the discarded operations has no effect.
+    runPendingTasks(pendingTasks);
+    assertThat(cache.getCachedSpans("key")).isEmpty();
+  }
+
+  @Test
+  public void close_throwsErrorFromUnderlyingSink() throws Exception {
+    IOException writeError = new IOException();
+    DataSink failingDataSink =
+        new DataSink() {
+          @Override
+          public void open(DataSpec dataSpec) {}
+
+          @Override
+          public void write(byte[] buffer, int offset, int length) throws IOException {
+            throw writeError;
+          }
+
+          @Override
+          public void close() {}
+        };
+    AsyncCacheDataSink dataSink =
+        new AsyncCacheDataSink(
+            failingDataSink, Runnable::run, /* bufferCount= */ 1, /* bufferSize= */ 10);
+    dataSink.open(new DataSpec(Uri.parse("test_data")));
+    dataSink.write(TEST_DATA, /* offset= */ 0, /* length= */ 5);
+
+    IOException error = assertThrows(IOException.class, dataSink::close);
+
+    assertThat(error).isSameInstanceAs(writeError);
+  }
+
+  private static void runPendingTasks(Queue<Runnable> pendingTasks) {
+    @Nullable Runnable task;
+    while ((task = pendingTasks.poll()) != null) {
+      task.run();
+    }
+  }
+}
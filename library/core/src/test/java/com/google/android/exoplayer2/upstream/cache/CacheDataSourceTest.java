@@ -504,6 +504,42 @@ public final class CacheDataSourceTest {
     cacheDataSource.close();
   }
 
+  @Test
+  public void readWithCoalescing_requestsNearbyHolesTogether() throws Exception {
+    cacheFragments(/* position= */ 2, /* length= */ 2);
+    cacheFragments(/* position= */ 6, /* length= */ 2);
+    upstreamDataSource.getDataSet().newDefaultData().appendReadData(TEST_DATA);
+    CacheDataSource cacheDataSource =
+        createCoalescingCacheDataSource(/* maxCoalescedGapBytes= */ 2);
+
+    CacheAsserts.assertReadData(cacheDataSource, boundedDataSpec, TEST_DATA);
+
+    DataSpec[] openedDataSpecs = upstreamDataSource.getAndClearOpenedDataSpecs();
+    assertThat(openedDataSpecs).hasLength(1);
+    assertThat(openedDataSpecs[0].position).isEqualTo(0);
+    assertThat(openedDataSpecs[0].length).isEqualTo(TEST_DATA.length);
+    CacheAsserts.assertDataCached(cache, boundedDataSpec, TEST_DATA);
+    long cachedSpansLength = 0;
+    for (CacheSpan cacheSpan : cache.getCachedSpans(defaultCacheKey)) {
+      cachedSpansLength += cacheSpan.length;
+    }
+    assertThat(cachedSpansLength).isEqualTo(TEST_DATA.length);
+  }
+
+  @Test
+  public void readWithCoalescing_requestsDistantHolesSeparately() throws Exception {
+    cacheFragments(/* position= */ 2, /* length= */ 2);
+    cacheFragments(/* position= */ 6, /* length= */ 2);
+    upstreamDataSource.getDataSet().newDefaultData().appendReadData(TEST_DATA);
+    CacheDataSource cacheDataSource =
+        createCoalescingCacheDataSource(/* maxCoalescedGapBytes= */ 1);
+
+    CacheAsserts.assertReadData(cacheDataSource, boundedDataSpec, TEST_DATA);
+
+    assertThat(upstreamDataSource.getAndClearOpenedDataSpecs()).hasLength(3);
+    CacheAsserts.assertDataCached(cache, boundedDataSpec, TEST_DATA);
+  }
+
   private void assertCacheAndRead(DataSpec dataSpec, boolean unknownLength) throws IOException {
     assertCacheAndRead(dataSpec, unknownLength, /* cacheKeyFactory= */ null);
   }
@@ -618,6 +654,28 @@ public final class CacheDataSourceTest {
         cacheKeyFactory);
   }
 
+  private void cacheFragments(long position, long length) throws IOException {
+    FakeDataSource upstream = new FakeDataSource();
+    upstream.getDataSet().newDefaultData().appendReadData(TEST_DATA);
+    new CacheWriter(
+            new CacheDataSource(cache, upstream),
+            buildDataSpec(position, length),
+            /* allowShortContent= */ false,
+            /* isCanceled= */ null,
+            /* temporaryBuffer= */ null,
+            /* progressListener= */ null)
+        .cache();
+  }
+
+  private CacheDataSource createCoalescingCacheDataSource(long maxCoalescedGapBytes) {
+    return new CacheDataSource.Factory()
+        .setCache(cache)
+        .setUpstreamDataSourceFactory(() -> upstreamDataSource)
+        .setFlags(CacheDataSource.FLAG_BLOCK_ON_CACHE)
+        .setMaxCoalescedGapBytes(maxCoalescedGapBytes)
+        .createDataSource();
+  }
+
   private DataSpec buildDataSpec(boolean unbounded, @Nullable String key) {
     return buildDataSpec(/* position= */ 0, unbounded ? C.LENGTH_UNSET : TEST_DATA.length, key);
   }
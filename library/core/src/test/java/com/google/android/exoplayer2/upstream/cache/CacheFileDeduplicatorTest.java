@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link CacheFileDeduplicator}. */
+@RunWith(AndroidJUnit4.class)
+public final class CacheFileDeduplicatorTest {
+
+  private static final byte[] TEST_DATA = TestUtil.buildTestData(100);
+
+  private File tempFolder;
+  private SimpleCache cache;
+  private CacheFileDeduplicator fileDeduplicator;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFolder =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    cache = new SimpleCache(tempFolder, new NoOpCacheEvictor());
+    fileDeduplicator = new CacheFileDeduplicator();
+    cache.setFileDeduplicator(fileDeduplicator);
+  }
+
+  @After
+  public void tearDown() {
+    cache.release();
+    Util.recursiveDelete(tempFolder);
+  }
+
+  @Test
+  public void commitIdenticalFiles_linksToSameFile() throws Exception {
+    addSpan("key1", TEST_DATA);
+    addSpan("key2", TEST_DATA);
+
+    File file1 = getSpanFile("key1");
+    File file2 = getSpanFile("key2");
+    assertThat(Files.isSameFile(file1.toPath(), file2.toPath())).isTrue();
+    assertThat(fileDeduplicator.getDeduplicatedBytes()).isEqualTo(TEST_DATA.length);
+    assertThat(cache.getCacheSpace()).isEqualTo(2 * TEST_DATA.length);
+  }
+
+  @Test
+  public void commitDifferentFiles_doesNotLink() throws Exception {
+    addSpan("key1", TEST_DATA);
+    addSpan("key2", TestUtil.buildTestData(TEST_DATA.length, /* seed= */ 1));
+
+    File file1 = getSpanFile("key1");
+    File file2 = getSpanFile("key2");
+    assertThat(Files.isSameFile(file1.toPath(), file2.toPath())).isFalse();
+    assertThat(fileDeduplicator.getDeduplicatedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void removeLinkedResource_keepsDataForOtherResource() throws Exception {
+    addSpan("key1", TEST_DATA);
+    addSpan("key2", TEST_DATA);
+
+    cache.removeResource("key1");
+
+    assertThat(fileDeduplicator.getDeduplicatedBytes()).isEqualTo(0);
+    assertThat(Files.readAllBytes(getSpanFile("key2").toPath())).isEqualTo(TEST_DATA);
+    // Adding the content again links to the remaining file.
+    addSpan("key3", TEST_DATA);
+    assertThat(fileDeduplicator.getDeduplicatedBytes()).isEqualTo(TEST_DATA.length);
+  }
+
+  @Test
+  public void commitIdenticalFile_afterRestart_linksToFileCommittedBefore() throws Exception {
+    addSpan("key1", TEST_DATA);
+    addSpan("key2", TEST_DATA);
+    cache.release();
+
+    cache = new SimpleCache(tempFolder, new NoOpCacheEvictor());
+    fileDeduplicator = new CacheFileDeduplicator();
+    cache.setFileDeduplicator(fileDeduplicator);
+
+    assertThat(fileDeduplicator.getDeduplicatedBytes()).isEqualTo(TEST_DATA.length);
+    addSpan("key3", TEST_DATA);
+    assertThat(Files.isSameFile(getSpanFile("key1").toPath(), getSpanFile("key3").toPath()))
+        .isTrue();
+    assertThat(fileDeduplicator.getDeduplicatedBytes()).isEqualTo(2 * TEST_DATA.length);
+  }
+
+  @Test
+  public void commitIdenticalFile_afterRestartAndRemoval_doesNotLinkToRemovedFile()
+      throws Exception {
+    addSpan("key1", TEST_DATA);
+    // Keep the content in the index while its span is replaced.
+    CacheSpan holeSpan = cache.startReadWrite("key1", /* position= */ 1000, C.LENGTH_UNSET);
+    cache.removeSpan(cache.getCachedSpans("key1").first());
+    // Commit different data at the same position, while no deduplicator is set.
+    cache.setFileDeduplicator(null);
+    addSpan("key1", TestUtil.buildTestData(TEST_DATA.length, /* seed= */ 1));
+    cache.releaseHoleSpan(holeSpan);
+    cache.release();
+
+    cache = new SimpleCache(tempFolder, new NoOpCacheEvictor());
+    fileDeduplicator = new CacheFileDeduplicator();
+    cache.setFileDeduplicator(fileDeduplicator);
+    addSpan("key2", TEST_DATA);
+
+    assertThat(Files.isSameFile(getSpanFile("key1").toPath(), getSpanFile("key2").toPath()))
+        .isFalse();
+    assertThat(Files.readAllBytes(getSpanFile("key2").toPath())).isEqualTo(TEST_DATA);
+  }
+
+  private void addSpan(String key, byte[] data) throws Exception {
+    CacheSpan holeSpan = cache.startReadWrite(key, /* position= */ 0, data.length);
+    File file = cache.startFile(key, /* position= */ 0, data.length);
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(data);
+    }
+    cache.commitFile(file, data.length);
+    cache.releaseHoleSpan(holeSpan);
+  }
+
+  private File getSpanFile(String key) {
+    CacheSpan span = cache.getCachedSpans(key).first();
+    return span.file;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.CacheAsserts;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link CacheMetrics}. */
+@RunWith(AndroidJUnit4.class)
+public final class CacheMetricsTest {
+
+  private static final byte[] TEST_DATA = TestUtil.buildTestData(100);
+
+  private File tempFolder;
+  private CacheMetrics cacheMetrics;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFolder =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    cacheMetrics = new CacheMetrics();
+  }
+
+  @After
+  public void tearDown() {
+    Util.recursiveDelete(tempFolder);
+  }
+
+  @Test
+  public void readThroughCacheDataSource_recordsMissThenHit() throws Exception {
+    SimpleCache cache = new SimpleCache(tempFolder, new NoOpCacheEvictor());
+    FakeDataSource upstream = new FakeDataSource();
+    upstream.getDataSet().setData("test_data", TEST_DATA);
+    CacheDataSource.Factory cacheDataSourceFactory =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(() -> upstream)
+            .setCacheMetrics(cacheMetrics);
+    DataSpec dataSpec = new DataSpec(Uri.parse("test_data"));
+
+    CacheAsserts.assertReadData(cacheDataSourceFactory.createDataSource(), dataSpec, TEST_DATA);
+    CacheAsserts.assertReadData(cacheDataSourceFactory.createDataSource(), dataSpec, TEST_DATA);
+
+    CacheMetrics.Snapshot snapshot = cacheMetrics.getSnapshot();
+    assertThat(snapshot.cacheMissCount).isEqualTo(1);
+    assertThat(snapshot.cacheHitCount).isEqualTo(1);
+    assertThat(snapshot.upstreamBytesRead).isEqualTo(TEST_DATA.length);
+    assertThat(snapshot.cachedBytesRead).isEqualTo(TEST_DATA.length);
+    assertThat(snapshot.getByteHitRatio()).isEqualTo(0.5);
+    assertThat(snapshot.lockWaitCount).isEqualTo(2);
+    assertThat(snapshot.spanOpenCount).isEqualTo(1);
+    CacheMetrics.Snapshot keySnapshot = cacheMetrics.getSnapshot("test_data");
+    assertThat(keySnapshot.cacheHitCount).isEqualTo(1);
+    assertThat(keySnapshot.cachedBytesRead).isEqualTo(TEST_DATA.length);
+    assertThat(cacheMetrics.getSnapshot("other_key")).isSameInstanceAs(CacheMetrics.Snapshot.EMPTY);
+    cache.release();
+  }
+
+  @Test
+  public void simpleCache_recordsRemovedBytesByReason() throws Exception {
+    SimpleCache cache =
+        new SimpleCache(tempFolder, new LeastRecentlyUsedCacheEvictor(/* maxBytes= */ 15));
+    cache.setCacheMetrics(cacheMetrics);
+
+    addSpan(cache, "key1", /* length= */ 10);
+    // Adding a second span evicts the first.
+    addSpan(cache, "key2", /* length= */ 10);
+    cache.removeResource("key2");
+
+    CacheMetrics.Snapshot snapshot = cacheMetrics.getSnapshot();
+    assertThat(snapshot.evictedBytes).isEqualTo(10);
+    assertThat(snapshot.removedBytes).isEqualTo(10);
+    assertThat(snapshot.staleBytes).isEqualTo(0);
+    assertThat(snapshot.indexStoreCount).isEqualTo(2);
+    cache.release();
+  }
+
+  @Test
+  public void snapshotMinus_returnsMetricsSinceEarlierSnapshot() throws Exception {
+    SimpleCache cache =
+        new SimpleCache(tempFolder, new LeastRecentlyUsedCacheEvictor(/* maxBytes= */ 15));
+    cache.setCacheMetrics(cacheMetrics);
+    addSpan(cache, "key1", /* length= */ 10);
+    addSpan(cache, "key2", /* length= */ 10);
+    CacheMetrics.Snapshot earlierSnapshot = cacheMetrics.getSnapshot();
+
+    addSpan(cache, "key3", /* length= */ 10);
+
+    CacheMetrics.Snapshot difference = cacheMetrics.getSnapshot().minus(earlierSnapshot);
+    assertThat(difference.evictedBytes).isEqualTo(10);
+    assertThat(difference.indexStoreCount).isEqualTo(1);
+    cache.release();
+  }
+
+  private static void addSpan(SimpleCache cache, String key, int length) throws Exception {
+    CacheSpan holeSpan = cache.startReadWrite(key, /* position= */ 0, length);
+    File file = cache.startFile(key, /* position= */ 0, length);
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(TestUtil.buildTestData(length));
+    }
+    cache.commitFile(file, length);
+    cache.releaseHoleSpan(holeSpan);
+  }
+}
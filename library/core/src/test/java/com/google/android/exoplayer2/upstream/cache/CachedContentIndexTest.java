@@ -24,6 +24,7 @@ import android.util.SparseArray;
 import androidx.annotation.Nullable;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.database.DatabaseProvider;
 import com.google.android.exoplayer2.testutil.TestUtil;
 import com.google.android.exoplayer2.util.Util;
 import java.io.File;
@@ -148,6 +149,82 @@ public class CachedContentIndexTest {
     assertStoredAndLoadedEqual(newLegacyInstance(), newLegacyInstance());
   }
 
+  @Test
+  public void journalStoreAndLoad() throws Exception {
+    assertStoredAndLoadedEqual(newJournalInstance(), newJournalInstance());
+  }
+
+  @Test
+  public void journalIncrementalStoreAndLoad() throws Exception {
+    CachedContentIndex index = newJournalInstance();
+    index.initialize(/* uid= */ 0);
+    index.getOrAdd("key1");
+    index.getOrAdd("key2");
+    index.store();
+    long fullLength = new File(cacheDir, CachedContentIndex.FILE_NAME_JOURNAL).length();
+    // Remove key1, re-add it with a new id, and update the metadata of key2.
+    index.maybeRemove("key1");
+    CachedContent cachedContent1 = index.getOrAdd("key1");
+    ContentMetadataMutations mutations = new ContentMetadataMutations();
+    ContentMetadataMutations.setContentLength(mutations, 10);
+    index.applyContentMetadataMutations("key2", mutations);
+    index.store();
+
+    // The changes were appended to the journal.
+    assertThat(new File(cacheDir, CachedContentIndex.FILE_NAME_JOURNAL).length())
+        .isGreaterThan(fullLength);
+    CachedContentIndex index2 = newJournalInstance();
+    index2.initialize(/* uid= */ 0);
+    assertThat(index2.getKeys()).containsExactly("key1", "key2");
+    assertThat(index2.get("key1")).isEqualTo(cachedContent1);
+    assertThat(index2.get("key2")).isEqualTo(index.get("key2"));
+    assertThat(index2.getKeyForId(cachedContent1.id)).isEqualTo("key1");
+  }
+
+  @Test
+  public void journalLoadWithTruncatedRecord_discardsRecordAndRewrites() throws Exception {
+    CachedContentIndex index = newJournalInstance();
+    index.initialize(/* uid= */ 0);
+    index.getOrAdd("key1");
+    index.store();
+    index.getOrAdd("key2");
+    index.store();
+    File journalFile = new File(cacheDir, CachedContentIndex.FILE_NAME_JOURNAL);
+    byte[] journal;
+    try (FileInputStream inputStream = new FileInputStream(journalFile)) {
+      journal = Util.toByteArray(inputStream);
+    }
+    try (FileOutputStream outputStream = new FileOutputStream(journalFile)) {
+      // Simulate the process being killed whilst appending the record for key2.
+      outputStream.write(journal, /* off= */ 0, journal.length - 3);
+    }
+
+    CachedContentIndex index2 = newJournalInstance();
+    index2.initialize(/* uid= */ 0);
+    assertThat(index2.getKeys()).containsExactly("key1");
+    index2.getOrAdd("key3");
+    index2.store();
+    CachedContentIndex index3 = newJournalInstance();
+    index3.initialize(/* uid= */ 0);
+    assertThat(index3.getKeys()).containsExactly("key1", "key3");
+  }
+
+  @Test
+  public void journalMigratesFromDatabase() throws Exception {
+    DatabaseProvider databaseProvider = TestUtil.getInMemoryDatabaseProvider();
+    CachedContentIndex databaseIndex = new CachedContentIndex(databaseProvider);
+    databaseIndex.initialize(/* uid= */ 0);
+    CachedContent cachedContent = databaseIndex.getOrAdd("key1");
+    databaseIndex.store();
+
+    CachedContentIndex index = new CachedContentIndex(cacheDir, databaseProvider);
+    index.initialize(/* uid= */ 0);
+    CachedContentIndex index2 = newJournalInstance();
+    index2.initialize(/* uid= */ 0);
+
+    assertThat(index2.get("key1")).isEqualTo(cachedContent);
+  }
+
   @Test
   public void legacyLoadV1() throws Exception {
     CachedContentIndex index = newLegacyInstance();
@@ -332,6 +409,10 @@ public class CachedContentIndexTest {
     return new CachedContentIndex(TestUtil.getInMemoryDatabaseProvider());
   }
 
+  private CachedContentIndex newJournalInstance() {
+    return new CachedContentIndex(cacheDir, /* databaseProvider= */ null);
+  }
+
   private CachedContentIndex newLegacyInstance() {
     return newLegacyInstance(null);
   }
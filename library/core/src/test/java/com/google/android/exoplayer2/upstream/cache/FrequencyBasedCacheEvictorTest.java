@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.android.exoplayer2.C.LENGTH_UNSET;
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+
+/** Unit tests for {@link FrequencyBasedCacheEvictor}. */
+@RunWith(AndroidJUnit4.class)
+public final class FrequencyBasedCacheEvictorTest {
+
+  private static final int MAX_BYTES = 1000;
+  private static final int SPAN_LENGTH = 100;
+  private static final String HOT_KEY = "hot";
+
+  private File testDir;
+  private File cacheDir;
+
+  @Before
+  public void setUp() throws Exception {
+    testDir =
+        Util.createTempFile(
+            ApplicationProvider.getApplicationContext(), "FrequencyBasedCacheEvictorTest");
+    assertThat(testDir.delete()).isTrue();
+    assertThat(testDir.mkdirs()).isTrue();
+    cacheDir = new File(testDir, "cache");
+  }
+
+  @After
+  public void tearDown() {
+    Util.recursiveDelete(testDir);
+  }
+
+  @Test
+  public void contentBiggerThanMaxSizeDoesNotThrowException() throws Exception {
+    FrequencyBasedCacheEvictor evictor = new FrequencyBasedCacheEvictor(MAX_BYTES);
+    evictor.onCacheInitialized();
+    evictor.onStartFile(Mockito.mock(Cache.class), "key", 0, MAX_BYTES + 1);
+  }
+
+  @Test
+  public void touchUntrackedSpan_doesNotEvict() throws Exception {
+    FrequencyBasedCacheEvictor evictor = new FrequencyBasedCacheEvictor(MAX_BYTES);
+    evictor.onCacheInitialized();
+    Cache cache = Mockito.mock(Cache.class);
+    CacheSpan span = new CacheSpan("key", /* position= */ 0, /* length= */ MAX_BYTES + 1);
+
+    evictor.onSpanTouched(cache, span, span);
+
+    Mockito.verify(cache, Mockito.never()).removeSpan(Mockito.any());
+  }
+
+  @Test
+  public void frequentlyReadSpan_survivesScan() throws Exception {
+    SimpleCache cache = new SimpleCache(cacheDir, new FrequencyBasedCacheEvictor(MAX_BYTES));
+    addSpan(cache, HOT_KEY);
+    readSpan(cache, HOT_KEY, /* count= */ 3);
+
+    // Write more data than fits in the cache, reading each span once.
+    for (int i = 0; i < 2 * MAX_BYTES / SPAN_LENGTH; i++) {
+      addSpan(cache, "scan" + i);
+    }
+
+    assertThat(cache.getCachedSpans(HOT_KEY)).hasSize(1);
+    assertThat(cache.getCacheSpace()).isAtMost(MAX_BYTES);
+  }
+
+  @Test
+  public void spanReadOnce_isNotAdmittedOverFrequentlyReadSpans() throws Exception {
+    SimpleCache cache = new SimpleCache(cacheDir, new FrequencyBasedCacheEvictor(MAX_BYTES));
+    int spanCount = MAX_BYTES / SPAN_LENGTH;
+    for (int i = 0; i < spanCount; i++) {
+      addSpan(cache, "frequent" + i);
+      readSpan(cache, "frequent" + i, /* count= */ 2);
+    }
+
+    addSpan(cache, "once");
+
+    assertThat(cache.getCachedSpans("once")).isEmpty();
+    for (int i = 0; i < spanCount; i++) {
+      assertThat(cache.getCachedSpans("frequent" + i)).hasSize(1);
+    }
+  }
+
+  @Test
+  public void stateFile_restoresFrequenciesAfterRestart() throws Exception {
+    File stateFile = new File(testDir, "evictor_state");
+    SimpleCache cache =
+        new SimpleCache(
+            cacheDir,
+            new FrequencyBasedCacheEvictor(
+                MAX_BYTES, FrequencyBasedCacheEvictor.DEFAULT_MISS_COST_BYTES, stateFile));
+    addSpan(cache, HOT_KEY);
+    readSpan(cache, HOT_KEY, /* count= */ 3);
+    for (int i = 1; i < MAX_BYTES / SPAN_LENGTH; i++) {
+      addSpan(cache, "cold" + i);
+    }
+    cache.release();
+    assertThat(stateFile.exists()).isTrue();
+
+    cache =
+        new SimpleCache(
+            cacheDir,
+            new FrequencyBasedCacheEvictor(
+                MAX_BYTES, FrequencyBasedCacheEvictor.DEFAULT_MISS_COST_BYTES, stateFile));
+    addSpan(cache, "new");
+
+    assertThat(cache.getCachedSpans(HOT_KEY)).hasSize(1);
+    assertThat(cache.getCacheSpace()).isAtMost(MAX_BYTES);
+  }
+
+  @Test
+  public void stateFile_withExecutor_savesStatePeriodicallyOnExecutor() throws Exception {
+    File stateFile = new File(testDir, "evictor_state");
+    ArrayList<Runnable> pendingWrites = new ArrayList<>();
+    SimpleCache cache =
+        new SimpleCache(
+            cacheDir,
+            new FrequencyBasedCacheEvictor(
+                MAX_BYTES,
+                FrequencyBasedCacheEvictor.DEFAULT_MISS_COST_BYTES,
+                stateFile,
+                /* stateWriteExecutor= */ pendingWrites::add));
+    addSpan(cache, HOT_KEY);
+
+    readSpan(cache, HOT_KEY, /* count= */ 1000);
+
+    assertThat(pendingWrites).hasSize(1);
+    assertThat(stateFile.exists()).isFalse();
+    pendingWrites.get(0).run();
+    assertThat(stateFile.exists()).isTrue();
+    cache.release();
+    assertThat(pendingWrites).hasSize(1);
+  }
+
+  private static void addSpan(SimpleCache cache, String key) throws Exception {
+    CacheSpan holeSpan = cache.startReadWrite(key, 0, LENGTH_UNSET);
+    File file = cache.startFile(key, 0, SPAN_LENGTH);
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(new byte[SPAN_LENGTH]);
+    }
+    cache.commitFile(file, SPAN_LENGTH);
+    cache.releaseHoleSpan(holeSpan);
+  }
+
+  private static void readSpan(SimpleCache cache, String key, int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      CacheSpan span = cache.startReadWrite(key, 0, LENGTH_UNSET);
+      assertThat(span.isCached).isTrue();
+    }
+  }
+}
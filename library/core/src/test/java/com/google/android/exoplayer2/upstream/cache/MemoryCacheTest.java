@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.testutil.CacheAsserts;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link MemoryCache}. */
+@RunWith(AndroidJUnit4.class)
+public final class MemoryCacheTest {
+
+  private static final byte[] TEST_DATA = TestUtil.buildTestData(100);
+
+  private File tempFolder;
+  private SimpleCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFolder =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    cache = new SimpleCache(tempFolder, new NoOpCacheEvictor());
+  }
+
+  @After
+  public void tearDown() {
+    cache.release();
+    Util.recursiveDelete(tempFolder);
+  }
+
+  @Test
+  public void put_evictsLeastRecentlyUsedEntries() throws Exception {
+    MemoryCache memoryCache =
+        new MemoryCache(cache, /* maxBytes= */ 25, /* maxEntryBytes= */ 10);
+    addCache("key1", 10);
+    addCache("key2", 10);
+    addCache("key3", 10);
+    addCache("key4", 11);
+    memoryCache.put("key1", TestUtil.buildTestData(10));
+    memoryCache.put("key2", TestUtil.buildTestData(10));
+    memoryCache.get("key1");
+
+    memoryCache.put("key3", TestUtil.buildTestData(10));
+    memoryCache.put("key4", TestUtil.buildTestData(11));
+
+    assertThat(memoryCache.get("key1")).isNotNull();
+    assertThat(memoryCache.get("key2")).isNull();
+    assertThat(memoryCache.get("key3")).isNotNull();
+    assertThat(memoryCache.get("key4")).isNull();
+    assertThat(memoryCache.getSize()).isEqualTo(20);
+  }
+
+  @Test
+  public void put_withoutCachedSpans_doesNotHoldData() {
+    MemoryCache memoryCache = new MemoryCache(cache, /* maxBytes= */ 1000);
+
+    memoryCache.put("key1", TestUtil.buildTestData(10));
+
+    assertThat(memoryCache.get("key1")).isNull();
+    assertThat(memoryCache.getSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void put_afterCacheReleased_doesNotHoldData() throws Exception {
+    MemoryCache memoryCache = new MemoryCache(cache, /* maxBytes= */ 1000);
+    addCache("key1", 10);
+    cache.release();
+
+    memoryCache.put("key1", TestUtil.buildTestData(10));
+
+    assertThat(memoryCache.get("key1")).isNull();
+    assertThat(memoryCache.getSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void readThroughCacheDataSource_servesSecondReadFromMemory() throws Exception {
+    MemoryCache memoryCache = new MemoryCache(cache, /* maxBytes= */ 1000);
+    AtomicInteger cacheFileOpenCount = new AtomicInteger();
+    CacheDataSource.Factory cacheDataSourceFactory =
+        createCacheDataSourceFactory(memoryCache, cacheFileOpenCount);
+    DataSpec dataSpec = new DataSpec(Uri.parse("test_data"));
+
+    CacheAsserts.assertReadData(cacheDataSourceFactory.createDataSource(), dataSpec, TEST_DATA);
+    CacheAsserts.assertReadData(cacheDataSourceFactory.createDataSource(), dataSpec, TEST_DATA);
+    CacheAsserts.assertReadData(
+        cacheDataSourceFactory.createDataSource(),
+        new DataSpec(Uri.parse("test_data"), /* position= */ 10, /* length= */ 20),
+        Arrays.copyOfRange(TEST_DATA, /* from= */ 10, /* to= */ 30));
+
+    assertThat(memoryCache.getSize()).isEqualTo(TEST_DATA.length);
+    assertThat(cacheFileOpenCount.get()).isEqualTo(0);
+    CacheAsserts.assertDataCached(cache, dataSpec, TEST_DATA);
+  }
+
+  @Test
+  public void removeResource_invalidatesEntry() throws Exception {
+    MemoryCache memoryCache = new MemoryCache(cache, /* maxBytes= */ 1000);
+    AtomicInteger cacheFileOpenCount = new AtomicInteger();
+    CacheDataSource.Factory cacheDataSourceFactory =
+        createCacheDataSourceFactory(memoryCache, cacheFileOpenCount);
+    DataSpec dataSpec = new DataSpec(Uri.parse("test_data"));
+    CacheAsserts.assertReadData(cacheDataSourceFactory.createDataSource(), dataSpec, TEST_DATA);
+
+    cache.removeResource("test_data");
+
+    assertThat(memoryCache.get("test_data")).isNull();
+    assertThat(memoryCache.getSize()).isEqualTo(0);
+  }
+
+  private void addCache(String key, int length) throws Exception {
+    CacheSpan holeSpan = cache.startReadWrite(key, /* position= */ 0, length);
+    File file = cache.startFile(key, /* position= */ 0, length);
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      outputStream.write(TestUtil.buildTestData(length));
+    }
+    cache.commitFile(file, length);
+    cache.releaseHoleSpan(holeSpan);
+  }
+
+  private CacheDataSource.Factory createCacheDataSourceFactory(
+      MemoryCache memoryCache, AtomicInteger cacheFileOpenCount) {
+    FakeDataSource upstream = new FakeDataSource();
+    upstream.getDataSet().setData("test_data", TEST_DATA);
+    return new CacheDataSource.Factory()
+        .setCache(cache)
+        .setUpstreamDataSourceFactory(() -> upstream)
+        .setCacheReadDataSourceFactory(
+            () -> {
+              FileDataSource fileDataSource = new FileDataSource();
+              fileDataSource.addTransferListener(
+                  new TransferListener() {
+                    @Override
+                    public void onTransferInitializing(
+                        DataSource source, DataSpec dataSpec, boolean isNetwork) {
+                      cacheFileOpenCount.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onTransferStart(
+                        DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+
+                    @Override
+                    public void onBytesTransferred(
+                        DataSource source,
+                        DataSpec dataSpec,
+                        boolean isNetwork,
+                        int bytesTransferred) {}
+
+                    @Override
+                    public void onTransferEnd(
+                        DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+                  });
+              return fileDataSource;
+            })
+        .setMemoryCache(memoryCache);
+  }
+}
@@ -24,6 +24,7 @@ import static org.mockito.Mockito.doAnswer;
 import android.net.Uri;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.database.DatabaseProvider;
 import com.google.android.exoplayer2.testutil.TestUtil;
 import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
 import com.google.android.exoplayer2.util.Util;
@@ -31,8 +32,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.NavigableSet;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -118,6 +124,90 @@ public class SimpleCacheTest {
         .isEqualTo(Uri.parse("https://redirect.google.com"));
   }
 
+  @Test
+  public void newInstance_withSpanManifest_loadsSpansWithoutScanningDirectory() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_1, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    simpleCache.release();
+    assertThat(new File(cacheDir, CacheSpanManifest.FILE_NAME).exists()).isTrue();
+    // A directory scan would delete this unrecognized file.
+    File unrecognizedFile = new File(cacheDir, "unrecognized.file");
+    assertThat(unrecognizedFile.createNewFile()).isTrue();
+
+    simpleCache = getSimpleCache();
+
+    assertThat(unrecognizedFile.exists()).isTrue();
+    CacheSpan fileSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    assertCachedDataReadCorrect(fileSpan);
+  }
+
+  @Test
+  public void newInstance_afterProcessKill_loadsSpansWithoutScanningDirectory() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_1, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    holeSpan = simpleCache.startReadWrite(KEY_2, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_2, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    // Don't release the cache, as if the process were killed. Move the cache directory instead, so
+    // we can reload it without failing the folder locking check.
+    File cacheDir2 = new File(testDir, "cache2");
+    assertThat(cacheDir.renameTo(cacheDir2)).isTrue();
+    assertThat(new File(cacheDir2, CacheSpanManifest.FILE_NAME).exists()).isTrue();
+    // A directory scan would delete this unrecognized file.
+    File unrecognizedFile = new File(cacheDir2, "unrecognized.file");
+    assertThat(unrecognizedFile.createNewFile()).isTrue();
+    simpleCache = new SimpleCache(cacheDir2, new NoOpCacheEvictor());
+
+    assertThat(unrecognizedFile.exists()).isTrue();
+    assertThat(simpleCache.getCachedSpans(KEY_1)).hasSize(1);
+    assertThat(simpleCache.getCachedSpans(KEY_2)).hasSize(1);
+  }
+
+  @Test
+  public void newInstance_afterProcessKillWithUnstoredRemoval_scansDirectory() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_1, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    holeSpan = simpleCache.startReadWrite(KEY_2, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_2, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    // Removing a span deletes the manifest until it's stored again.
+    simpleCache.removeResource(KEY_1);
+    assertThat(new File(cacheDir, CacheSpanManifest.FILE_NAME).exists()).isFalse();
+
+    File cacheDir2 = new File(testDir, "cache2");
+    assertThat(cacheDir.renameTo(cacheDir2)).isTrue();
+    simpleCache = new SimpleCache(cacheDir2, new NoOpCacheEvictor());
+
+    assertThat(simpleCache.getCachedSpans(KEY_1)).isEmpty();
+    assertThat(simpleCache.getCachedSpans(KEY_2)).hasSize(1);
+  }
+
+  @Test
+  public void newInstance_withDatabaseAndSpanManifest_loadsCachedData() throws Exception {
+    DatabaseProvider databaseProvider = TestUtil.getInMemoryDatabaseProvider();
+    SimpleCache simpleCache =
+        new SimpleCache(cacheDir, new NoOpCacheEvictor(), databaseProvider);
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+    addCache(simpleCache, KEY_1, 0, 15);
+    addCache(simpleCache, KEY_1, 15, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    simpleCache.release();
+
+    simpleCache = new SimpleCache(cacheDir, new NoOpCacheEvictor(), databaseProvider);
+
+    assertThat(simpleCache.getCachedBytes(KEY_1, 0, LENGTH_UNSET)).isEqualTo(30);
+    for (CacheSpan cacheSpan : simpleCache.getCachedSpans(KEY_1)) {
+      assertCachedDataReadCorrect(cacheSpan);
+    }
+  }
+
   @Test
   public void newInstance_withExistingCacheInstance_fails() {
     getSimpleCache();
@@ -282,6 +372,65 @@ public class SimpleCacheTest {
     simpleCache.releaseHoleSpan(holeSpan2);
   }
 
+  @Test
+  public void write_sameKeyLockedOnOtherThread_blocksUntilLockReleased() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET);
+
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      Future<CacheSpan> readSpanFuture =
+          executorService.submit(() -> simpleCache.startReadWrite(KEY_1, 0, LENGTH_UNSET));
+      addCache(simpleCache, KEY_1, 0, 15);
+      simpleCache.releaseHoleSpan(holeSpan);
+
+      CacheSpan readSpan = readSpanFuture.get(10, TimeUnit.SECONDS);
+      assertThat(readSpan.position).isEqualTo(0);
+      assertThat(readSpan.length).isEqualTo(15);
+      assertCachedDataReadCorrect(readSpan);
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void write_differentKeysOnMultipleThreads_thenRead() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    int threadCount = 4;
+    int spansPerThread = 20;
+
+    ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+    try {
+      ArrayList<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threadCount; i++) {
+        String key = "key" + i;
+        futures.add(
+            executorService.submit(
+                () -> {
+                  for (int j = 0; j < spansPerThread; j++) {
+                    CacheSpan holeSpan = simpleCache.startReadWrite(key, j * 10, 10);
+                    addCache(simpleCache, key, j * 10, 10);
+                    simpleCache.releaseHoleSpan(holeSpan);
+                    assertThat(simpleCache.isCached(key, 0, (j + 1) * 10)).isTrue();
+                  }
+                  return null;
+                }));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        futures.get(i).get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      executorService.shutdown();
+    }
+
+    for (int i = 0; i < threadCount; i++) {
+      String key = "key" + i;
+      assertThat(simpleCache.getCachedBytes(key, 0, LENGTH_UNSET)).isEqualTo(spansPerThread * 10);
+      assertThat(simpleCache.getCachedSpans(key)).hasSize(spansPerThread);
+    }
+    assertThat(simpleCache.getCacheSpace()).isEqualTo(threadCount * spansPerThread * 10);
+  }
+
   @Test
   public void write_oneLock_fileExceedsLock_fails() throws Exception {
     SimpleCache simpleCache = getSimpleCache();
@@ -20,14 +20,19 @@ import static com.google.android.exoplayer2.source.dash.offline.DashDownloadTest
 import static com.google.android.exoplayer2.source.dash.offline.DashDownloadTestData.TEST_MPD_URI;
 import static com.google.android.exoplayer2.testutil.CacheAsserts.assertCacheEmpty;
 import static com.google.android.exoplayer2.testutil.CacheAsserts.assertCachedData;
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
 import static com.google.common.truth.Truth.assertThat;
+import static java.lang.Math.max;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import android.net.Uri;
+import androidx.annotation.Nullable;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.MediaItem;
 import com.google.android.exoplayer2.offline.DefaultDownloaderFactory;
 import com.google.android.exoplayer2.offline.DownloadException;
@@ -39,17 +44,25 @@ import com.google.android.exoplayer2.testutil.CacheAsserts.RequestSet;
 import com.google.android.exoplayer2.testutil.FakeDataSet;
 import com.google.android.exoplayer2.testutil.FakeDataSource;
 import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.DummyDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
 import com.google.android.exoplayer2.upstream.cache.Cache;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
 import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
 import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.PriorityTaskManager.PriorityTooLowException;
 import com.google.android.exoplayer2.util.Util;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -114,6 +127,26 @@ public class DashDownloaderTest {
     assertCachedData(cache, new RequestSet(fakeDataSet).useBoundedDataSpecFor("audio_init_data"));
   }
 
+  @Test
+  public void downloadRepresentation_withMaxDuration_downloadsSegmentsStartingWithinDuration()
+      throws Exception {
+    FakeDataSet fakeDataSet =
+        new FakeDataSet()
+            .setData(TEST_MPD_URI, TEST_MPD)
+            .setRandomData("audio_init_data", 10)
+            .setRandomData("audio_segment_1", 4)
+            .setRandomData("audio_segment_2", 5)
+            .setRandomData("audio_segment_3", 6);
+
+    DashDownloader dashDownloader = getDashDownloader(fakeDataSet, new StreamKey(0, 0, 0));
+    dashDownloader.setMaxDurationUs(6_000_000);
+    dashDownloader.download(progressListener);
+
+    // The third segment starts at 10 seconds.
+    progressListener.assertBytesDownloaded(10 + 4 + 5);
+    assertThat(cache.getCachedBytes("audio_segment_3", 0, C.LENGTH_UNSET)).isEqualTo(0);
+  }
+
   @Test
   public void downloadRepresentationInSmallParts() throws Exception {
     FakeDataSet fakeDataSet =
@@ -152,6 +185,170 @@ public class DashDownloaderTest {
     assertCachedData(cache, new RequestSet(fakeDataSet).useBoundedDataSpecFor("audio_init_data"));
   }
 
+  @Test
+  public void downloadRepresentations_withMultiThreadedExecutor() throws Exception {
+    FakeDataSet fakeDataSet =
+        new FakeDataSet()
+            .setData(TEST_MPD_URI, TEST_MPD)
+            .setRandomData("audio_init_data", 10)
+            .setRandomData("audio_segment_1", 4)
+            .setRandomData("audio_segment_2", 5)
+            .setRandomData("audio_segment_3", 6)
+            .setRandomData("text_segment_1", 1)
+            .setRandomData("text_segment_2", 2)
+            .setRandomData("text_segment_3", 3);
+
+    ExecutorService executorService = Executors.newFixedThreadPool(/* nThreads= */ 3);
+    try {
+      DashDownloader dashDownloader =
+          getDashDownloader(
+              new FakeDataSource.Factory().setFakeDataSet(fakeDataSet),
+              executorService,
+              new StreamKey(0, 0, 0),
+              new StreamKey(0, 1, 0));
+      dashDownloader.download(progressListener);
+    } finally {
+      executorService.shutdown();
+    }
+    assertCachedData(cache, new RequestSet(fakeDataSet).useBoundedDataSpecFor("audio_init_data"));
+    progressListener.assertBytesDownloaded(10 + 4 + 5 + 6 + 1 + 2 + 3);
+  }
+
+  @Test
+  public void downloadRepresentations_withMaxParallelSegmentDownloads_limitsSegmentsInFlight()
+      throws Exception {
+    FakeDataSet fakeDataSet =
+        new FakeDataSet()
+            .setData(TEST_MPD_URI, TEST_MPD)
+            .setRandomData("audio_init_data", 10)
+            .setRandomData("audio_segment_1", 4)
+            .setRandomData("audio_segment_2", 5)
+            .setRandomData("audio_segment_3", 6)
+            .setRandomData("text_segment_1", 1)
+            .setRandomData("text_segment_2", 2)
+            .setRandomData("text_segment_3", 3);
+    InFlightCountingDataSourceFactory dataSourceFactory =
+        new InFlightCountingDataSourceFactory(
+            new FakeDataSource.Factory().setFakeDataSet(fakeDataSet),
+            /* targetInFlightCount= */ 3);
+
+    ExecutorService executorService = Executors.newCachedThreadPool();
+    try {
+      DashDownloader dashDownloader =
+          getDashDownloader(
+              dataSourceFactory, executorService, new StreamKey(0, 0, 0), new StreamKey(0, 1, 0));
+      dashDownloader.setMaxParallelSegmentDownloads(2);
+      dashDownloader.download(progressListener);
+    } finally {
+      executorService.shutdown();
+    }
+    assertCachedData(cache, new RequestSet(fakeDataSet).useBoundedDataSpecFor("audio_init_data"));
+    assertThat(dataSourceFactory.getMaxInFlightCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void downloadRepresentations_withPriorityTooLow_reschedulesSegment()
+      throws Exception {
+    FakeDataSet fakeDataSet =
+        new FakeDataSet()
+            .setData(TEST_MPD_URI, TEST_MPD)
+            .setRandomData("audio_init_data", 10)
+            .setRandomData("audio_segment_1", 4)
+            .newData("audio_segment_2")
+            .appendReadData(TestUtil.buildTestData(2))
+            .appendReadError(new PriorityTooLowException(C.PRIORITY_DOWNLOAD, C.PRIORITY_PLAYBACK))
+            .appendReadData(TestUtil.buildTestData(3))
+            .endData()
+            .setRandomData("audio_segment_3", 6)
+            .setRandomData("text_segment_1", 1)
+            .setRandomData("text_segment_2", 2)
+            .setRandomData("text_segment_3", 3);
+
+    ExecutorService executorService = Executors.newFixedThreadPool(/* nThreads= */ 3);
+    try {
+      DashDownloader dashDownloader =
+          getDashDownloader(
+              new FakeDataSource.Factory().setFakeDataSet(fakeDataSet),
+              executorService,
+              new StreamKey(0, 0, 0),
+              new StreamKey(0, 1, 0));
+      dashDownloader.download(progressListener);
+    } finally {
+      executorService.shutdown();
+    }
+    assertCachedData(cache, new RequestSet(fakeDataSet).useBoundedDataSpecFor("audio_init_data"));
+  }
+
+  @Test
+  public void downloadRepresentations_withMultiThreadedExecutor_segmentFailure() throws Exception {
+    FakeDataSet fakeDataSet =
+        new FakeDataSet()
+            .setData(TEST_MPD_URI, TEST_MPD)
+            .setRandomData("audio_init_data", 10)
+            .setRandomData("audio_segment_1", 4)
+            .newData("audio_segment_2")
+            .appendReadData(TestUtil.buildTestData(2))
+            .appendReadError(new IOException())
+            .appendReadData(TestUtil.buildTestData(3))
+            .endData()
+            .setRandomData("audio_segment_3", 6)
+            .setRandomData("text_segment_1", 1)
+            .setRandomData("text_segment_2", 2)
+            .setRandomData("text_segment_3", 3);
+
+    ExecutorService executorService = Executors.newFixedThreadPool(/* nThreads= */ 3);
+    try {
+      DashDownloader dashDownloader =
+          getDashDownloader(
+              new FakeDataSource.Factory().setFakeDataSet(fakeDataSet),
+              executorService,
+              new StreamKey(0, 0, 0),
+              new StreamKey(0, 1, 0));
+      assertThrows(IOException.class, () -> dashDownloader.download(progressListener));
+      dashDownloader.download(progressListener);
+    } finally {
+      executorService.shutdown();
+    }
+    assertCachedData(cache, new RequestSet(fakeDataSet).useBoundedDataSpecFor("audio_init_data"));
+  }
+
+  @Test
+  public void downloadRepresentations_withMultiThreadedExecutor_cancel() throws Exception {
+    AtomicReference<DashDownloader> dashDownloader = new AtomicReference<>();
+    FakeDataSet fakeDataSet =
+        new FakeDataSet()
+            .setData(TEST_MPD_URI, TEST_MPD)
+            .setRandomData("audio_init_data", 10)
+            .newData("audio_segment_1")
+            .appendReadData(TestUtil.buildTestData(2))
+            .appendReadAction(() -> checkNotNull(dashDownloader.get()).cancel())
+            .appendReadData(TestUtil.buildTestData(2))
+            .appendReadData(TestUtil.buildTestData(2))
+            .endData()
+            .setRandomData("audio_segment_2", 5)
+            .setRandomData("audio_segment_3", 6)
+            .setRandomData("text_segment_1", 1)
+            .setRandomData("text_segment_2", 2)
+            .setRandomData("text_segment_3", 3);
+
+    ExecutorService executorService = Executors.newFixedThreadPool(/* nThreads= */ 3);
+    try {
+      dashDownloader.set(
+          getDashDownloader(
+              new FakeDataSource.Factory().setFakeDataSet(fakeDataSet),
+              executorService,
+              new StreamKey(0, 0, 0),
+              new StreamKey(0, 1, 0)));
+      // Returns without throwing once the segment downloads in flight have stopped.
+      dashDownloader.get().download(progressListener);
+    } finally {
+      executorService.shutdown();
+    }
+    assertThat(progressListener.bytesDownloaded).isLessThan(10 + 6 + 5 + 6 + 1 + 2 + 3);
+    assertThat(cache.getCachedBytes("audio_segment_1", /* position= */ 0, /* length= */ 6))
+        .isLessThan(6);
+  }
+
   @Test
   public void downloadAllRepresentations() throws Exception {
     FakeDataSet fakeDataSet =
@@ -334,13 +531,19 @@ public class DashDownloaderTest {
 
   private DashDownloader getDashDownloader(
       FakeDataSource.Factory upstreamDataSourceFactory, StreamKey... keys) {
+    return getDashDownloader(upstreamDataSourceFactory, Runnable::run, keys);
+  }
+
+  private DashDownloader getDashDownloader(
+      DataSource.Factory upstreamDataSourceFactory, Executor executor, StreamKey... keys) {
     CacheDataSource.Factory cacheDataSourceFactory =
         new CacheDataSource.Factory()
             .setCache(cache)
             .setUpstreamDataSourceFactory(upstreamDataSourceFactory);
     return new DashDownloader(
         new MediaItem.Builder().setUri(TEST_MPD_URI).setStreamKeys(keysList(keys)).build(),
-        cacheDataSourceFactory);
+        cacheDataSourceFactory,
+        executor);
   }
 
   private static ArrayList<StreamKey> keysList(StreamKey... keys) {
@@ -351,7 +554,7 @@ public class DashDownloaderTest {
 
   private static final class ProgressListener implements Downloader.ProgressListener {
 
-    private long bytesDownloaded;
+    private volatile long bytesDownloaded;
 
     @Override
     public void onProgress(long contentLength, long bytesDownloaded, float percentDownloaded) {
@@ -362,4 +565,96 @@ public class DashDownloaderTest {
       assertThat(this.bytesDownloaded).isEqualTo(bytesDownloaded);
     }
   }
+
+  /**
+   * Counts the segment loads that are open at the same time. Each segment load waits a short time
+   * for a target number of loads to be open, so that loads overlap as much as the downloader allows
+   * them to.
+   */
+  private static final class InFlightCountingDataSourceFactory implements DataSource.Factory {
+
+    private static final long WAIT_FOR_OTHER_LOADS_TIMEOUT_MS = 200;
+
+    private final DataSource.Factory upstreamDataSourceFactory;
+    private final int targetInFlightCount;
+
+    // Guarded by this.
+    private int inFlightCount;
+    private int maxInFlightCount;
+
+    public InFlightCountingDataSourceFactory(
+        DataSource.Factory upstreamDataSourceFactory, int targetInFlightCount) {
+      this.upstreamDataSourceFactory = upstreamDataSourceFactory;
+      this.targetInFlightCount = targetInFlightCount;
+    }
+
+    public synchronized int getMaxInFlightCount() {
+      return maxInFlightCount;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+      DataSource upstream = upstreamDataSourceFactory.createDataSource();
+      return new DataSource() {
+
+        private boolean counted;
+
+        @Override
+        public void addTransferListener(TransferListener transferListener) {
+          upstream.addTransferListener(transferListener);
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+          long length = upstream.open(dataSpec);
+          if (!dataSpec.uri.toString().equals(TEST_MPD_URI.toString())) {
+            counted = true;
+            onLoadOpened();
+          }
+          return length;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+          return upstream.read(buffer, offset, readLength);
+        }
+
+        @Nullable
+        @Override
+        public Uri getUri() {
+          return upstream.getUri();
+        }
+
+        @Override
+        public void close() throws IOException {
+          if (counted) {
+            counted = false;
+            onLoadClosed();
+          }
+          upstream.close();
+        }
+      };
+    }
+
+    private synchronized void onLoadOpened() throws InterruptedIOException {
+      inFlightCount++;
+      maxInFlightCount = max(maxInFlightCount, inFlightCount);
+      notifyAll();
+      long deadlineMs = System.currentTimeMillis() + WAIT_FOR_OTHER_LOADS_TIMEOUT_MS;
+      long remainingMs = WAIT_FOR_OTHER_LOADS_TIMEOUT_MS;
+      while (inFlightCount < targetInFlightCount && remainingMs > 0) {
+        try {
+          wait(remainingMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+        remainingMs = deadlineMs - System.currentTimeMillis();
+      }
+    }
+
+    private synchronized void onLoadClosed() {
+      inFlightCount--;
+    }
+  }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source.dash.offline;
+
+import static com.google.android.exoplayer2.source.dash.offline.DashDownloadTestData.TEST_MPD;
+import static com.google.android.exoplayer2.source.dash.offline.DashDownloadTestData.TEST_MPD_URI;
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.MediaItem;
+import com.google.android.exoplayer2.offline.PlaylistCachePrefetcher;
+import com.google.android.exoplayer2.offline.StreamKey;
+import com.google.android.exoplayer2.testutil.FakeDataSet;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.NoOpCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.Util;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests prefetching DASH media items with {@link PlaylistCachePrefetcher}. */
+@RunWith(AndroidJUnit4.class)
+public final class PlaylistCachePrefetcherDashTest {
+
+  private static final long TIMEOUT_MS = 10_000;
+
+  private File tempFolder;
+  private SimpleCache cache;
+  private PlaylistCachePrefetcher prefetcher;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFolder =
+        Util.createTempDirectory(ApplicationProvider.getApplicationContext(), "ExoPlayerTest");
+    cache = new SimpleCache(tempFolder, new NoOpCacheEvictor());
+    FakeDataSet fakeDataSet =
+        new FakeDataSet()
+            .setData(TEST_MPD_URI, TEST_MPD)
+            .setRandomData("audio_init_data", 10)
+            .setRandomData("audio_segment_1", 4)
+            .setRandomData("audio_segment_2", 5)
+            .setRandomData("audio_segment_3", 6)
+            .setRandomData("progressive", 100);
+    CacheDataSource.Factory cacheDataSourceFactory =
+        new CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(new FakeDataSource.Factory().setFakeDataSet(fakeDataSet));
+    prefetcher = new PlaylistCachePrefetcher(cacheDataSourceFactory);
+  }
+
+  @After
+  public void tearDown() {
+    prefetcher.release();
+    cache.release();
+    Util.recursiveDelete(tempFolder);
+  }
+
+  @Test
+  public void prefetch_cachesSegmentsStartingWithinDuration() throws Exception {
+    prefetcher.setDuration(/* durationMs= */ 6000, /* assumedBitrate= */ 800);
+    MediaItem dashItem =
+        new MediaItem.Builder()
+            .setUri(TEST_MPD_URI)
+            .setMimeType(MimeTypes.APPLICATION_MPD)
+            .setStreamKeys(ImmutableList.of(new StreamKey(0, 0, 0)))
+            .build();
+
+    prefetcher.prefetch(ImmutableList.of(dashItem, MediaItem.fromUri("progressive")));
+
+    // Items are prefetched in order, so the DASH item is done once the progressive item is cached.
+    waitForCachedBytes("progressive", 100);
+    assertThat(cache.getCachedBytes("audio_init_data", 0, C.LENGTH_UNSET)).isEqualTo(10);
+    assertThat(cache.getCachedBytes("audio_segment_1", 0, C.LENGTH_UNSET)).isEqualTo(4);
+    assertThat(cache.getCachedBytes("audio_segment_2", 0, C.LENGTH_UNSET)).isEqualTo(5);
+    // The third segment starts at 10 seconds.
+    assertThat(cache.getCachedBytes("audio_segment_3", 0, C.LENGTH_UNSET)).isEqualTo(0);
+  }
+
+  private void waitForCachedBytes(String key, long bytes) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (cache.getCachedBytes(key, 0, C.LENGTH_UNSET) < bytes
+        && System.currentTimeMillis() < deadlineMs) {
+      Thread.sleep(10);
+    }
+    assertThat(cache.getCachedBytes(key, 0, C.LENGTH_UNSET)).isEqualTo(bytes);
+  }
+}
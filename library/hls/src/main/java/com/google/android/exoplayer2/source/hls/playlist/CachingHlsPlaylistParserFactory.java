@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.source.hls.playlist;
+
+import com.google.android.exoplayer2.upstream.ParsedManifestCache;
+import com.google.android.exoplayer2.upstream.ParsingLoadable;
+
+/**
+ * A {@link HlsPlaylistParserFactory} whose parsers return playlists from a {@link
+ * ParsedManifestCache}.
+ */
+public final class CachingHlsPlaylistParserFactory implements HlsPlaylistParserFactory {
+
+  private final HlsPlaylistParserFactory hlsPlaylistParserFactory;
+  private final ParsedManifestCache parsedManifestCache;
+
+  /**
+   * @param hlsPlaylistParserFactory A factory for the parsers of playlists that aren't cached.
+   * @param parsedManifestCache The cache of parsed playlists.
+   */
+  public CachingHlsPlaylistParserFactory(
+      HlsPlaylistParserFactory hlsPlaylistParserFactory, ParsedManifestCache parsedManifestCache) {
+    this.hlsPlaylistParserFactory = hlsPlaylistParserFactory;
+    this.parsedManifestCache = parsedManifestCache;
+  }
+
+  @Override
+  public ParsingLoadable.Parser<HlsPlaylist> createPlaylistParser() {
+    return parsedManifestCache.wrap(hlsPlaylistParserFactory.createPlaylistParser());
+  }
+
+  @Override
+  public ParsingLoadable.Parser<HlsPlaylist> createPlaylistParser(
+      HlsMasterPlaylist masterPlaylist) {
+    return parsedManifestCache.wrap(hlsPlaylistParserFactory.createPlaylistParser(masterPlaylist));
+  }
+}